@@ -0,0 +1,260 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * A ThreadPoolExecutor that measures how long tasks wait in the queue and
+ * how long they take to run, and periodically resizes the pool between a
+ * minimum and maximum size.<br>
+ * Every sample interval the controller estimates the number of threads
+ * needed to sustain the observed throughput using Little's law
+ * (throughput * mean service time) plus some headroom. If the mean queue
+ * wait exceeds the target wait the pool is grown by at least 25%, if the
+ * mean wait is well below the target the pool is shrunk by at most one
+ * thread per interval so that it does not oscillate.<br>
+ * The controller adjusts the core pool size (which is the effective pool
+ * size when the work queue is unbounded). The maximum pool size is kept at
+ * the configured maximum so that a bounded work queue can still overflow
+ * into extra threads.
+ * @see Httpd#setAdaptiveThreadPool
+ * @author Donald Munro
+ */
+public class AdaptiveThreadPoolExecutor extends ThreadPoolExecutor
+//================================================================
+{
+   /**
+    * A task that records when it was queued.
+    */
+   static private class TimedTask implements Runnable
+   //================================================
+   {
+      final Runnable m_task;
+      final long     m_queued = System.nanoTime();
+      long           m_started = 0;
+
+      TimedTask(Runnable task) { m_task = task; }
+
+      public void run() { m_task.run(); }
+   }
+
+   /**
+    * Extra fraction of threads over the Little's law estimate.
+    */
+   static private final double HEADROOM = 0.25;
+
+   protected int                 m_minSize       = 1;
+
+   protected int                 m_maxSize       = 50;
+
+   /**
+    * The target mean queue wait in nanoseconds.
+    */
+   protected long                m_targetWait    = 0;
+
+   /**
+    * The sample interval in milliseconds.
+    */
+   protected long                m_interval      = 1000;
+
+   private AtomicLong            m_completed     = new AtomicLong(0);
+
+   private AtomicLong            m_waitTotal     = new AtomicLong(0);
+
+   private AtomicLong            m_serviceTotal  = new AtomicLong(0);
+
+   private volatile double       m_meanWait      = 0;
+
+   private volatile double       m_meanService   = 0;
+
+   private volatile double       m_throughput    = 0;
+
+   private Thread                m_controller    = null;
+
+   private ThreadLocal<TimedTask> m_current      = new ThreadLocal<TimedTask>();
+
+   /**
+    * Create an AdaptiveThreadPoolExecutor.
+    * @param minSize The minimum pool size. The pool starts at this size.
+    * @param maxSize The maximum pool size.
+    * @param targetWait The target mean time (in milliseconds) that tasks
+    * wait in the queue before being run.
+    * @param interval The sample interval in milliseconds.
+    * @param queue The work queue
+    * @param threadFactory The ThreadFactory used to create pool threads
+    * @param handler Handler for rejected tasks
+    */
+   public AdaptiveThreadPoolExecutor(int minSize, int maxSize,
+                                     long targetWait, long interval,
+                                     BlockingQueue<Runnable> queue,
+                                     ThreadFactory threadFactory,
+                                     RejectedExecutionHandler handler)
+   //---------------------------------------------------------------------
+   {
+      super(Math.max(minSize, 1), Math.max(maxSize, Math.max(minSize, 1)),
+            50000L, TimeUnit.MILLISECONDS, queue, threadFactory, handler);
+      m_minSize = getCorePoolSize();
+      m_maxSize = getMaximumPoolSize();
+      m_targetWait = TimeUnit.MILLISECONDS.toNanos(Math.max(targetWait, 1));
+      m_interval = Math.max(interval, 10);
+      m_controller = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            while (! isShutdown())
+            {
+               try
+               {
+                  Thread.sleep(m_interval);
+               }
+               catch (InterruptedException e)
+               {
+                  break;
+               }
+               try
+               {
+                  adjust();
+               }
+               catch (Throwable t)
+               {
+                  Httpd.Log(LogLevel.ERROR, "Adjusting thread pool", t);
+               }
+            }
+         }
+      }, "Httpd:PoolController");
+      m_controller.setDaemon(true);
+      m_controller.start();
+   }
+
+   /**
+    * @return The mean queue wait (in milliseconds) over the last sample
+    * interval.
+    */
+   public double getMeanWait() { return m_meanWait; }
+
+   /**
+    * @return The mean task service time (in milliseconds) over the last
+    * sample interval.
+    */
+   public double getMeanService() { return m_meanService; }
+
+   /**
+    * @return The task completion rate (per second) over the last sample
+    * interval.
+    */
+   public double getThroughput() { return m_throughput; }
+
+   @Override
+   public void execute(Runnable command)
+   //-----------------------------------
+   {
+      if (command == null) throw new NullPointerException();
+      super.execute(new TimedTask(command));
+   }
+
+   @Override
+   protected void beforeExecute(Thread t, Runnable r)
+   //------------------------------------------------
+   {
+      super.beforeExecute(t, r);
+      if (r instanceof TimedTask)
+      {
+         TimedTask task = (TimedTask) r;
+         task.m_started = System.nanoTime();
+         m_waitTotal.addAndGet(task.m_started - task.m_queued);
+         m_current.set(task);
+      }
+   }
+
+   @Override
+   protected void afterExecute(Runnable r, Throwable t)
+   //--------------------------------------------------
+   {
+      TimedTask task = m_current.get();
+      if (task != null)
+      {
+         m_current.remove();
+         m_serviceTotal.addAndGet(System.nanoTime() - task.m_started);
+         m_completed.incrementAndGet();
+      }
+      super.afterExecute(r, t);
+   }
+
+   @Override
+   protected void terminated()
+   //-------------------------
+   {
+      m_controller.interrupt();
+      super.terminated();
+   }
+
+   /**
+    * Called by the controller thread every sample interval to resize the
+    * pool.
+    */
+   protected void adjust()
+   //---------------------
+   {
+      long completed = m_completed.getAndSet(0);
+      long waitTotal = m_waitTotal.getAndSet(0);
+      long serviceTotal = m_serviceTotal.getAndSet(0);
+      int core = getCorePoolSize();
+      int target = core;
+      if (completed == 0)
+      {
+         m_meanWait = m_meanService = m_throughput = 0;
+         if (getQueue().isEmpty())
+            target = core - 1;
+         else
+            target = core + Math.max(1, core / 4); // Queued but nothing finished
+      }
+      else
+      {
+         double meanWait = (double) waitTotal / completed;
+         double meanService = (double) serviceTotal / completed;
+         double throughput = completed * 1000.0 / m_interval;
+         m_meanWait = meanWait / 1000000.0;
+         m_meanService = meanService / 1000000.0;
+         m_throughput = throughput;
+         int needed = (int) Math.ceil(throughput * (meanService / 1000000000.0)
+                                      * (1 + HEADROOM));
+         if (meanWait > m_targetWait)
+            target = Math.max(needed, core + Math.max(1, core / 4));
+         else if (meanWait < m_targetWait / 2)
+            target = Math.max(needed, core - 1);
+      }
+      target = Math.max(m_minSize, Math.min(m_maxSize, target));
+      if (target != core)
+      {
+         setCorePoolSize(target);
+         Httpd.Log(LogLevel.DEBUG, "Thread pool resized from " + core + " to " +
+                   target + " (wait " + m_meanWait + "ms, service " + 
+                   m_meanService + "ms, " + m_throughput + "/s)", null);
+      }
+   }
+}
@@ -171,9 +171,13 @@ public class ArchiveCombinedRequest extends CombinedRequest implements Cloneable
        if ( (! refresh) && (m_eTag != null) )
          return m_eTag;
       DirItemInterface[] items = new DirItemInterface[m_requestFiles.size()];
+      StringBuilder key = new StringBuilder();
       for (int i=0;i <m_requestFiles.size(); i++)
+      {
          items[i] = new ArchiveRequest.DirItem(m_requestFiles.get(i));
-      m_eTag = Http.eTag(items);
+         key.append(m_requestFiles.get(i).getPath()).append(';');
+      }
+      m_eTag = eTag(key.toString(), items);
       return m_eTag;
    }
    
@@ -27,6 +27,10 @@ import java.net.URLClassLoader;
 import com.sun.net.httpserver.HttpHandler;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Implementation of the abstract Httpd class for web content in a
@@ -41,10 +45,22 @@ public class ArchiveHttpd extends Httpd implements HttpHandleable, Postable
     * Compressed file containing web content. Prefarably jar but can also be
     * zip, tar, tar.gz or tar.bz2
     */
-   protected File                        m_archiveDirectory =null;   
+   protected volatile File               m_archiveDirectory =null;   
       
    protected java.io.File                m_altFileSystemHome = null;
 
+   protected boolean                     m_isDeflatePassThrough = true;
+
+   protected boolean                     m_isArchiveIndexed = true;
+
+   private volatile ArchiveIndex         m_archiveIndex = null;
+
+   private volatile boolean              m_isArchiveIndexMounted = false;
+
+   private volatile Thread               m_archiveWatcher = null;
+
+   private long                          m_archiveWatchInterval = 0;
+
       
    /**
     * Constructor with a home resource location. Assumes the content is in a jar 
@@ -91,7 +107,7 @@ public class ArchiveHttpd extends Httpd implements HttpHandleable, Postable
     * Constructor with a home resource location and a thread model. Assumes the content is in a jar 
     * in the classpath and will search the classpath to attempt to find the jar.
     * @param archiveDirName The base directory in the jar where content is located
-    * @param threadModel The thread model to use (SINGLE, MULTI or POOL)
+    * @param threadModel The thread model to use (SINGLE, MULTI, POOL or VIRTUAL)
     */
    public ArchiveHttpd(String archiveDirName, ThreadModel threadModel)
           throws FileNotFoundException
@@ -107,7 +123,7 @@ public class ArchiveHttpd extends Httpd implements HttpHandleable, Postable
     * Constructor with a jar file, home resource location and a thread model
     * @param archiveFile A content Jar file containing directory homeDir.
     * @param archiveDirName The base directory in the jar where content is located    
-    * @param threadModel The thread model to use (SINGLE, MULTI or POOL)
+    * @param threadModel The thread model to use (SINGLE, MULTI, POOL or VIRTUAL)
     * @throws java.io.FileNotFoundException 
     */
    public ArchiveHttpd(java.io.File archiveFile, String archiveDirName, 
@@ -207,14 +223,217 @@ public class ArchiveHttpd extends Httpd implements HttpHandleable, Postable
       return null;
    }
    
+   /**
+    * Replace the archive served by the Httpd (@see #swapArchive) on the 
+    * calling thread.
+    * @param archiveFile The archive
+    * @param archiveDirName The base directory in the archive
+    * @throws java.io.FileNotFoundException If the archive or the base 
+    * directory within it was not found (the current archive is still 
+    * served).
+    */
    public void setJarDirectory(java.io.File archiveFile, String archiveDirName)
           throws FileNotFoundException
    //-----------------------------------------------------------------------
    {
-      m_archiveDirectory = new de.schlichtherle.io.File(archiveFile, archiveDirName);
-      if ( (! m_archiveDirectory.exists()) ||  (! m_archiveDirectory.isArchive()) )
-         throw new FileNotFoundException(archiveDirName + " not found in " +
+      _swap(archiveFile, archiveDirName);
+   }
+
+   /**
+    * Replace the archive served by the Httpd without restarting it. The new
+    * archive is opened and indexed (@see #setArchiveIndexed) on a background
+    * thread and then swapped in atomically: requests received after the 
+    * swap are served from the new archive while requests which are being 
+    * handled complete using the previous archive. The new archive may be a
+    * different file or may replace the current file (it should be renamed
+    * over the current file and not rewritten in place). Cached content of
+    * entries whose CRC and size are unchanged remains valid after the swap
+    * so unchanged entries do not have to be reread or recompressed.
+    * @param archiveFile The new archive
+    * @param archiveDirName The base directory in the new archive
+    * @return A Future whose result is true once the new archive is served
+    * or false if the archive or the base directory within it was not found.
+    * @see #setArchiveWatch
+    */
+   public Future<Boolean> swapArchive(final java.io.File archiveFile, 
+                                      final String archiveDirName)
+   //--------------------------------------------------------------------
+   {
+      FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>()
+      {
+         public Boolean call()
+         {
+            try
+            {
+               _swap(archiveFile, archiveDirName);
+               return true;
+            }
+            catch (FileNotFoundException e)
+            {
+               Httpd.Log(LogLevel.ERROR, "Swapping archive " + archiveFile, e);
+               return false;
+            }
+         }
+      });
+      Thread t = new Thread(task, "Httpd:" + m_port + ":swap");
+      t.setDaemon(true);
+      t.start();
+      return task;
+   }
+
+   /**
+    * Watch the archive file for changes and swap in the new archive (@see
+    * #swapArchive) once the file has been replaced and has not changed for
+    * one interval. The file is polled on a background thread.
+    * @param interval The interval in milliseconds between checks of the
+    * archive file or 0 to stop watching.
+    */
+   public synchronized void setArchiveWatch(long interval)
+   //-----------------------------------------------------
+   {
+      m_archiveWatchInterval = Math.max(interval, 0);
+      Thread watcher = m_archiveWatcher;
+      m_archiveWatcher = null;
+      if (watcher != null) watcher.interrupt();
+      if (m_archiveWatchInterval == 0) return;
+      final long sleep = m_archiveWatchInterval;
+      watcher = new Thread(new Runnable()
+      {
+         public void run() { _watch(sleep); }
+      }, "Httpd:" + m_port + ":watch");
+      watcher.setDaemon(true);
+      watcher.setPriority(Thread.NORM_PRIORITY - 1);
+      m_archiveWatcher = watcher;
+      watcher.start();
+   }
+
+   public synchronized long getArchiveWatch() { return m_archiveWatchInterval; }
+
+   private void _watch(long interval)
+   //--------------------------------
+   {
+      java.io.File file = null;
+      long lastModified = 0, length = 0, seenModified = 0, seenLength = 0;
+      while (m_archiveWatcher == Thread.currentThread())
+      {
+         java.io.File current = new java.io.File(getArchiveFileName());
+         if (! current.equals(file))
+         {
+            // Started or swapped through the API
+            file = current;
+            seenModified = lastModified = file.lastModified();
+            seenLength = length = file.length();
+         }
+         try
+         {
+            Thread.sleep(interval);
+         }
+         catch (InterruptedException e)
+         {
+            break;
+         }
+         if (m_archiveWatcher != Thread.currentThread()) break;
+         long modified = file.lastModified(), size = file.length();
+         if ( (modified == lastModified) && (size == length) ) continue;
+         if ( (modified == 0) || (modified != seenModified) || 
+              (size != seenLength) )
+         {
+            // Wait until the file has not changed for an interval
+            seenModified = modified;
+            seenLength = size;
+            continue;
+         }
+         lastModified = modified;
+         length = size;
+         try
+         {
+            _swap(file, getArchiveDirectoryName());
+            if (m_isVerbose)
+               Httpd.Log(LogLevel.INFO, "Swapped in " + file, null);
+         }
+         catch (Exception e)
+         {
+            Httpd.Log(LogLevel.ERROR, "Swapping archive " + file, e);
+         }
+      }
+   }
+
+   /**
+    * Open and index a new archive and then swap it in atomically.
+    */
+   private void _swap(java.io.File archiveFile, String archiveDirName)
+           throws FileNotFoundException
+   //-----------------------------------------------------------------
+   {
+      if ( (archiveDirName == null) || (archiveDirName.trim().length() == 0) )
+         archiveDirName = "/";
+      archiveDirName = archiveDirName.trim();
+      File directory = new File(archiveFile, archiveDirName);
+      File archive = directory.getTopLevelArchive();
+      if (archive == null)
+         throw new FileNotFoundException(archiveFile.getAbsolutePath() + 
+                                         " not found");
+      ArchiveIndex index = null;
+      File inner = directory.getInnerArchive();
+      if ( (m_isArchiveIndexed) && (inner != null) && 
+           (inner.getEnclArchive() == null) )
+         index = ArchiveIndex.getIndex(
+                                 new java.io.File(archive.getAbsolutePath()));
+      boolean exists;
+      if (index != null)
+      {
+         ArchiveIndex.Entry entry = 
+                                 index.getEntry(directory.getInnerEntryName());
+         exists = ( (entry != null) && (entry.isDirectory()) );
+      }
+      else
+      {
+         // Discard TrueZip's state if the archive file has been replaced
+         _unmount(archive);
+         exists = ( (directory.exists()) && 
+                    ( (archiveDirName.compareTo("/") == 0) || 
+                      (directory.getEnclArchive() != null) ) );
+      }
+      if (! exists)
+         throw new FileNotFoundException(archiveDirName + " not found in " + 
                                          archiveFile.getAbsolutePath());
+      File previous;
+      synchronized (this)
+      {
+         previous = m_archiveDirectory;
+         m_archiveDirectory = directory;
+         m_archiveIndex = index;
+         m_isArchiveIndexMounted = (index != null);
+         if (m_requestHandler instanceof ArchiveRequestHandler)
+            ((ArchiveRequestHandler) m_requestHandler).setHomeDir(directory);
+      }
+      File previousArchive = (previous == null) ? null 
+                                                : previous.getTopLevelArchive();
+      if ( (previousArchive != null) && (index != null) )
+      {
+         _unmount(previousArchive);
+         if (! previousArchive.getAbsolutePath().equals(
+                                                  archive.getAbsolutePath()))
+            ArchiveIndex.remove(
+                         new java.io.File(previousArchive.getAbsolutePath()));
+      }
+   }
+
+   /**
+    * Discard TrueZip's cached state of an archive, waiting for streams 
+    * which are open on the archive to be closed.
+    */
+   static private void _unmount(File archive)
+   //----------------------------------------
+   {
+      try
+      {
+         File.umount(archive, true, false, true, false);
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(LogLevel.DEBUG, "Unmounting " + archive, e);
+      }
    }
    
    @Override
@@ -228,6 +447,64 @@ public class ArchiveHttpd extends Httpd implements HttpHandleable, Postable
    }
    
    public  java.io.File getAltFileSystemHome() { return m_altFileSystemHome; }
+
+   /**
+    * If true (the default) deflated entries of a zip or jar archive are sent
+    * to clients which accept gzip or deflate encoding without inflating and
+    * recompressing them (@see ZipIndex). Requires the archive index (@see 
+    * #setArchiveIndexed).
+    * @param isPassThrough true to enable deflate pass through
+    */
+   public void setDeflatePassThrough(boolean isPassThrough)
+   //------------------------------------------------------
+   {
+      m_isDeflatePassThrough = isPassThrough;
+   }
+
+   public boolean isDeflatePassThrough() { return m_isDeflatePassThrough; }
+
+   /**
+    * If true (the default) the archive is read into an index (@see 
+    * ArchiveIndex) the first time it is required and requests for entries
+    * which are not in nested archives are served from the index instead of
+    * through TrueZip. The central directory of zip and jar files is indexed
+    * (@see ZipIndex) while tar, tar.gz and tar.bz2 files are decoded once
+    * into a memory mapped file (@see TarIndex).
+    * @param isIndexed true to serve the archive from the archive index
+    */
+   public synchronized void setArchiveIndexed(boolean isIndexed)
+   //-----------------------------------------------------------
+   {
+      m_isArchiveIndexed = isIndexed;
+      m_archiveIndex = null;
+      m_isArchiveIndexMounted = false;
+   }
+
+   public boolean isArchiveIndexed() { return m_isArchiveIndexed; }
+
+   /**
+    * @return The index of the archive or null if the archive could not be
+    * indexed or indexing is disabled (@see #setArchiveIndexed).
+    */
+   public ArchiveIndex getArchiveIndex()
+   //-----------------------------------
+   {
+      if ( (! m_isArchiveIndexed) || (m_archiveDirectory == null) ) 
+         return null;
+      if (m_isArchiveIndexMounted) return m_archiveIndex;
+      synchronized (this)
+      {
+         if (! m_isArchiveIndexMounted)
+         {
+            File archive = m_archiveDirectory.getTopLevelArchive();
+            if (archive != null)
+               m_archiveIndex = ArchiveIndex.getIndex(
+                                 new java.io.File(archive.getAbsolutePath()));
+            m_isArchiveIndexMounted = true;
+         }
+         return m_archiveIndex;
+      }
+   }
    
    @Override
    protected HttpHandler onCreateRequestHandler()
@@ -241,6 +518,46 @@ public class ArchiveHttpd extends Httpd implements HttpHandleable, Postable
       return handler;
    }
    
+   /**
+    * Submits a request for every file below the home directory in the 
+    * archive.
+    * @see Httpd#setPrecompression
+    */
+   @Override
+   protected void onPrecompress(Precompressor precompressor)
+   //-------------------------------------------------------
+   {
+      _precompress(precompressor, m_archiveDirectory, "/", 0);
+   }
+
+   private void _precompress(Precompressor precompressor, File dir, 
+                             String path, int depth)
+   //--------------------------------------------------------------
+   {
+      java.io.File[] files = dir.listFiles();
+      if ( (files == null) || (depth > 64) ) return;
+      for (java.io.File file : files)
+      {
+         if (precompressor.isCancelled()) return;
+         File f = (File) file;
+         String uri = path + f.getName();
+         if ( (f.isDirectory()) && (! f.isArchive()) )
+            _precompress(precompressor, f, uri + "/", depth + 1);
+         else if (f.isFile())
+         {
+            try
+            {
+               precompressor.submit(new ArchiveRequest(this, m_archiveDirectory,
+                                              new URI(null, null, uri, null)));
+            }
+            catch (URISyntaxException e)
+            {
+               Httpd.Log(LogLevel.DEBUG, "Precompressing " + f, e);
+            }
+         }
+      }
+   }
+   
    private File findJarInCP(String homeDir) throws FileNotFoundException
    //--------------------------------------------------------------------
    {
@@ -0,0 +1,512 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.InflaterInputStream;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * An immutable index of the entries of an archive file which is used to
+ * serve archive content without going through the TrueZip virtual file
+ * system (@see ArchiveHttpd#setArchiveIndexed). The archive is read once
+ * when the index is created and all metadata lookups (existence, size,
+ * modification time and directory listings) are then hash lookups.
+ * Directories which are implied by entry names but do not have their own
+ * entries are synthesized.<br>
+ * Zip and jar files are indexed from their central directory (@see
+ * ZipIndex) and tar files (optionally gzip or bzip2 compressed) are decoded
+ * into a memory mapped file (@see TarIndex).<br>
+ * Indexes are shared (@see #getIndex) and rebuilt when the archive file
+ * changes. Only the code which mounts an archive (@see ArchiveHttpd) should
+ * rebuild an index, other code looks up the shared index (@see #findIndex)
+ * so that it does not replace the index which is being served while the
+ * archive is being redeployed. An index which has been replaced or removed
+ * is retired and closed
+ * (@see #close) once the entry streams which are open on it (@see #acquire)
+ * have been closed.
+ * @author Donald Munro
+ */
+abstract public class ArchiveIndex
+//================================
+{
+   static public final int    STORED   = 0;
+
+   static public final int    DEFLATED = 8;
+
+   /**
+    * An archive entry.
+    */
+   static public class Entry
+   //=======================
+   {
+      String         m_name;
+
+      int            m_method = STORED;
+
+      long           m_crc;
+
+      long           m_compressedSize;
+
+      long           m_size;
+
+      long           m_localHeaderOffset;
+
+      long           m_time;
+
+      boolean        m_isDirectory;
+
+      volatile long  m_dataOffset = -1;
+
+      volatile long  m_adler32 = -1;
+
+      /**
+       * @return The entry path (without leading or trailing /)
+       */
+      public String getName() { return m_name; }
+
+      public boolean isDirectory() { return m_isDirectory; }
+
+      /**
+       * @return The modification time of the entry in milliseconds.
+       */
+      public long getTime() { return m_time; }
+
+      /**
+       * @return The compression method (@see #STORED, @see #DEFLATED)
+       */
+      public int getMethod() { return m_method; }
+
+      public long getCrc() { return m_crc; }
+
+      public long getCompressedSize() { return m_compressedSize; }
+
+      public long getSize() { return m_size; }
+
+      @Override
+      public String toString() { return m_name; }
+   }
+
+   /**
+    * The build of the shared index of an archive file.
+    */
+   static private class Build extends FutureTask<ArchiveIndex>
+   //=========================================================
+   {
+      long m_lastModified, m_length;
+
+      Build(final File file, final long lastModified, final long length)
+      {
+         super(new Callable<ArchiveIndex>()
+         {
+            public ArchiveIndex call()
+            {
+               if (TarIndex.isTar(file))
+                  return new TarIndex(file, lastModified, length);
+               return new ZipIndex(file, lastModified, length);
+            }
+         });
+         m_lastModified = lastModified;
+         m_length = length;
+      }
+   }
+
+   static private ConcurrentHashMap<String, Build> m_indexes =
+                                       new ConcurrentHashMap<String, Build>();
+
+   protected File                m_file          = null;
+
+   protected long                m_lastModified  = 0;
+
+   protected long                m_length        = 0;
+
+   /**
+    * The entries keyed on name (null if the file could not be indexed).
+    */
+   protected Map<String, Entry>  m_entries       = null;
+
+   private Map<String, List<Entry>> m_children    = null;
+
+   /**
+    * The number of open entry streams (@see #acquire).
+    */
+   private int                   m_users         = 0;
+
+   /**
+    * Set once the index is no longer shared (@see #getIndex, @see #remove).
+    */
+   private boolean               m_isRetired     = false;
+
+   /**
+    * Return the shared index of an archive file, (re)building it if the file
+    * has changed since it was indexed. Files with a .tar, .tar.gz, .tgz,
+    * .tar.bz2, .tbz2 or .tbz extension are indexed as tar files and all
+    * other files as zip files. The index of a file is only built once for
+    * each modification time and length, concurrent callers wait for the
+    * build. The index which is replaced is retired so this should only be
+    * called when an archive is (re)mounted (@see #findIndex).
+    * @param file The archive file
+    * @return The index or null if the file is not a supported archive (or
+    * could not be read).
+    */
+   static public ArchiveIndex getIndex(File file)
+   //--------------------------------------------
+   {
+      String key = file.getAbsolutePath();
+      long lastModified = file.lastModified(), length = file.length();
+      while (true)
+      {
+         Build previous = m_indexes.get(key);
+         if ( (previous != null) && (previous.m_lastModified == lastModified) &&
+              (previous.m_length == length) )
+            return _entries(_get(previous));
+         Build build = new Build(file, lastModified, length);
+         if (previous == null)
+         {
+            if (m_indexes.putIfAbsent(key, build) != null) continue;
+         }
+         else if (! m_indexes.replace(key, previous, build))
+            continue;
+         build.run();
+         if (previous != null)
+         {
+            ArchiveIndex index = _get(previous);
+            if (index != null) index.retire();
+         }
+         return _entries(_get(build));
+      }
+   }
+
+   /**
+    * Return the shared index of an archive file without checking whether the
+    * file has changed since it was indexed. Unlike getIndex (@see #getIndex)
+    * this never builds or replaces an index so the index which is being
+    * served keeps being used while an archive is redeployed.
+    * @param file The archive file
+    * @return The shared index or null if the file has not been indexed (or
+    * is not a supported archive).
+    */
+   static public ArchiveIndex findIndex(File file)
+   //---------------------------------------------
+   {
+      Build build = m_indexes.get(file.getAbsolutePath());
+      return (build == null) ? null : _entries(_get(build));
+   }
+
+   /**
+    * Discard the shared index of an archive file (eg once it is no longer
+    * served). The index is closed once readers which are still using it
+    * have finished.
+    * @param file The archive file
+    */
+   static public void remove(File file)
+   //----------------------------------
+   {
+      _retire(m_indexes.remove(file.getAbsolutePath()));
+   }
+
+   /**
+    * Discard all shared indexes.
+    */
+   static public void clear()
+   //------------------------
+   {
+      for (String key : m_indexes.keySet())
+         _retire(m_indexes.remove(key));
+   }
+
+   static private void _retire(Build build)
+   //--------------------------------------
+   {
+      if (build == null) return;
+      ArchiveIndex index = _get(build);
+      if (index != null) index.retire();
+   }
+
+   /**
+    * Wait for an index build.
+    * @return The index or null if the build failed.
+    */
+   static private ArchiveIndex _get(Build build)
+   //-------------------------------------------
+   {
+      boolean isInterrupted = false;
+      try
+      {
+         while (true)
+         {
+            try
+            {
+               return build.get();
+            }
+            catch (InterruptedException e)
+            {
+               isInterrupted = true;
+            }
+         }
+      }
+      catch (ExecutionException e)
+      {
+         Httpd.Log(LogLevel.ERROR, "Indexing archive", e.getCause());
+         return null;
+      }
+      finally
+      {
+         if (isInterrupted) Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * @return index or null if it is null or could not be read.
+    */
+   static private ArchiveIndex _entries(ArchiveIndex index)
+   //------------------------------------------------------
+   {
+      return ( (index == null) || (index.m_entries == null) ) ? null : index;
+   }
+
+   protected ArchiveIndex(File file, long lastModified, long length)
+   //---------------------------------------------------------------
+   {
+      m_file = file;
+      m_lastModified = lastModified;
+      m_length = length;
+   }
+
+   public File getFile() { return m_file; }
+
+   /**
+    * Register a user of the index. Subclasses which hold resources (eg open
+    * channels) acquire the index for each entry stream and release it when
+    * the stream is closed so that a retired index is only closed once it is
+    * no longer in use.
+    */
+   protected synchronized void acquire() { m_users++; }
+
+   /**
+    * Release a user of the index (@see #acquire) closing the index if it has
+    * been retired and this was the last user.
+    */
+   protected synchronized void release()
+   //-----------------------------------
+   {
+      if ( (--m_users == 0) && (m_isRetired) )
+         close();
+   }
+
+   /**
+    * Called once the index is no longer shared. Closes the index now if it
+    * is not in use or else when the last user releases it.
+    */
+   protected synchronized void retire()
+   //----------------------------------
+   {
+      m_isRetired = true;
+      if (m_users == 0)
+         close();
+   }
+
+   /**
+    * @return true if the index is no longer shared (@see #getIndex).
+    */
+   public synchronized boolean isRetired() { return m_isRetired; }
+
+   /**
+    * @return The number of open entry streams using the index.
+    */
+   public synchronized int getUserCount() { return m_users; }
+
+   /**
+    * Free the resources held by the index. The default does nothing.
+    */
+   public void close() { }
+
+   /**
+    * @return The number of entries in the archive.
+    */
+   public int size() { return m_entries.size(); }
+
+   /**
+    * @param name The entry path (using / as separator). Leading and trailing
+    * separators are ignored and "" is the root directory.
+    * @return The entry or null if the archive has no such entry.
+    */
+   public Entry getEntry(String name)
+   //--------------------------------
+   {
+      if (name == null) return null;
+      return m_entries.get(normalize(name));
+   }
+
+   /**
+    * @param dir A directory entry
+    * @return The entries in the directory.
+    */
+   public List<Entry> getChildren(Entry dir)
+   //---------------------------------------
+   {
+      List<Entry> children = m_children.get(dir.m_name);
+      if (children == null) return Collections.emptyList();
+      return Collections.unmodifiableList(children);
+   }
+
+   /**
+    * Return a stream of the uncompressed contents of an entry.
+    * @param entry A stored or deflated entry
+    * @return A stream of the entry contents which must be closed by the
+    * caller.
+    * @throws java.io.IOException
+    */
+   public InputStream getInputStream(Entry entry) throws IOException
+   //----------------------------------------------------------------
+   {
+      if (entry.m_isDirectory)
+         throw new IOException(entry.m_name + " is a directory");
+      if (entry.m_method == STORED)
+         return getRawStream(entry);
+      if (entry.m_method != DEFLATED)
+         throw new IOException("Unsupported compression method " +
+                               entry.m_method + " for " + entry.m_name);
+      final InflaterPool inflaters = InflaterPool.getDefault();
+      final BufferPool buffers = BufferPool.getDefault();
+      // An inflater without a zlib wrapper requires an extra dummy byte
+      InputStream raw = new SequenceInputStream(getRawStream(entry),
+                                       new ByteArrayInputStream(new byte[1]));
+      return new InflaterInputStream(raw, inflaters.acquire(), 1)
+      {
+         private boolean m_isClosed = false;
+
+         {
+            buf = buffers.acquire(BufferPool.MIN_SIZE);
+         }
+
+         @Override
+         public void close() throws IOException
+         {
+            if (m_isClosed) return;
+            m_isClosed = true;
+            try
+            {
+               super.close();
+            }
+            finally
+            {
+               inflaters.release(inf);
+               buffers.release(buf);
+            }
+         }
+      };
+   }
+
+   /**
+    * Return a stream of the stored (possibly compressed) data of an entry.
+    * @param entry The entry
+    * @return A stream of the entry data which must be closed by the caller.
+    * @throws java.io.IOException
+    */
+   abstract public InputStream getRawStream(Entry entry) throws IOException;
+
+   /**
+    * Return the uncompressed contents of an entry as a read-only buffer if
+    * the index holds the entry contents in memory (or memory mapped).
+    * @param entry The entry
+    * @return A read-only buffer of the entry contents or null if the entry
+    * has to be read (@see #getInputStream).
+    */
+   public ByteBuffer getBuffer(Entry entry) { return null; }
+
+   /**
+    * Add the directories implied by entry names and build the directory
+    * children lists. Called by subclasses once m_entries has been read.
+    */
+   protected void indexDirectories()
+   //-------------------------------
+   {
+      m_children = new HashMap<String, List<Entry>>();
+      List<Entry> entries = new ArrayList<Entry>(m_entries.values());
+      Entry root = m_entries.get("");
+      if (root == null)
+      {
+         root = new Entry();
+         root.m_name = "";
+         root.m_isDirectory = true;
+         m_entries.put(root.m_name, root);
+      }
+      for (Entry entry : entries)
+      {
+         if (entry == root) continue;
+         Entry child = entry;
+         while (true)
+         {
+            int p = child.m_name.lastIndexOf('/');
+            String parent = (p < 0) ? "" : child.m_name.substring(0, p);
+            List<Entry> children = m_children.get(parent);
+            if (children == null)
+            {
+               children = new ArrayList<Entry>();
+               m_children.put(parent, children);
+            }
+            children.add(child);
+            Entry dir = m_entries.get(parent);
+            if (dir != null)
+            {
+               if (! dir.m_isDirectory) // A file and a directory with the
+                  dir.m_isDirectory = true; // same name
+               break;
+            }
+            dir = new Entry();
+            dir.m_name = parent;
+            dir.m_isDirectory = true;
+            dir.m_time = entry.m_time;
+            m_entries.put(parent, dir);
+            child = dir;
+         }
+      }
+   }
+
+   /**
+    * @param name An entry path
+    * @return The path without leading or trailing separators.
+    */
+   static protected String normalize(String name)
+   //--------------------------------------------
+   {
+      int start = 0, end = name.length();
+      while ( (start < end) && (name.charAt(start) == '/') ) start++;
+      while ( (end > start) && (name.charAt(end - 1) == '/') ) end--;
+      return ( (start == 0) && (end == name.length()) ) ? name
+                                                       : name.substring(start, end);
+   }
+}
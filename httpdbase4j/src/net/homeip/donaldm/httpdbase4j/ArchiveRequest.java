@@ -26,6 +26,7 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.TreeSet;
@@ -55,6 +56,22 @@ public class ArchiveRequest extends Request
     * The full path within the archive of the resource.
     */
    protected File                            m_requestFile = null;
+
+   /**
+    * The index of the archive containing the request file and the entry 
+    * name of the request file if the request is served from the archive 
+    * index (@see ArchiveHttpd#getArchiveIndex) or null if it is served 
+    * through TrueZip.
+    */
+   private ArchiveIndex                      m_index = null;
+
+   private String                            m_entryName = null;
+
+   /**
+    * A deflated entry which is sent without inflating it (@see 
+    * selectEncodedVariant) or null.
+    */
+   private ArchiveIndex.Entry                m_zipEntry = null;
     
    /**
     * Constructs a ArchiveRequest.
@@ -84,6 +101,7 @@ public class ArchiveRequest extends Request
          throw new IOException(m_homeDir.getAbsolutePath() + "not a directory");
       m_path = "";
       m_requestFile = new File(m_homeDir, m_path);
+      _resolveIndex();
    }
    
    /**
@@ -105,6 +123,24 @@ public class ArchiveRequest extends Request
       super(httpd, ex);
       m_homeDir = homeDir;
       m_requestFile = new File(m_homeDir, m_path);
+      _resolveIndex();
+   }
+
+   /**
+    * Constructs an ArchiveRequest for a resource which did not originate 
+    * from a client (@see Request#Request(Httpd, URI)).
+    * @param httpd The Httpd instance serving the resource.
+    * @param homeDir The base directory within the archive containing the 
+    * web resources (a TrueZip File)
+    * @param uri The request URI of the resource
+    */
+   protected ArchiveRequest(Httpd httpd, File homeDir, URI uri)
+   //----------------------------------------------------------
+   { 
+      super(httpd, uri);
+      m_homeDir = homeDir;
+      m_requestFile = new File(m_homeDir, m_path);
+      _resolveIndex();
    }
 
    /**
@@ -145,6 +181,7 @@ public class ArchiveRequest extends Request
             m_path = "";
       }
       m_requestFile = new File(m_homeDir, m_path);
+      _resolveIndex();
    }
    
    /**
@@ -200,6 +237,7 @@ public class ArchiveRequest extends Request
                  + fileName;
       //m_path = request.m_path;
       m_requestFile = new File(m_homeDir, m_path);
+      _resolveIndex();
       m_uri = new URI(m_uri.getScheme(), m_uri.getUserInfo(), m_uri.getHost(),
                       m_uri.getPort(), m_path, m_uri.getQuery(), 
                       m_uri.getFragment());
@@ -212,10 +250,16 @@ public class ArchiveRequest extends Request
    public long getContentLength()
    //----------------------------
    {  
-      if (m_cacheFile != null) 
+      if ( (m_encoding != null) && (m_content != null) )
+         m_contentLength = m_content.remaining();
+      else if ( (m_encoding != null) && (m_zipEntry != null) )
+         m_contentLength = (m_encoding.compareTo("gzip") == 0) 
+                           ? ((ZipIndex) m_index).getGzipLength(m_zipEntry)
+                           : ((ZipIndex) m_index).getZlibLength(m_zipEntry);
+      else if (m_cacheFile != null) 
          m_contentLength = m_cacheFile.length();
       else
-         m_contentLength = m_requestFile.length();
+         m_contentLength = _length();
       return m_contentLength;
    }   
 
@@ -236,11 +280,30 @@ public class ArchiveRequest extends Request
    public InputStream getStream(boolean isEncoded)
    //---------------------------------------------
    {      
+      if ( (isEncoded) && (m_encoding != null) && (m_content != null) )
+         return new ByteBufferInputStream(m_content.duplicate());
+      if ( (isEncoded) && (m_encoding != null) && (m_zipEntry != null) )
+      {
+         try
+         {
+            return (m_encoding.compareTo("gzip") == 0) 
+                   ? ((ZipIndex) m_index).getGzipStream(m_zipEntry)
+                   : ((ZipIndex) m_index).getZlibStream(m_zipEntry);
+         }
+         catch (Exception e)
+         {
+            Httpd.Log(Httpd.LogLevel.ERROR, "Reading " + m_zipEntry + 
+                      " from " + m_index.getFile(), e);
+            m_encoding = null;
+            m_zipEntry = null;
+            return getStream(false);
+         }
+      }
       if ( (! isEncoded) || (m_cacheFile == null) )
       {
          try
          {
-            return new FileInputStream(m_requestFile);
+            return _open();
          }
          catch (Exception e)
          {
@@ -259,7 +322,7 @@ public class ArchiveRequest extends Request
             m_encoding = null;
             try
             {
-               return new FileInputStream(m_requestFile);
+               return _open();
             }
             catch (Exception ee)
             {
@@ -269,6 +332,198 @@ public class ArchiveRequest extends Request
       }
    }
      
+   /**
+    *  @inheritDoc
+    */
+   @Override
+   protected ContentCache.Key getContentCacheKey(String variant)
+   //-----------------------------------------------------------
+   {
+      ArchiveIndex.Entry entry = _entry();
+      if ( (entry != null) && (! entry.isDirectory()) )
+         // Keyed on the entry name, CRC and size instead of the archive so 
+         // that unchanged entries are still cached after the archive has 
+         // been replaced (@see ArchiveHttpd#swapArchive).
+         return new ContentCache.Key("archive:" + entry.getName(), variant,
+                                     entry.getCrc(), entry.getSize());
+      return new ContentCache.Key(m_requestFile.getPath(), variant,
+                                  _lastModified(), _length());
+   }
+
+   /**
+    * Unencoded archive entries are cached so that frequently requested 
+    * entries do not have to be read (and inflated) from the archive for 
+    * every request. Entries of an index which holds the decoded archive
+    * contents (@see TarIndex) are served directly from the index.
+    */
+   @Override
+   protected ByteBuffer getUnencodedContentBuffer()
+   //----------------------------------------------
+   {
+      if ( (m_index != null) && (_isFile()) )
+      {
+         ByteBuffer buffer = m_index.getBuffer(_entry());
+         if (buffer != null) return buffer;
+      }
+      ContentCache cache = m_httpd.getContentCache();
+      if ( (cache == null) || (! _isFile()) ) return null;
+      ContentCache.Key key = getContentCacheKey(null);
+      ByteBuffer buffer = cache.get(key);
+      if (buffer != null) return buffer;
+      long length = _length();
+      if (! cache.isAdmissible(key, length)) return null;
+      InputStream is = null;
+      try
+      {
+         is = _open();
+         return cache.put(key, is, length);
+      }
+      catch (IOException e)
+      {
+         Httpd.Log(Httpd.LogLevel.DEBUG, "Could not cache " + 
+                   m_requestFile.getPath(), e);
+         return null;
+      }
+      finally
+      {
+         if (is != null) try { is.close(); } catch (Exception e) {}
+      }
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   @Override
+   protected java.io.File getSidecarFile(String extension)
+   //-----------------------------------------------------
+   {
+      return new File(m_homeDir, m_path + extension);
+   }
+
+   /**
+    * Selects the stored deflate data of the entry if the request is served
+    * from a zip index and deflate pass through is enabled (@see 
+    * ArchiveHttpd#setDeflatePassThrough).
+    */
+   @Override
+   protected boolean selectEncodedVariant(String coding)
+   //---------------------------------------------------
+   {
+      m_zipEntry = null;
+      if ( (coding == null) || (! (m_index instanceof ZipIndex)) ||
+           (! ((ArchiveHttpd) m_httpd).isDeflatePassThrough()) )
+         return false;
+      ArchiveIndex.Entry entry = _entry();
+      if ( (entry == null) || (entry.isDirectory()) ||
+           (entry.getMethod() != ArchiveIndex.DEFLATED) )
+         return false;
+      if (coding.compareTo("deflate") == 0)
+      {
+         try
+         {
+            ((ZipIndex) m_index).getAdler32(entry);
+         }
+         catch (IOException e)
+         {
+            Httpd.Log(Httpd.LogLevel.DEBUG, "Checksumming " + entry, e);
+            return false;
+         }
+      }
+      else if (coding.compareTo("gzip") != 0)
+         return false;
+      m_zipEntry = entry;
+      return true;
+   }
+
+   /**
+    * Serve the request from the archive index if the request file is an 
+    * entry in (or the root of) the top-level archive of the Httpd.
+    */
+   private void _resolveIndex()
+   //--------------------------
+   {
+      m_index = null;
+      m_entryName = null;
+      if (! (m_httpd instanceof ArchiveHttpd)) return;
+      ArchiveIndex index = ((ArchiveHttpd) m_httpd).getArchiveIndex();
+      if (index == null) return;
+      File archive = m_requestFile.getInnerArchive();
+      if ( (archive == null) || (archive.getEnclArchive() != null) ) return;
+      if (! archive.getAbsolutePath().equals(
+                                          index.getFile().getAbsolutePath()))
+      {
+         // The Httpd has swapped to another archive since the request 
+         // was created (@see ArchiveHttpd#swapArchive). Only the swap
+         // rebuilds indexes so the request is served through TrueZip if
+         // the previous index has already been discarded.
+         index = ArchiveIndex.findIndex(
+                                 new java.io.File(archive.getAbsolutePath()));
+         if (index == null) return;
+      }
+      m_index = index;
+      m_entryName = m_requestFile.getInnerEntryName();
+   }
+
+   /**
+    * @return The index entry of the request file or null if it does not
+    * exist or the request is not served from the archive index.
+    */
+   private ArchiveIndex.Entry _entry()
+   //-----------------------------
+   {
+      return (m_index == null) ? null : m_index.getEntry(m_entryName);
+   }
+
+   private boolean _isFile()
+   //-----------------------
+   {
+      if (m_index == null) return m_requestFile.isFile();
+      ArchiveIndex.Entry entry = _entry();
+      return ( (entry != null) && (! entry.isDirectory()) );
+   }
+
+   private long _length()
+   //--------------------
+   {
+      if (m_index == null) return m_requestFile.length();
+      ArchiveIndex.Entry entry = _entry();
+      return ( (entry == null) || (entry.isDirectory()) ) ? 0 
+                                                         : entry.getSize();
+   }
+
+   private long _lastModified()
+   //--------------------------
+   {
+      if (m_index == null) return m_requestFile.lastModified();
+      ArchiveIndex.Entry entry = _entry();
+      return (entry == null) ? 0 : entry.getTime();
+   }
+
+   /**
+    * @return A stream of the unencoded contents of the request file.
+    */
+   private InputStream _open() throws IOException
+   //---------------------------------------------
+   {
+      if (m_index == null) return new FileInputStream(m_requestFile);
+      ArchiveIndex.Entry entry = _entry();
+      if (entry == null)
+         throw new FileNotFoundException(m_requestFile.getPath());
+      return m_index.getInputStream(entry);
+   }
+
+   /**
+    * Entries are positioned by skipping the entry stream (@see 
+    * Request#getStream(long)) which seeks for stored entries but has to 
+    * inflate the skipped data for deflated entries.
+    */
+   @Override
+   public boolean isRangeSupported()
+   //-------------------------------
+   {
+      return _isFile();
+   }
+
    /**
     *  @inheritDoc
     */
@@ -276,8 +531,8 @@ public class ArchiveRequest extends Request
    public boolean exists()
    //---------------------
    {
+      if (m_index != null) return (_entry() != null);
       return m_requestFile.exists();
-      
    }
    
    /**
@@ -287,7 +542,7 @@ public class ArchiveRequest extends Request
    public boolean isReadable()
    //-------------------------
    {
-      return m_requestFile.exists();
+      return exists();
    }
    
    /**
@@ -297,6 +552,11 @@ public class ArchiveRequest extends Request
    public boolean isDirectory()
    //-----------------------------
    {
+      if (m_index != null)
+      {
+         ArchiveIndex.Entry entry = _entry();
+         return ( (entry != null) && (entry.isDirectory()) );
+      }
       return ( (m_requestFile.isDirectory()) || (m_requestFile.isArchive()) );
    }
    
@@ -455,6 +715,44 @@ public class ArchiveRequest extends Request
       }
    }
 
+   static class EntryDirItem implements DirItemInterface
+   //===================================================
+   {
+      ArchiveIndex m_index;
+      
+      ArchiveIndex.Entry m_entry;
+
+      public EntryDirItem(ArchiveIndex index, ArchiveIndex.Entry entry)  
+      {  
+         m_index = index; 
+         m_entry = entry;
+      }
+
+      @Override public String getName()  { return m_entry.getName();   }
+
+      @Override public long getSize() 
+      { 
+         return (m_entry.isDirectory()) ? 0 : m_entry.getSize(); 
+      }
+
+      @Override public Date getDate() { return new Date(m_entry.getTime()); }
+
+      @Override public boolean isDirectory() { return m_entry.isDirectory();  }
+      
+      @Override
+      public InputStream getStream()
+      {
+         try
+         {
+            return m_index.getInputStream(m_entry);
+         }
+         catch (IOException ex)
+         {
+            return null;
+         }
+      }
+   }
+
     
    /**
     *  @inheritDoc
@@ -465,8 +763,18 @@ public class ArchiveRequest extends Request
    {
       if ( (! refresh) && (m_eTag != null) )
          return m_eTag;
-      DirItemInterface f = new DirItem(m_requestFile);
-      m_eTag = Http.eTag(f);
+      ArchiveIndex.Entry entry = _entry();
+      if (entry == null)
+         m_eTag = eTag(m_requestFile.getPath(), new DirItem(m_requestFile));
+      else
+      {  // Entries replaced by an archive swap may have the same size and
+         // time so indexed file ETags also include the entry CRC-32
+         DirItemInterface item = new EntryDirItem(m_index, entry);
+         String validator = Http.metadataETag(item);
+         if ( (validator != null) && (! entry.isDirectory()) )
+            validator += "-" + Long.toHexString(entry.getCrc());
+         m_eTag = eTag(m_requestFile.getPath(), validator, item);
+      }
       return m_eTag;
    }
    
@@ -474,7 +782,9 @@ public class ArchiveRequest extends Request
             final boolean isDirs, final DirItemInterface.SORTBY sortBy)
    //------------------------------------------------------------------------
    {
-      File[] files = (de.schlichtherle.io.File[]) directory.listFiles(new FileFilter()
+      ArchiveIndex.Entry dir = _entry();
+      File[] files = (dir != null) ? new File[0] 
+                   : (de.schlichtherle.io.File[]) directory.listFiles(new FileFilter()
       {
          @Override
          public boolean accept(java.io.File f)
@@ -519,6 +829,12 @@ public class ArchiveRequest extends Request
          DirItem dirItem = new DirItem(f);
          set.add(dirItem);
       }
+      if (dir != null)
+      {
+         for (ArchiveIndex.Entry entry : m_index.getChildren(dir))
+            if (entry.isDirectory() == isDirs)
+               set.add(new EntryDirItem(m_index, entry));
+      }
       return set;
    }
    
@@ -549,14 +865,14 @@ public class ArchiveRequest extends Request
    public Date getDate()
    //--------------------
    {
-      return new Date(m_requestFile.lastModified());
+      return new Date(_lastModified());
    }
 
    @Override
    public long getSize()
    //-------------------
    {
-      return m_requestFile.length();
+      return _length();
    }
 
    @Override
@@ -38,8 +38,10 @@ public class ArchiveRequestHandler extends RequestHandler
 {   
    /**
     * The base directory within the archive containing the web content. 
+    * Replaced when the Httpd swaps its archive (@see 
+    * ArchiveHttpd#swapArchive).
     */
-   protected File             m_homeDir = null;   
+   protected volatile File    m_homeDir = null;   
    
    /**
     * A directory on the file system that can be used for creating dynamic
@@ -80,6 +82,16 @@ public class ArchiveRequestHandler extends RequestHandler
    }
       
    public java.io.File getAltFileSystemHome() { return m_localHomeDir; }
+
+   public File getHomeDir() { return m_homeDir; }
+
+   /**
+    * Set the base directory within the archive for requests received after
+    * the call. Requests which are being handled complete using the previous
+    * directory.
+    * @param homeDir The base directory (a TrueZip File)
+    */
+   public void setHomeDir(File homeDir) { m_homeDir = homeDir; }
    
    private void _createLocalFileHome()
    //---------------------------------
@@ -108,19 +120,22 @@ public class ArchiveRequestHandler extends RequestHandler
    }
            
    @Override
-   public void handle(HttpExchange ex)
-   //--------------------------------
+   protected void handleRequest(HttpExchange ex)
+   //-------------------------------------------
    {
       m_ex =  ex;         
       //System.out.println(this.toString());      
+      HttpdMetrics metrics = m_httpd.getMetrics();
+      long mark = System.nanoTime();
       Request request = null;
       FileRequest altRequest = null;
+      File homeDir = m_homeDir;
       try
       {
           if (isCombinedRequest(ex.getRequestURI().getPath()))
-            request = new ArchiveCombinedRequest(m_httpd, ex, m_homeDir); 
+            request = new ArchiveCombinedRequest(m_httpd, ex, homeDir); 
          else
-            request = new ArchiveRequest(m_httpd, ex, m_homeDir);         
+            request = new ArchiveRequest(m_httpd, ex, homeDir);         
       }
       catch (Exception e)
       {
@@ -128,6 +143,7 @@ public class ArchiveRequestHandler extends RequestHandler
                      ex.getRequestURI().toASCIIString(), e);
          return;
       }
+      mark = metrics.record(HttpdMetrics.Phase.PARSE, mark);
       try
       {         
          if (m_verbose)
@@ -230,16 +246,21 @@ public class ArchiveRequestHandler extends RequestHandler
                return;
             }         
             
+            long resolution = System.nanoTime() - mark;
+            mark = System.nanoTime();
             String etag = null;
+            boolean isNotModified = false;
             if (handler.onIsCacheable(id, ex, request))
             {
                etag = request.getETag(false);
-               if (request.checkClientCache())
-               {
-                  r.setStatus(304);
-                  r.send();
-                  return;
-               }
+               isNotModified = request.checkClientCache();
+            }
+            mark = metrics.record(HttpdMetrics.Phase.ETAG, mark);
+            if (isNotModified)
+            {
+               r.setStatus(304);
+               r.send();
+               return;
             }
 
             if (! handler.onPreServe(id, ex, request))
@@ -279,6 +300,8 @@ public class ArchiveRequestHandler extends RequestHandler
                }               
             }
 
+            metrics.add(HttpdMetrics.Phase.RESOLUTION, 
+                        resolution + System.nanoTime() - mark);
             sendResult(request, r, id, etag, ex);
             return;
          }
@@ -33,7 +33,8 @@ import de.schlichtherle.io.FileInputStream;
 
 /**
  * StringTemplateGroup (from org.antlr.stringtemplate) subclass to load templates from 
- * inside an archive file using TrueZip.
+ * inside an archive file using TrueZip (or an ArchiveIndex for top-level
+ * archives).
  */
 public class ArchiveStringTemplateGroup extends StringTemplateGroup
 //=============================================================
@@ -76,6 +77,40 @@ public class ArchiveStringTemplateGroup extends StringTemplateGroup
       m_jarDirectory = new File(archiveFile, archiveDir);
    }
    
+   /**
+    * @return The shared index of the archive containing f if f is in a 
+    * top-level archive which has been indexed (@see ArchiveIndex#findIndex)
+    * otherwise null. The index is never rebuilt here as that would retire
+    * the index which is being served (@see ArchiveHttpd#getArchiveIndex).
+    */
+   private ArchiveIndex _index(File f)
+   //-----------------------------
+   {
+      File archive = f.getInnerArchive();
+      if ( (archive == null) || (archive.getEnclArchive() != null) )
+         return null;
+      return ArchiveIndex.findIndex(new java.io.File(archive.getAbsolutePath()));
+   }
+
+   private boolean _exists(File f)
+   //-----------------------------
+   {
+      ArchiveIndex index = _index(f);
+      if (index == null) return f.exists();
+      return (index.getEntry(f.getInnerEntryName()) != null);
+   }
+
+   private InputStream _open(File f) throws IOException
+   //---------------------------------------------------
+   {
+      ArchiveIndex index = _index(f);
+      if (index == null) return new FileInputStream(f);
+      ArchiveIndex.Entry entry = index.getEntry(f.getInnerEntryName());
+      if (entry == null)
+         throw new java.io.FileNotFoundException(f.getPath());
+      return index.getInputStream(entry);
+   }
+
    /**
     *  @inheritDoc
     */
@@ -97,7 +132,7 @@ public class ArchiveStringTemplateGroup extends StringTemplateGroup
       if (p >= 0)
          fileName = fileName.substring(p+archivePath.length());         
       File f = new File(m_jarDirectory, fileName);
-      if (! f.exists())
+      if (! _exists(f))
       {
          System.err.println("WARNING:" + fileName + " not found in " + archivePath);
          p = fileName.indexOf(archiveDir);
@@ -106,7 +141,7 @@ public class ArchiveStringTemplateGroup extends StringTemplateGroup
          else
             fileName = archiveDir + "/" + fileName;
          f = new File(m_jarDirectory, fileName);
-         if (! f.exists())
+         if (! _exists(f))
          {
             System.err.println("WARNING:" + fileName + " not found in " + archivePath);
             p = fileName.lastIndexOf(File.separatorChar);
@@ -116,7 +151,7 @@ public class ArchiveStringTemplateGroup extends StringTemplateGroup
             {
                fileName = fileName.substring(p);
                f = new File(m_jarDirectory, fileName);
-               if (! f.exists())
+               if (! _exists(f))
                {
                   System.err.println("ERROR:" + fileName + " not found in " + archivePath);
                   return null;
@@ -130,7 +165,7 @@ public class ArchiveStringTemplateGroup extends StringTemplateGroup
       InputStreamReader isr = null;
       try
       {
-         fin = new FileInputStream(f);
+         fin = _open(f);
          isr = getInputStreamReader(fin);
          br = new BufferedReader(isr);
          template = loadTemplate(templateName, br);         
@@ -0,0 +1,308 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte arrays used as copy buffers when streaming content (eg
+ * Http.readWriteStream, ETag hashing, compression and combining files) and
+ * as connection read buffers by the NIO server engine (@see #acquireBuffer)
+ * so that buffers are reused instead of being allocated for every request.<br>
+ * Buffers are allocated in power of two size classes from MIN_SIZE to
+ * MAX_SIZE and each size class is pooled separately (@see ObjectPool) so
+ * each thread caches one free buffer per size class and further free
+ * buffers are kept in a global free list per size class (up to a maximum
+ * number per class). Requests for buffers larger than
+ * MAX_SIZE are allocated and not pooled.<br>
+ * A buffer must not be used after it has been released.
+ * @see #getDefault
+ * @author Donald Munro
+ */
+public class BufferPool
+//=====================
+{
+   /**
+    * The smallest buffer size class.
+    */
+   static public final int MIN_SIZE  = 4096;
+
+   /**
+    * The largest buffer size class.
+    */
+   static public final int MAX_SIZE  = 256*1024;
+
+   /**
+    * The buffer size used for stream copy loops.
+    */
+   static public int       COPY_SIZE = 16384;
+
+   static private final int CLASSES  =
+                      Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+   static private volatile BufferPool m_default = new BufferPool(64);
+
+   /**
+    * The buffers of one size class.
+    */
+   static private class SizeClass extends ObjectPool<byte[]>
+   //=======================================================
+   {
+      private int m_size;
+
+      SizeClass(int size, int maxFree)
+      //------------------------------
+      {
+         super(maxFree);
+         m_size = size;
+      }
+
+      @Override
+      protected byte[] create() { return new byte[m_size]; }
+   }
+
+   protected int                       m_maxFree     = 64;
+
+   private SizeClass[]                 m_classes     = null;
+
+   /**
+    * Buffers larger than MAX_SIZE which are allocated and not pooled.
+    */
+   private AtomicLong                  m_unpooled    = new AtomicLong(0);
+
+   private AtomicLong                  m_unpooledBytes = new AtomicLong(0);
+
+   /**
+    * Released buffers which are not of a pooled size.
+    */
+   private AtomicLong                  m_rejected    = new AtomicLong(0);
+
+   /**
+    * @return The pool shared by the server copy loops.
+    */
+   static public BufferPool getDefault() { return m_default; }
+
+   /**
+    * Replace the shared pool (eg to change the number of free buffers kept).
+    * @param pool The new shared pool
+    */
+   static public void setDefault(BufferPool pool)
+   //--------------------------------------------
+   {
+      if (pool != null) m_default = pool;
+   }
+
+   /**
+    * Create a BufferPool
+    * @param maxFree The maximum number of free buffers kept in the global
+    * free list of each size class (excluding the buffers cached by threads).
+    */
+   public BufferPool(int maxFree)
+   //----------------------------
+   {
+      m_maxFree = maxFree;
+      m_classes = new SizeClass[CLASSES];
+      for (int i=0; i<CLASSES; i++)
+         m_classes[i] = new SizeClass(MIN_SIZE << i, maxFree);
+   }
+
+   /**
+    * Acquire a buffer.
+    * @param size The minimum size of the buffer
+    * @return A buffer of at least size bytes (rounded up to the size class).
+    * The contents of the buffer are undefined.
+    */
+   public byte[] acquire(int size)
+   //-----------------------------
+   {
+      int index = _index(size);
+      if (index >= 0)
+         return m_classes[index].acquire();
+      m_unpooled.incrementAndGet();
+      m_unpooledBytes.addAndGet(size);
+      return new byte[size];
+   }
+
+   /**
+    * Return a buffer to the pool. Buffers that are not of a pooled size
+    * class are discarded.
+    * @param buffer The buffer to release (may be null).
+    */
+   public void release(byte[] buffer)
+   //--------------------------------
+   {
+      if (buffer == null) return;
+      int index = _index(buffer.length);
+      if ( (index < 0) || ((MIN_SIZE << index) != buffer.length) )
+      {
+         m_rejected.incrementAndGet();
+         return;
+      }
+      m_classes[index].release(buffer);
+   }
+
+   /**
+    * Acquire a heap ByteBuffer backed by a pooled buffer (@see #acquire).
+    * @param size The minimum capacity of the buffer
+    * @return A cleared buffer with a capacity of at least size bytes.
+    */
+   public ByteBuffer acquireBuffer(int size)
+   //---------------------------------------
+   {
+      return ByteBuffer.wrap(acquire(size));
+   }
+
+   /**
+    * Return the array backing a ByteBuffer acquired with acquireBuffer to
+    * the pool.
+    * @param buffer The buffer to release (may be null). Buffers which are
+    * not backed by a complete array are discarded.
+    */
+   public void release(ByteBuffer buffer)
+   //------------------------------------
+   {
+      if ( (buffer == null) || (! buffer.hasArray()) || 
+           (buffer.arrayOffset() != 0) || 
+           (buffer.capacity() != buffer.array().length) )
+         return;
+      release(buffer.array());
+   }
+
+   /**
+    * Removes all buffers from the global free lists (buffers cached by
+    * threads are released when the threads terminate).
+    */
+   public void clear()
+   //-----------------
+   {
+      for (SizeClass sizeClass : m_classes)
+         sizeClass.clear();
+   }
+
+   /**
+    * @return The number of buffers acquired.
+    */
+   public long getAcquireCount()
+   //---------------------------
+   {
+      long count = m_unpooled.get();
+      for (SizeClass sizeClass : m_classes)
+         count += sizeClass.getAcquireCount();
+      return count;
+   }
+
+   /**
+    * @return The number of buffers acquired from the acquiring thread's
+    * cache.
+    */
+   public long getThreadLocalHitCount()
+   //----------------------------------
+   {
+      long count = 0;
+      for (SizeClass sizeClass : m_classes)
+         count += sizeClass.getThreadLocalHitCount();
+      return count;
+   }
+
+   /**
+    * @return The number of buffers acquired from the global free lists.
+    */
+   public long getGlobalHitCount()
+   //-----------------------------
+   {
+      long count = 0;
+      for (SizeClass sizeClass : m_classes)
+         count += sizeClass.getGlobalHitCount();
+      return count;
+   }
+
+   /**
+    * @return The number of buffers allocated (ie acquired buffers that
+    * could not be reused).
+    */
+   public long getAllocationCount()
+   //------------------------------
+   {
+      long count = m_unpooled.get();
+      for (SizeClass sizeClass : m_classes)
+         count += sizeClass.getAllocationCount();
+      return count;
+   }
+
+   /**
+    * @return The total size of the buffers allocated.
+    */
+   public long getAllocatedBytes()
+   //-----------------------------
+   {
+      long bytes = m_unpooledBytes.get();
+      for (SizeClass sizeClass : m_classes)
+         bytes += sizeClass.getAllocationCount() * sizeClass.m_size;
+      return bytes;
+   }
+
+   /**
+    * @return The number of released buffers discarded because the free list
+    * was full or the buffer was not of a pooled size.
+    */
+   public long getDiscardCount()
+   //---------------------------
+   {
+      long count = m_rejected.get();
+      for (SizeClass sizeClass : m_classes)
+         count += sizeClass.getDiscardCount();
+      return count;
+   }
+
+   /**
+    * @return The number of buffers in the global free lists.
+    */
+   public int getFreeCount()
+   //-----------------------
+   {
+      int count = 0;
+      for (SizeClass sizeClass : m_classes)
+         count += sizeClass.getFreeCount();
+      return count;
+   }
+
+   /**
+    * @return The size class index for size or -1 if size is larger than
+    * MAX_SIZE.
+    */
+   static private int _index(int size)
+   //---------------------------------
+   {
+      if (size > MAX_SIZE) return -1;
+      if (size <= MIN_SIZE) return 0;
+      return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_SIZE);
+   }
+
+   @Override
+   public String toString()
+   //----------------------
+   {
+      return "BufferPool{acquired=" + getAcquireCount() + ", local=" +
+             getThreadLocalHitCount() + ", global=" + getGlobalHitCount() +
+             ", allocated=" + getAllocationCount() + ", discarded=" +
+             getDiscardCount() + ", free=" + getFreeCount() + "}";
+   }
+}
@@ -0,0 +1,87 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over the remaining contents of a ByteBuffer (eg a cached
+ * direct buffer or a memory mapped file).
+ * @see ContentCache
+ * @author Donald Munro
+ */
+public class ByteBufferInputStream extends InputStream
+//====================================================
+{
+   private ByteBuffer m_buffer = null;
+
+   /**
+    * Create a ByteBufferInputStream.
+    * @param buffer The buffer. The stream advances the buffer position so
+    * the buffer should not be shared (use ByteBuffer.duplicate).
+    */
+   public ByteBufferInputStream(ByteBuffer buffer)
+   //---------------------------------------------
+   {
+      m_buffer = buffer;
+   }
+
+   /**
+    * @return The buffer
+    */
+   public ByteBuffer getBuffer() { return m_buffer; }
+
+   @Override
+   public int read()
+   //---------------
+   {
+      if (! m_buffer.hasRemaining()) return -1;
+      return m_buffer.get() & 0xFF;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len)
+   //-----------------------------------------
+   {
+      if (len == 0) return 0;
+      if (! m_buffer.hasRemaining()) return -1;
+      len = Math.min(len, m_buffer.remaining());
+      m_buffer.get(b, off, len);
+      return len;
+   }
+
+   @Override
+   public long skip(long n)
+   //----------------------
+   {
+      if (n <= 0) return 0;
+      int skipped = (int) Math.min(n, m_buffer.remaining());
+      m_buffer.position(m_buffer.position() + skipped);
+      return skipped;
+   }
+
+   @Override
+   public int available()
+   //--------------------
+   {
+      return m_buffer.remaining();
+   }
+}
@@ -0,0 +1,180 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A byte range of an entity requested using the HTTP Range header.
+ * @see Request#getRanges
+ * @author Donald Munro
+ */
+public class ByteRange
+//====================
+{
+   /**
+    * Maximum number of ranges accepted in a Range header. Requests for more
+    * ranges are served in full.
+    */
+   static public int MAX_RANGES = 32;
+
+   private long m_first;
+
+   private long m_last;
+
+   /**
+    * Create a ByteRange.
+    * @param first The offset of the first byte
+    * @param last The offset of the last byte (inclusive)
+    */
+   public ByteRange(long first, long last)
+   //-------------------------------------
+   {
+      m_first = first;
+      m_last = last;
+   }
+
+   /**
+    * @return The offset of the first byte in the range.
+    */
+   public long getFirst() { return m_first; }
+
+   /**
+    * @return The offset of the last byte in the range (inclusive).
+    */
+   public long getLast() { return m_last; }
+
+   /**
+    * @return The number of bytes in the range.
+    */
+   public long getLength() { return m_last - m_first + 1; }
+
+   /**
+    * @param length The length of the complete entity
+    * @return The Content-Range header value for this range.
+    */
+   public String contentRange(long length)
+   //-------------------------------------
+   {
+      return "bytes " + m_first + "-" + m_last + "/" + length;
+   }
+
+   /**
+    * Parse a Range header value.
+    * @param header The Range header value eg bytes=0-499,1000-,-500
+    * @param length The length of the complete entity
+    * @return A list of satisfiable ranges in ascending order with
+    * overlapping and adjacent ranges merged, an empty list if none of the
+    * ranges can be satisfied (416 Requested Range Not Satisfiable) or null
+    * if the header is not a valid byte range specifier (or specifies too
+    * many ranges or no ranges at all) in which case it should be ignored.
+    */
+   static public List<ByteRange> parse(String header, long length)
+   //--------------------------------------------------------------
+   {
+      if ( (header == null) || (length < 0) ) return null;
+      header = header.trim();
+      if (! header.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+      String[] specs = header.substring(6).split(",");
+      if ( (specs.length == 0) || (specs.length > MAX_RANGES) ) return null;
+      List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+      int parsed = 0;
+      for (int i=0; i<specs.length; i++)
+      {
+         String spec = specs[i].trim();
+         if (spec.length() == 0) continue;
+         int p = spec.indexOf('-');
+         if (p < 0) return null;
+         parsed++;
+         long first, last;
+         try
+         {
+            if (p == 0)
+            {  // Suffix range ie the last n bytes
+               long n = Long.parseLong(spec.substring(1).trim());
+               if (n < 0) return null;
+               if (n == 0) continue;
+               first = Math.max(length - n, 0);
+               last = length - 1;
+            }
+            else
+            {
+               first = Long.parseLong(spec.substring(0, p).trim());
+               String s = spec.substring(p+1).trim();
+               last = (s.length() == 0) ? Long.MAX_VALUE : Long.parseLong(s);
+               if ( (first < 0) || (last < first) ) return null;
+               if (last >= length) last = length - 1;
+            }
+         }
+         catch (NumberFormatException e)
+         {
+            return null;
+         }
+         if ( (first >= length) || (last < first) ) continue;
+         ranges.add(new ByteRange(first, last));
+      }
+      if (parsed == 0) return null;
+      return _coalesce(ranges);
+   }
+
+   static private List<ByteRange> _coalesce(List<ByteRange> ranges)
+   //--------------------------------------------------------------
+   {
+      if (ranges.size() < 2) return ranges;
+      Collections.sort(ranges, new Comparator<ByteRange>()
+      {
+         @Override
+         public int compare(ByteRange r1, ByteRange r2)
+         {
+            return (r1.m_first < r2.m_first) ? -1
+                                             : ((r1.m_first == r2.m_first) ? 0
+                                                                           : 1);
+         }
+      });
+      List<ByteRange> coalesced = new ArrayList<ByteRange>(ranges.size());
+      ByteRange current = ranges.get(0);
+      for (int i=1; i<ranges.size(); i++)
+      {
+         ByteRange range = ranges.get(i);
+         if (range.m_first <= current.m_last + 1)
+         {
+            if (range.m_last > current.m_last)
+               current = new ByteRange(current.m_first, range.m_last);
+         }
+         else
+         {
+            coalesced.add(current);
+            current = range;
+         }
+      }
+      coalesced.add(current);
+      return coalesced;
+   }
+
+   @Override
+   public String toString()
+   //----------------------
+   {
+      return m_first + "-" + m_last;
+   }
+}
@@ -19,8 +19,6 @@ License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
 
 package net.homeip.donaldm.httpdbase4j;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -28,6 +26,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
 import java.util.TreeSet;
@@ -350,57 +349,82 @@ abstract public class CombinedRequest extends Request implements Cloneable
    
    abstract protected InputStream getItemStream(int i);
     
+   private void _deleteCombinedFile()
+   //--------------------------------
+   {
+      if (m_combinedFile != null)
+      {
+         m_combinedFile.delete();
+         m_httpd.removeTempFile(m_combinedFile);
+         m_combinedFile = null;
+      }
+   }
+
+   @Override
+   public void releaseContent()
+   //--------------------------
+   {
+      super.releaseContent();
+      _deleteCombinedFile();
+   }
+
    private boolean combineFiles()
    //----------------------------
    {
-      BufferedInputStream bis = null;
-      BufferedOutputStream bos = null;
+      InputStream is = null;
+      OutputStream os = null;
       ByteArrayOutputStream combinedBuffer = null;
-      byte[] buffer = new byte[4096];
+      BufferPool pool = BufferPool.getDefault();
+      byte[] buffer = pool.acquire(BufferPool.COPY_SIZE);
       try
       {
-         m_combinedFile = null;
+         _deleteCombinedFile();
          if ( (m_cacheDir != null) && (m_cacheDir.exists()) )
          {
             try
             {
                m_combinedFile = File.createTempFile("combine", ".tmp", m_cacheDir);
+               m_httpd.addTempFile(m_combinedFile);
             }
             catch (Exception e)
             {
                m_combinedFile = null;
             }
             if (m_combinedFile != null)
-               bos = new BufferedOutputStream(new FileOutputStream(m_combinedFile));            
+               os = new FileOutputStream(m_combinedFile);
          }
          if (m_combinedFile == null)
          {
             combinedBuffer = new ByteArrayOutputStream();  
-            bos = new BufferedOutputStream(combinedBuffer);
+            os = combinedBuffer;
          }
          for (int i=0;i<getCount(); i++)
          {     
             try
             {
-               bis = new BufferedInputStream(getItemStream(i));
+               is = getItemStream(i);
                while (true)
                {
-                  int cb = bis.read(buffer);
+                  int cb = is.read(buffer);
                   if (cb == -1) break;
-                  bos.write(buffer, 0, cb);
+                  os.write(buffer, 0, cb);
                }
-               bos.write(13);
-               bis.close();
-               bis = null;            
+               os.write(13);
             }
             catch (Exception e)
             {
                Httpd.Log(Httpd.LogLevel.INFO, "Combining files", e);
                continue;
             }
+            finally
+            {
+               if (is != null)
+                  try { is.close(); } catch (Exception e) {}
+               is = null;
+            }
          }
-         bos.close();
-         bos = null;
+         os.close();
+         os = null;
          if (m_combinedFile == null)
             m_combinedArray = combinedBuffer.toByteArray();
       }
@@ -411,10 +435,11 @@ abstract public class CombinedRequest extends Request implements Cloneable
       }
       finally
       {
-         if (bis != null)
-            try { bis.close(); } catch (Exception e) {}
-         if (bos != null)
-            try { bos.close(); } catch (Exception e) {}
+         if (is != null)
+            try { is.close(); } catch (Exception e) {}
+         if (os != null)
+            try { os.close(); } catch (Exception e) {}
+         pool.release(buffer);
       }
       return true;
    }
@@ -0,0 +1,357 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * A size bounded cache of resource contents held in direct (off-heap)
+ * buffers so that large amounts of cached content do not add to garbage
+ * collection work. The cache holds compressed (gzip or deflate) variants of
+ * resources and the unencoded contents of archive entries (local files are
+ * served from the OS page cache using transferTo or from HotFileCache so
+ * their unencoded contents are not duplicated here).<br>
+ * Entries are keyed by resource path and variant and are validated against
+ * the modification time and size of the resource so they are invalidated
+ * when the resource changes. Eviction is least recently used with a
+ * TinyLFU admission filter (@see FrequencySketch): once the cache is full a
+ * new entry is only admitted if it has been requested more often recently
+ * than the entries it would evict.<br>
+ * Note direct buffers are released by the garbage collector once they are
+ * no longer referenced (evicted buffers may still be in use by a response).
+ * @see Httpd#setContentCache
+ * @see Request#getContentBuffer
+ * @author Donald Munro
+ */
+public class ContentCache
+//=======================
+{
+   /**
+    * Identifies a variant of a resource and the version of the resource it
+    * was created from.
+    */
+   static public class Key
+   //=====================
+   {
+      String m_id;
+
+      long   m_lastModified;
+
+      long   m_size;
+
+      /**
+       * Create a Key
+       * @param path A path uniquely identifying the resource
+       * @param variant The variant eg gzip or deflate or null for the
+       * unencoded contents
+       * @param lastModified The modification time of the resource
+       * @param size The (unencoded) size of the resource
+       */
+      public Key(String path, String variant, long lastModified, long size)
+      //-------------------------------------------------------------------
+      {
+         m_id = (variant == null) ? path : path + "|" + variant;
+         m_lastModified = lastModified;
+         m_size = size;
+      }
+
+      @Override
+      public String toString() { return m_id; }
+   }
+
+   static private class Entry
+   //========================
+   {
+      ByteBuffer  m_buffer;
+      long        m_lastModified;
+      long        m_size;
+   }
+
+   protected long                      m_maxBytes     = 32*1024*1024;
+
+   protected long                      m_maxEntrySize = 1024*1024;
+
+   private LinkedHashMap<String, Entry> m_entries     =
+                                 new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+   private FrequencySketch             m_sketch       = null;
+
+   private long                        m_bytes        = 0;
+
+   private AtomicLong                  m_hits         = new AtomicLong(0);
+
+   private AtomicLong                  m_misses       = new AtomicLong(0);
+
+   private AtomicLong                  m_evictions    = new AtomicLong(0);
+
+   private AtomicLong                  m_rejections   = new AtomicLong(0);
+
+   /**
+    * Create a ContentCache.
+    * @param maxBytes The maximum total size of the cached contents. If
+    * &lt;= 0 nothing is cached.
+    * @param maxEntrySize The maximum size of a cached entry
+    */
+   public ContentCache(long maxBytes, long maxEntrySize)
+   //---------------------------------------------------
+   {
+      m_maxBytes = maxBytes;
+      m_maxEntrySize = Math.min(maxEntrySize, Integer.MAX_VALUE);
+      long expected = (maxEntrySize > 0) ? maxBytes / Math.max(maxEntrySize / 16, 1024)
+                                         : 0;
+      m_sketch = new FrequencySketch((int) Math.max(Math.min(expected, 1 << 20), 1));
+   }
+
+   public long getMaxBytes() { return m_maxBytes; }
+
+   public long getMaxEntrySize() { return m_maxEntrySize; }
+
+   /**
+    * @return The number of cached entries.
+    */
+   public synchronized int size() { return m_entries.size(); }
+
+   /**
+    * @return The total size of the cached contents.
+    */
+   public synchronized long getBytes() { return m_bytes; }
+
+   public long getHitCount() { return m_hits.get(); }
+
+   public long getMissCount() { return m_misses.get(); }
+
+   /**
+    * @return The number of entries evicted to make space or invalidated
+    * because the resource changed.
+    */
+   public long getEvictionCount() { return m_evictions.get(); }
+
+   /**
+    * @return The number of entries not admitted because they were too large
+    * or less frequently used than the entries they would have evicted.
+    */
+   public long getRejectionCount() { return m_rejections.get(); }
+
+   /**
+    * Look up a cached entry and record the access.
+    * @param key The entry key
+    * @return A read-only buffer of the cached contents (which may be used by
+    * the calling thread only) or null if the entry is not cached or is
+    * stale.
+    */
+   public ByteBuffer get(Key key)
+   //----------------------------
+   {
+      if (m_maxBytes <= 0) return null;
+      m_sketch.increment(key.m_id);
+      synchronized (this)
+      {
+         Entry entry = m_entries.get(key.m_id);
+         if (entry != null)
+         {
+            if ( (entry.m_lastModified == key.m_lastModified) &&
+                 (entry.m_size == key.m_size) )
+            {
+               m_hits.incrementAndGet();
+               return entry.m_buffer.asReadOnlyBuffer();
+            }
+            _remove(key.m_id, entry);
+         }
+      }
+      m_misses.incrementAndGet();
+      return null;
+   }
+
+   /**
+    * @param key The entry key
+    * @param length The size of the contents
+    * @return true if contents of length bytes would currently be admitted
+    * to the cache (used to avoid reading contents that will not be cached).
+    */
+   public boolean isAdmissible(Key key, long length)
+   //-----------------------------------------------
+   {
+      if ( (m_maxBytes <= 0) || (length <= 0) || (length > m_maxEntrySize) ||
+           (length > m_maxBytes) )
+         return false;
+      synchronized (this)
+      {
+         if (m_bytes + length <= m_maxBytes) return true;
+         return _isHotter(m_sketch.frequency(key.m_id), length);
+      }
+   }
+
+   /**
+    * Cache the contents of a stream.
+    * @param key The entry key
+    * @param is The stream (which is read to the end but not closed)
+    * @param length The length of the contents
+    * @return A read-only buffer of the cached contents or null if the
+    * contents were not admitted.
+    * @throws java.io.IOException
+    */
+   public ByteBuffer put(Key key, InputStream is, long length) throws IOException
+   //----------------------------------------------------------------------------
+   {
+      if (! isAdmissible(key, length))
+      {
+         m_rejections.incrementAndGet();
+         return null;
+      }
+      ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+      BufferPool pool = BufferPool.getDefault();
+      byte[] data = pool.acquire(BufferPool.COPY_SIZE);
+      try
+      {
+         while (buffer.hasRemaining())
+         {
+            int n = is.read(data, 0, Math.min(data.length, buffer.remaining()));
+            if (n < 0) break;
+            buffer.put(data, 0, n);
+         }
+         if ( (buffer.hasRemaining()) || (is.read() >= 0) )
+            return null; // Length changed while reading
+      }
+      finally
+      {
+         pool.release(data);
+      }
+      buffer.flip();
+      return _put(key, buffer);
+   }
+
+   /**
+    * Cache the contents of a file.
+    * @param key The entry key
+    * @param file The file
+    * @return A read-only buffer of the cached contents or null if the
+    * contents were not admitted.
+    */
+   public ByteBuffer put(Key key, java.io.File file)
+   //-----------------------------------------------
+   {
+      long length = file.length();
+      if (! isAdmissible(key, length))
+      {
+         m_rejections.incrementAndGet();
+         return null;
+      }
+      FileInputStream fis = null;
+      try
+      {
+         fis = new FileInputStream(file);
+         FileChannel channel = fis.getChannel();
+         ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+         while ( (buffer.hasRemaining()) && (channel.read(buffer) >= 0) );
+         if (buffer.hasRemaining()) return null;
+         buffer.flip();
+         return _put(key, buffer);
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(LogLevel.DEBUG, "Could not cache " + file, e);
+         return null;
+      }
+      finally
+      {
+         if (fis != null) try { fis.close(); } catch (Exception e) {}
+      }
+   }
+
+   /**
+    * Removes all entries.
+    */
+   public synchronized void clear()
+   //------------------------------
+   {
+      m_entries.clear();
+      m_bytes = 0;
+      m_sketch.clear();
+   }
+
+   private synchronized ByteBuffer _put(Key key, ByteBuffer buffer)
+   //--------------------------------------------------------------
+   {
+      long length = buffer.remaining();
+      Entry entry = m_entries.get(key.m_id);
+      if (entry != null)
+         _remove(key.m_id, entry);
+      if (m_bytes + length > m_maxBytes)
+      {
+         if (! _isHotter(m_sketch.frequency(key.m_id), length))
+         {
+            m_rejections.incrementAndGet();
+            return null;
+         }
+         Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+         while ( (m_bytes + length > m_maxBytes) && (it.hasNext()) )
+         {
+            Map.Entry<String, Entry> victim = it.next();
+            it.remove();
+            m_bytes -= victim.getValue().m_buffer.capacity();
+            m_evictions.incrementAndGet();
+         }
+      }
+      entry = new Entry();
+      entry.m_buffer = buffer;
+      entry.m_lastModified = key.m_lastModified;
+      entry.m_size = key.m_size;
+      m_entries.put(key.m_id, entry);
+      m_bytes += length;
+      return buffer.asReadOnlyBuffer();
+   }
+
+   /**
+    * @return true if a candidate with the given frequency is more popular
+    * than the least recently used entries that would be evicted to make
+    * space for length bytes.
+    */
+   private boolean _isHotter(int frequency, long length)
+   //---------------------------------------------------
+   {
+      long needed = m_bytes + length - m_maxBytes;
+      for (Map.Entry<String, Entry> e : m_entries.entrySet())
+      {
+         if (needed <= 0) break;
+         if (m_sketch.frequency(e.getKey()) >= frequency)
+            return false;
+         needed -= e.getValue().m_buffer.capacity();
+      }
+      return (needed <= 0);
+   }
+
+   private void _remove(String id, Entry entry)
+   //------------------------------------------
+   {
+      m_entries.remove(id);
+      m_bytes -= entry.m_buffer.capacity();
+      m_evictions.incrementAndGet();
+   }
+}
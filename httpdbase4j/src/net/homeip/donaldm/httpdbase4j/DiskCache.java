@@ -0,0 +1,450 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * A size and age bounded store of cached files (eg compressed variants of
+ * resources created by Request.getContent) on disk.<br>
+ * Files are stored in 256 sharded subdirectories of the cache directory
+ * (selected by a hash of the file name) so that no single directory grows
+ * too large. An in-memory index of the cached files is kept so that lookups
+ * do not need to access the file system. Files are written to a temporary
+ * file (@see #createTempFile) which is then renamed into place (@see #put)
+ * so a partially written file is never visible under its cache name.<br>
+ * When the total size of the cached files exceeds the maximum size the least
+ * recently used files are deleted. Files older than the maximum age are
+ * treated as misses and replaced.<br>
+ * Files which are being sent (@see #acquire) are not deleted until they
+ * have been released (@see #release) even if they are evicted or replaced
+ * in the meantime.<br>
+ * Existing files in the cache directory are indexed when the cache is
+ * created so a cache directory can be reused across server restarts. A
+ * cache directory must not be shared by caches which are in use at the same
+ * time (in the same or different processes).
+ * @see Httpd#setDiskCache
+ * @author Donald Munro
+ */
+public class DiskCache
+//====================
+{
+   static private final int SHARDS = 256;
+
+   static private class Entry
+   //========================
+   {
+      File m_file;
+      long m_size;
+      long m_created;
+      int m_users;
+      boolean m_isRemoved;
+   }
+
+   protected File                      m_dir          = null;
+
+   protected File                      m_tempDir      = null;
+
+   protected long                      m_maxBytes     = 256*1024*1024;
+
+   protected long                      m_maxAge       = 0;
+
+   private LinkedHashMap<String, Entry> m_entries     =
+                                 new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+   /**
+    * Entries with files that have been acquired and not yet released keyed
+    * on the file.
+    */
+   private HashMap<File, Entry>        m_acquired     = new HashMap<File, Entry>();
+
+   private long                        m_bytes        = 0;
+
+   private AtomicLong                  m_hits         = new AtomicLong(0);
+
+   private AtomicLong                  m_misses       = new AtomicLong(0);
+
+   private AtomicLong                  m_evictions    = new AtomicLong(0);
+
+   /**
+    * Create a DiskCache.
+    * @param dir The cache directory (eg on a tmpfs file system). If null or
+    * the directory cannot be created or written to then nothing is cached.
+    * @param maxBytes The maximum total size of the cached files.
+    * @param maxAge The maximum age of a cached file in milliseconds or
+    * &lt;= 0 for no maximum age.
+    */
+   public DiskCache(File dir, long maxBytes, long maxAge)
+   //----------------------------------------------------
+   {
+      m_maxBytes = maxBytes;
+      m_maxAge = maxAge;
+      if (dir == null) return;
+      File tempDir = new File(dir, "tmp");
+      tempDir.mkdirs();
+      if ( (! tempDir.isDirectory()) || (! tempDir.canWrite()) )
+      {
+         Httpd.Log(LogLevel.ERROR, "Cache directory " + dir +
+                   " could not be created", null);
+         return;
+      }
+      m_dir = dir;
+      m_tempDir = tempDir;
+      for (int i=0; i<SHARDS; i++)
+         _shard(i).mkdirs();
+      _index();
+   }
+
+   /**
+    * @return The cache directory or null if caching is disabled.
+    */
+   public File getDirectory() { return m_dir; }
+
+   /**
+    * @return true if the cache directory is usable.
+    */
+   public boolean isEnabled() { return ( (m_dir != null) && (m_maxBytes > 0) ); }
+
+   public long getMaxBytes() { return m_maxBytes; }
+
+   public long getMaxAge() { return m_maxAge; }
+
+   /**
+    * @return The number of cached files.
+    */
+   public synchronized int size() { return m_entries.size(); }
+
+   /**
+    * @return The total size of the cached files.
+    */
+   public synchronized long getBytes() { return m_bytes; }
+
+   public long getHitCount() { return m_hits.get(); }
+
+   public long getMissCount() { return m_misses.get(); }
+
+   /**
+    * @return The number of files deleted to keep the cache within its size
+    * or because they expired.
+    */
+   public long getEvictionCount() { return m_evictions.get(); }
+
+   /**
+    * Look up a cached file.
+    * @param name The cache file name (which must be unique for the content
+    * eg include an ETag).
+    * @return The cached file or null if it is not cached or has expired.
+    */
+   public File get(String name)
+   //--------------------------
+   {
+      return _get(name, false);
+   }
+
+   /**
+    * Look up a cached file which is going to be read (eg sent in a 
+    * response). The file is not deleted if it is evicted or replaced before
+    * it is released.
+    * @param name The cache file name
+    * @return The cached file (which must be released @see #release) or null
+    * if it is not cached or has expired.
+    */
+   public File acquire(String name)
+   //------------------------------
+   {
+      return _get(name, true);
+   }
+
+   /**
+    * Release a file returned by acquire or put(name, temp, true). The file
+    * is deleted if it has been evicted or removed from the cache and this
+    * was the last user.
+    * @param file The acquired file
+    */
+   public synchronized void release(File file)
+   //-----------------------------------------
+   {
+      Entry entry = m_acquired.get(file);
+      if ( (entry == null) || (--entry.m_users > 0) ) return;
+      m_acquired.remove(file);
+      if (entry.m_isRemoved)
+         entry.m_file.delete();
+   }
+
+   private File _get(String name, boolean isAcquire)
+   //-----------------------------------------------
+   {
+      if (! isEnabled()) return null;
+      synchronized (this)
+      {
+         Entry entry = m_entries.get(name);
+         if (entry != null)
+         {
+            if ( (m_maxAge <= 0) ||
+                 (System.currentTimeMillis() - entry.m_created <= m_maxAge) )
+            {
+               m_hits.incrementAndGet();
+               if (isAcquire)
+                  _acquire(entry);
+               return entry.m_file;
+            }
+            _remove(name, entry);
+            m_evictions.incrementAndGet();
+         }
+      }
+      m_misses.incrementAndGet();
+      return null;
+   }
+
+   /**
+    * Create an empty temporary file in the cache directory to be written to
+    * and then added to the cache (@see #put) or deleted.
+    * @param prefix The file name prefix (at least 3 characters)
+    * @return The temporary file or null if caching is disabled.
+    * @throws java.io.IOException
+    */
+   public File createTempFile(String prefix) throws IOException
+   //-----------------------------------------------------------
+   {
+      if (m_tempDir == null) return null;
+      return File.createTempFile(prefix, ".tmp", m_tempDir);
+   }
+
+   /**
+    * Add a file to the cache by renaming it into place (the rename is atomic
+    * on POSIX file systems as the temporary files are on the same file
+    * system). Least recently used files are evicted if the cache is over its
+    * maximum size.
+    * @param name The cache file name
+    * @param temp The completely written file (@see #createTempFile)
+    * @return The cached file or null if temp could not be added (in which
+    * case temp is left unchanged).
+    */
+   public File put(String name, File temp)
+   //-------------------------------------
+   {
+      return put(name, temp, false);
+   }
+
+   /**
+    * Add a file to the cache (@see #put(String, File)).
+    * @param name The cache file name
+    * @param temp The completely written file (@see #createTempFile)
+    * @param isAcquire If true the cached file is also acquired and must be
+    * released (@see #release).
+    * @return The cached file or null if temp could not be added (in which
+    * case temp is left unchanged).
+    */
+   public File put(String name, File temp, boolean isAcquire)
+   //--------------------------------------------------------
+   {
+      if ( (! isEnabled()) || (temp == null) ) return null;
+      long size = temp.length();
+      if (size > m_maxBytes) return null;
+      File file = new File(_shard(_hash(name)), name);
+      Entry entry = new Entry();
+      entry.m_file = file;
+      entry.m_size = size;
+      // The rename and the bookkeeping of any file it replaces are done
+      // under the lock so that a concurrent eviction of the previous file 
+      // with the same name can not delete the new one.
+      synchronized (this)
+      {
+         if (! temp.renameTo(file))
+         {  // Platforms which can not rename over an existing file
+            file.delete();
+            if (! temp.renameTo(file))
+            {
+               Httpd.Log(LogLevel.ERROR, "Could not rename " + temp + " to " +
+                         file, null);
+               return null;
+            }
+         }
+         entry.m_created = System.currentTimeMillis();
+         Entry old = m_entries.put(name, entry);
+         if (old != null)
+            m_bytes -= old.m_size;
+         // Users of a replaced file now share the new file at the same path
+         Entry acquired = m_acquired.get(file);
+         if (acquired != null)
+         {
+            entry.m_users = acquired.m_users;
+            m_acquired.put(file, entry);
+         }
+         m_bytes += size;
+         if (isAcquire)
+            _acquire(entry);
+         _evict();
+      }
+      return file;
+   }
+
+   /**
+    * Remove a file from the cache and delete it.
+    * @param name The cache file name
+    */
+   public synchronized void remove(String name)
+   //------------------------------------------
+   {
+      Entry entry = m_entries.get(name);
+      if (entry != null)
+         _remove(name, entry);
+   }
+
+   /**
+    * Delete all cached files (files which have been acquired are deleted
+    * when they are released).
+    */
+   public synchronized void clear()
+   //------------------------------
+   {
+      for (Entry entry : new ArrayList<Entry>(m_entries.values()))
+         _remove(entry.m_file.getName(), entry);
+   }
+
+   /**
+    * Remove least recently used entries until the cache is within its
+    * maximum size.
+    */
+   private void _evict()
+   //-------------------
+   {
+      Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+      while ( (m_bytes > m_maxBytes) && (it.hasNext()) )
+      {
+         Entry entry = it.next().getValue();
+         it.remove();
+         m_bytes -= entry.m_size;
+         _delete(entry);
+         m_evictions.incrementAndGet();
+      }
+   }
+
+   private void _remove(String name, Entry entry)
+   //--------------------------------------------
+   {
+      m_entries.remove(name);
+      m_bytes -= entry.m_size;
+      _delete(entry);
+   }
+
+   private void _acquire(Entry entry)
+   //--------------------------------
+   {
+      if (entry.m_users++ == 0)
+         m_acquired.put(entry.m_file, entry);
+   }
+
+   /**
+    * Delete the file of a removed entry or defer the deletion until the
+    * file is released if it is in use.
+    */
+   private void _delete(Entry entry)
+   //-------------------------------
+   {
+      if (entry.m_users > 0)
+         entry.m_isRemoved = true;
+      else
+         entry.m_file.delete();
+   }
+
+   /**
+    * Index existing cache files in least recently modified order and remove
+    * stale temporary files.
+    */
+   private void _index()
+   //-------------------
+   {
+      File[] temps = m_tempDir.listFiles();
+      if (temps != null)
+         for (File f : temps)
+            f.delete();
+      List<File> files = new ArrayList<File>();
+      for (int i=0; i<SHARDS; i++)
+      {
+         File[] shard = _shard(i).listFiles();
+         if (shard != null)
+            files.addAll(Arrays.asList(shard));
+      }
+      final Map<File, Long> modified = new HashMap<File, Long>(files.size());
+      for (File f : files)
+         modified.put(f, f.lastModified());
+      File[] sorted = files.toArray(new File[files.size()]);
+      Arrays.sort(sorted, new Comparator<File>()
+      {
+         @Override
+         public int compare(File f1, File f2)
+         {
+            return modified.get(f1).compareTo(modified.get(f2));
+         }
+      });
+      synchronized (this)
+      {
+         for (File f : sorted)
+         {
+            if (! f.isFile()) continue;
+            Entry entry = new Entry();
+            entry.m_file = f;
+            entry.m_size = f.length();
+            entry.m_created = modified.get(f);
+            m_entries.put(f.getName(), entry);
+            m_bytes += entry.m_size;
+         }
+         _evict();
+      }
+   }
+
+   private File _shard(int i)
+   //------------------------
+   {
+      String hex = Integer.toHexString(i);
+      return new File(m_dir, (hex.length() < 2) ? "0" + hex : hex);
+   }
+
+   static private int _hash(String name)
+   //-----------------------------------
+   {
+      int h = name.hashCode();
+      h ^= (h >>> 16);
+      h ^= (h >>> 8);
+      return h & (SHARDS - 1);
+   }
+
+   @Override
+   public String toString()
+   //----------------------
+   {
+      return "DiskCache{dir=" + m_dir + ", files=" + size() + ", bytes=" +
+             getBytes() + ", hits=" + getHitCount() + ", misses=" +
+             getMissCount() + ", evictions=" + getEvictionCount() + "}";
+   }
+}
@@ -0,0 +1,134 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memoizes content hash ETags (@see Http#eTag) so that the contents of a
+ * resource are only hashed once until it changes. Each entry records the
+ * metadata validator (@see Http#metadataETag) of the resource at the time
+ * it was hashed and is discarded when the validator no longer matches. The
+ * least recently used entries are evicted when the cache is full.
+ * @see Httpd#setETagStrategy
+ * @author Donald Munro
+ */
+public class ETagCache
+//====================
+{
+   static private class Memo
+   //=======================
+   {
+      String m_validator;
+      String m_eTag;
+   }
+
+   protected int                       m_maxEntries = 4096;
+
+   private LinkedHashMap<String, Memo> m_entries   = null;
+
+   private AtomicLong                  m_hits       = new AtomicLong(0);
+
+   private AtomicLong                  m_misses     = new AtomicLong(0);
+
+   /**
+    * Create an ETagCache.
+    * @param maxEntries The maximum number of memoized ETags
+    */
+   public ETagCache(int maxEntries)
+   //------------------------------
+   {
+      m_maxEntries = Math.max(maxEntries, 1);
+      m_entries = new LinkedHashMap<String, Memo>(64, 0.75f, true)
+      {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Memo> eldest)
+         {
+            return (size() > m_maxEntries);
+         }
+      };
+   }
+
+   public int getMaxEntries() { return m_maxEntries; }
+
+   /**
+    * @return The number of memoized ETags.
+    */
+   public synchronized int size() { return m_entries.size(); }
+
+   public long getHitCount() { return m_hits.get(); }
+
+   public long getMissCount() { return m_misses.get(); }
+
+   /**
+    * Look up a memoized ETag.
+    * @param key A key uniquely identifying the resource (eg its path)
+    * @param validator The current metadata validator of the resource
+    * @return The memoized ETag or null if the resource has not been hashed
+    * or has changed since it was hashed.
+    */
+   public String get(String key, String validator)
+   //---------------------------------------------
+   {
+      Memo entry;
+      synchronized (this)
+      {
+         entry = m_entries.get(key);
+      }
+      if ( (entry != null) && (entry.m_validator.equals(validator)) )
+      {
+         m_hits.incrementAndGet();
+         return entry.m_eTag;
+      }
+      m_misses.incrementAndGet();
+      return null;
+   }
+
+   /**
+    * Memoize an ETag.
+    * @param key A key uniquely identifying the resource (eg its path)
+    * @param validator The metadata validator of the resource when it was
+    * hashed
+    * @param eTag The content hash ETag
+    */
+   public void put(String key, String validator, String eTag)
+   //--------------------------------------------------------
+   {
+      if ( (validator == null) || (eTag == null) ) return;
+      Memo entry = new Memo();
+      entry.m_validator = validator;
+      entry.m_eTag = eTag;
+      synchronized (this)
+      {
+         m_entries.put(key, entry);
+      }
+   }
+
+   /**
+    * Removes all entries.
+    */
+   public synchronized void clear()
+   //------------------------------
+   {
+      m_entries.clear();
+   }
+}
@@ -199,9 +199,13 @@ public class FileCombinedRequest extends CombinedRequest implements Cloneable
       if ( (! refresh) && (m_eTag != null) )
          return m_eTag;
       DirItemInterface[] items = new DirItemInterface[m_requestFiles.size()];
+      StringBuilder key = new StringBuilder();
       for (int i=0;i <m_requestFiles.size(); i++)
+      {
          items[i] = new FileRequest.DirItem(m_requestFiles.get(i));
-      m_eTag = Http.eTag(items);
+         key.append(m_requestFiles.get(i).getAbsolutePath()).append(';');
+      }
+      m_eTag = eTag(key.toString(), items);
       return m_eTag;
    }
 
@@ -21,6 +21,8 @@ package net.homeip.donaldm.httpdbase4j;
 
 import com.sun.net.httpserver.HttpHandler;
 import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
 
 /**
  * Implementation of the abstract Httpd class for web content in the
@@ -50,7 +52,7 @@ public class FileHttpd  extends Httpd implements HttpHandleable, Postable
    /**
     * Constructor with a home directory and thread model
     * @param homeDir Home directory for the server
-    * @param threadModel The thread model to use (SINGLE, MULTI or POOL)
+    * @param threadModel The thread model to use (SINGLE, MULTI, POOL or VIRTUAL)
     */
    public FileHttpd(File homeDir, ThreadModel threadModel)
    //-------------------------------------------------
@@ -58,18 +60,7 @@ public class FileHttpd  extends Httpd implements HttpHandleable, Postable
       super();
       m_httpHomeDir = homeDir;
       m_threadModel = threadModel;
-      switch (m_threadModel)
-      {
-         case MULTI:
-            m_poolSize = 5;
-            m_poolMax = Integer.MAX_VALUE;
-            break;
-
-         case POOL:
-            m_poolSize = 10;
-            m_poolMax = 10;
-            break;
-      }
+      setDefaultPoolSizes();
    }
 
    /**
@@ -129,6 +120,44 @@ public class FileHttpd  extends Httpd implements HttpHandleable, Postable
       return new FileRequestHandler(this, m_httpHomeDir, m_isVerbose);
    }
 
+   /**
+    * Submits a request for every file below the home directory.
+    * @see Httpd#setPrecompression
+    */
+   @Override
+   protected void onPrecompress(Precompressor precompressor)
+   //-------------------------------------------------------
+   {
+      _precompress(precompressor, m_httpHomeDir, "/", 0);
+   }
+
+   private void _precompress(Precompressor precompressor, File dir, 
+                             String path, int depth)
+   //--------------------------------------------------------------
+   {
+      File[] files = dir.listFiles();
+      if ( (files == null) || (depth > 64) ) return;
+      for (File f : files)
+      {
+         if (precompressor.isCancelled()) return;
+         String uri = path + f.getName();
+         if (f.isDirectory())
+            _precompress(precompressor, f, uri + "/", depth + 1);
+         else
+         {
+            try
+            {
+               precompressor.submit(new FileRequest(this, m_httpHomeDir, 
+                                              new URI(null, null, uri, null)));
+            }
+            catch (URISyntaxException e)
+            {
+               Httpd.Log(LogLevel.DEBUG, "Precompressing " + f, e);
+            }
+         }
+      }
+   }
+
    @Override
    public String toString()
    {
@@ -71,6 +71,22 @@ public class FileRequest extends Request implements DirItemInterface, Cloneable
                File.separatorChar));
    }
 
+   /**
+    * Constructs a FileRequest for a resource which did not originate from a 
+    * client (@see Request#Request(Httpd, URI)).
+    * @param httpd The Httpd instance serving the resource.
+    * @param homeDir The base directory containing the resource
+    * @param uri The request URI of the resource
+    */
+   protected FileRequest(Httpd httpd, File homeDir, URI uri)
+   //-------------------------------------------------------
+   {
+      super(httpd, uri);
+      m_homeDir = homeDir;
+      m_requestFile = new File(m_homeDir, m_path.replace('/',
+               File.separatorChar));
+   }
+
    /**
     * Constructs a FileRequest.
     * @param httpd The Httpd instance within which the request occurred.
@@ -244,7 +260,9 @@ public class FileRequest extends Request implements DirItemInterface, Cloneable
    public long getContentLength()
    //---------------------------
    {
-      if (m_cacheFile != null) 
+      if ( (m_encoding != null) && (m_content != null) )
+         m_contentLength = m_content.remaining();
+      else if (m_cacheFile != null) 
          m_contentLength = m_cacheFile.length();
       else
          m_contentLength = m_requestFile.length();
@@ -386,8 +404,7 @@ public class FileRequest extends Request implements DirItemInterface, Cloneable
    {
       if ( (! refresh) && (m_eTag != null) )
          return m_eTag;
-      DirItemInterface f = new DirItem(m_requestFile);
-      m_eTag = Http.eTag(f);
+      m_eTag = eTag(m_requestFile.getAbsolutePath(), new DirItem(m_requestFile));
       return m_eTag;
    }
    
@@ -523,6 +540,8 @@ public class FileRequest extends Request implements DirItemInterface, Cloneable
    public InputStream getStream(boolean isEncoded)
    //---------------------------------------------
    {      
+      if ( (isEncoded) && (m_encoding != null) && (m_content != null) )
+         return new ByteBufferInputStream(m_content.duplicate());
       if ( (! isEncoded) || (m_cacheFile == null) )
       {
          try
@@ -556,6 +575,76 @@ public class FileRequest extends Request implements DirItemInterface, Cloneable
       }
    }
    
+   /**
+    *  @inheritDoc
+    */
+   @Override
+   public InputStream getStream(long offset)
+   //---------------------------------------
+   {
+      FileInputStream fis = null;
+      try
+      {
+         fis = new FileInputStream(m_requestFile);
+         if (offset > 0)
+            fis.getChannel().position(offset);
+         return fis;
+      }
+      catch (Exception e)
+      {
+         if (fis != null) try { fis.close(); } catch (Exception ee) {}
+         return null;
+      }
+   }
+
+   /**
+    * Only encoded variants of files are cached, unencoded files are sent
+    * using transferTo or from HotFileCache.
+    */
+   @Override
+   protected ContentCache.Key getContentCacheKey(String variant)
+   //-----------------------------------------------------------
+   {
+      if (variant == null) return null;
+      return new ContentCache.Key(m_requestFile.getAbsolutePath(), variant,
+                                  m_requestFile.lastModified(), 
+                                  m_requestFile.length());
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   @Override
+   protected java.io.File getSidecarFile(String extension)
+   //-----------------------------------------------------
+   {
+      return new File(m_requestFile.getPath() + extension);
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   @Override
+   public boolean isRangeSupported()
+   //-------------------------------
+   {
+      return m_requestFile.isFile();
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   @Override
+   public File getFile(boolean isEncoded)
+   //------------------------------------
+   {
+      if ( (isEncoded) && (m_encoding != null) && (m_content != null) )
+         return null;
+      File f = ( (! isEncoded) || (m_cacheFile == null) ) ? m_requestFile 
+                                                         : m_cacheFile;
+      return (f.isFile()) ? f : null;
+   }
+
    /**
     *  @inheritDoc
     */
@@ -56,10 +56,12 @@ public class FileRequestHandler extends RequestHandler implements HttpHandler
     *  @inheritDoc
     */    
    @Override
-   public void handle(HttpExchange ex)
-   //--------------------------------
+   protected void handleRequest(HttpExchange ex)
+   //-------------------------------------------
    {      
       m_ex =  ex;               
+      HttpdMetrics metrics = m_httpd.getMetrics();
+      long mark = System.nanoTime();
       Request request = null;
       try
       {
@@ -74,6 +76,7 @@ public class FileRequestHandler extends RequestHandler implements HttpHandler
                      ex.getRequestURI().toASCIIString(), e);
          return;
       }
+      mark = metrics.record(HttpdMetrics.Phase.PARSE, mark);
       try
       {         
          if (m_verbose)
@@ -176,16 +179,21 @@ public class FileRequestHandler extends RequestHandler implements HttpHandler
                return;
             }         
             
+            long resolution = System.nanoTime() - mark;
+            mark = System.nanoTime();
             String etag = null;
+            boolean isNotModified = false;
             if (handler.onIsCacheable(id, ex, request))
             {
                etag = request.getETag(false);
-               if (request.checkClientCache())
-               {
-                  r.setStatus(304);
-                  r.send();
-                  return;
-               }
+               isNotModified = request.checkClientCache();
+            }
+            mark = metrics.record(HttpdMetrics.Phase.ETAG, mark);
+            if (isNotModified)
+            {
+               r.setStatus(304);
+               r.send();
+               return;
             }
 
             if (! handler.onPreServe(id, ex, request))
@@ -221,6 +229,8 @@ public class FileRequestHandler extends RequestHandler implements HttpHandler
                return;
             }
             
+            metrics.add(HttpdMetrics.Phase.RESOLUTION, 
+                        resolution + System.nanoTime() - mark);
             sendResult(request, r, id, etag, ex);
             return;
          }
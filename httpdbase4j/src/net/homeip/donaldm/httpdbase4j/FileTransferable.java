@@ -0,0 +1,66 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by HttpExchange implementations that can write file content
+ * directly to the connection channel using FileChannel.transferTo (which
+ * uses sendfile or an equivalent on most operating systems) or from a
+ * (memory mapped) buffer instead of copying it through the response body
+ * stream.
+ * @see HttpResponse#sendFile
+ * @see NioHttpExchange
+ * @author Donald Munro
+ */
+public interface FileTransferable
+//===============================
+{
+   /**
+    * @return true if transferFile can be used for the current response ie
+    * the response headers have been sent with a known content length and the
+    * response body stream has not been replaced (eg by a Filter).
+    */
+   public boolean isFileTransferSupported();
+
+   /**
+    * Write a region of a file as (part of) the response body.
+    * @param channel The file channel
+    * @param position The position in the file to start from
+    * @param count The number of bytes to write
+    * @return The number of bytes written which may be less than count if
+    * the end of the file was reached.
+    * @throws java.io.IOException
+    */
+   public long transferFile(FileChannel channel, long position, long count)
+          throws IOException;
+
+   /**
+    * Write the remaining contents of a buffer as (part of) the response body.
+    * @param buffer The buffer (eg a MappedByteBuffer). The buffer position is
+    * advanced by the number of bytes written.
+    * @return The number of bytes written.
+    * @throws java.io.IOException
+    */
+   public long transferBuffer(ByteBuffer buffer) throws IOException;
+}
@@ -0,0 +1,144 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+/**
+ * A count-min sketch of small (saturating at 15) access counters used to
+ * estimate how often a key has been accessed recently. Once the number of
+ * recorded accesses reaches the sample size all counters are halved so that
+ * the estimates reflect recent popularity (keys that stop being accessed
+ * cool down).
+ * @see HotFileCache
+ * @author Donald Munro
+ */
+public class FrequencySketch
+//==========================
+{
+   static private final int   DEPTH   = 4;
+
+   static private final int   MAX     = 15;
+
+   static private final int[] SEEDS   = { 0x9E3779B9, 0x85EBCA6B,
+                                          0xC2B2AE35, 0x27D4EB2F };
+
+   private byte[][]           m_table = null;
+
+   private int                m_mask;
+
+   private int                m_sampleSize;
+
+   private int                m_additions = 0;
+
+   /**
+    * Create a FrequencySketch.
+    * @param expectedKeys The number of keys whose frequency needs to be
+    * estimated accurately (eg the maximum number of entries in a cache).
+    */
+   public FrequencySketch(int expectedKeys)
+   //--------------------------------------
+   {
+      int width = Integer.highestOneBit(Math.max(expectedKeys, 16) * 16 - 1) << 1;
+      m_table = new byte[DEPTH][width];
+      m_mask = width - 1;
+      m_sampleSize = width * 10;
+   }
+
+   /**
+    * Record an access to a key.
+    * @param key The key
+    * @return true if recording the access caused the counters to be aged
+    * (halved).
+    */
+   public synchronized boolean increment(Object key)
+   //-----------------------------------------------
+   {
+      int hash = _spread(key.hashCode());
+      boolean isAdded = false;
+      for (int i=0; i<DEPTH; i++)
+      {
+         int index = _index(hash, i);
+         if (m_table[i][index] < MAX)
+         {
+            m_table[i][index]++;
+            isAdded = true;
+         }
+      }
+      if ( (isAdded) && (++m_additions >= m_sampleSize) )
+      {
+         _age();
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * @param key The key
+    * @return The estimated number of recent accesses to key (0 - 15).
+    */
+   public synchronized int frequency(Object key)
+   //-------------------------------------------
+   {
+      int hash = _spread(key.hashCode());
+      int min = MAX;
+      for (int i=0; i<DEPTH; i++)
+         min = Math.min(min, m_table[i][_index(hash, i)]);
+      return min;
+   }
+
+   /**
+    * Reset all counters to 0.
+    */
+   public synchronized void clear()
+   //------------------------------
+   {
+      for (int i=0; i<DEPTH; i++)
+         java.util.Arrays.fill(m_table[i], (byte) 0);
+      m_additions = 0;
+   }
+
+   private void _age()
+   //-----------------
+   {
+      for (int i=0; i<DEPTH; i++)
+      {
+         byte[] row = m_table[i];
+         for (int j=0; j<row.length; j++)
+            row[j] = (byte) (row[j] >>> 1);
+      }
+      m_additions /= 2;
+   }
+
+   private int _index(int hash, int row)
+   //-----------------------------------
+   {
+      int h = hash * SEEDS[row];
+      h ^= h >>> 16;
+      return h & m_mask;
+   }
+
+   static private int _spread(int h)
+   //-------------------------------
+   {
+      h ^= h >>> 16;
+      h *= 0x45D9F3B;
+      h ^= h >>> 16;
+      return h;
+   }
+}
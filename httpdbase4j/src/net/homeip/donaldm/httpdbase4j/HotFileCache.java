@@ -0,0 +1,262 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * Promotes frequently requested files to read-only memory mapped buffers
+ * that are shared by all request threads so that hot files are served
+ * without opening and reading the file for every request.<br>
+ * Access frequencies are estimated with a FrequencySketch. A file is
+ * promoted once its estimated frequency reaches the promotion threshold.
+ * When the cache is full a file is only admitted if it is hotter than the
+ * coldest cached file which is then evicted. Entries are demoted when they
+ * cool down (their frequency falls to 0 after the sketch is aged) or when
+ * the modification time or size of the file changes.<br>
+ * Note mapped buffers are unmapped by the garbage collector once they are no
+ * longer referenced. A file must not be truncated in place while it is
+ * promoted as reading the mapped pages beyond the new end of the file raises
+ * an InternalError (the response is then cut short and the file is demoted
+ * by the next request as its size has changed). Files should be replaced by
+ * renaming a new file over them instead.
+ * @see Httpd#setHotFileCache
+ * @author Donald Munro
+ */
+public class HotFileCache
+//=======================
+{
+   static private class Entry
+   //========================
+   {
+      String            m_key;
+      MappedByteBuffer  m_buffer;
+      long              m_lastModified;
+      long              m_size;
+   }
+
+   protected int                       m_maxEntries    = 200;
+
+   protected long                      m_maxFileSize   = 1024*1024;
+
+   protected long                      m_maxBytes      = 64*1024*1024;
+
+   protected int                       m_threshold     = 3;
+
+   private FrequencySketch             m_sketch        = null;
+
+   private Map<String, Entry>          m_entries       =
+                                          new ConcurrentHashMap<String, Entry>();
+
+   private AtomicLong                  m_bytes         = new AtomicLong(0);
+
+   private AtomicLong                  m_hits          = new AtomicLong(0);
+
+   private AtomicLong                  m_promotions    = new AtomicLong(0);
+
+   private AtomicLong                  m_demotions     = new AtomicLong(0);
+
+   /**
+    * Create a HotFileCache.
+    * @param maxEntries The maximum number of promoted files. If &lt;= 0 then
+    * no files are promoted.
+    * @param maxFileSize The maximum size of a promoted file
+    * @param maxBytes The maximum total size of all promoted files
+    */
+   public HotFileCache(int maxEntries, long maxFileSize, long maxBytes)
+   //------------------------------------------------------------------
+   {
+      m_maxEntries = maxEntries;
+      m_maxFileSize = maxFileSize;
+      m_maxBytes = maxBytes;
+      m_sketch = new FrequencySketch(Math.max(maxEntries, 1));
+   }
+
+   /**
+    * Sets the estimated number of recent requests after which a file is
+    * promoted. Defaults to 3.
+    * @param threshold The promotion threshold (1 - 15)
+    */
+   public void setThreshold(int threshold)
+   //-------------------------------------
+   {
+      m_threshold = Math.max(1, Math.min(threshold, 15));
+   }
+
+   public int getMaxEntries() { return m_maxEntries; }
+
+   public long getMaxFileSize() { return m_maxFileSize; }
+
+   public long getMaxBytes() { return m_maxBytes; }
+
+   /**
+    * @return The number of promoted files.
+    */
+   public int size() { return m_entries.size(); }
+
+   /**
+    * @return The total size of the promoted files.
+    */
+   public long getBytes() { return m_bytes.get(); }
+
+   /**
+    * @return The number of requests served from promoted files.
+    */
+   public long getHitCount() { return m_hits.get(); }
+
+   /**
+    * @return The number of files promoted.
+    */
+   public long getPromotionCount() { return m_promotions.get(); }
+
+   /**
+    * @return The number of files demoted or evicted.
+    */
+   public long getDemotionCount() { return m_demotions.get(); }
+
+   /**
+    * Records a request for a file and returns its contents if the file is
+    * (or has just become) hot.
+    * @param file The file
+    * @return A read-only buffer positioned at the start of the file contents
+    * (which may be used by the calling thread only) or null if the file is
+    * not promoted.
+    */
+   public ByteBuffer get(File file)
+   //------------------------------
+   {
+      if (m_maxEntries <= 0) return null;
+      String key = file.getAbsolutePath();
+      if (m_sketch.increment(key))
+         _demoteCold();
+      Entry entry = m_entries.get(key);
+      if (entry != null)
+      {
+         if ( (file.lastModified() == entry.m_lastModified) &&
+              (file.length() == entry.m_size) )
+         {
+            m_hits.incrementAndGet();
+            return entry.m_buffer.asReadOnlyBuffer();
+         }
+         _remove(entry);
+      }
+      if (m_sketch.frequency(key) < m_threshold)
+         return null;
+      entry = _promote(file, key);
+      if (entry == null) return null;
+      m_hits.incrementAndGet();
+      return entry.m_buffer.asReadOnlyBuffer();
+   }
+
+   /**
+    * Demotes all promoted files.
+    */
+   public synchronized void clear()
+   //------------------------------
+   {
+      m_entries.clear();
+      m_bytes.set(0);
+      m_sketch.clear();
+   }
+
+   private synchronized Entry _promote(File file, String key)
+   //--------------------------------------------------------
+   {
+      Entry entry = m_entries.get(key);
+      if (entry != null) return entry;
+      long lastModified = file.lastModified(), size = file.length();
+      if ( (size <= 0) || (size > m_maxFileSize) || (size > m_maxBytes) ||
+           (! file.isFile()) )
+         return null;
+      int frequency = m_sketch.frequency(key);
+      while ( (m_entries.size() >= m_maxEntries) ||
+              (m_bytes.get() + size > m_maxBytes) )
+      {
+         Entry victim = null;
+         int victimFrequency = Integer.MAX_VALUE;
+         for (Entry e : m_entries.values())
+         {
+            int f = m_sketch.frequency(e.m_key);
+            if (f < victimFrequency)
+            {
+               victim = e;
+               victimFrequency = f;
+            }
+         }
+         if ( (victim == null) || (victimFrequency >= frequency) )
+            return null;
+         _remove(victim);
+      }
+      FileInputStream fis = null;
+      try
+      {
+         fis = new FileInputStream(file);
+         FileChannel channel = fis.getChannel();
+         entry = new Entry();
+         entry.m_key = key;
+         entry.m_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+         entry.m_lastModified = lastModified;
+         entry.m_size = size;
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(LogLevel.DEBUG, "Could not map " + file, e);
+         return null;
+      }
+      finally
+      {
+         if (fis != null) try { fis.close(); } catch (Exception e) {}
+      }
+      m_entries.put(key, entry);
+      m_bytes.addAndGet(size);
+      m_promotions.incrementAndGet();
+      return entry;
+   }
+
+   private synchronized void _remove(Entry entry)
+   //--------------------------------------------
+   {
+      if (m_entries.get(entry.m_key) != entry) return;
+      m_entries.remove(entry.m_key);
+      m_bytes.addAndGet(-entry.m_size);
+      m_demotions.incrementAndGet();
+   }
+
+   private void _demoteCold()
+   //------------------------
+   {
+      for (Iterator<Entry> it=m_entries.values().iterator(); it.hasNext();)
+      {
+         Entry entry = it.next();
+         if (m_sketch.frequency(entry.m_key) == 0)
+            _remove(entry);
+      }
+   }
+}
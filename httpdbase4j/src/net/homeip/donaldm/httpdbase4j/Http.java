@@ -21,7 +21,6 @@ package net.homeip.donaldm.httpdbase4j;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
@@ -59,7 +58,8 @@ public class Http
                      HTTP_UNAUTHORISED = 401,  HTTP_FORBIDDEN = 403,
                      HTTP_NOTFOUND = 404, HTTP_BADREQUEST = 400,
                      HTTP_METHOD = 405, HTTP_LENGTH = 411,
-                     HTTP_INTERNALERROR = 500, HTTP_NOTIMPLEMENTED = 501;
+                     HTTP_INTERNALERROR = 500, HTTP_NOTIMPLEMENTED = 501,
+                     HTTP_UNAVAILABLE = 503;
    
    public static final String MIME_PLAINTEXT = "text/plain",
                               MIME_HTML = "text/html", MIME_XML = "text/xml", 
@@ -109,6 +109,8 @@ public class Http
       m_httpErrors.put( new Integer(413), "Request Entity Too Large" );
       m_httpErrors.put( new Integer(414), "Request-URI Too Large" );
       m_httpErrors.put( new Integer(415), "Unsupported Media Type" );
+      m_httpErrors.put( new Integer(416), "Requested Range Not Satisfiable" );
+      m_httpErrors.put( new Integer(431), "Request Header Fields Too Large" );
       m_httpErrors.put( new Integer(500), "Server Error" );
       m_httpErrors.put( new Integer(501), "Not Implemented" );
       m_httpErrors.put( new Integer(502), "Bad Gateway" );
@@ -321,16 +323,24 @@ public class Http
                      throws IOException
    //----------------------------------------------------------------
    {
-      byte[] data = new byte[4096];
-      long total = 0;
-      int cb = is.read(data, 0, 4096);
-      while (cb >= 0)
+      BufferPool pool = BufferPool.getDefault();
+      byte[] data = pool.acquire(BufferPool.COPY_SIZE);
+      try
+      {
+         long total = 0;
+         int cb = is.read(data, 0, data.length);
+         while (cb >= 0)
+         {
+            total += cb;
+            os.write(data, 0, cb);
+            cb = is.read(data, 0, data.length);
+         }
+         return total;
+      }
+      finally
       {
-         total += cb;
-         os.write(data, 0, cb);
-         cb = is.read(data, 0, 4096);         
+         pool.release(data);
       }
-      return total;
    }
    
    /**
@@ -409,33 +419,27 @@ public class Http
          return null;
       }
       
-      BufferedInputStream bis = null;
-      byte[] buffer = new byte[4096];
+      InputStream is = null;
+      BufferPool pool = BufferPool.getDefault();
+      byte[] buffer = pool.acquire(BufferPool.COPY_SIZE);
       DirItemInterface currentFile = null;
       try
       {
          for (DirItemInterface file : files)
          {
             currentFile = file;
-            InputStream is = file.getStream();
+            is = file.getStream();
             if (is == null) continue;
-            bis = new BufferedInputStream(is);
             while (true)
             {
-               int cb = bis.read(buffer); 
+               int cb = is.read(buffer); 
                if (cb < 0) break;
                messageDigest.update(buffer, 0, cb);
             }            
+            is.close();
+            is = null;
          }
-         byte digest[] = messageDigest.digest();
-         StringBuilder sb = new StringBuilder(digest.length * 2 + 16);
-         for (int i = 0; i < digest.length; i++) 
-         {
-            int v = digest[i] & 0xff;
-            if (v < 16) sb.append('0');
-            sb.append(Integer.toHexString(v));
-         }
-         return sb.toString();
+         return _hex(messageDigest.digest());
       }
       catch (IOException e)
       {
@@ -446,9 +450,78 @@ public class Http
       }
       finally
       {
-         if (bis != null)
-            try { bis.close(); } catch (Exception e) {}
+         if (is != null)
+            try { is.close(); } catch (Exception e) {}
+         pool.release(buffer);
+      }
+   }
+
+   /**
+    * Calculate a metadata e-tag for a list of files from the size and 
+    * modification time of each file (without reading the files). For a 
+    * single file the e-tag is the hex size and modification time separated 
+    * by a '-', for more than one file it is the SHA-1 hash of the 
+    * concatenated sizes, modification times and names.
+    * @param files List of files to calculate e-tag for
+    * @return A String containing the e-tag.
+    */
+   public static String metadataETag(DirItemInterface... files)
+   //----------------------------------------------------------
+   {
+      StringBuilder sb = new StringBuilder(32 * files.length);
+      for (DirItemInterface file : files)
+      {
+         if (sb.length() > 0) sb.append(':');
+         Date date = file.getDate();
+         sb.append(Long.toHexString(file.getSize())).append('-');
+         sb.append(Long.toHexString((date == null) ? 0 : date.getTime()));
+         if (files.length > 1)
+            sb.append('-').append(file.getName());
+      }
+      if (files.length <= 1) return sb.toString();
+      try 
+      {
+         MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+         return _hex(messageDigest.digest(sb.toString().getBytes("UTF-8")));
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(Httpd.LogLevel.ERROR, "Error computing ETAG hash", e);
+         return null;
+      }
+   }
+
+   /**
+    * @param s A string
+    * @return The hex SHA-1 hash of the UTF-8 encoding of the string or null
+    * if the hash could not be computed.
+    */
+   public static String sha1(String s)
+   //---------------------------------
+   {
+      try 
+      {
+         MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+         return _hex(messageDigest.digest(s.getBytes("UTF-8")));
       }
+      catch (Exception e)
+      {
+         Httpd.Log(Httpd.LogLevel.ERROR, "Error computing SHA-1 hash", e);
+         return null;
+      }
+   }
+
+   static private String _hex(byte[] digest)
+   //---------------------------------------
+   {
+      StringBuilder sb = new StringBuilder(digest.length * 2 + 16);
+      for (int i = 0; i < digest.length; i++) 
+      {
+         int v = digest[i] & 0xff;
+         if (v < 16) sb.append('0');
+         sb.append(Integer.toHexString(v));
+      }
+      return sb.toString();
    }
 
    static public boolean deleteDir(java.io.File dir)
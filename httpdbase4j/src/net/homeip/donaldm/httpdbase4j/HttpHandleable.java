@@ -66,8 +66,10 @@ public interface HttpHandleable
     * overiding  class to modify the response headers. The overiding class should 
     * return a HttpResponse or null to use the default HttpResponse.<br>
     * <b>NOTE:</b> If the overiding class is going to alter the response body
-    * using <i>onGETBody</i> then it should set the Content-Length header in
-    * this method.
+    * using <i>onServeBody</i> then it should return a HttpResponse and set 
+    * the Content-Length header in this method if the length is known. If no
+    * Content-Length is set the body is sent using chunked transfer encoding
+    * (@see Httpd#setChunkedFlushPolicy).
     * @param id Unique transaction id
     * @param ex The exchange instance for the current HTTP transaction.
     * @param request The request instance
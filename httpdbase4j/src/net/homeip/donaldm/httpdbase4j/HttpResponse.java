@@ -22,11 +22,18 @@ package net.homeip.donaldm.httpdbase4j;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Encapsulates sending HTTP responses and provides several static methods
@@ -48,6 +55,12 @@ public class HttpResponse
    
    private long                          m_contentLength = 0;
 
+   /**
+    * Flushes chunked response data which has been buffered for longer than
+    * the flush interval (@see #sendChunkedData).
+    */
+   static private ScheduledExecutorService m_flushTimer = null;
+
    /**
     * Create a HttpResponse 
     * @param exchange The exchange instance for the current HTTP transaction.
@@ -167,6 +180,18 @@ public class HttpResponse
          l.add(v);
    }
 
+   /**
+    * Set a header value replacing any existing values.
+    * @param k The header key
+    * @param v The header value
+    */
+   public void setHeader(String k, String v)
+   //---------------------------------------
+   {
+      m_headers.remove(k.trim());
+      addHeader(k, v);
+   }
+
    public void setStatus(int status)  { m_status = status;  }
 
    public void setBody(String body) { m_body = body;  }
@@ -260,6 +285,163 @@ public class HttpResponse
       }
    }
 
+   /**
+    * Send the Response data using chunked transfer encoding (the headers
+    * must have been sent with a content length of 0). The data is written as
+    * it becomes available and flushed to the client according to the flush
+    * policy (@see Httpd#setChunkedFlushPolicy) so the client does not have to
+    * wait for the complete body to be generated. The flush interval is 
+    * enforced by a shared timer so buffered data is also flushed while a 
+    * read from the body stream is blocked.
+    * @param data The stream to send as the Response body.
+    * @param flushSize Bytes to buffer before flushing or &lt;= 0 to flush
+    * after every read
+    * @param flushInterval Maximum time in milliseconds to buffer data or 
+    * &lt; 0 for no limit
+    * @param isFlushOnBlock true to flush before a read that may block
+    * @return true if Response was successfully sent otherwise false
+    */
+   public boolean sendChunkedData(InputStream data, int flushSize, 
+                                  long flushInterval, boolean isFlushOnBlock)
+   //-------------------------------------------------------------------------
+   {
+      if (m_responseStream == null) return false;
+      if (data instanceof StreamingInputStream)
+         return sendData(data);
+      long count = 0;
+      BufferPool pool = BufferPool.getDefault();
+      byte[] buffer = pool.acquire(8192);
+      ChunkedFlusher flusher = new ChunkedFlusher(m_responseStream, 
+                                                  flushInterval);
+      try
+      {
+         while (true)
+         {
+            if ( (isFlushOnBlock) && (flusher.getPending() > 0) && 
+                 (data.available() <= 0) )
+               flusher.flush();
+            int n = data.read(buffer);
+            if (n < 0) break;
+            if (n == 0) continue;
+            flusher.write(buffer, n);
+            count += n;
+            if ( (flushSize <= 0) || (flushInterval == 0) ||
+                 (flusher.getPending() >= flushSize) )
+               flusher.flush();
+         }
+         return true;
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(Httpd.LogLevel.ERROR, "Error sending chunked response data", 
+                   e);
+         return false;
+      }
+      finally
+      {
+         flusher.close();
+         pool.release(buffer);
+         HttpdMetrics metrics = HttpdMetrics.get(m_exchange);
+         if (metrics != null) metrics.onBytesSent(count);
+         try { m_responseStream.close(); } catch (Exception e) {}
+      }
+   }
+
+   /**
+    * @return The shared timer which flushes chunked responses.
+    */
+   static synchronized private ScheduledExecutorService _flushTimer()
+   //----------------------------------------------------------------
+   {
+      if (m_flushTimer == null)
+      {
+         // More than one thread so that a flush which blocks on a slow
+         // client does not hold up the flushes of other responses.
+         int threads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+         m_flushTimer = new ScheduledThreadPoolExecutor(threads, 
+                                                        new ThreadFactory()
+         {
+            public Thread newThread(Runnable r)
+            {
+               Thread t = new Thread(r, "HttpResponse:flush");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return m_flushTimer;
+   }
+
+   /**
+    * Writes the data of a chunked response and flushes it once the oldest 
+    * buffered data is older than the flush interval, using the shared timer
+    * while the sending thread is blocked reading the body stream. Writes 
+    * and flushes are synchronized on the flusher.
+    */
+   static private class ChunkedFlusher implements Runnable
+   //=====================================================
+   {
+      private OutputStream m_out;
+
+      private long         m_interval;
+
+      private int          m_pending      = 0;
+
+      private long         m_pendingSince = 0;
+
+      private boolean      m_isClosed     = false;
+
+      ChunkedFlusher(OutputStream out, long interval)
+      //---------------------------------------------
+      {
+         m_out = out;
+         m_interval = interval;
+      }
+
+      synchronized int getPending() { return m_pending; }
+
+      synchronized void write(byte[] b, int len) throws IOException
+      //-----------------------------------------------------------
+      {
+         m_out.write(b, 0, len);
+         if (m_pending == 0)
+         {
+            m_pendingSince = System.currentTimeMillis();
+            if (m_interval > 0)
+               _flushTimer().schedule(this, m_interval, TimeUnit.MILLISECONDS);
+         }
+         m_pending += len;
+      }
+
+      synchronized void flush() throws IOException
+      //------------------------------------------
+      {
+         if (m_pending == 0) return;
+         m_pending = 0;
+         m_out.flush();
+      }
+
+      synchronized void close() { m_isClosed = true; }
+
+      public synchronized void run()
+      //----------------------------
+      {
+         if ( (m_isClosed) || (m_pending == 0) ) return;
+         // Data flushed since this flush was scheduled is pending again (and
+         // write has scheduled another flush for it)
+         if (System.currentTimeMillis() - m_pendingSince < m_interval) return;
+         try
+         {
+            flush();
+         }
+         catch (Exception e)
+         {
+            Httpd.Log(Httpd.LogLevel.DEBUG, "Flushing chunked response data", 
+                      e);
+         }
+      }
+   }
+
    /**
     * Send the Response data
     * @param data The stream to send as the Response body. Note: This must be the 
@@ -272,7 +454,13 @@ public class HttpResponse
       if (m_responseStream == null) return false;      
       try
       {
-         Http.readWriteStream(data, m_responseStream);
+         long count;
+         if (data instanceof StreamingInputStream)
+            count = ((StreamingInputStream) data).writeTo(m_responseStream);
+         else
+            count = Http.readWriteStream(data, m_responseStream);
+         HttpdMetrics metrics = HttpdMetrics.get(m_exchange);
+         if (metrics != null) metrics.onBytesSent(count);
          return true;
       }
       catch (Exception e)
@@ -286,6 +474,179 @@ public class HttpResponse
       }
    }
 
+   /**
+    * Send part of a stream as the Response data (eg a byte range). 
+    * @param data The stream to send as the Response body. 
+    * @param count The number of bytes to send. Note: This must be the 
+    * same length as the contentLength set in sendHeaders.
+    * @return true if Response was successfully sent otherwise false
+    */
+   public boolean sendData(InputStream data, long count)
+   //---------------------------------------------------
+   {
+      if (m_responseStream == null) return false;      
+      long sent = 0;
+      BufferPool pool = BufferPool.getDefault();
+      byte[] buffer = pool.acquire((int) Math.min(count, 65536));
+      try
+      {
+         while (sent < count)
+         {
+            int n = data.read(buffer, 0, (int) Math.min(buffer.length, 
+                                                        count - sent));
+            if (n < 0) break;
+            m_responseStream.write(buffer, 0, n);
+            sent += n;
+         }
+         return (sent == count);
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(Httpd.LogLevel.ERROR, "Error sending response data", e);
+         return false;
+      }
+      finally
+      {
+         pool.release(buffer);
+         HttpdMetrics metrics = HttpdMetrics.get(m_exchange);
+         if (metrics != null) metrics.onBytesSent(sent);
+         try { m_responseStream.close(); } catch (Exception e) {}
+      }
+   }
+
+   /**
+    * Send the contents of a file as the Response data. If the exchange 
+    * supports it (@see FileTransferable) the file is written directly to the
+    * connection using FileChannel.transferTo, otherwise it is copied through
+    * the response stream.
+    * @param file The file to send. Note: The file length must be the same as
+    * the contentLength set in sendHeaders.
+    * @return true if Response was successfully sent otherwise false
+    */
+   public boolean sendFile(java.io.File file)
+   //----------------------------------------
+   {
+      return sendFile(file, 0);
+   }
+
+   /**
+    * Send part of a file (eg a byte range) as the Response data. 
+    * @see #sendFile(java.io.File)
+    * @param file The file to send.
+    * @param position The offset in the file of the first byte to send. The
+    * number of bytes sent is the contentLength set in sendHeaders.
+    * @return true if Response was successfully sent otherwise false
+    */
+   public boolean sendFile(java.io.File file, long position)
+   //-------------------------------------------------------
+   {
+      if (m_responseStream == null) return false;
+      FileInputStream fis = null;
+      try
+      {
+         fis = new FileInputStream(file);
+         if ( (m_exchange instanceof FileTransferable) &&
+              (((FileTransferable) m_exchange).isFileTransferSupported()) )
+         {
+            try
+            {
+               long count = ((FileTransferable) m_exchange).transferFile(
+                                   fis.getChannel(), position, m_contentLength);
+               HttpdMetrics metrics = HttpdMetrics.get(m_exchange);
+               if (metrics != null) metrics.onBytesSent(count);
+               return (count == m_contentLength);
+            }
+            finally
+            {
+               try { m_responseStream.close(); } catch (Exception e) {}
+            }
+         }
+         if (position > 0)
+            fis.getChannel().position(position);
+         return sendData(fis, m_contentLength);
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(Httpd.LogLevel.ERROR, "Error sending file " + file, e);
+         try { m_responseStream.close(); } catch (Exception ee) {}
+         return false;
+      }
+      finally
+      {
+         if (fis != null) try { fis.close(); } catch (Exception e) {}
+      }
+   }
+
+   /**
+    * Send the contents of a buffer (eg a memory mapped file) as the Response
+    * data. If the exchange supports it (@see FileTransferable) the buffer is
+    * written directly to the connection, otherwise it is copied through the
+    * response stream.
+    * @param buffer The buffer to send. Note: The remaining bytes in the 
+    * buffer must be the same as the contentLength set in sendHeaders.
+    * @return true if Response was successfully sent otherwise false
+    */
+   public boolean sendBuffer(ByteBuffer buffer)
+   //------------------------------------------
+   {
+      if (m_responseStream == null) return false;
+      try
+      {
+         long count = 0;
+         if (buffer.remaining() > m_contentLength)
+            buffer.limit(buffer.position() + (int) m_contentLength);
+         if ( (m_exchange instanceof FileTransferable) &&
+              (((FileTransferable) m_exchange).isFileTransferSupported()) )
+            count = ((FileTransferable) m_exchange).transferBuffer(buffer);
+         else if (buffer.hasArray())
+         {
+            count = buffer.remaining();
+            m_responseStream.write(buffer.array(), 
+                                   buffer.arrayOffset() + buffer.position(),
+                                   (int) count);
+            buffer.position(buffer.limit());
+         }
+         else
+         {
+            BufferPool pool = BufferPool.getDefault();
+            byte[] data = pool.acquire(Math.min(buffer.remaining(), 65536));
+            try
+            {
+               while (buffer.hasRemaining())
+               {
+                  int cb = Math.min(data.length, buffer.remaining());
+                  buffer.get(data, 0, cb);
+                  m_responseStream.write(data, 0, cb);
+                  count += cb;
+               }
+            }
+            finally
+            {
+               pool.release(data);
+            }
+         }
+         HttpdMetrics metrics = HttpdMetrics.get(m_exchange);
+         if (metrics != null) metrics.onBytesSent(count);
+         return (count == m_contentLength);
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(Httpd.LogLevel.ERROR, "Error sending response data", e);
+         return false;
+      }
+      catch (InternalError e)
+      {
+         // A memory mapped file was truncated (@see HotFileCache)
+         Httpd.Log(Httpd.LogLevel.ERROR, "Error reading mapped response data", 
+                   e);
+         return false;
+      }
+      finally
+      {
+         try { m_responseStream.close(); } catch (Exception e) {}
+      }
+   }
+
    /**
     * Send the Response using the body and/or status previously specified in the 
     * constructor. If the body is not specified then nol content is send only 
@@ -419,6 +780,31 @@ public class HttpResponse
       return response;
    }
    
+   /**
+    * Create a HTTP SERVICE UNAVAILABLE response with a Retry-After header.
+    * Used to shed load when the server work queue is full.
+    * @param exchange The exchange instance for the current HTTP transaction.
+    * @param retryAfter The number of seconds after which the client may
+    * retry the request or -1 to omit the Retry-After header.
+    * @return An HttpResponse instance 
+    */
+   static public HttpResponse serviceUnavailable(HttpExchange exchange,
+                                                 int retryAfter)
+   //-----------------------------------------------------------------
+   {
+      HttpResponse response = null;
+      if (exchange.getRequestMethod().compareToIgnoreCase("head") != 0)
+         response = new HttpResponse(exchange, Http.HTTP_UNAVAILABLE,
+                                     Http.MIME_PLAINTEXT,
+                                     "Server busy. Please try again later.");
+      else
+         response = new HttpResponse(exchange, Http.HTTP_UNAVAILABLE);
+      if (retryAfter >= 0)
+         response.addHeader("Retry-After", Integer.toString(retryAfter));
+      response.addHeader("Connection", "close");
+      return response;
+   }
+   
    /**
     * Create a HTTP NOTIFY CONTINUE response
     * @param exchange The exchange instance for the current HTTP transaction.
@@ -27,7 +27,6 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -35,16 +34,21 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -59,7 +63,6 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpsParameters;
-import com.sun.net.httpserver.HttpsServer;
 
 import de.schlichtherle.io.FileInputStream;
 import java.net.URL;
@@ -181,12 +184,28 @@ abstract public class Httpd implements HttpHandleable, Postable
 //==============================================================
 {
    /**
-    * Thread model for the server. SINGLE, MULTI or POOL.  
+    * Thread model for the server. SINGLE, MULTI, POOL or VIRTUAL. VIRTUAL
+    * runs each exchange on its own virtual thread (platform threads if the JVM
+    * does not support virtual threads) with the number of concurrent exchanges
+    * capped at the maximum pool size.
+    * @see VirtualThreadExecutor
     */
    public enum ThreadModel 
    {
-      SINGLE, MULTI, POOL
+      SINGLE, MULTI, POOL, VIRTUAL
    };   
+
+   /**
+    * How ETags are generated for files and archive entries. METADATA derives
+    * the ETag from the size and modification time of the resource (@see 
+    * Http#metadataETag), CONTENT_HASH uses a SHA-1 hash of the contents 
+    * (@see Http#eTag) which is computed once and memoized until the size or
+    * modification time changes (@see ETagCache).
+    */
+   public enum ETagStrategy
+   {
+      METADATA, CONTENT_HASH
+   };
    
    public static String EOL = System.getProperty("line.separator");
    
@@ -195,6 +214,34 @@ abstract public class Httpd implements HttpHandleable, Postable
     */
    protected HttpServer                  m_http             = null;
 
+   /**
+    * All the dispatcher shards listening on m_port (including m_http which
+    * is the first shard).
+    * @see Httpd#setDispatchers
+    */
+   protected ArrayList<HttpServer>       m_shards           = new ArrayList<HttpServer>();
+
+   /**
+    * The server contexts for each shard in m_shards.
+    */
+   protected ArrayList<HttpContext>      m_contexts         = new ArrayList<HttpContext>();
+
+   /**
+    * The number of dispatcher shards requested.
+    */
+   protected int                         m_dispatchers      = 1;
+
+   /**
+    * The TCP accept backlog for the listening socket(s).
+    */
+   protected int                         m_backlog          = 20;
+
+   /**
+    * Creates the HttpServer(s).
+    * @see Httpd#setServerEngine
+    */
+   protected ServerEngine                m_engine           = new JdkServerEngine();
+
    protected int                         m_port             = 8080;
 
    protected HttpContext                 m_context          = null;
@@ -225,6 +272,14 @@ abstract public class Httpd implements HttpHandleable, Postable
    protected Map<String, Postable>       m_postHandlerMap   = 
                                                 new HashMap<String, Postable>();   
    
+   /**
+    * Maps handlers (HttpHandleable or Postable instances) onto dedicated
+    * (bulkhead) executors.
+    * @see Httpd#setHandlerExecutor
+    */
+   protected Map<Object, ExecutorService> m_bulkheadMap     = 
+                        new IdentityHashMap<Object, ExecutorService>();
+
    protected boolean                     m_mustCache = true;
    
    /*
@@ -240,9 +295,171 @@ abstract public class Httpd implements HttpHandleable, Postable
    protected int                         m_poolMax          = 50;
 
    protected int                         m_poolSize         = 5;
+
+   /**
+    * Target mean queue wait (milliseconds) for an adaptive thread pool or
+    * -1 if the pool size is fixed.
+    * @see Httpd#setAdaptiveThreadPool
+    */
+   protected long                        m_targetWait       = -1;
+
+   /**
+    * Maximum number of exchanges waiting for a thread or -1 for an unbounded
+    * work queue.
+    * @see Httpd#setWorkQueue
+    */
+   protected int                         m_queueCapacity    = -1;
+
+   /**
+    * Retry-After value (in seconds) sent with 503 responses when the work
+    * queue is full.
+    */
+   protected int                         m_retryAfter       = 5;
+
+   /**
+    * Answers exchanges rejected by the executor created by onCreateExecutor
+    * (@see LoadSheddingPolicy).
+    */
+   protected LoadSheddingPolicy          m_sheddingPolicy   = null;
+
+   /**
+    * Number of exchanges rejected because the work queue was full.
+    */
+   protected AtomicLong                  m_rejectedCount    = new AtomicLong(0);
    
    protected boolean                     m_isStarted        = false;
 
+   /**
+    * true while the server is being drained.
+    * @see Httpd#drain
+    */
+   protected volatile boolean            m_isDraining       = false;
+
+   /**
+    * The number of exchanges currently being processed by the request 
+    * handler.
+    */
+   protected AtomicInteger               m_inFlight         = new AtomicInteger(0);
+
+   /**
+    * Temporary files created while processing requests which must be deleted
+    * when the server is drained.
+    */
+   protected Set<java.io.File>           m_tempFiles        = 
+                      Collections.synchronizedSet(new HashSet<java.io.File>());
+
+   private final Object                  m_drained          = new Object();
+
+   /**
+    * Executor and request processing metrics.
+    */
+   protected HttpdMetrics                m_metrics          = new HttpdMetrics(this);
+
+   /**
+    * If true the metrics are registered as a JMX MBean while the server is
+    * started.
+    */
+   protected boolean                     m_isJmx            = true;
+
+   /**
+    * If true HTTP/1.1 persistent connections are used.
+    * @see Httpd#setKeepAlive
+    */
+   protected boolean                     m_isKeepAlive      = true;
+
+   /**
+    * Time in milliseconds after which idle persistent connections are
+    * closed.
+    */
+   protected long                        m_keepAliveTimeout = 30000;
+
+   /**
+    * Maximum number of requests served on a persistent connection or 
+    * &lt;= 0 for no limit.
+    */
+   protected int                         m_maxKeepAliveRequests = 100;
+
+   /**
+    * Number of requests served per persistent connection keyed by the
+    * remote address.
+    */
+   private ConcurrentHashMap<InetSocketAddress, ConnectionRequests> m_connectionRequests =
+                  new ConcurrentHashMap<InetSocketAddress, ConnectionRequests>();
+
+   private volatile long                 m_lastConnectionPurge = System.currentTimeMillis();
+
+   /**
+    * Frequently requested files promoted to memory mapped buffers (disabled
+    * by default).
+    * @see Httpd#setHotFileCache
+    */
+   protected HotFileCache                m_hotFiles         = 
+                                 new HotFileCache(0, 1024*1024, 64*1024*1024);
+
+   /**
+    * Off-heap cache of compressed variants and archive entries.
+    * @see Httpd#setContentCache
+    */
+   protected ContentCache                m_contentCache     = 
+                                 new ContentCache(32*1024*1024, 1024*1024);
+
+   /**
+    * How ETags are generated.
+    * @see Httpd#setETagStrategy
+    */
+   protected ETagStrategy                m_eTagStrategy     = ETagStrategy.METADATA;
+
+   /**
+    * Memoized content hash ETags (used when m_eTagStrategy is CONTENT_HASH).
+    */
+   protected ETagCache                   m_eTagCache        = new ETagCache(4096);
+
+   /**
+    * Disk cache of compressed variants (created on first use).
+    * @see Httpd#setDiskCache
+    */
+   protected volatile DiskCache          m_diskCache        = null;
+
+   protected java.io.File                m_diskCacheDir     = null;
+
+   /**
+    * true if the disk cache uses a directory created for this instance 
+    * (which is deleted when the server stops).
+    */
+   protected boolean                     m_isDiskCacheDirDefault = true;
+
+   protected long                        m_diskCacheMaxBytes = 256*1024*1024;
+
+   protected long                        m_diskCacheMaxAge  = 0;
+
+   /**
+    * Precompresses resources when the server starts or null if
+    * precompression is disabled.
+    * @see Httpd#setPrecompression
+    */
+   protected Precompressor               m_precompressor    = null;
+
+   protected boolean                     m_isPrecompressInBackground = false;
+
+   /**
+    * Number of bytes of a chunked response body buffered before it is
+    * flushed to the client or &lt;= 0 to flush after every read.
+    * @see Httpd#setChunkedFlushPolicy
+    */
+   protected int                         m_chunkedFlushSize     = 8192;
+
+   /**
+    * Maximum time in milliseconds that data of a chunked response body is
+    * buffered before it is flushed or &lt; 0 for no limit.
+    */
+   protected long                        m_chunkedFlushInterval = 200;
+
+   /**
+    * If true a chunked response body is flushed whenever the next read from
+    * the body stream would block.
+    */
+   protected boolean                     m_isChunkedFlushOnBlock = true;
+
    static private AtomicLong             m_sequence         = new AtomicLong(0);
 
    public Httpd()
@@ -253,6 +470,81 @@ abstract public class Httpd implements HttpHandleable, Postable
    }
    
    public boolean isStarted() { return m_isStarted; }
+
+   /**
+    * @return true if the server is being drained.
+    * @see Httpd#drain
+    */
+   public boolean isDraining() { return m_isDraining; }
+
+   /**
+    * @return The executor and request processing metrics for this server.
+    */
+   public HttpdMetrics getMetrics() { return m_metrics; }
+
+   /**
+    * Sets whether the metrics are registered as a JMX MBean 
+    * (net.homeip.donaldm.httpdbase4j:type=Httpd,port=<i>port</i>) while the
+    * server is started. Defaults to true.
+    * Should only be used before calling start.
+    * @param isJmx true to register the MBean
+    */
+   public void setJmx(boolean isJmx)
+   //-------------------------------
+   {
+      if (m_isStarted) return;
+      m_isJmx = isJmx;
+   }
+
+   /**
+    * @return The number of exchanges currently being processed.
+    */
+   public int getInFlight() { return m_inFlight.get(); }
+
+   /**
+    * Called by RequestHandler when it starts processing an exchange.
+    */
+   protected void onExchangeBegin()
+   //------------------------------
+   {
+      m_inFlight.incrementAndGet();
+      m_metrics.onRequest();
+   }
+
+   /**
+    * Called by RequestHandler when it has finished processing an exchange.
+    */
+   protected void onExchangeEnd()
+   //----------------------------
+   {
+      if ( (m_inFlight.decrementAndGet() <= 0) && (m_isDraining) )
+      {
+         synchronized (m_drained)
+         {
+            m_drained.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Registers a temporary file to be deleted when the server is drained.
+    * @param f The temporary file
+    */
+   protected void addTempFile(java.io.File f)
+   //----------------------------------------
+   {
+      if (f != null) m_tempFiles.add(f);
+   }
+
+   /**
+    * Unregisters a temporary file (eg after it has been deleted or renamed).
+    * @param f The temporary file
+    */
+   protected void removeTempFile(java.io.File f)
+   //-------------------------------------------
+   {
+      if (f != null) m_tempFiles.remove(f);
+   }
    
    public void setCaching(boolean b) { m_mustCache = b; }
    
@@ -274,6 +566,11 @@ abstract public class Httpd implements HttpHandleable, Postable
             m_poolSize = 10;
             m_poolMax = 10;
             break;
+
+         case VIRTUAL:
+            m_poolSize = 0;
+            m_poolMax = 10000;
+            break;
       }
    }
    
@@ -321,7 +618,22 @@ abstract public class Httpd implements HttpHandleable, Postable
    public void setAuthenticator(Authenticator authenticator)
    //-------------------------------------------------------
    {
-      if (m_context != null) m_context.setAuthenticator(authenticator);
+      Authenticator wrapped = onWrapAuthenticator(authenticator);
+      for (HttpContext context : m_contexts)
+         context.setAuthenticator(wrapped);
+   }
+
+   /**
+    * Wraps the Authenticator set for the server context. If the work queue is
+    * bounded then exchanges that are shed are not authenticated.
+    * @param authenticator The Authenticator to wrap
+    * @return The Authenticator to set for the server context.
+    */
+   protected Authenticator onWrapAuthenticator(Authenticator authenticator)
+   //----------------------------------------------------------------------
+   {
+      if (m_queueCapacity < 0) return authenticator;
+      return LoadSheddingPolicy.wrap(authenticator);
    }
    
    /**
@@ -333,8 +645,507 @@ abstract public class Httpd implements HttpHandleable, Postable
    {
       if (m_isStarted) return;
       m_threadModel = threadModel;
-      m_poolSize = 5;
-      m_poolMax = 50;
+      m_targetWait = -1;
+      if (m_threadModel == ThreadModel.VIRTUAL)
+         setDefaultPoolSizes();
+      else
+      {
+         m_poolSize = 5;
+         m_poolMax = 50;
+      }
+   }
+
+   /**
+    * Sets thread model to VIRTUAL and sets the maximum number of exchanges
+    * that may be processed concurrently. Exchanges arriving when the maximum
+    * has been reached wait in the dispatcher until a running exchange
+    * completes.
+    * Should only be used before calling start.
+    * @param maxConcurrent The maximum number of concurrently processed
+    * exchanges.
+    */
+   public void setVirtualThreads(int maxConcurrent)
+   //----------------------------------------------
+   {
+      if (m_isStarted) return;
+      m_threadModel = ThreadModel.VIRTUAL;
+      m_targetWait = -1;
+      m_poolSize = 0;
+      m_poolMax = maxConcurrent;
+   }
+
+   /**
+    * Sets whether HTTP/1.1 persistent (keep-alive) connections are used.
+    * If false every response is sent with Connection: close. Defaults to 
+    * true. Connections are still closed after responses whose length is not
+    * known in advance.
+    * @param isKeepAlive true to enable persistent connections
+    */
+   public void setKeepAlive(boolean isKeepAlive) { m_isKeepAlive = isKeepAlive; }
+
+   /**
+    * @return true if persistent connections are enabled.
+    */
+   public boolean getKeepAlive() { return m_isKeepAlive; }
+
+   /**
+    * Sets the time after which idle persistent connections are closed.
+    * Defaults to 30 seconds.<br>
+    * Note the JDK server engine reads its idle timeout (the 
+    * sun.net.httpserver.idleInterval system property, which is set from this 
+    * value if not already set) once when the first server is created in the
+    * JVM.
+    * Should only be used before calling start.
+    * @param timeout The idle timeout in milliseconds
+    */
+   public void setKeepAliveTimeout(long timeout)
+   //-------------------------------------------
+   {
+      if (m_isStarted) return;
+      m_keepAliveTimeout = timeout;
+   }
+
+   /**
+    * @return The time in milliseconds after which idle persistent connections
+    * are closed.
+    */
+   public long getKeepAliveTimeout() { return m_keepAliveTimeout; }
+
+   /**
+    * Sets the maximum number of requests served on a persistent connection
+    * before it is closed. Defaults to 100.
+    * @param max The maximum number of requests per connection or &lt;= 0 
+    * for no limit.
+    */
+   public void setMaxKeepAliveRequests(int max) { m_maxKeepAliveRequests = max; }
+
+   /**
+    * @return The maximum number of requests served on a persistent 
+    * connection.
+    */
+   public int getMaxKeepAliveRequests() { return m_maxKeepAliveRequests; }
+
+   /**
+    * Called by RequestHandler before sending a response to decide whether
+    * the connection should be kept open after the response. 
+    * Connections are closed if persistent connections are disabled, the 
+    * server is draining, the response length is unknown (chunked responses
+    * are only kept open for HTTP/1.1 clients), the client did not request a
+    * persistent connection or the maximum number of requests on the
+    * connection has been reached. The number of requests per connection is
+    * tracked by remote address.
+    * @param ex The exchange
+    * @param contentLength The response body length, 0 if the response is
+    * sent using chunked transfer encoding or &lt; 0 if unknown
+    * @return true to keep the connection open, false to send Connection: 
+    * close.
+    */
+   protected boolean onKeepAlive(HttpExchange ex, long contentLength)
+   //-----------------------------------------------------------------
+   {
+      InetSocketAddress remote = ex.getRemoteAddress();
+      boolean isKeepAlive = ( (m_isKeepAlive) && (! m_isDraining) && 
+                              (contentLength >= 0) && (remote != null) );
+      if ( (contentLength == 0) && 
+           (ex.getProtocol().equalsIgnoreCase("HTTP/1.0")) )
+         isKeepAlive = false;
+      if (isKeepAlive)
+      {
+         String connection = ex.getRequestHeaders().getFirst("Connection");
+         if (ex.getProtocol().equalsIgnoreCase("HTTP/1.0"))
+            isKeepAlive = ( (connection != null) && 
+                            (connection.toLowerCase().contains("keep-alive")) );
+         else
+            isKeepAlive = ( (connection == null) || 
+                            (! connection.toLowerCase().contains("close")) );
+      }
+      if ( (isKeepAlive) && (m_maxKeepAliveRequests > 0) )
+      {
+         _purgeConnections();
+         ConnectionRequests requests = m_connectionRequests.get(remote);
+         if (requests == null)
+         {
+            requests = new ConnectionRequests();
+            ConnectionRequests existing = m_connectionRequests.putIfAbsent(
+                                                               remote, requests);
+            if (existing != null) requests = existing;
+         }
+         requests.m_lastSeen = System.currentTimeMillis();
+         if (requests.m_count.incrementAndGet() >= m_maxKeepAliveRequests)
+            isKeepAlive = false;
+      }
+      if ( (! isKeepAlive) && (remote != null) )
+         m_connectionRequests.remove(remote);
+      return isKeepAlive;
+   }
+
+   /**
+    * Removes request counts for connections that must have been closed by
+    * the idle timeout (the map is only purged once per timeout period).
+    */
+   private void _purgeConnections()
+   //------------------------------
+   {
+      long now = System.currentTimeMillis();
+      long timeout = Math.max(m_keepAliveTimeout, 1000);
+      if (now - m_lastConnectionPurge < timeout) return;
+      m_lastConnectionPurge = now;
+      for (Iterator<ConnectionRequests> it=m_connectionRequests.values().iterator(); 
+           it.hasNext();)
+      {
+         if (now - it.next().m_lastSeen > 2*timeout)
+            it.remove();
+      }
+   }
+
+   static private class ConnectionRequests
+   //=====================================
+   {
+      AtomicInteger  m_count    = new AtomicInteger(0);
+      volatile long  m_lastSeen = 0;
+   }
+
+   /**
+    * Sets when the body of a chunked response (a response whose length is
+    * not known in advance ie a stream returned by HttpHandleable.onServeBody
+    * without a Content-Length header) is flushed to the client. Data is 
+    * flushed once flushSize bytes have been buffered, once the oldest
+    * buffered data is older than flushInterval milliseconds (enforced by a 
+    * timer so it also applies while a read from the body stream is blocked)
+    * or, if isFlushOnBlock is true, whenever the body stream has no data 
+    * available (InputStream.available() returns 0) ie before a read that may
+    * block waiting for the data to be generated. Defaults to 8192 bytes, 
+    * 200ms and flush on block.
+    * @param flushSize Bytes to buffer before flushing or &lt;= 0 to flush
+    * after every read
+    * @param flushInterval Maximum time in milliseconds to buffer data or 
+    * &lt; 0 for no limit
+    * @param isFlushOnBlock true to flush before a read that may block
+    */
+   public void setChunkedFlushPolicy(int flushSize, long flushInterval,
+                                     boolean isFlushOnBlock)
+   //-------------------------------------------------------------------
+   {
+      m_chunkedFlushSize = flushSize;
+      m_chunkedFlushInterval = flushInterval;
+      m_isChunkedFlushOnBlock = isFlushOnBlock;
+   }
+
+   public int getChunkedFlushSize() { return m_chunkedFlushSize; }
+
+   public long getChunkedFlushInterval() { return m_chunkedFlushInterval; }
+
+   public boolean getChunkedFlushOnBlock() { return m_isChunkedFlushOnBlock; }
+
+   /**
+    * Configures the promotion of frequently requested files to shared memory
+    * mapped buffers (@see HotFileCache). Hot files are then served from
+    * memory instead of being opened and read for every request. Disabled by
+    * default, eg setHotFileCache(200, 1024*1024, 64*1024*1024) promotes up
+    * to 200 files of up to 1Mb each and 64Mb in total. Only enable it if 
+    * files are replaced (eg renamed over) rather than rewritten in place: a
+    * file which is truncated while it is mapped faults the thread sending it
+    * and the response is cut short.
+    * Should only be used before calling start.
+    * @param maxEntries The maximum number of promoted files. 0 disables 
+    * promotion.
+    * @param maxFileSize The maximum size of a promoted file
+    * @param maxBytes The maximum total size of all promoted files
+    */
+   public void setHotFileCache(int maxEntries, long maxFileSize, long maxBytes)
+   //--------------------------------------------------------------------------
+   {
+      if (m_isStarted) return;
+      m_hotFiles = new HotFileCache(maxEntries, maxFileSize, maxBytes);
+   }
+
+   /**
+    * @return The cache of files promoted to memory mapped buffers.
+    */
+   public HotFileCache getHotFileCache() { return m_hotFiles; }
+
+   /**
+    * Configures the cache of compressed (gzip and deflate) variants of 
+    * resources and of unencoded archive entries held in direct buffers 
+    * (@see ContentCache). Cached content is served from memory instead of 
+    * being read from the compressed cache files or the archive for every
+    * request. Defaults to 32Mb in total with entries of up to 1Mb.
+    * Should only be used before calling start.
+    * @param maxBytes The maximum total size of the cached content. 0 disables
+    * the cache.
+    * @param maxEntrySize The maximum size of a cached entry
+    */
+   public void setContentCache(long maxBytes, long maxEntrySize)
+   //-----------------------------------------------------------
+   {
+      if (m_isStarted) return;
+      m_contentCache = new ContentCache(maxBytes, maxEntrySize);
+   }
+
+   /**
+    * @return The cache of compressed variants and archive entries.
+    */
+   public ContentCache getContentCache() { return m_contentCache; }
+
+   /**
+    * Sets how ETags are generated for files and archive entries. Defaults to
+    * METADATA which does not read the resource. CONTENT_HASH hashes the
+    * contents the first time a resource is requested (and again whenever its
+    * size or modification time changes) which gives ETags that are stable
+    * across copies of the content (eg on different servers).
+    * @param strategy The ETag strategy
+    */
+   public void setETagStrategy(ETagStrategy strategy)
+   //------------------------------------------------
+   {
+      if (strategy != null)
+         m_eTagStrategy = strategy;
+   }
+
+   public ETagStrategy getETagStrategy() { return m_eTagStrategy; }
+
+   /**
+    * @return The cache of memoized content hash ETags.
+    */
+   public ETagCache getETagCache() { return m_eTagCache; }
+
+   /**
+    * Configures the disk cache used to store compressed (gzip and deflate) 
+    * variants of cacheable resources (@see DiskCache). Defaults to a 
+    * directory created for this instance in the HttpdBase4J/Cache directory
+    * in java.io.tmpdir (which is deleted when the server stops) with a 
+    * maximum size of 256Mb and no maximum age. A directory set here is kept
+    * so that cached variants are reused when the server is restarted, it
+    * must not be used by more than one running server. Placing the cache on
+    * a memory backed file system (eg tmpfs) avoids disk I/O for cached 
+    * variants.
+    * Should only be used before calling start.
+    * @param dir The cache directory or null to disable the disk cache (in 
+    * which case compressed variants are only cached in memory @see 
+    * setContentCache)
+    * @param maxBytes The maximum total size of the cached files
+    * @param maxAge The maximum age of a cached file in milliseconds or 
+    * &lt;= 0 for no maximum age.
+    */
+   public void setDiskCache(java.io.File dir, long maxBytes, long maxAge)
+   //--------------------------------------------------------------------
+   {
+      if (m_isStarted) return;
+      m_diskCacheDir = dir;
+      m_isDiskCacheDirDefault = false;
+      m_diskCacheMaxBytes = maxBytes;
+      m_diskCacheMaxAge = maxAge;
+      m_diskCache = null;
+   }
+
+   /**
+    * Enables or disables precompression of the resources served by the 
+    * server when it starts (@see Precompressor). The gzip and deflate 
+    * variants of all compressible resources of at least minSize bytes are 
+    * created in the disk cache (@see setDiskCache) so that the first request
+    * for a resource does not have to compress it. Only used when caching is 
+    * enabled (@see setCaching). Defaults to disabled.
+    * Should only be used before calling start.
+    * @param isEnabled true to precompress resources when the server starts
+    * @param threads The number of compression threads (&lt;= 0 for the 
+    * number of available processors)
+    * @param minSize The minimum size of a resource to precompress
+    * @param isBackground If true precompression runs in the background (use
+    * getPrecompressor to monitor progress), if false start returns once all
+    * resources have been compressed.
+    */
+   public void setPrecompression(boolean isEnabled, int threads, long minSize, 
+                                 boolean isBackground)
+   //----------------------------------------------------------------------------
+   {
+      if (m_isStarted) return;
+      m_precompressor = (isEnabled) ? new Precompressor(this, threads, minSize)
+                                    : null;
+      m_isPrecompressInBackground = isBackground;
+   }
+
+   /**
+    * @return The Precompressor or null if precompression is disabled.
+    */
+   public Precompressor getPrecompressor() { return m_precompressor; }
+
+   /**
+    * Overidden by Httpd implementations to submit a request for each 
+    * resource to be precompressed to the precompressor (@see 
+    * Precompressor#submit). Called on the thread running the precompression.
+    * The default does nothing.
+    * @param precompressor The Precompressor
+    */
+   protected void onPrecompress(Precompressor precompressor)
+   //-------------------------------------------------------
+   {
+   }
+
+   /**
+    * @return The disk cache of compressed variants. The cache directory is
+    * indexed when this is first called.
+    */
+   public DiskCache getDiskCache()
+   //-----------------------------
+   {
+      DiskCache cache = m_diskCache;
+      if (cache == null)
+      {
+         synchronized (m_tempFiles)
+         {
+            if (m_diskCache == null)
+            {
+               if ( (m_isDiskCacheDirDefault) && (m_diskCacheDir == null) )
+                  m_diskCacheDir = _createDiskCacheDir();
+               m_diskCache = new DiskCache(m_diskCacheDir, m_diskCacheMaxBytes,
+                                           m_diskCacheMaxAge);
+            }
+            cache = m_diskCache;
+         }
+      }
+      return cache;
+   }
+
+   /**
+    * @return A new uniquely named directory in the HttpdBase4J cache 
+    * directory or null if it could not be created.
+    */
+   private java.io.File _createDiskCacheDir()
+   //----------------------------------------
+   {
+      if (Request.m_cacheDir == null) return null;
+      try
+      {
+         java.io.File dir = java.io.File.createTempFile("DiskCache", "", 
+                                                        Request.m_cacheDir);
+         if ( (dir.delete()) && (dir.mkdir()) )
+            return dir;
+      }
+      catch (IOException e)
+      {
+         Httpd.Log(LogLevel.ERROR, "Could not create a disk cache directory", e);
+      }
+      return null;
+   }
+
+   /**
+    * Sets the TCP accept backlog ie the maximum number of pending connections
+    * queued by the OS for the listening socket(s). Defaults to 20.
+    * Should only be used before calling start.
+    * @param backlog The accept backlog. If &lt;= 0 then a system default is
+    * used.
+    */
+   public void setBacklog(int backlog)
+   //---------------------------------
+   {
+      if (m_isStarted) return;
+      m_backlog = backlog;
+   }
+
+   /**
+    * @return The TCP accept backlog.
+    */
+   public int getBacklog() { return m_backlog; }
+
+   /**
+    * Sets the server engine used to create the HTTP server(s). Defaults to
+    * JdkServerEngine which uses the com.sun.net.httpserver implementation
+    * in the JDK. NioServerEngine is a native NIO HTTP/1.1 engine.
+    * Should only be used before calling start.
+    * @param engine The server engine
+    * @see ServerEngine
+    */
+   public void setServerEngine(ServerEngine engine)
+   //----------------------------------------------
+   {
+      if (m_isStarted) return;
+      m_engine = (engine == null) ? new JdkServerEngine() : engine;
+   }
+
+   /**
+    * @return The server engine used to create the HTTP server(s).
+    */
+   public ServerEngine getServerEngine() { return m_engine; }
+
+   /**
+    * Sets the number of dispatcher shards. The com.sun.net.httpserver 
+    * HttpServer uses a single thread to accept connections and dispatch
+    * exchanges which can limit throughput on machines with many cores. With
+    * more than one shard, multiple HttpServer instances are bound to the same
+    * port using SO_REUSEPORT so that the OS distributes incoming connections
+    * among them. All shards share the same request handler, handlers and
+    * thread executor.<br>
+    * SO_REUSEPORT requires Java 9 or later, an OS that supports it (eg Linux)
+    * and access to the JDK HttpServer implementation (on Java 9 or later 
+    * --add-opens jdk.httpserver/sun.net.httpserver=ALL-UNNAMED). If it is not
+    * available then a single dispatcher is used.<br>
+    * The above applies to the default JdkServerEngine, other server engines
+    * may interpret the count differently (eg NioServerEngine uses it as the 
+    * number of event loops).
+    * Should only be used before calling start.
+    * @param count The number of dispatcher shards. 
+    */
+   public void setDispatchers(int count)
+   //-----------------------------------
+   {
+      if (m_isStarted) return;
+      m_dispatchers = (count < 1) ? 1 : count;
+   }
+
+   /**
+    * @return The number of dispatcher shards actually started (or requested
+    * if the server has not been started).
+    */
+   public int getDispatchers()
+   //-------------------------
+   {
+      return (m_isStarted) ? m_shards.size() : m_dispatchers;
+   }
+
+   /**
+    * Bounds the queue of exchanges waiting for a thread. When the queue is
+    * full (and for the POOL and MULTI models the pool is at its maximum size)
+    * further exchanges are shed by responding immediately with a 503 Service 
+    * Unavailable and a Retry-After header instead of being queued. 
+    * For the VIRTUAL model there is no queue; exchanges are shed as soon as 
+    * the maximum concurrency is reached so capacity is ignored.
+    * Should only be used before calling start.
+    * @param capacity The maximum number of waiting exchanges or -1 for an
+    * unbounded queue (the default)
+    * @param retryAfter The Retry-After value in seconds sent with 503 
+    * responses.
+    */
+   public void setWorkQueue(int capacity, int retryAfter)
+   //----------------------------------------------------
+   {
+      if (m_isStarted) return;
+      m_queueCapacity = (capacity <= 0) ? -1 : capacity;
+      m_retryAfter = retryAfter;
+   }
+
+   /**
+    * @return The maximum number of exchanges waiting for a thread or -1 if
+    * the work queue is unbounded.
+    */
+   public int getWorkQueueCapacity() { return m_queueCapacity; }
+
+   /**
+    * @return The number of exchanges that have been rejected with a 503
+    * because the work queue was full.
+    */
+   public long getRejectedCount() { return m_rejectedCount.get(); }
+
+   /**
+    * Called by LoadSheddingPolicy when an exchange is rejected. The default
+    * implementation counts the rejection and logs it if verbose.
+    */
+   protected void onRejected()
+   //-------------------------
+   {
+      long count = m_rejectedCount.incrementAndGet();
+      if (m_isVerbose)
+         Httpd.Log(LogLevel.INFO, "Work queue full. Rejected exchange (total " + 
+                   count + ")", null);
    }
 
    /**
@@ -348,6 +1159,7 @@ abstract public class Httpd implements HttpHandleable, Postable
    {
       if (m_isStarted) return;
       m_threadModel = ThreadModel.POOL;
+      m_targetWait = -1;
       m_poolSize = size;
       m_poolMax = size;
    }
@@ -364,10 +1176,31 @@ abstract public class Httpd implements HttpHandleable, Postable
    {
       if (m_isStarted) return;
       m_threadModel = ThreadModel.POOL;
+      m_targetWait = -1;
       m_poolSize = size;
       m_poolMax = max;
    }
 
+   /**
+    * Sets thread model to POOL with a pool that is resized automatically
+    * between min and max threads according to the measured queue wait and
+    * service times of exchanges (@see AdaptiveThreadPoolExecutor).
+    * Should only be used before calling start.
+    * @param min The minimum (and initial) size of the thread pool
+    * @param max The maximum size of the thread pool
+    * @param targetWait The target mean time in milliseconds that exchanges
+    * wait for a thread.
+    */
+   public void setAdaptiveThreadPool(int min, int max, long targetWait)
+   //------------------------------------------------------------------
+   {
+      if (m_isStarted) return;
+      m_threadModel = ThreadModel.POOL;
+      m_poolSize = min;
+      m_poolMax = max;
+      m_targetWait = targetWait;
+   }
+
    /**
     * Add a handler for an extension. 
     * @param extension The file extension (including the .)
@@ -396,6 +1229,24 @@ abstract public class Httpd implements HttpHandleable, Postable
       m_handlerMap.put(extension, handler);
    }
 
+   /**
+    * Add a handler for an extension with a dedicated executor. Requests 
+    * for files with the extension are processed by threads from 
+    * <i>executor</i> instead of the server executor so that slow requests
+    * (eg expensive templates) cannot starve requests for other content.
+    * @param extension The file extension (including the .)
+    * @param handler A class implementing the HttpHandleable interface.
+    * @param executor The executor used for requests for <i>extension</i>.
+    * @see Httpd#setHandlerExecutor
+    **/
+   public void addHandler(String extension, HttpHandleable handler,
+                          ExecutorService executor)
+   //--------------------------------------------------------------
+   {
+      addHandler(extension, handler);
+      setHandlerExecutor(handler, executor);
+   }
+
    /**
     * Remove a handler for an extension. 
     * @param extension The file extension (including the .)
@@ -427,6 +1278,86 @@ abstract public class Httpd implements HttpHandleable, Postable
       m_postHandlerMap.put(name, handler);
    }
 
+   /**
+    * Add a POST handler with a dedicated executor.
+    * @see Httpd#addPostHandler(String, Postable)
+    * @see Httpd#setHandlerExecutor
+    * @param name A file extension (including the .) or a full request uri
+    * @param handler A class implementing the Postable interface.
+    * @param executor The executor used for POST requests for <i>name</i>.
+    **/
+   public void addPostHandler(String name, Postable handler,
+                              ExecutorService executor)
+   //----------------------------------------------------------
+   {
+      addPostHandler(name, handler);
+      setHandlerExecutor(handler, executor);
+   }
+
+   /**
+    * Sets a dedicated (bulkhead) executor for a handler. Requests which map 
+    * onto the handler (by extension for HttpHandleable handlers or by 
+    * extension or URI for POST handlers) are handed off from the server
+    * executor to <i>executor</i>. Handlers are matched by identity so the
+    * same executor is used for all the extensions and URIs a handler 
+    * instance is registered for. Requests rejected by the executor are
+    * answered with a 503 Service Unavailable.<br>
+    * The executor is owned by the caller and is not shut down when the 
+    * server stops.
+    * @param handler A HttpHandleable or Postable handler
+    * @param executor The executor or null to use the server executor
+    */
+   public void setHandlerExecutor(Object handler, ExecutorService executor)
+   //----------------------------------------------------------------------
+   {
+      synchronized (m_bulkheadMap)
+      {
+         if (executor == null)
+            m_bulkheadMap.remove(handler);
+         else
+            m_bulkheadMap.put(handler, executor);
+      }
+   }
+
+   /**
+    * Selects the executor to use for an exchange. The default 
+    * implementation returns the executor set for the handler the request
+    * URI maps onto (@see Httpd#setHandlerExecutor). Only the request URI is
+    * used (eg default files for directory requests are not resolved).
+    * @param ex The HttpExchange instance for this request.
+    * @return The executor to process the request with or null to process it
+    * on the current (server executor) thread.
+    */
+   protected ExecutorService onSelectExecutor(HttpExchange ex)
+   //---------------------------------------------------------
+   {
+      synchronized (m_bulkheadMap)
+      {
+         if (m_bulkheadMap.isEmpty()) return null;
+      }
+      String path = ex.getRequestURI().getPath();
+      if (path == null) return null;
+      String extension = null;
+      if ( (path.length() > 0) && (! path.endsWith("/")) )
+         extension = Http.getExtension(new java.io.File(path));
+      Object handler = null;
+      if (ex.getRequestMethod().compareToIgnoreCase("POST") == 0)
+      {
+         handler = m_postHandlerMap.get(path);
+         if (handler == null)
+            handler = m_postHandlerMap.get("/" + path);
+         if ( (handler == null) && (extension != null) )
+            handler = m_postHandlerMap.get(extension);
+      }
+      else if (extension != null)
+         handler = m_handlerMap.get(extension);
+      if (handler == null) return null;
+      synchronized (m_bulkheadMap)
+      {
+         return m_bulkheadMap.get(handler);
+      }
+   }
+
    /**
     * Remove a POST handler.
     * @see Httpd#addPostHandler
@@ -473,14 +1404,9 @@ abstract public class Httpd implements HttpHandleable, Postable
             throws IOException, NoSuchFieldException
    //----------------------------------------------------------------------
    {
-      m_http = HttpServer.create(new InetSocketAddress(port), 20);
-      m_http.setExecutor(onCreateExecutor());
-      m_requestHandler = onCreateRequestHandler();
-      m_context = m_http.createContext(root, m_requestHandler);
-      if (authenticator != null) m_context.setAuthenticator(authenticator);
-      m_http.start();
       m_port = port;
-      m_isStarted = true;
+      _createShards(new InetSocketAddress(port), null);
+      _startShards(root, authenticator);
       return true;
    }
 
@@ -580,7 +1506,6 @@ abstract public class Httpd implements HttpHandleable, Postable
       SSLContext ssl = onCreateSSLConfiguration(keystore, password, sslType);
       if (ssl == null) return false;
       
-      m_http = HttpsServer.create(new InetSocketAddress(port), 20);
       HttpsConfigurator configurator = new HttpsConfigurator(ssl)
       {
 
@@ -594,17 +1519,90 @@ abstract public class Httpd implements HttpHandleable, Postable
          }
       };
 
-      ((HttpsServer) m_http).setHttpsConfigurator(configurator);
-      m_http.setExecutor(onCreateExecutor());
-      m_requestHandler = onCreateRequestHandler();
-      m_context = m_http.createContext(root, m_requestHandler);
-      if (authenticator != null) m_context.setAuthenticator(authenticator);
-      m_http.start();
       m_port = port;
-      m_isStarted = true;
+      _createShards(new InetSocketAddress(port), configurator);
+      _startShards(root, authenticator);
       return true;
    }
 
+   /**
+    * Creates the dispatcher shard server(s) using the server engine 
+    * (@see Httpd#setDispatchers, @see Httpd#setServerEngine).
+    * m_http is set to the first shard.
+    * @param address The address to bind to
+    * @param configurator The HTTPS configurator or null for HTTP
+    * @throws java.io.IOException
+    */
+   private void _createShards(InetSocketAddress address,
+                              HttpsConfigurator configurator)
+            throws IOException
+   //--------------------------------------------------------------
+   {
+      m_shards.clear();
+      m_contexts.clear();
+      ServerEngine engine = m_engine;
+      if (engine == null) engine = new JdkServerEngine();
+      engine.setIdleTimeout(m_keepAliveTimeout);
+      m_shards.addAll(engine.createServers(address, m_backlog, m_dispatchers,
+                                           configurator));
+      if (m_shards.isEmpty())
+         throw new IOException("Server engine did not create a server");
+      m_http = m_shards.get(0);
+   }
+
+   /**
+    * Creates the request handler and contexts for and starts all the 
+    * dispatcher shards.
+    * @param root The root URI path.
+    * @param authenticator The Authenticator or null for no authentication.
+    * @throws java.lang.NoSuchFieldException
+    */
+   private void _startShards(String root, Authenticator authenticator)
+            throws NoSuchFieldException
+   //-----------------------------------------------------------------
+   {
+      ExecutorService executor = onCreateExecutor();
+      m_requestHandler = onCreateRequestHandler();
+      Authenticator wrapped = (authenticator == null) ? null
+                                          : onWrapAuthenticator(authenticator);
+      for (HttpServer server : m_shards)
+      {
+         server.setExecutor(executor);
+         HttpContext context = server.createContext(root, m_requestHandler);
+         if (wrapped != null) context.setAuthenticator(wrapped);
+         context.getAttributes().put(HttpdMetrics.CONTEXT_ATTRIBUTE, m_metrics);
+         m_contexts.add(context);
+      }
+      m_context = m_contexts.get(0);
+      _precompress();
+      for (HttpServer server : m_shards)
+         server.start();
+      m_isStarted = true;
+      if (m_isJmx) m_metrics.register();
+      if ( (m_isVerbose) && (m_shards.size() > 1) )
+         Httpd.Log(LogLevel.INFO, "Started " + m_shards.size() + 
+                   " dispatchers on port " + m_port, null);
+   }
+
+   private void _precompress()
+   //-------------------------
+   {
+      final Precompressor precompressor = m_precompressor;
+      if ( (precompressor == null) || (! m_mustCache) ) return;
+      if (m_isPrecompressInBackground)
+      {
+         Thread t = new Thread(new Runnable()
+         {
+            public void run() { precompressor.run(); }
+         }, "Httpd:" + m_port + ":precompress");
+         t.setDaemon(true);
+         t.setPriority(Thread.NORM_PRIORITY - 1);
+         t.start();
+      }
+      else
+         precompressor.run();
+   }
+
    public java.io.File createKeystore(String sslType)
           throws NoSuchAlgorithmException, KeyStoreException, FileNotFoundException, IOException,
                  CertificateException, UnrecoverableKeyException, KeyManagementException
@@ -815,32 +1813,143 @@ abstract public class Httpd implements HttpHandleable, Postable
    }
 
    /**
-    * Attempt to stop this server.
+    * Attempt to stop this server. Equivalent to drain(timeout).
     * 
     * @param timeout Amount of time (in seconds) to wait for the server to stop.
     * @return true if stopped succesfully, otherwise false
     */
    public boolean stop(int timeout)
    //------------------------------
+   {
+      if (! m_isStarted) return false;
+      drain(timeout);
+      return true;
+   }
+
+   /**
+    * Gracefully stop this server. The server stops accepting new connections
+    * and waits (for at most timeout seconds) for exchanges that are in 
+    * progress or queued for a thread to complete. It then closes all 
+    * connections, shuts down the server executor and deletes the temporary
+    * files created while processing requests.
+    * @param timeout Maximum amount of time (in seconds) to wait for 
+    * exchanges to complete. If negative then 5 seconds is used.
+    * @return true if all exchanges completed before the timeout, false if
+    * the server was not started or exchanges were still in progress when it 
+    * was stopped.
+    */
+   public boolean drain(int timeout)
+   //-------------------------------
    {
       if (! m_isStarted) return false;
       if (timeout < 0) timeout = 5;
-      m_http.stop(timeout);
-      ServerSocket ss = null;
+      m_isDraining = true;
+      long end = System.currentTimeMillis() + timeout * 1000L;
+      
+      // HttpServer.stop closes the listening socket immediately but (in
+      // older JDKs) always waits the full delay, so it is called on helper 
+      // threads and then cut short by stop(0) once the exchanges are done.
+      final int delay = timeout;
+      ArrayList<Thread> stoppers = new ArrayList<Thread>();
+      for (final HttpServer server : m_shards)
+      {
+         Thread t = new Thread(new Runnable()
+         {
+            public void run() { server.stop(delay); }
+         }, "Httpd:" + m_port + ":stop");
+         t.setDaemon(true);
+         t.start();
+         stoppers.add(t);
+      }
+      
+      boolean isDrained = false;
       try
       {
-         ss = new ServerSocket(m_port, 5);         
+         while (true)
+         {
+            isDrained = ( (m_inFlight.get() <= 0) && (_isExecutorIdle()) );
+            long remaining = end - System.currentTimeMillis();
+            if ( (isDrained) || (remaining <= 0) ) break;
+            synchronized (m_drained)
+            {
+               m_drained.wait(Math.min(remaining, 50));
+            }
+         }
       }
-      catch (IOException ex)
+      catch (InterruptedException e)
       {
-         return false;
+         Thread.currentThread().interrupt();
+      }
+      if ( (! isDrained) && (m_isVerbose) )
+         Httpd.Log(LogLevel.INFO, "Stopping with " + m_inFlight.get() + 
+                   " exchanges in progress", null);
+      
+      for (HttpServer server : m_shards)
+         server.stop(0);
+      for (Thread t : stoppers)
+      {
+         try { t.join(1000); } catch (InterruptedException e) { break; }
+      }
+      if (m_executor != null)
+      {
+         m_executor.shutdown();
+         try
+         {
+            long remaining = Math.max(end - System.currentTimeMillis(), 0);
+            if (! m_executor.awaitTermination(remaining, TimeUnit.MILLISECONDS))
+               m_executor.shutdownNow();
+         }
+         catch (InterruptedException e)
+         {
+            m_executor.shutdownNow();
+            Thread.currentThread().interrupt();
+         }
       }
-      finally
+      if (m_sheddingPolicy != null)
       {
-         if (ss != null)
-            try { ss.close(); } catch (Exception e) {}
+         m_sheddingPolicy.shutdown();
+         m_sheddingPolicy = null;
+      }
+      
+      synchronized (m_tempFiles)
+      {
+         for (java.io.File f : m_tempFiles)
+            f.delete();
+         m_tempFiles.clear();
+      }
+      m_hotFiles.clear();
+      if ( (m_isDiskCacheDirDefault) && (m_diskCacheDir != null) )
+      {
+         synchronized (m_tempFiles)
+         {
+            if (m_diskCache != null) m_diskCache.clear();
+            Http.deleteDir(m_diskCacheDir);
+            m_diskCache = null;
+            m_diskCacheDir = null;
+         }
       }
-      m_isStarted = false; 
+      m_contentCache.clear();
+      m_eTagCache.clear();
+      if (m_precompressor != null) m_precompressor.cancel();
+      m_metrics.unregister();
+      m_shards.clear();
+      m_contexts.clear();
+      m_isStarted = false;
+      m_isDraining = false;
+      return isDrained;
+   }
+
+   private boolean _isExecutorIdle()
+   //-------------------------------
+   {
+      if (m_executor instanceof ThreadPoolExecutor)
+      {
+         ThreadPoolExecutor executor = (ThreadPoolExecutor) m_executor;
+         return ( (executor.getQueue().isEmpty()) && 
+                  (executor.getActiveCount() == 0) );
+      }
+      if (m_executor instanceof VirtualThreadExecutor)
+         return (((VirtualThreadExecutor) m_executor).getActiveCount() == 0);
       return true;
    }
 
@@ -866,6 +1975,16 @@ abstract public class Httpd implements HttpHandleable, Postable
       }
    };
 
+   private LinkedBlockingQueue<Runnable> _createQueue()
+   //--------------------------------------------------
+   {
+      if (m_queueCapacity < 0)
+         m_blockingQueue = new LinkedBlockingQueue<Runnable>();
+      else
+         m_blockingQueue = new LinkedBlockingQueue<Runnable>(m_queueCapacity);
+      return m_blockingQueue;
+   }
+
    /**
     * Overide to create the thread executor.
     * @return The ExecutorService thread executor service to use for thread
@@ -875,25 +1994,47 @@ abstract public class Httpd implements HttpHandleable, Postable
    protected ExecutorService onCreateExecutor() throws NoSuchFieldException
    //---------------------------------------------------------------------
    {
+      if (m_sheddingPolicy != null) m_sheddingPolicy.shutdown();
+      m_sheddingPolicy = new LoadSheddingPolicy(this, m_retryAfter);
       switch (m_threadModel)
       {
          case SINGLE:
-            m_executor = Executors.newSingleThreadExecutor(m_threadFactory);
+            //m_executor = Executors.newSingleThreadExecutor(m_threadFactory);
+            m_executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                     _createQueue(), m_threadFactory, m_sheddingPolicy);
             break;
 
          case MULTI:
             //m_executor = Executors.newCachedThreadPool();
-            m_blockingQueue = new LinkedBlockingQueue<Runnable>();
             m_executor = new ThreadPoolExecutor(m_poolSize, Integer.MAX_VALUE,
-                     50000L, TimeUnit.MILLISECONDS, m_blockingQueue,
-                     m_threadFactory);
+                     50000L, TimeUnit.MILLISECONDS, _createQueue(),
+                     m_threadFactory, m_sheddingPolicy);
             break;
 
          case POOL:
             //m_executor = Executors.newFixedThreadPool(m_threadPoolCount);
-            m_blockingQueue = new LinkedBlockingQueue<Runnable>();
+            if (m_targetWait >= 0)
+            {
+               m_executor = new AdaptiveThreadPoolExecutor(m_poolSize, 
+                     m_poolMax, m_targetWait, 1000L, _createQueue(),
+                     m_threadFactory, m_sheddingPolicy);
+               break;
+            }
             m_executor = new ThreadPoolExecutor(m_poolSize, m_poolMax, 50000L,
-                     TimeUnit.MILLISECONDS, m_blockingQueue, m_threadFactory);
+                     TimeUnit.MILLISECONDS, _createQueue(), m_threadFactory,
+                     m_sheddingPolicy);
+            break;
+
+         case VIRTUAL:
+            VirtualThreadExecutor executor = new VirtualThreadExecutor(
+                                    "Httpd:" + m_port, m_poolMax, m_threadFactory);
+            if (! executor.isVirtual())
+               Httpd.Log(LogLevel.INFO, "Virtual threads not supported by this " +
+                         "JVM. Using platform threads (maximum " + m_poolMax +
+                         ")", null);
+            if (m_queueCapacity >= 0)
+               executor.setRejectionPolicy(m_sheddingPolicy);
+            m_executor = executor;
             break;
 
          default:
@@ -0,0 +1,333 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * Executor and request processing metrics for an Httpd instance. Registered
+ * as a JMX MBean named
+ * net.homeip.donaldm.httpdbase4j:type=Httpd,port=<i>port</i> while the
+ * server is started.<br>
+ * Latencies are recorded for the following request processing phases:<br>
+ * PARSE: Creating the Request from the exchange<br>
+ * RESOLUTION: Resolving default files, POST handling, onPreServe and
+ * checking that the requested resource exists<br>
+ * ETAG: Calculating the ETag and checking the client cache<br>
+ * COMPRESSION: Request.getContent (compressing or locating cached
+ * compressed content)<br>
+ * SEND: Creating and sending the response headers and body<br>
+ * TOTAL: The complete exchange<br>
+ * @see Httpd#getMetrics
+ * @author Donald Munro
+ */
+public class HttpdMetrics implements HttpdMetricsMBean
+//====================================================
+{
+   /**
+    * Request processing phases.
+    */
+   static public enum Phase { PARSE, RESOLUTION, ETAG, COMPRESSION, SEND, TOTAL };
+
+   /**
+    * Attribute name under which the metrics are stored in the server
+    * HttpContext attributes.
+    */
+   static public final String CONTEXT_ATTRIBUTE = HttpdMetrics.class.getName();
+
+   protected Httpd               m_httpd         = null;
+
+   private LatencyHistogram[]    m_latencies     =
+                                   new LatencyHistogram[Phase.values().length];
+
+   private AtomicLong            m_requestCount  = new AtomicLong(0);
+
+   private AtomicLong            m_bytesSent     = new AtomicLong(0);
+
+   private long                  m_lastRateTime  = System.currentTimeMillis();
+
+   private long                  m_lastRateCount = 0;
+
+   private double                m_rate          = 0;
+
+   private ObjectName            m_name          = null;
+
+   /**
+    * Create an HttpdMetrics
+    * @param httpd The Httpd instance
+    */
+   public HttpdMetrics(Httpd httpd)
+   //------------------------------
+   {
+      m_httpd = httpd;
+      for (int i=0; i<m_latencies.length; i++)
+         m_latencies[i] = new LatencyHistogram();
+   }
+
+   /**
+    * Returns the metrics for the server processing an exchange.
+    * @param ex The exchange
+    * @return The HttpdMetrics or null if the exchange context does not have
+    * metrics.
+    */
+   static public HttpdMetrics get(HttpExchange ex)
+   //---------------------------------------------
+   {
+      if ( (ex == null) || (ex.getHttpContext() == null) ) return null;
+      Object o = ex.getHttpContext().getAttributes().get(CONTEXT_ATTRIBUTE);
+      return (o instanceof HttpdMetrics) ? (HttpdMetrics) o : null;
+   }
+
+   /**
+    * Record the latency of a request processing phase.
+    * @param phase The phase
+    * @param start The start time of the phase (from System.nanoTime())
+    * @return The current time (from System.nanoTime()) which can be used as
+    * the start time of the next phase.
+    */
+   public long record(Phase phase, long start)
+   //-----------------------------------------
+   {
+      long now = System.nanoTime();
+      m_latencies[phase.ordinal()].record(now - start);
+      return now;
+   }
+
+   /**
+    * Record the latency of a request processing phase.
+    * @param phase The phase
+    * @param nanos The latency in nanoseconds
+    */
+   public void add(Phase phase, long nanos)
+   //--------------------------------------
+   {
+      m_latencies[phase.ordinal()].record(nanos);
+   }
+
+   /**
+    * @param phase The phase
+    * @return The latency histogram for phase
+    */
+   public LatencyHistogram getLatencies(Phase phase)
+   //-----------------------------------------------
+   {
+      return m_latencies[phase.ordinal()];
+   }
+
+   /**
+    * Count a received exchange.
+    */
+   public void onRequest() { m_requestCount.incrementAndGet(); }
+
+   /**
+    * Count response body bytes sent.
+    * @param count The number of bytes sent
+    */
+   public void onBytesSent(long count)
+   //---------------------------------
+   {
+      if (count > 0) m_bytesSent.addAndGet(count);
+   }
+
+   /**
+    * Register this instance with the platform MBean server.
+    */
+   public void register()
+   //--------------------
+   {
+      try
+      {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName(
+                  "net.homeip.donaldm.httpdbase4j:type=Httpd,port=" + getPort());
+         if (server.isRegistered(name))
+            server.unregisterMBean(name);
+         server.registerMBean(this, name);
+         m_name = name;
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(LogLevel.ERROR, "Registering metrics MBean", e);
+      }
+   }
+
+   /**
+    * Unregister this instance from the platform MBean server.
+    */
+   public void unregister()
+   //----------------------
+   {
+      if (m_name == null) return;
+      try
+      {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         if (server.isRegistered(m_name))
+            server.unregisterMBean(m_name);
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(LogLevel.ERROR, "Unregistering metrics MBean", e);
+      }
+      m_name = null;
+   }
+
+   public int getPort() { return m_httpd.getPort(); }
+
+   public int getActiveWorkers()
+   //---------------------------
+   {
+      ExecutorService executor = m_httpd.m_executor;
+      if (executor instanceof ThreadPoolExecutor)
+         return ((ThreadPoolExecutor) executor).getActiveCount();
+      if (executor instanceof VirtualThreadExecutor)
+         return ((VirtualThreadExecutor) executor).getActiveCount();
+      return 0;
+   }
+
+   public int getQueuedWorkers()
+   //---------------------------
+   {
+      ExecutorService executor = m_httpd.m_executor;
+      if (executor instanceof ThreadPoolExecutor)
+         return ((ThreadPoolExecutor) executor).getQueue().size();
+      return 0;
+   }
+
+   public int getPoolSize()
+   //----------------------
+   {
+      ExecutorService executor = m_httpd.m_executor;
+      if (executor instanceof ThreadPoolExecutor)
+         return ((ThreadPoolExecutor) executor).getPoolSize();
+      if (executor instanceof VirtualThreadExecutor)
+         return ((VirtualThreadExecutor) executor).getActiveCount();
+      return 0;
+   }
+
+   public int getInFlight() { return m_httpd.getInFlight(); }
+
+   public long getRequestCount() { return m_requestCount.get(); }
+
+   public synchronized double getRequestRate()
+   //-----------------------------------------
+   {
+      long now = System.currentTimeMillis();
+      long elapsed = now - m_lastRateTime;
+      if (elapsed >= 1000)
+      {
+         long count = m_requestCount.get();
+         m_rate = (count - m_lastRateCount) * 1000.0 / elapsed;
+         m_lastRateCount = count;
+         m_lastRateTime = now;
+      }
+      return m_rate;
+   }
+
+   public long getBytesSent() { return m_bytesSent.get(); }
+
+   public long getRejectedCount() { return m_httpd.getRejectedCount(); }
+
+   public long getBufferAcquireCount() 
+   { return BufferPool.getDefault().getAcquireCount(); }
+
+   public long getBufferAllocationCount() 
+   { return BufferPool.getDefault().getAllocationCount(); }
+
+   public long getBufferAllocatedBytes() 
+   { return BufferPool.getDefault().getAllocatedBytes(); }
+
+   public int getBufferFreeCount() 
+   { return BufferPool.getDefault().getFreeCount(); }
+
+   public String[] getPhases()
+   //-------------------------
+   {
+      Phase[] phases = Phase.values();
+      String[] names = new String[phases.length];
+      for (int i=0; i<phases.length; i++)
+         names[i] = phases[i].name();
+      return names;
+   }
+
+   private LatencyHistogram _histogram(String phase)
+   //-----------------------------------------------
+   {
+      return m_latencies[Phase.valueOf(phase.trim().toUpperCase()).ordinal()];
+   }
+
+   public long getLatencyCount(String phase)
+   {
+      return _histogram(phase).getCount();
+   }
+
+   public double getLatencyMean(String phase)
+   {
+      return _histogram(phase).getMean();
+   }
+
+   public double getLatencyMax(String phase)
+   {
+      return _histogram(phase).getMax();
+   }
+
+   public double getLatencyPercentile(String phase, double percentile)
+   {
+      return _histogram(phase).getPercentile(percentile);
+   }
+
+   public long[] getLatencyHistogram(String phase)
+   {
+      return _histogram(phase).getBuckets();
+   }
+
+   public String getLatencySummary()
+   //-------------------------------
+   {
+      StringBuilder sb = new StringBuilder();
+      for (Phase phase : Phase.values())
+      {
+         LatencyHistogram h = m_latencies[phase.ordinal()];
+         sb.append(phase.name()).append(": count=").append(h.getCount());
+         sb.append(" mean=").append(String.format("%.3f", h.getMean()));
+         sb.append("ms p50=").append(h.getPercentile(50));
+         sb.append("ms p99=").append(h.getPercentile(99));
+         sb.append("ms max=").append(String.format("%.3f", h.getMax()));
+         sb.append("ms").append(Httpd.EOL);
+      }
+      return sb.toString();
+   }
+
+   public void resetLatencies()
+   //--------------------------
+   {
+      for (int i=0; i<m_latencies.length; i++)
+         m_latencies[i].reset();
+   }
+}
@@ -0,0 +1,148 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+/**
+ * JMX management interface for the metrics of an Httpd instance.
+ * @see HttpdMetrics
+ * @author Donald Munro
+ */
+public interface HttpdMetricsMBean
+//================================
+{
+   /**
+    * @return The TCP port of the server.
+    */
+   public int getPort();
+
+   /**
+    * @return The number of threads actively processing exchanges.
+    */
+   public int getActiveWorkers();
+
+   /**
+    * @return The number of exchanges waiting for a thread.
+    */
+   public int getQueuedWorkers();
+
+   /**
+    * @return The current number of threads in the server thread pool.
+    */
+   public int getPoolSize();
+
+   /**
+    * @return The number of exchanges currently being processed.
+    */
+   public int getInFlight();
+
+   /**
+    * @return The total number of exchanges received.
+    */
+   public long getRequestCount();
+
+   /**
+    * @return The number of exchanges received per second (measured since
+    * the previous call or over at least one second).
+    */
+   public double getRequestRate();
+
+   /**
+    * @return The total number of response body bytes sent.
+    */
+   public long getBytesSent();
+
+   /**
+    * @return The number of exchanges rejected with a 503 because the work
+    * queue (or a bulkhead executor) was full.
+    */
+   public long getRejectedCount();
+
+   /**
+    * @return The number of copy buffers acquired from the shared BufferPool.
+    */
+   public long getBufferAcquireCount();
+
+   /**
+    * @return The number of copy buffers the shared BufferPool had to 
+    * allocate (acquisitions that could not reuse a pooled buffer).
+    */
+   public long getBufferAllocationCount();
+
+   /**
+    * @return The total size of the copy buffers allocated by the shared
+    * BufferPool.
+    */
+   public long getBufferAllocatedBytes();
+
+   /**
+    * @return The number of free buffers in the shared BufferPool global free
+    * lists.
+    */
+   public int getBufferFreeCount();
+
+   /**
+    * @return The names of the request processing phases for which latencies
+    * are recorded.
+    */
+   public String[] getPhases();
+
+   /**
+    * @param phase A phase name (@see getPhases)
+    * @return The number of latencies recorded for phase.
+    */
+   public long getLatencyCount(String phase);
+
+   /**
+    * @param phase A phase name (@see getPhases)
+    * @return The mean latency in milliseconds for phase.
+    */
+   public double getLatencyMean(String phase);
+
+   /**
+    * @param phase A phase name (@see getPhases)
+    * @return The maximum latency in milliseconds for phase.
+    */
+   public double getLatencyMax(String phase);
+
+   /**
+    * @param phase A phase name (@see getPhases)
+    * @param percentile The percentile (0 - 100)
+    * @return The approximate latency in milliseconds for the percentile.
+    */
+   public double getLatencyPercentile(String phase, double percentile);
+
+   /**
+    * @param phase A phase name (@see getPhases)
+    * @return The latency histogram bucket counts for phase.
+    * @see LatencyHistogram
+    */
+   public long[] getLatencyHistogram(String phase);
+
+   /**
+    * @return A one line per phase summary of count, mean, 50th, 99th
+    * percentile and maximum latencies.
+    */
+   public String getLatencySummary();
+
+   /**
+    * Clear all recorded latencies.
+    */
+   public void resetLatencies();
+}
@@ -0,0 +1,93 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.util.zip.Inflater;
+
+/**
+ * A pool of Inflaters (without a zlib wrapper) used to inflate archive
+ * entries (@see ArchiveIndex#getInputStream) so that the native inflater
+ * state is reused instead of being allocated and freed for every entry
+ * stream (@see ObjectPool). Inflaters are reset when they are released and
+ * ended when they are discarded.<br>
+ * An Inflater must not be used after it has been released.
+ * @see #getDefault
+ * @author Donald Munro
+ */
+public class InflaterPool extends ObjectPool<Inflater>
+//====================================================
+{
+   static private volatile InflaterPool m_default = new InflaterPool(64);
+
+   /**
+    * @return The pool shared by the archive indexes.
+    */
+   static public InflaterPool getDefault() { return m_default; }
+
+   /**
+    * Replace the shared pool (eg to change the number of free Inflaters
+    * kept).
+    * @param pool The new shared pool
+    */
+   static public void setDefault(InflaterPool pool)
+   //----------------------------------------------
+   {
+      if (pool != null) m_default = pool;
+   }
+
+   /**
+    * Create an InflaterPool
+    * @param maxFree The maximum number of free Inflaters kept in the global
+    * free list (excluding the Inflaters cached by threads).
+    */
+   public InflaterPool(int maxFree)
+   //------------------------------
+   {
+      super(maxFree);
+   }
+
+   /**
+    * @return A new Inflater for raw deflate data (ie created with nowrap
+    * true).
+    */
+   @Override
+   protected Inflater create() { return new Inflater(true); }
+
+   @Override
+   protected boolean recycle(Inflater inflater)
+   //------------------------------------------
+   {
+      inflater.reset();
+      return true;
+   }
+
+   @Override
+   protected void destroy(Inflater inflater) { inflater.end(); }
+
+   @Override
+   public String toString()
+   //----------------------
+   {
+      return "InflaterPool{acquired=" + getAcquireCount() + ", local=" +
+             getThreadLocalHitCount() + ", global=" + getGlobalHitCount() +
+             ", allocated=" + getAllocationCount() + ", discarded=" +
+             getDiscardCount() + ", free=" + getFreeCount() + "}";
+   }
+}
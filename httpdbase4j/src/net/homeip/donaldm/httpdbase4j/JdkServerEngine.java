@@ -0,0 +1,173 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * The default server engine which uses the JDK com.sun.net.httpserver
+ * HttpServer and HttpsServer implementations.<br>
+ * If more than one dispatcher is requested then one HttpServer per
+ * dispatcher is bound to the same port using SO_REUSEPORT so that the OS
+ * distributes incoming connections among them. SO_REUSEPORT requires Java 9
+ * or later, an OS that supports it (eg Linux) and access to the JDK
+ * HttpServer implementation (on Java 9 or later
+ * --add-opens jdk.httpserver/sun.net.httpserver=ALL-UNNAMED). If it is not
+ * available then a single server is used.
+ * @see ServerEngine
+ * @author Donald Munro
+ */
+public class JdkServerEngine implements ServerEngine
+//==================================================
+{
+   static private final String IDLE_PROPERTY = "sun.net.httpserver.idleInterval";
+
+   /**
+    * Sets the sun.net.httpserver.idleInterval system property (in seconds)
+    * unless it has already been set. The JDK HttpServer reads the property
+    * once when the first server is created in the JVM so this has no effect
+    * after that.
+    * @param idleTimeout The idle timeout in milliseconds
+    */
+   public void setIdleTimeout(long idleTimeout)
+   //------------------------------------------
+   {
+      if ( (idleTimeout <= 0) || (System.getProperty(IDLE_PROPERTY) != null) )
+         return;
+      try
+      {
+         System.setProperty(IDLE_PROPERTY, 
+                            Long.toString(Math.max((idleTimeout + 999) / 1000, 1)));
+      }
+      catch (SecurityException e)
+      {
+         Httpd.Log(LogLevel.DEBUG, "Could not set " + IDLE_PROPERTY, e);
+      }
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   public List<HttpServer> createServers(InetSocketAddress address,
+                                         int backlog, int dispatchers,
+                                         HttpsConfigurator configurator)
+          throws IOException
+   //-----------------------------------------------------------------
+   {
+      List<HttpServer> servers = new ArrayList<HttpServer>();
+      for (int i=0; i<Math.max(dispatchers, 1); i++)
+      {
+         HttpServer server = (configurator == null) ? HttpServer.create()
+                                                    : HttpsServer.create();
+         if (configurator != null)
+            ((HttpsServer) server).setHttpsConfigurator(configurator);
+         if ( (dispatchers > 1) && (! setReusePort(server)) )
+         {
+            if (i > 0) break;
+            Httpd.Log(LogLevel.INFO, "SO_REUSEPORT not available. Using a " +
+                      "single dispatcher", null);
+            dispatchers = 1;
+         }
+         try
+         {
+            // The remaining shards share the port the first one bound to
+            // (which differs from the requested port if that was 0)
+            server.bind((i == 0) ? address : servers.get(0).getAddress(),
+                        backlog);
+         }
+         catch (IOException e)
+         {
+            for (HttpServer s : servers)
+               s.stop(0);
+            throw e;
+         }
+         servers.add(server);
+      }
+      return servers;
+   }
+
+   /**
+    * Attempts to set SO_REUSEPORT on the (unbound) listening channel of a
+    * JDK HttpServer. Uses reflection as neither the option (Java 9) nor the
+    * channel are accessible through the com.sun.net.httpserver API.
+    * @param server An unbound HttpServer created by HttpServer.create()
+    * @return true if SO_REUSEPORT was set otherwise false.
+    */
+   static public boolean setReusePort(HttpServer server)
+   //---------------------------------------------------
+   {
+      try
+      {
+         Field f = server.getClass().getDeclaredField("server");
+         f.setAccessible(true);
+         Object impl = f.get(server);
+         f = impl.getClass().getDeclaredField("schan");
+         f.setAccessible(true);
+         return setReusePort(f.get(impl));
+      }
+      catch (Throwable t)
+      {
+         Httpd.Log(LogLevel.DEBUG, "Could not set SO_REUSEPORT", t);
+         return false;
+      }
+   }
+
+   /**
+    * Attempts to set SO_REUSEPORT on a java.nio.channels.NetworkChannel
+    * using reflection (the option was added in Java 9).
+    * @param channel The (unbound) NetworkChannel
+    * @return true if SO_REUSEPORT was set otherwise false.
+    */
+   static public boolean setReusePort(Object channel)
+   //------------------------------------------------
+   {
+      try
+      {
+         Class<?> optionsClass = Class.forName("java.net.StandardSocketOptions");
+         Object option = optionsClass.getField("SO_REUSEPORT").get(null);
+         Class<?> socketOptionClass = Class.forName("java.net.SocketOption");
+         Class<?> networkChannelClass = Class.forName("java.nio.channels.NetworkChannel");
+         Method supported = networkChannelClass.getMethod("supportedOptions");
+         if (! ((Set<?>) supported.invoke(channel)).contains(option))
+            return false;
+         Method setOption = networkChannelClass.getMethod("setOption",
+                                                 socketOptionClass, Object.class);
+         setOption.invoke(channel, option, Boolean.TRUE);
+         return true;
+      }
+      catch (Throwable t)
+      {
+         Httpd.Log(LogLevel.DEBUG, "Could not set SO_REUSEPORT", t);
+         return false;
+      }
+   }
+}
@@ -0,0 +1,140 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with power of two microsecond buckets.
+ * Bucket 0 counts latencies below 1 microsecond, bucket i (i &gt; 0) counts
+ * latencies from 2^(i-1) up to (but excluding) 2^i microseconds and the last
+ * bucket counts everything larger. Percentiles are therefore approximate
+ * (within a factor of two) which is adequate for finding where time goes.
+ * @see HttpdMetrics
+ * @author Donald Munro
+ */
+public class LatencyHistogram
+//===========================
+{
+   /**
+    * Number of buckets. The last bucket starts at 2^(BUCKETS-2) microseconds
+    * (about 18 minutes).
+    */
+   static public final int BUCKETS = 32;
+
+   private AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+
+   private AtomicLong      m_count   = new AtomicLong(0);
+
+   private AtomicLong      m_total   = new AtomicLong(0);
+
+   private AtomicLong      m_max     = new AtomicLong(0);
+
+   /**
+    * Record a latency.
+    * @param nanos The latency in nanoseconds
+    */
+   public void record(long nanos)
+   //----------------------------
+   {
+      if (nanos < 0) nanos = 0;
+      long micros = nanos / 1000;
+      int bucket = (micros == 0) ? 0
+                   : Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+      m_buckets.incrementAndGet(bucket);
+      m_count.incrementAndGet();
+      m_total.addAndGet(nanos);
+      long max = m_max.get();
+      while ( (nanos > max) && (! m_max.compareAndSet(max, nanos)) )
+         max = m_max.get();
+   }
+
+   /**
+    * @return The number of latencies recorded.
+    */
+   public long getCount() { return m_count.get(); }
+
+   /**
+    * @return The mean latency in milliseconds.
+    */
+   public double getMean()
+   //---------------------
+   {
+      long count = m_count.get();
+      return (count == 0) ? 0 : (m_total.get() / 1000000.0) / count;
+   }
+
+   /**
+    * @return The maximum latency in milliseconds.
+    */
+   public double getMax() { return m_max.get() / 1000000.0; }
+
+   /**
+    * @param percentile The percentile (0 - 100)
+    * @return The upper bound (in milliseconds) of the bucket containing the
+    * given percentile.
+    */
+   public double getPercentile(double percentile)
+   //--------------------------------------------
+   {
+      long[] buckets = getBuckets();
+      long count = 0;
+      for (int i=0; i<buckets.length; i++)
+         count += buckets[i];
+      if (count == 0) return 0;
+      long rank = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100)
+                                   / 100.0);
+      long n = 0;
+      for (int i=0; i<buckets.length; i++)
+      {
+         n += buckets[i];
+         if ( (n >= rank) && (buckets[i] > 0) )
+            return (i == BUCKETS - 1) ? getMax()
+                                      : Math.min((1L << i) / 1000.0, getMax());
+      }
+      return getMax();
+   }
+
+   /**
+    * @return A copy of the bucket counts.
+    */
+   public long[] getBuckets()
+   //------------------------
+   {
+      long[] buckets = new long[BUCKETS];
+      for (int i=0; i<BUCKETS; i++)
+         buckets[i] = m_buckets.get(i);
+      return buckets;
+   }
+
+   /**
+    * Clear all recorded latencies.
+    */
+   public void reset()
+   //-----------------
+   {
+      for (int i=0; i<BUCKETS; i++)
+         m_buckets.set(i, 0);
+      m_count.set(0);
+      m_total.set(0);
+      m_max.set(0);
+   }
+}
@@ -0,0 +1,208 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * Rejection policy used when the server work queue is bounded
+ * (@see Httpd#setWorkQueue). A rejected exchange is not queued in the work
+ * queue; instead it is run in shedding mode, in which RequestHandler answers
+ * it with a 503 Service Unavailable and a Retry-After header without doing
+ * any further work. Shed exchanges are run on a small dedicated executor and
+ * never on the rejecting thread, which for the JDK engine is the dispatcher
+ * thread that accepts connections (running an exchange includes the TLS
+ * handshake and reading the request head, so a slow client would stall all
+ * accepts). If the shed executor is also full the exchange is rejected with
+ * a RejectedExecutionException, on which both server engines close the 
+ * connection. Each rejection is counted by the Httpd instance.
+ * @see Httpd#getRejectedCount
+ * @author Donald Munro
+ */
+public class LoadSheddingPolicy implements RejectedExecutionHandler
+//=================================================================
+{
+   static private ThreadLocal<Integer> m_shedding = new ThreadLocal<Integer>();
+
+   protected Httpd                     m_httpd = null;
+
+   protected int                       m_retryAfter = 5;
+
+   /**
+    * Runs shed exchanges (@see #shed).
+    */
+   protected ThreadPoolExecutor        m_executor = null;
+
+   /**
+    * Create a LoadSheddingPolicy which sheds exchanges on 2 threads with up
+    * to 64 waiting exchanges.
+    * @param httpd The Httpd instance whose exchanges are rejected.
+    * @param retryAfter The value in seconds of the Retry-After header sent
+    * with rejected exchanges.
+    */
+   public LoadSheddingPolicy(Httpd httpd, int retryAfter)
+   //----------------------------------------------------
+   {
+      this(httpd, retryAfter, 2, 64);
+   }
+
+   /**
+    * Create a LoadSheddingPolicy.
+    * @param httpd The Httpd instance whose exchanges are rejected.
+    * @param retryAfter The value in seconds of the Retry-After header sent
+    * with rejected exchanges.
+    * @param threads The number of threads which answer shed exchanges.
+    * @param capacity The maximum number of shed exchanges waiting for a 
+    * thread. Further exchanges are closed without a response.
+    */
+   public LoadSheddingPolicy(final Httpd httpd, int retryAfter, int threads, 
+                             int capacity)
+   //----------------------------------------------------------------------
+   {
+      m_httpd = httpd;
+      m_retryAfter = retryAfter;
+      threads = Math.max(threads, 1);
+      m_executor = new ThreadPoolExecutor(threads, threads, 5000L, 
+                  TimeUnit.MILLISECONDS, 
+                  new ArrayBlockingQueue<Runnable>(Math.max(capacity, 1)),
+                  new ThreadFactory()
+                  {
+                     private AtomicInteger m_count = new AtomicInteger(0);
+
+                     public Thread newThread(Runnable r)
+                     {
+                        Thread t = new Thread(r, "Httpd:" + httpd.m_port + 
+                                       ":shed:" + m_count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                     }
+                  }, new ThreadPoolExecutor.AbortPolicy());
+      m_executor.allowCoreThreadTimeOut(true);
+   }
+
+   /**
+    * @return true if the exchange being processed by the current thread has
+    * been rejected and must be answered with a 503.
+    */
+   static public boolean isShedding()
+   //--------------------------------
+   {
+      return (m_shedding.get() != null);
+   }
+
+   /**
+    * @return The Retry-After value (in seconds) for the exchange being shed
+    * by the current thread or -1 if the current exchange is not being shed.
+    */
+   static public int getRetryAfter()
+   //-------------------------------
+   {
+      Integer retryAfter = m_shedding.get();
+      return (retryAfter == null) ? -1 : retryAfter.intValue();
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   @Override
+   public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+   //--------------------------------------------------------------------
+   {
+      shed(r);
+   }
+
+   /**
+    * Count a rejected exchange and run it in shedding mode on the shed 
+    * executor.
+    * @param r The rejected exchange Runnable.
+    * @throws RejectedExecutionException If the shed executor is full (or
+    * has been shut down) in which case the caller should close the 
+    * connection.
+    */
+   public void shed(final Runnable r)
+   //--------------------------------
+   {
+      m_httpd.onRejected();
+      m_executor.execute(new Runnable()
+      {
+         public void run()
+         {
+            m_shedding.set(m_retryAfter);
+            try
+            {
+               r.run();
+            }
+            catch (Throwable t)
+            {
+               Httpd.Log(LogLevel.ERROR, "Error shedding exchange", t);
+            }
+            finally
+            {
+               m_shedding.remove();
+            }
+         }
+      });
+   }
+
+   /**
+    * Stop the shed executor. Exchanges which are rejected after the call are
+    * closed without a response.
+    */
+   public void shutdown()
+   //--------------------
+   {
+      m_executor.shutdownNow();
+   }
+
+   /**
+    * Wrap an Authenticator so that exchanges that are being shed are not
+    * authenticated (which may be expensive eg JdbcBasicAuthenticator) but
+    * are passed straight through to be answered with a 503.
+    * @param authenticator The Authenticator to wrap
+    * @return The wrapped Authenticator or null if authenticator is null.
+    */
+   static public Authenticator wrap(final Authenticator authenticator)
+   //-----------------------------------------------------------------
+   {
+      if (authenticator == null) return null;
+      return new Authenticator()
+      {
+         @Override
+         public Result authenticate(HttpExchange ex)
+         {
+            if (isShedding())
+               return new Authenticator.Success(new HttpPrincipal("", ""));
+            return authenticator.authenticate(ex);
+         }
+      };
+   }
+}
@@ -0,0 +1,246 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A multipart/byteranges response body for a request for more than one
+ * byte range. The parts are read from a (memory mapped) buffer, from a file
+ * using positioned reads or from the request stream (@see
+ * Request#getStream(long)).
+ * @see ByteRange
+ * @author Donald Munro
+ */
+public class MultipartByteRanges extends StreamingInputStream
+//===========================================================
+{
+   private List<ByteRange> m_ranges      = null;
+
+   private long            m_length      = 0;
+
+   private String          m_contentType = null;
+
+   private String          m_boundary    = null;
+
+   private Request         m_request     = null;
+
+   private java.io.File    m_file        = null;
+
+   private ByteBuffer      m_buffer      = null;
+
+   /**
+    * Create a MultipartByteRanges.
+    * @param ranges The ranges to send
+    * @param length The length of the complete entity
+    * @param contentType The Content-Type of the entity
+    * @param request The request
+    * @param file The file containing the (unencoded) entity or null
+    * @param buffer A buffer positioned at the start of the entity or null
+    */
+   public MultipartByteRanges(List<ByteRange> ranges, long length,
+                              String contentType, Request request,
+                              java.io.File file, ByteBuffer buffer)
+   //--------------------------------------------------------------------
+   {
+      m_ranges = ranges;
+      m_length = length;
+      m_contentType = (contentType == null) ? Http.MIME_BINARY : contentType;
+      m_request = request;
+      m_file = file;
+      m_buffer = buffer;
+      m_boundary = "HTTPDBASE4J_" +
+                   Long.toHexString(Double.doubleToLongBits(Math.random())) +
+                   Long.toHexString(System.nanoTime());
+   }
+
+   /**
+    * @return The Content-Type header value for the multipart response.
+    */
+   public String getContentType()
+   //----------------------------
+   {
+      return "multipart/byteranges; boundary=" + m_boundary;
+   }
+
+   /**
+    * @return The length of the multipart response body.
+    */
+   public long getContentLength()
+   //----------------------------
+   {
+      long len = _trailer().length;
+      for (ByteRange range : m_ranges)
+         len += _header(range).length + range.getLength();
+      return len;
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   @Override
+   public long writeTo(OutputStream os) throws IOException
+   //-----------------------------------------------------
+   {
+      long count = 0;
+      FileInputStream fis = null;
+      FileChannel channel = null;
+      BufferPool pool = BufferPool.getDefault();
+      byte[] data = pool.acquire(65536);
+      try
+      {
+         if ( (m_buffer == null) && (m_file != null) )
+         {
+            fis = new FileInputStream(m_file);
+            channel = fis.getChannel();
+         }
+         for (ByteRange range : m_ranges)
+         {
+            byte[] header = _header(range);
+            os.write(header);
+            count += header.length;
+            if (m_buffer != null)
+               count += _writeBuffer(range, os, data);
+            else if (channel != null)
+               count += _writeChannel(channel, range, os, data);
+            else
+               count += _writeStream(range, os, data);
+         }
+         byte[] trailer = _trailer();
+         os.write(trailer);
+         count += trailer.length;
+      }
+      finally
+      {
+         if (fis != null) try { fis.close(); } catch (Exception e) {}
+         pool.release(data);
+      }
+      return count;
+   }
+
+   private long _writeBuffer(ByteRange range, OutputStream os, byte[] data)
+           throws IOException
+   //----------------------------------------------------------------------
+   {
+      ByteBuffer buffer = m_buffer.duplicate();
+      int first = m_buffer.position() + (int) range.getFirst();
+      buffer.limit(first + (int) range.getLength());
+      buffer.position(first);
+      long count = 0;
+      while (buffer.hasRemaining())
+      {
+         int cb = Math.min(data.length, buffer.remaining());
+         try
+         {
+            buffer.get(data, 0, cb);
+         }
+         catch (InternalError e)
+         {
+            // The memory mapped file was truncated (@see HotFileCache)
+            throw new IOException("Mapped file truncated", e);
+         }
+         os.write(data, 0, cb);
+         count += cb;
+      }
+      return count;
+   }
+
+   private long _writeChannel(FileChannel channel, ByteRange range,
+                              OutputStream os, byte[] data) throws IOException
+   //-------------------------------------------------------------------------
+   {
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      long position = range.getFirst(), remaining = range.getLength();
+      while (remaining > 0)
+      {
+         buffer.clear();
+         buffer.limit((int) Math.min(data.length, remaining));
+         int n = channel.read(buffer, position);
+         if (n < 0)
+            throw new IOException("Unexpected end of file " + m_file);
+         os.write(data, 0, n);
+         position += n;
+         remaining -= n;
+      }
+      return range.getLength();
+   }
+
+   private long _writeStream(ByteRange range, OutputStream os, byte[] data)
+           throws IOException
+   //----------------------------------------------------------------------
+   {
+      InputStream is = m_request.getStream(range.getFirst());
+      if (is == null)
+         throw new IOException("Could not open " +
+                               m_request.getAbsolutePath());
+      try
+      {
+         long remaining = range.getLength();
+         while (remaining > 0)
+         {
+            int n = is.read(data, 0, (int) Math.min(data.length, remaining));
+            if (n < 0)
+               throw new IOException("Unexpected end of stream " +
+                                     m_request.getAbsolutePath());
+            os.write(data, 0, n);
+            remaining -= n;
+         }
+      }
+      finally
+      {
+         try { is.close(); } catch (Exception e) {}
+      }
+      return range.getLength();
+   }
+
+   private byte[] _header(ByteRange range)
+   //-------------------------------------
+   {
+      return _bytes("\r\n--" + m_boundary + "\r\nContent-Type: " +
+                    m_contentType + "\r\nContent-Range: " +
+                    range.contentRange(m_length) + "\r\n\r\n");
+   }
+
+   private byte[] _trailer()
+   //-----------------------
+   {
+      return _bytes("\r\n--" + m_boundary + "--\r\n");
+   }
+
+   static private byte[] _bytes(String s)
+   //------------------------------------
+   {
+      try
+      {
+         return s.getBytes("ISO-8859-1");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         return s.getBytes();
+      }
+   }
+}
@@ -0,0 +1,438 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * A client connection of the NIO server engine. While waiting for a request
+ * the (non-blocking) channel is registered with an event loop which reads
+ * into the connection buffer until a complete request head has been
+ * received. The channel is then switched to blocking mode for the duration
+ * of the exchange. Blocking writes which make no progress for longer than
+ * the engine write timeout (eg because the client has stopped reading) are
+ * aborted by the event loop closing the connection (@see #isWriteStalled).
+ * <br>
+ * The connection buffer is always kept in write (fill) mode ie data is
+ * between 0 and position.
+ * @see NioHttpServer
+ * @author Donald Munro
+ */
+public class NioConnection
+//========================
+{
+   /**
+    * Thrown when a request head is malformed or too large.
+    */
+   static public class HeadException extends IOException
+   //===================================================
+   {
+      static private final long serialVersionUID = 1L;
+
+      private int m_code;
+
+      public HeadException(int code, String message)
+      //--------------------------------------------
+      {
+         super(message);
+         m_code = code;
+      }
+
+      public int getCode() { return m_code; }
+   }
+
+   /**
+    * The parsed request line and headers.
+    */
+   static public class RequestHead
+   //=============================
+   {
+      public String  method   = null;
+
+      public String  uri      = null;
+
+      public String  protocol = null;
+
+      public Headers headers  = new Headers();
+   }
+
+   protected SocketChannel       m_channel      = null;
+
+   protected NioHttpServer       m_server       = null;
+
+   protected NioHttpServer.EventLoop m_loop     = null;
+
+   protected ByteBuffer          m_buffer       = null;
+
+   protected volatile long       m_lastActive   = System.currentTimeMillis();
+
+   protected int                 m_requests     = 0;
+
+   private int                   m_scanFrom     = 0;
+
+   private InputStream           m_in           = null;
+
+   private volatile boolean      m_isClosed     = false;
+
+   /**
+    * The time the blocking write in progress last made progress or 0 if no
+    * write is in progress.
+    */
+   private volatile long         m_writeActive  = 0;
+
+   /**
+    * The number of exchanges using the connection (and its buffer).
+    */
+   private int                   m_exchanges    = 0;
+
+   protected NioConnection(NioHttpServer server, SocketChannel channel)
+   //------------------------------------------------------------------
+   {
+      m_server = server;
+      m_channel = channel;
+   }
+
+   public SocketChannel getChannel() { return m_channel; }
+
+   public boolean isClosed() { return m_isClosed; }
+
+   /**
+    * @return The number of requests completed on this connection.
+    */
+   public int getRequestCount() { return m_requests; }
+
+   /**
+    * Non-blocking read of whatever is available into the connection buffer.
+    * @return The number of bytes read or -1 at end of stream.
+    * @throws HeadException if the buffer is full and has reached the
+    * maximum header size.
+    */
+   protected int readAvailable() throws IOException
+   //----------------------------------------------
+   {
+      ByteBuffer buffer = _buffer();
+      if (! buffer.hasRemaining())
+      {
+         int max = m_server.getEngine().getMaxHeaderSize();
+         if (buffer.capacity() >= max)
+            throw new HeadException(431, "Request header too large");
+         ByteBuffer larger = m_server.getEngine().getBufferPool().
+                             acquireBuffer(Math.min(buffer.capacity()*2, max));
+         buffer.flip();
+         larger.put(buffer);
+         m_server.getEngine().getBufferPool().release(buffer);
+         m_buffer = buffer = larger;
+      }
+      int n = m_channel.read(buffer);
+      if (n > 0)
+         m_lastActive = System.currentTimeMillis();
+      return n;
+   }
+
+   /**
+    * @return true if the connection buffer contains unread data.
+    */
+   protected boolean hasBufferedData()
+   //---------------------------------
+   {
+      return ( (m_buffer != null) && (m_buffer.position() > 0) );
+   }
+
+   /**
+    * Parses and removes a request head from the connection buffer.
+    * @return The request head or null if a complete head has not been
+    * received yet.
+    * @throws HeadException if the head is malformed or larger than the
+    * maximum header size (@see NioServerEngine#setMaxHeaderSize).
+    */
+   protected RequestHead tryTakeHead() throws IOException
+   //----------------------------------------------------
+   {
+      if (m_buffer == null) return null;
+      byte[] data = m_buffer.array();
+      int length = m_buffer.position();
+      int end = -1, headLength = -1;
+      for (int i=m_scanFrom; i<length; i++)
+      {
+         if (data[i] != '\n') continue;
+         if ( (i + 1 < length) && (data[i+1] == '\n') )
+         {
+            headLength = i;
+            end = i + 2;
+            break;
+         }
+         if ( (i + 2 < length) && (data[i+1] == '\r') && (data[i+2] == '\n') )
+         {
+            headLength = i;
+            end = i + 3;
+            break;
+         }
+      }
+      // The connection buffer may be larger than the maximum header size
+      int max = m_server.getEngine().getMaxHeaderSize();
+      if ( (end < 0) ? (length >= max) : (headLength > max) )
+         throw new HeadException(431, "Request header too large");
+      if (end < 0)
+      {
+         m_scanFrom = Math.max(0, length - 2);
+         return null;
+      }
+      String head = new String(data, 0, headLength, "ISO-8859-1");
+      m_buffer.flip();
+      m_buffer.position(end);
+      m_buffer.compact();
+      m_scanFrom = 0;
+      return _parseHead(head);
+   }
+
+   private RequestHead _parseHead(String head) throws HeadException
+   //--------------------------------------------------------------
+   {
+      String[] lines = head.split("\n");
+      int i = 0;
+      while ( (i < lines.length) && (lines[i].trim().length() == 0) )
+         i++;
+      if (i >= lines.length)
+         throw new HeadException(Http.HTTP_BADREQUEST, "Empty request");
+      String[] requestLine = lines[i++].trim().split(" +");
+      if ( (requestLine.length != 3) ||
+           (! requestLine[2].startsWith("HTTP/1.")) )
+         throw new HeadException(Http.HTTP_BADREQUEST, "Invalid request line");
+      RequestHead request = new RequestHead();
+      request.method = requestLine[0];
+      request.uri = requestLine[1];
+      request.protocol = requestLine[2];
+      String name = null, value = null;
+      for (; i<lines.length; i++)
+      {
+         String line = lines[i];
+         if (line.endsWith("\r"))
+            line = line.substring(0, line.length() - 1);
+         if ( (line.startsWith(" ")) || (line.startsWith("\t")) )
+         {
+            if (name == null)
+               throw new HeadException(Http.HTTP_BADREQUEST, "Invalid header");
+            value = value + " " + line.trim();
+            continue;
+         }
+         if (name != null)
+            request.headers.add(name, value);
+         int p = line.indexOf(':');
+         if (p <= 0)
+            throw new HeadException(Http.HTTP_BADREQUEST, "Invalid header");
+         name = line.substring(0, p).trim();
+         value = line.substring(p + 1).trim();
+      }
+      if (name != null)
+         request.headers.add(name, value);
+      return request;
+   }
+
+   /**
+    * Blocking read of request body data. Data remaining in the connection
+    * buffer is returned first.
+    */
+   protected int read(byte[] b, int off, int len) throws IOException
+   //---------------------------------------------------------------
+   {
+      if (len == 0) return 0;
+      if (hasBufferedData())
+      {
+         m_buffer.flip();
+         int n = Math.min(len, m_buffer.remaining());
+         m_buffer.get(b, off, n);
+         m_buffer.compact();
+         return n;
+      }
+      if (m_in == null)
+      {
+         m_channel.socket().setSoTimeout((int) m_server.getEngine().getIdleTimeout());
+         m_in = m_channel.socket().getInputStream();
+      }
+      return m_in.read(b, off, len);
+   }
+
+   /**
+    * Blocking write of a buffer.
+    */
+   protected void write(ByteBuffer buffer) throws IOException
+   //--------------------------------------------------------
+   {
+      m_writeActive = System.currentTimeMillis();
+      try
+      {
+         while (buffer.hasRemaining())
+         {
+            if (m_channel.write(buffer) > 0)
+               m_writeActive = System.currentTimeMillis();
+         }
+      }
+      finally
+      {
+         m_writeActive = 0;
+      }
+   }
+
+   /**
+    * Blocking transfer of part of a file to the connection.
+    * @return The number of bytes transferred.
+    */
+   protected long transferFrom(FileChannel channel, long position, long count)
+             throws IOException
+   //-------------------------------------------------------------------------
+   {
+      m_writeActive = System.currentTimeMillis();
+      try
+      {
+         return channel.transferTo(position, count, m_channel);
+      }
+      finally
+      {
+         m_writeActive = 0;
+      }
+   }
+
+   /**
+    * @param now The current time
+    * @param timeout The write timeout in milliseconds
+    * @return true if a blocking write has made no progress for longer than
+    * timeout.
+    */
+   protected boolean isWriteStalled(long now, long timeout)
+   //------------------------------------------------------
+   {
+      long active = m_writeActive;
+      return ( (active > 0) && (now - active > timeout) );
+   }
+
+   /**
+    * Writes a minimal error response. The connection should be closed
+    * afterwards.
+    */
+   protected void sendError(int code)
+   //--------------------------------
+   {
+      String response = "HTTP/1.1 " + code + " " + Http.getErrorMessage(code) +
+                        "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+      try
+      {
+         ByteBuffer buffer = ByteBuffer.wrap(response.getBytes("ISO-8859-1"));
+         for (int i=0; (i<16) && (buffer.hasRemaining()); i++)
+            m_channel.write(buffer);
+      }
+      catch (IOException e)
+      {
+      }
+   }
+
+   /**
+    * Returns the connection buffer to the pool if it does not contain any
+    * unread data (so idle connections do not hold a buffer).
+    */
+   protected synchronized void releaseIfEmpty()
+   //------------------------------------------
+   {
+      if ( (m_buffer != null) && (m_buffer.position() == 0) )
+      {
+         m_server.getEngine().getBufferPool().release(m_buffer);
+         m_buffer = null;
+         m_scanFrom = 0;
+      }
+   }
+
+   /**
+    * Close a connection which is blocked writing. The output is shut down
+    * first as closing the channel does not wake a thread blocked in a file
+    * transfer (@see #transferFrom).
+    */
+   protected void abort()
+   //--------------------
+   {
+      try { m_channel.socket().shutdownOutput(); } catch (Exception e) {}
+      close();
+   }
+
+   protected void close()
+   //--------------------
+   {
+      if (m_isClosed) return;
+      m_isClosed = true;
+      try { m_channel.close(); } catch (Exception e) {}
+      _releaseBuffer();
+      m_server.onConnectionClosed(this);
+   }
+
+   /**
+    * Called when an exchange starts using the connection.
+    */
+   protected synchronized void beginExchange() { m_exchanges++; }
+
+   /**
+    * Called when an exchange has completed. If the connection was closed
+    * while the exchange was using it then the buffer is released now.
+    */
+   protected void endExchange()
+   //--------------------------
+   {
+      synchronized (this)
+      {
+         m_exchanges--;
+      }
+      if (m_isClosed)
+         _releaseBuffer();
+   }
+
+   /**
+    * Returns the connection buffer to the pool unless an exchange is still
+    * reading from it (eg when the server is stopped while a handler is
+    * running).
+    */
+   private void _releaseBuffer()
+   //---------------------------
+   {
+      ByteBuffer buffer;
+      synchronized (this)
+      {
+         if (m_exchanges > 0) return;
+         buffer = m_buffer;
+         m_buffer = null;
+      }
+      if (buffer != null)
+         m_server.getEngine().getBufferPool().release(buffer);
+   }
+
+   private ByteBuffer _buffer()
+   //--------------------------
+   {
+      if (m_buffer == null)
+      {
+         m_buffer = m_server.getEngine().getBufferPool().
+                                       acquireBuffer(BufferPool.COPY_SIZE);
+         m_scanFrom = 0;
+      }
+      return m_buffer;
+   }
+}
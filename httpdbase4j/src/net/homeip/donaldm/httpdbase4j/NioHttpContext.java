@@ -0,0 +1,93 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HttpContext implementation for the NIO server engine.
+ * @see NioHttpServer
+ * @author Donald Munro
+ */
+public class NioHttpContext extends HttpContext
+//=============================================
+{
+   private String                   m_path          = null;
+
+   private HttpHandler              m_handler       = null;
+
+   private NioHttpServer            m_server        = null;
+
+   private Authenticator            m_authenticator = null;
+
+   private Map<String, Object>      m_attributes    =
+                                       new ConcurrentHashMap<String, Object>();
+
+   private List<Filter>             m_filters       =
+                                       new CopyOnWriteArrayList<Filter>();
+
+   protected NioHttpContext(NioHttpServer server, String path,
+                            HttpHandler handler)
+   //-----------------------------------------------------------
+   {
+      m_server = server;
+      m_path = path;
+      m_handler = handler;
+   }
+
+   public HttpHandler getHandler() { return m_handler; }
+
+   public void setHandler(HttpHandler handler)
+   //-----------------------------------------
+   {
+      if (handler == null)
+         throw new NullPointerException("Null handler");
+      if (m_handler != null)
+         throw new IllegalArgumentException("Handler already set");
+      m_handler = handler;
+   }
+
+   public String getPath() { return m_path; }
+
+   public HttpServer getServer() { return m_server; }
+
+   public Map<String, Object> getAttributes() { return m_attributes; }
+
+   public List<Filter> getFilters() { return m_filters; }
+
+   public Authenticator setAuthenticator(Authenticator authenticator)
+   //----------------------------------------------------------------
+   {
+      Authenticator old = m_authenticator;
+      m_authenticator = authenticator;
+      return old;
+   }
+
+   public Authenticator getAuthenticator() { return m_authenticator; }
+}
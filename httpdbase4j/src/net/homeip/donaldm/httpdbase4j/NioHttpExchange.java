@@ -0,0 +1,780 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SimpleTimeZone;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * HttpExchange implementation for the NIO server engine. The exchange uses
+ * blocking I/O on the connection channel.<br>
+ * Response framing follows the com.sun.net.httpserver conventions: a
+ * response length &gt; 0 sends a Content-Length header, a length of 0 sends a
+ * chunked response (or a connection delimited response for HTTP/1.0
+ * clients) and a length of -1 sends no body. The exchange is complete
+ * when the response body stream is closed (or when the response headers are
+ * sent for responses without a body) after which the connection is either
+ * closed or returned to its event loop to wait for the next request.<br>
+ * Fixed length response bodies can be written from a file using
+ * FileChannel.transferTo (@see FileTransferable).
+ * @see NioHttpServer
+ * @author Donald Munro
+ */
+public class NioHttpExchange extends HttpExchange implements FileTransferable
+//===========================================================================
+{
+   static private final int           MAX_DRAIN       = 65536;
+
+   static private final ThreadLocal<SimpleDateFormat> DATE_FORMAT =
+                                    new ThreadLocal<SimpleDateFormat>()
+   {
+      @Override protected SimpleDateFormat initialValue()
+      {
+         SimpleDateFormat format = new SimpleDateFormat(
+                                    "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+         format.setTimeZone(new SimpleTimeZone(0, "GMT"));
+         return format;
+      }
+   };
+
+   private NioHttpServer              m_server         = null;
+
+   private NioConnection              m_connection     = null;
+
+   private NioHttpContext             m_context        = null;
+
+   private String                     m_method         = null;
+
+   private URI                        m_uri            = null;
+
+   private String                     m_protocol       = null;
+
+   private Headers                    m_requestHeaders = null;
+
+   private Headers                    m_responseHeaders = new Headers();
+
+   private Map<String, Object>        m_attributes     = null;
+
+   private HttpPrincipal              m_principal      = null;
+
+   private int                        m_responseCode   = -1;
+
+   private boolean                    m_isKeepAlive    = false;
+
+   private boolean                    m_isContinueSent = false;
+
+   private boolean                    m_isCompleted    = false;
+
+   private BodyInputStream            m_requestBody    = null;
+
+   private InputStream                m_in             = null;
+
+   private OutputStream               m_out            = null;
+
+   private OutputStream               m_body           = null;
+
+   private BufferedOutputStream       m_rawOut         = null;
+
+   protected NioHttpExchange(NioHttpServer server, NioConnection connection,
+                             NioHttpContext context,
+                             NioConnection.RequestHead head, URI uri)
+   //------------------------------------------------------------------------
+   {
+      m_server = server;
+      m_connection = connection;
+      m_context = context;
+      m_method = head.method;
+      m_uri = uri;
+      m_protocol = head.protocol;
+      m_requestHeaders = head.headers;
+      m_isKeepAlive = _isKeepAliveRequested();
+      String te = m_requestHeaders.getFirst("Transfer-Encoding");
+      String cl = m_requestHeaders.getFirst("Content-Length");
+      if ( (te != null) && (! te.equalsIgnoreCase("identity")) )
+         m_requestBody = new ChunkedInputStream();
+      else if (cl != null)
+      {
+         long length = -1;
+         try { length = Long.parseLong(cl.trim()); } catch (NumberFormatException e) {}
+         if (length < 0)
+         {
+            m_isKeepAlive = false;
+            length = 0;
+         }
+         m_requestBody = new FixedLengthInputStream(length);
+      }
+      else
+         m_requestBody = new FixedLengthInputStream(0);
+      m_in = m_requestBody;
+      m_out = new PlaceholderOutputStream();
+      m_rawOut = new BufferedOutputStream(new ChannelOutputStream(), 8192);
+   }
+
+   private boolean _isKeepAliveRequested()
+   //-------------------------------------
+   {
+      String connection = m_requestHeaders.getFirst("Connection");
+      if (m_protocol.equals("HTTP/1.0"))
+         return ( (connection != null) &&
+                  (connection.toLowerCase().indexOf("keep-alive") >= 0) );
+      return ( (connection == null) ||
+               (connection.toLowerCase().indexOf("close") < 0) );
+   }
+
+   public Headers getRequestHeaders() { return m_requestHeaders; }
+
+   public Headers getResponseHeaders() { return m_responseHeaders; }
+
+   public URI getRequestURI() { return m_uri; }
+
+   public String getRequestMethod() { return m_method; }
+
+   public HttpContext getHttpContext() { return m_context; }
+
+   public InputStream getRequestBody() { return m_in; }
+
+   public OutputStream getResponseBody() { return m_out; }
+
+   public int getResponseCode() { return m_responseCode; }
+
+   public String getProtocol() { return m_protocol; }
+
+   public HttpPrincipal getPrincipal() { return m_principal; }
+
+   protected void setPrincipal(HttpPrincipal principal) { m_principal = principal; }
+
+   public InetSocketAddress getRemoteAddress()
+   //-----------------------------------------
+   {
+      return (InetSocketAddress) m_connection.getChannel().socket().
+                                                      getRemoteSocketAddress();
+   }
+
+   public InetSocketAddress getLocalAddress()
+   //----------------------------------------
+   {
+      return (InetSocketAddress) m_connection.getChannel().socket().
+                                                      getLocalSocketAddress();
+   }
+
+   public Object getAttribute(String name)
+   //-------------------------------------
+   {
+      if ( (m_attributes != null) && (m_attributes.containsKey(name)) )
+         return m_attributes.get(name);
+      return m_context.getAttributes().get(name);
+   }
+
+   public void setAttribute(String name, Object value)
+   //-------------------------------------------------
+   {
+      if (m_attributes == null)
+         m_attributes = new HashMap<String, Object>();
+      m_attributes.put(name, value);
+   }
+
+   public void setStreams(InputStream i, OutputStream o)
+   //---------------------------------------------------
+   {
+      if (i != null) m_in = i;
+      if (o != null) m_out = o;
+   }
+
+   /**
+    * @return true if the connection will be kept open after this exchange.
+    */
+   public boolean isKeepAlive() { return m_isKeepAlive; }
+
+   public void sendResponseHeaders(int code, long length) throws IOException
+   //-----------------------------------------------------------------------
+   {
+      if (m_responseCode >= 0)
+         throw new IOException("Response headers already sent");
+      m_responseCode = code;
+      boolean isHead = m_method.equalsIgnoreCase("HEAD");
+      boolean isNoBody = ( (isHead) || (code == 204) || (code == 304) ||
+                           (code < 200) );
+      if (isNoBody)
+      {
+         if ( (isHead) && (length > 0) )
+            m_responseHeaders.set("Content-Length", Long.toString(length));
+         m_body = new FixedLengthOutputStream(0);
+      }
+      else if (length > 0)
+      {
+         m_responseHeaders.set("Content-Length", Long.toString(length));
+         m_body = new FixedLengthOutputStream(length);
+      }
+      else if (length == 0)
+      {
+         if (m_protocol.equals("HTTP/1.0"))
+         {
+            m_isKeepAlive = false;
+            m_body = new UnboundedOutputStream();
+         }
+         else
+         {
+            m_responseHeaders.set("Transfer-Encoding", "chunked");
+            m_body = new ChunkedOutputStream();
+         }
+      }
+      else
+      {
+         m_responseHeaders.set("Content-Length", "0");
+         m_body = new FixedLengthOutputStream(0);
+      }
+      if (m_responseHeaders.getFirst("Date") == null)
+         m_responseHeaders.set("Date", DATE_FORMAT.get().format(new Date()));
+      String connection = m_responseHeaders.getFirst("Connection");
+      if ( (connection != null) && (connection.equalsIgnoreCase("close")) )
+         m_isKeepAlive = false;
+      if (m_server.isStopping())
+         m_isKeepAlive = false;
+      if (! m_isKeepAlive)
+         m_responseHeaders.set("Connection", "close");
+      else if (m_protocol.equals("HTTP/1.0"))
+         m_responseHeaders.set("Connection", "keep-alive");
+
+      StringBuilder sb = new StringBuilder(256);
+      sb.append("HTTP/1.1 ").append(code).append(' ').
+         append(Http.getErrorMessage(code)).append("\r\n");
+      for (Map.Entry<String, List<String>> e : m_responseHeaders.entrySet())
+      {
+         for (String value : e.getValue())
+            sb.append(e.getKey()).append(": ").append(value).append("\r\n");
+      }
+      sb.append("\r\n");
+      m_rawOut.write(sb.toString().getBytes("ISO-8859-1"));
+      if (isNoBody)
+      {
+         m_rawOut.flush();
+         _complete();
+      }
+   }
+
+   /**
+    * Ends the exchange. If the response headers have not been sent then the
+    * connection is closed otherwise the response body is closed.
+    */
+   public void close()
+   //-----------------
+   {
+      if (m_isCompleted) return;
+      try
+      {
+         if (m_body == null)
+         {
+            m_isKeepAlive = false;
+            _complete();
+         }
+         else
+            m_body.close();
+      }
+      catch (IOException e)
+      {
+         m_isKeepAlive = false;
+         _complete();
+      }
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   public boolean isFileTransferSupported()
+   //--------------------------------------
+   {
+      return ( (m_body instanceof FixedLengthOutputStream) &&
+               (m_out instanceof PlaceholderOutputStream) &&
+               (! ((FixedLengthOutputStream) m_body).m_isClosed) );
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   public long transferFile(FileChannel channel, long position, long count)
+          throws IOException
+   //----------------------------------------------------------------------
+   {
+      if (! isFileTransferSupported())
+         throw new IOException("File transfer not supported for this response");
+      FixedLengthOutputStream body = (FixedLengthOutputStream) m_body;
+      if (count > body.m_remaining)
+         throw new IOException("Too many bytes to write to stream");
+      m_rawOut.flush();
+      long size = channel.size(), total = 0;
+      while ( (total < count) && (position + total < size) )
+      {
+         long n = m_connection.transferFrom(channel, position + total, 
+                                            count - total);
+         if (n <= 0) break;
+         total += n;
+         body.m_remaining -= n;
+      }
+      return total;
+   }
+
+   /**
+    *  @inheritDoc
+    */
+   public long transferBuffer(ByteBuffer buffer) throws IOException
+   //--------------------------------------------------------------
+   {
+      if (! isFileTransferSupported())
+         throw new IOException("File transfer not supported for this response");
+      FixedLengthOutputStream body = (FixedLengthOutputStream) m_body;
+      long count = buffer.remaining();
+      if (count > body.m_remaining)
+         throw new IOException("Too many bytes to write to stream");
+      m_rawOut.flush();
+      m_connection.write(buffer);
+      body.m_remaining -= count;
+      return count;
+   }
+
+   private synchronized void _complete()
+   //-----------------------------------
+   {
+      if (m_isCompleted) return;
+      m_isCompleted = true;
+      if ( (m_isKeepAlive) && (! m_requestBody.drain()) )
+         m_isKeepAlive = false;
+      m_server.onExchangeComplete(this, m_connection, m_isKeepAlive);
+   }
+
+   private void _sendContinue() throws IOException
+   //---------------------------------------------
+   {
+      if ( (m_isContinueSent) || (m_responseCode >= 0) ) return;
+      m_isContinueSent = true;
+      String expect = m_requestHeaders.getFirst("Expect");
+      if ( (expect != null) && (expect.equalsIgnoreCase("100-continue")) &&
+           (m_protocol.equals("HTTP/1.1")) )
+      {
+         m_rawOut.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"));
+         m_rawOut.flush();
+      }
+   }
+
+   abstract private class BodyInputStream extends InputStream
+   //========================================================
+   {
+      protected boolean m_isEOF = false;
+
+      public int read() throws IOException
+      //----------------------------------
+      {
+         byte[] b = new byte[1];
+         int n;
+         while ( (n = read(b, 0, 1)) == 0);
+         return (n < 0) ? -1 : (b[0] & 0xFF);
+      }
+
+      @Override
+      public void close() throws IOException
+      //------------------------------------
+      {
+      }
+
+      /**
+       * Reads and discards the remainder of the body.
+       * @return true if the end of the body was reached.
+       */
+      protected boolean drain()
+      //-----------------------
+      {
+         if (m_isEOF) return true;
+         BufferPool pool = BufferPool.getDefault();
+         byte[] b = pool.acquire(4096);
+         int total = 0;
+         try
+         {
+            int n;
+            while ( (total < MAX_DRAIN) && ( (n = read(b, 0, b.length)) >= 0) )
+               total += n;
+         }
+         catch (IOException e)
+         {
+            return false;
+         }
+         finally
+         {
+            pool.release(b);
+         }
+         return m_isEOF;
+      }
+   }
+
+   private class FixedLengthInputStream extends BodyInputStream
+   //==========================================================
+   {
+      private long m_remaining;
+
+      FixedLengthInputStream(long length)
+      //---------------------------------
+      {
+         m_remaining = length;
+         m_isEOF = (length == 0);
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      //------------------------------------------------------------
+      {
+         if (m_remaining <= 0)
+         {
+            m_isEOF = true;
+            return -1;
+         }
+         _sendContinue();
+         int n = m_connection.read(b, off, (int) Math.min(len, m_remaining));
+         if (n < 0)
+            throw new IOException("Unexpected end of request body");
+         m_remaining -= n;
+         if (m_remaining <= 0) m_isEOF = true;
+         return n;
+      }
+
+      @Override
+      public int available() throws IOException
+      //---------------------------------------
+      {
+         return (int) Math.min(m_remaining, (m_connection.hasBufferedData())
+                                            ? m_connection.m_buffer.position() : 0);
+      }
+   }
+
+   private class ChunkedInputStream extends BodyInputStream
+   //======================================================
+   {
+      private long m_remaining = 0;
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      //------------------------------------------------------------
+      {
+         if (m_isEOF) return -1;
+         _sendContinue();
+         if (m_remaining == 0)
+         {
+            String line = _readLine();
+            int p = line.indexOf(';');
+            if (p >= 0) line = line.substring(0, p);
+            try
+            {
+               m_remaining = Long.parseLong(line.trim(), 16);
+            }
+            catch (NumberFormatException e)
+            {
+               throw new IOException("Invalid chunk size " + line);
+            }
+            if (m_remaining == 0)
+            {
+               while (_readLine().length() > 0);
+               m_isEOF = true;
+               return -1;
+            }
+         }
+         int n = m_connection.read(b, off, (int) Math.min(len, m_remaining));
+         if (n < 0)
+            throw new IOException("Unexpected end of request body");
+         m_remaining -= n;
+         if (m_remaining == 0)
+            _readLine();
+         return n;
+      }
+
+      private String _readLine() throws IOException
+      //-------------------------------------------
+      {
+         StringBuilder sb = new StringBuilder();
+         byte[] b = new byte[1];
+         while (true)
+         {
+            int n = m_connection.read(b, 0, 1);
+            if (n < 0)
+               throw new IOException("Unexpected end of request body");
+            if (n == 0) continue;
+            if (b[0] == '\n') break;
+            if (b[0] != '\r') sb.append((char) (b[0] & 0xFF));
+         }
+         return sb.toString();
+      }
+   }
+
+   /**
+    * Writes to the connection channel.
+    */
+   private class ChannelOutputStream extends OutputStream
+   //====================================================
+   {
+      public void write(int b) throws IOException
+      //-----------------------------------------
+      {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      //--------------------------------------------------------------
+      {
+         m_connection.write(ByteBuffer.wrap(b, off, len));
+      }
+   }
+
+   /**
+    * The response body stream returned before the response headers are
+    * sent. Delegates to the actual body stream once the headers are sent.
+    */
+   private class PlaceholderOutputStream extends OutputStream
+   //========================================================
+   {
+      private OutputStream _body() throws IOException
+      //---------------------------------------------
+      {
+         if (m_body == null)
+            throw new IOException("Response headers not sent");
+         return m_body;
+      }
+
+      public void write(int b) throws IOException { _body().write(b); }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      //--------------------------------------------------------------
+      {
+         _body().write(b, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException { _body().flush(); }
+
+      @Override
+      public void close() throws IOException
+      //------------------------------------
+      {
+         if (m_body == null)
+            NioHttpExchange.this.close();
+         else
+            m_body.close();
+      }
+   }
+
+   private class FixedLengthOutputStream extends OutputStream
+   //========================================================
+   {
+      private long    m_remaining;
+
+      private boolean m_isClosed = false;
+
+      FixedLengthOutputStream(long length) { m_remaining = length; }
+
+      public void write(int b) throws IOException
+      //-----------------------------------------
+      {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      //--------------------------------------------------------------
+      {
+         if (m_isClosed)
+            throw new IOException("Stream closed");
+         if (len > m_remaining)
+            throw new IOException("Too many bytes to write to stream");
+         m_rawOut.write(b, off, len);
+         m_remaining -= len;
+      }
+
+      @Override
+      public void flush() throws IOException
+      //------------------------------------
+      {
+         if (! m_isClosed) m_rawOut.flush();
+      }
+
+      @Override
+      public void close() throws IOException
+      //------------------------------------
+      {
+         if (m_isClosed) return;
+         m_isClosed = true;
+         if (m_remaining > 0)
+            m_isKeepAlive = false;
+         try
+         {
+            m_rawOut.flush();
+         }
+         catch (IOException e)
+         {
+            m_isKeepAlive = false;
+            throw e;
+         }
+         finally
+         {
+            _complete();
+         }
+      }
+   }
+
+   private class UnboundedOutputStream extends OutputStream
+   //======================================================
+   {
+      private boolean m_isClosed = false;
+
+      public void write(int b) throws IOException
+      //-----------------------------------------
+      {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      //--------------------------------------------------------------
+      {
+         if (m_isClosed)
+            throw new IOException("Stream closed");
+         m_rawOut.write(b, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException
+      //------------------------------------
+      {
+         if (! m_isClosed) m_rawOut.flush();
+      }
+
+      @Override
+      public void close() throws IOException
+      //------------------------------------
+      {
+         if (m_isClosed) return;
+         m_isClosed = true;
+         try
+         {
+            m_rawOut.flush();
+         }
+         finally
+         {
+            _complete();
+         }
+      }
+   }
+
+   /**
+    * Chunked transfer encoding. Small writes are coalesced into chunks of
+    * up to 8K.
+    */
+   private class ChunkedOutputStream extends OutputStream
+   //====================================================
+   {
+      private byte[]  m_chunk    = new byte[8192];
+
+      private int     m_count    = 0;
+
+      private boolean m_isClosed = false;
+
+      public void write(int b) throws IOException
+      //-----------------------------------------
+      {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      //--------------------------------------------------------------
+      {
+         if (m_isClosed)
+            throw new IOException("Stream closed");
+         while (len > 0)
+         {
+            int n = Math.min(len, m_chunk.length - m_count);
+            System.arraycopy(b, off, m_chunk, m_count, n);
+            m_count += n;
+            off += n;
+            len -= n;
+            if (m_count == m_chunk.length)
+               _writeChunk();
+         }
+      }
+
+      private void _writeChunk() throws IOException
+      //-------------------------------------------
+      {
+         if (m_count == 0) return;
+         m_rawOut.write((Integer.toHexString(m_count) + "\r\n").
+                                                   getBytes("ISO-8859-1"));
+         m_rawOut.write(m_chunk, 0, m_count);
+         m_rawOut.write('\r');
+         m_rawOut.write('\n');
+         m_count = 0;
+      }
+
+      @Override
+      public void flush() throws IOException
+      //------------------------------------
+      {
+         if (m_isClosed) return;
+         _writeChunk();
+         m_rawOut.flush();
+      }
+
+      @Override
+      public void close() throws IOException
+      //------------------------------------
+      {
+         if (m_isClosed) return;
+         m_isClosed = true;
+         try
+         {
+            _writeChunk();
+            m_rawOut.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+            m_rawOut.flush();
+         }
+         catch (IOException e)
+         {
+            m_isKeepAlive = false;
+            throw e;
+         }
+         finally
+         {
+            _complete();
+         }
+      }
+   }
+}
@@ -0,0 +1,693 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * A native NIO HTTP/1.1 implementation of the com.sun.net.httpserver
+ * HttpServer API.<br>
+ * An acceptor thread accepts connections and hands them round robin to a
+ * number of event loops each with its own Selector. An event loop reads
+ * request heads without blocking and once a complete head has been read
+ * switches the connection to blocking mode and dispatches the exchange to
+ * the server executor (or runs it on the event loop thread if no executor
+ * has been set). When the exchange completes the connection is either
+ * closed or re-registered with its event loop. Connections that are idle
+ * for longer than the engine idle timeout are closed, as are connections
+ * whose exchange is blocked writing for longer than the engine write
+ * timeout (@see NioServerEngine#setWriteTimeout).
+ * @see NioServerEngine
+ * @author Donald Munro
+ */
+public class NioHttpServer extends HttpServer
+//===========================================
+{
+   private NioServerEngine                m_engine        = null;
+
+   private ServerSocketChannel            m_channel       = null;
+
+   private InetSocketAddress              m_address       = null;
+
+   private Executor                       m_executor      = null;
+
+   private EventLoop[]                    m_loops         = null;
+
+   private Thread                         m_acceptor      = null;
+
+   private int                            m_nextLoop      = 0;
+
+   private List<NioHttpContext>           m_contexts      =
+                                       new CopyOnWriteArrayList<NioHttpContext>();
+
+   private Set<NioConnection>             m_connections   =
+                  Collections.newSetFromMap(new ConcurrentHashMap<NioConnection, Boolean>());
+
+   private AtomicInteger                  m_exchanges     = new AtomicInteger(0);
+
+   private volatile boolean               m_isStopping    = false;
+
+   private volatile long                  m_stopDeadline  = Long.MAX_VALUE;
+
+   private boolean                        m_isTerminated  = false;
+
+   private final Object                   m_lock          = new Object();
+
+   protected NioHttpServer(NioServerEngine engine, int eventLoops)
+   //-------------------------------------------------------------
+   {
+      m_engine = engine;
+      m_loops = new EventLoop[Math.max(eventLoops, 1)];
+   }
+
+   public NioServerEngine getEngine() { return m_engine; }
+
+   /**
+    * @return The number of exchanges currently being processed.
+    */
+   public int getExchangeCount() { return m_exchanges.get(); }
+
+   /**
+    * @return The number of open connections.
+    */
+   public int getConnectionCount() { return m_connections.size(); }
+
+   protected boolean isStopping() { return m_isStopping; }
+
+   public void bind(InetSocketAddress address, int backlog) throws IOException
+   //-------------------------------------------------------------------------
+   {
+      if (m_channel != null)
+         throw new IllegalStateException("Server already bound");
+      m_channel = ServerSocketChannel.open();
+      try
+      {
+         m_channel.socket().setReuseAddress(true);
+         m_channel.socket().bind(address, backlog);
+      }
+      catch (IOException e)
+      {
+         try { m_channel.close(); } catch (Exception ee) {}
+         m_channel = null;
+         throw e;
+      }
+      m_address = (InetSocketAddress) m_channel.socket().getLocalSocketAddress();
+   }
+
+   public void start()
+   //-----------------
+   {
+      if (m_channel == null)
+         throw new IllegalStateException("Server not bound");
+      if (m_acceptor != null)
+         throw new IllegalStateException("Server already started");
+      try
+      {
+         for (int i=0; i<m_loops.length; i++)
+         {
+            m_loops[i] = new EventLoop(i);
+            m_loops[i].start();
+         }
+      }
+      catch (IOException e)
+      {
+         throw new RuntimeException("Could not open selector", e);
+      }
+      m_acceptor = new Thread(new Runnable()
+      {
+         public void run() { _accept(); }
+      }, "Httpd:NioAcceptor:" + m_address.getPort());
+      m_acceptor.setDaemon(true);
+      m_acceptor.start();
+   }
+
+   private void _accept()
+   //--------------------
+   {
+      while (! m_isStopping)
+      {
+         SocketChannel channel = null;
+         try
+         {
+            channel = m_channel.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+         }
+         catch (ClosedChannelException e)
+         {
+            break;
+         }
+         catch (IOException e)
+         {
+            if (m_isStopping) break;
+            Httpd.Log(LogLevel.ERROR, "NIO accept failed", e);
+            if (channel != null)
+               try { channel.close(); } catch (Exception ee) {}
+            continue;
+         }
+         NioConnection connection = new NioConnection(this, channel);
+         m_connections.add(connection);
+         EventLoop loop = m_loops[(m_nextLoop++ & 0x7fffffff) % m_loops.length];
+         connection.m_loop = loop;
+         loop.register(connection);
+      }
+   }
+
+   public void setExecutor(Executor executor)
+   //----------------------------------------
+   {
+      if (m_acceptor != null)
+         throw new IllegalStateException("Server already started");
+      m_executor = executor;
+   }
+
+   public Executor getExecutor() { return m_executor; }
+
+   public HttpContext createContext(String path, HttpHandler handler)
+   //----------------------------------------------------------------
+   {
+      if (path == null)
+         throw new NullPointerException("Null path");
+      if (! path.startsWith("/"))
+         throw new IllegalArgumentException("Path must begin with /");
+      for (NioHttpContext context : m_contexts)
+         if (context.getPath().equals(path))
+            throw new IllegalArgumentException("Context already exists: " + path);
+      NioHttpContext context = new NioHttpContext(this, path, handler);
+      m_contexts.add(context);
+      return context;
+   }
+
+   public HttpContext createContext(String path)
+   //-------------------------------------------
+   {
+      return createContext(path, null);
+   }
+
+   public void removeContext(String path) throws IllegalArgumentException
+   //--------------------------------------------------------------------
+   {
+      for (NioHttpContext context : m_contexts)
+      {
+         if (context.getPath().equals(path))
+         {
+            m_contexts.remove(context);
+            return;
+         }
+      }
+      throw new IllegalArgumentException("No context for " + path);
+   }
+
+   public void removeContext(HttpContext context)
+   //--------------------------------------------
+   {
+      if (! m_contexts.remove(context))
+         throw new IllegalArgumentException("Invalid context");
+   }
+
+   public InetSocketAddress getAddress() { return m_address; }
+
+   /**
+    * Stops the server. The listening socket and idle connections are closed
+    * immediately and the server waits up to <i>delay</i> seconds for current
+    * exchanges to complete before closing all connections. A subsequent call
+    * with a smaller delay (eg stop(0) from another thread) shortens the wait.
+    * @param delay The maximum time in seconds to wait for current exchanges
+    */
+   public void stop(int delay)
+   //-------------------------
+   {
+      if (delay < 0)
+         throw new IllegalArgumentException("Negative delay");
+      synchronized (m_lock)
+      {
+         m_stopDeadline = Math.min(m_stopDeadline,
+                                   System.currentTimeMillis() + delay*1000L);
+         m_isStopping = true;
+         m_lock.notifyAll();
+      }
+      if (m_channel != null)
+         try { m_channel.close(); } catch (Exception e) {}
+      for (EventLoop loop : m_loops)
+         if (loop != null)
+            loop.m_selector.wakeup();
+      synchronized (m_lock)
+      {
+         long now;
+         while ( (m_exchanges.get() > 0) &&
+                 ( (now = System.currentTimeMillis()) < m_stopDeadline) )
+         {
+            try
+            {
+               m_lock.wait(Math.min(m_stopDeadline - now, 100));
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               break;
+            }
+         }
+         if (m_isTerminated) return;
+         m_isTerminated = true;
+      }
+      for (EventLoop loop : m_loops)
+      {
+         if (loop == null) continue;
+         loop.m_isRunning = false;
+         loop.m_selector.wakeup();
+      }
+      for (NioConnection connection : new ArrayList<NioConnection>(m_connections))
+         connection.close();
+      for (EventLoop loop : m_loops)
+      {
+         if ( (loop == null) || (loop == Thread.currentThread()) ) continue;
+         try { loop.join(1000); } catch (InterruptedException e) { break; }
+      }
+      if (m_acceptor != null)
+         try { m_acceptor.join(1000); } catch (InterruptedException e) {}
+   }
+
+   protected void onConnectionClosed(NioConnection connection)
+   //---------------------------------------------------------
+   {
+      m_connections.remove(connection);
+   }
+
+   private NioHttpContext _findContext(String path)
+   //----------------------------------------------
+   {
+      NioHttpContext found = null;
+      for (NioHttpContext context : m_contexts)
+      {
+         String contextPath = context.getPath();
+         if ( (path.startsWith(contextPath)) &&
+              ( (found == null) ||
+                (contextPath.length() > found.getPath().length()) ) )
+            found = context;
+      }
+      return found;
+   }
+
+   /**
+    * Creates an exchange for a request head read from a (blocking mode)
+    * connection and runs it on the executor.
+    */
+   protected void dispatch(NioConnection connection,
+                           NioConnection.RequestHead head)
+   //------------------------------------------------------
+   {
+      URI uri;
+      try
+      {
+         uri = new URI(head.uri);
+      }
+      catch (URISyntaxException e)
+      {
+         connection.sendError(Http.HTTP_BADREQUEST);
+         connection.close();
+         return;
+      }
+      String path = uri.getPath();
+      if ( (path == null) || (path.length() == 0) ) path = "/";
+      final NioHttpContext context = _findContext(path);
+      if ( (context == null) || (context.getHandler() == null) )
+      {
+         connection.sendError(Http.HTTP_NOTFOUND);
+         connection.close();
+         return;
+      }
+      final NioHttpExchange ex = new NioHttpExchange(this, connection, context,
+                                                     head, uri);
+      m_exchanges.incrementAndGet();
+      connection.beginExchange();
+      Runnable r = new Runnable()
+      {
+         public void run() { _handle(context, ex); }
+      };
+      if (m_executor == null)
+         r.run();
+      else
+      {
+         try
+         {
+            m_executor.execute(r);
+         }
+         catch (RejectedExecutionException e)
+         {
+            // Shed exchanges which the load shedding executor could not 
+            // take (@see LoadSheddingPolicy#shed) are closed
+            Httpd.Log(LogLevel.DEBUG, "NIO exchange rejected", e);
+            ex.close();
+         }
+         catch (Throwable t)
+         {
+            Httpd.Log(LogLevel.ERROR, "NIO dispatch failed", t);
+            ex.close();
+         }
+      }
+   }
+
+   private void _handle(NioHttpContext context, NioHttpExchange ex)
+   //--------------------------------------------------------------
+   {
+      try
+      {
+         List<Filter> filters = new ArrayList<Filter>();
+         Authenticator authenticator = context.getAuthenticator();
+         if (authenticator != null)
+            filters.add(new AuthenticationFilter(authenticator));
+         filters.addAll(context.getFilters());
+         new Filter.Chain(filters, context.getHandler()).doFilter(ex);
+      }
+      catch (Throwable t)
+      {
+         Httpd.Log(LogLevel.ERROR, "NIO exchange failed", t);
+         if (ex.getResponseCode() < 0)
+         {
+            try
+            {
+               ex.getResponseHeaders().set("Connection", "close");
+               ex.sendResponseHeaders(Http.HTTP_INTERNALERROR, -1);
+            }
+            catch (Throwable tt)
+            {
+            }
+         }
+         ex.close();
+      }
+   }
+
+   /**
+    * Called by an exchange when it completes. Closes the connection or
+    * returns it to its event loop (after dispatching any pipelined request
+    * already in the connection buffer).
+    */
+   protected void onExchangeComplete(NioHttpExchange ex,
+                                     NioConnection connection,
+                                     boolean isKeepAlive)
+   //---------------------------------------------------------
+   {
+      try
+      {
+         if ( (! isKeepAlive) || (m_isStopping) || (connection.isClosed()) )
+         {
+            connection.close();
+            return;
+         }
+         connection.m_requests++;
+         connection.m_lastActive = System.currentTimeMillis();
+         NioConnection.RequestHead head = null;
+         try
+         {
+            head = connection.tryTakeHead();
+         }
+         catch (NioConnection.HeadException e)
+         {
+            connection.sendError(e.getCode());
+            connection.close();
+            return;
+         }
+         catch (IOException e)
+         {
+            connection.close();
+            return;
+         }
+         if (head != null)
+         {
+            dispatch(connection, head);
+            return;
+         }
+         connection.releaseIfEmpty();
+         try
+         {
+            connection.getChannel().configureBlocking(false);
+         }
+         catch (IOException e)
+         {
+            connection.close();
+            return;
+         }
+         connection.m_loop.register(connection);
+      }
+      finally
+      {
+         connection.endExchange();
+         m_exchanges.decrementAndGet();
+         if (m_isStopping)
+            synchronized (m_lock) { m_lock.notifyAll(); }
+      }
+   }
+
+   /**
+    * Runs the context Authenticator before the filters and handler.
+    */
+   private class AuthenticationFilter extends Filter
+   //===============================================
+   {
+      private Authenticator m_authenticator;
+
+      AuthenticationFilter(Authenticator authenticator)
+      //-----------------------------------------------
+      {
+         m_authenticator = authenticator;
+      }
+
+      public String description() { return "Authentication filter"; }
+
+      public void doFilter(HttpExchange ex, Chain chain) throws IOException
+      //-------------------------------------------------------------------
+      {
+         Authenticator.Result result = m_authenticator.authenticate(ex);
+         if (result instanceof Authenticator.Success)
+         {
+            ((NioHttpExchange) ex).setPrincipal(
+                           ((Authenticator.Success) result).getPrincipal());
+            chain.doFilter(ex);
+         }
+         else if (result instanceof Authenticator.Retry)
+         {
+            ex.sendResponseHeaders(((Authenticator.Retry) result).getResponseCode(),
+                                   -1);
+            ex.close();
+         }
+         else
+         {
+            int code = (result instanceof Authenticator.Failure)
+                     ? ((Authenticator.Failure) result).getResponseCode()
+                     : Http.HTTP_UNAUTHORISED;
+            ex.sendResponseHeaders(code, -1);
+            ex.close();
+         }
+      }
+   }
+
+   /**
+    * A selector thread which reads request heads from non-blocking
+    * connections.
+    */
+   protected class EventLoop extends Thread
+   //======================================
+   {
+      protected Selector                              m_selector;
+
+      protected volatile boolean                      m_isRunning = true;
+
+      private ConcurrentLinkedQueue<NioConnection>    m_pending   =
+                                       new ConcurrentLinkedQueue<NioConnection>();
+
+      EventLoop(int index) throws IOException
+      //-------------------------------------
+      {
+         super("Httpd:NioEventLoop:" + m_address.getPort() + ":" + index);
+         setDaemon(true);
+         m_selector = Selector.open();
+      }
+
+      protected void register(NioConnection connection)
+      //-----------------------------------------------
+      {
+         m_pending.offer(connection);
+         m_selector.wakeup();
+      }
+
+      @Override
+      public void run()
+      //---------------
+      {
+         long lastIdleCheck = System.currentTimeMillis();
+         List<NioConnection> ready = new ArrayList<NioConnection>();
+         List<NioConnection.RequestHead> heads =
+                                 new ArrayList<NioConnection.RequestHead>();
+         while (m_isRunning)
+         {
+            try
+            {
+               NioConnection connection;
+               while ( (connection = m_pending.poll()) != null)
+               {
+                  if (m_isStopping)
+                  {
+                     connection.close();
+                     continue;
+                  }
+                  try
+                  {
+                     connection.getChannel().register(m_selector,
+                                                      SelectionKey.OP_READ,
+                                                      connection);
+                  }
+                  catch (IOException e)
+                  {
+                     connection.close();
+                  }
+               }
+               m_selector.select(1000);
+               Iterator<SelectionKey> it = m_selector.selectedKeys().iterator();
+               while (it.hasNext())
+               {
+                  SelectionKey key = it.next();
+                  it.remove();
+                  connection = (NioConnection) key.attachment();
+                  if (! key.isValid()) continue;
+                  try
+                  {
+                     if (connection.readAvailable() < 0)
+                     {
+                        key.cancel();
+                        connection.close();
+                        continue;
+                     }
+                     NioConnection.RequestHead head = connection.tryTakeHead();
+                     if (head != null)
+                     {
+                        key.cancel();
+                        ready.add(connection);
+                        heads.add(head);
+                     }
+                  }
+                  catch (NioConnection.HeadException e)
+                  {
+                     key.cancel();
+                     connection.sendError(e.getCode());
+                     connection.close();
+                  }
+                  catch (IOException e)
+                  {
+                     key.cancel();
+                     connection.close();
+                  }
+               }
+               if (ready.size() > 0)
+               {
+                  m_selector.selectNow();
+                  for (int i=0; i<ready.size(); i++)
+                  {
+                     connection = ready.get(i);
+                     try
+                     {
+                        connection.getChannel().configureBlocking(true);
+                     }
+                     catch (IOException e)
+                     {
+                        connection.close();
+                        continue;
+                     }
+                     dispatch(connection, heads.get(i));
+                  }
+                  ready.clear();
+                  heads.clear();
+               }
+               long now = System.currentTimeMillis();
+               if ( (m_isStopping) || (now - lastIdleCheck >= 1000) )
+               {
+                  lastIdleCheck = now;
+                  _closeIdle(now);
+               }
+            }
+            catch (Throwable t)
+            {
+               if (m_isRunning)
+                  Httpd.Log(LogLevel.ERROR, "NIO event loop error", t);
+            }
+         }
+         for (SelectionKey key : m_selector.keys())
+            ((NioConnection) key.attachment()).close();
+         try { m_selector.close(); } catch (Exception e) {}
+      }
+
+      private void _closeIdle(long now)
+      //-------------------------------
+      {
+         long timeout = m_engine.getIdleTimeout();
+         for (SelectionKey key : m_selector.keys())
+         {
+            NioConnection connection = (NioConnection) key.attachment();
+            if ( (! key.isValid()) || (connection == null) ) continue;
+            if ( ( (m_isStopping) && (! connection.hasBufferedData()) ) ||
+                 (now - connection.m_lastActive > timeout) )
+            {
+               key.cancel();
+               connection.close();
+            }
+         }
+         // Connections in an exchange are not registered with the selector
+         long writeTimeout = m_engine.getWriteTimeout();
+         if (writeTimeout <= 0) return;
+         for (NioConnection connection : m_connections)
+         {
+            if ( (connection.m_loop == this) && 
+                 (connection.isWriteStalled(now, writeTimeout)) )
+            {
+               Httpd.Log(LogLevel.DEBUG, "Closing stalled connection " + 
+                         connection.getChannel(), null);
+               connection.abort();
+            }
+         }
+      }
+   }
+}
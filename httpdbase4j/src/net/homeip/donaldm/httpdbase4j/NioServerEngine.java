@@ -0,0 +1,166 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * A server engine using a native NIO HTTP/1.1 implementation
+ * (@see NioHttpServer).<br>
+ * A single acceptor thread hands accepted connections round robin to a
+ * number of selector event loops (by default one per CPU core). The event
+ * loops wait for and parse request headers; the exchange is then processed
+ * by the server executor using blocking I/O on the connection after which
+ * the connection is returned to its event loop to wait for the next
+ * request (or is closed). Connection read buffers are pooled and are only
+ * held while a request is being read or processed.<br>
+ * HTTPS is not supported by this engine; HTTPS servers are created using
+ * the JdkServerEngine.
+ * Usage:<br>
+ * <code>
+ * httpd.setServerEngine(new NioServerEngine());
+ * httpd.start(8088, "/");
+ * </code>
+ * @see ServerEngine
+ * @see Httpd#setServerEngine
+ * @author Donald Munro
+ */
+public class NioServerEngine implements ServerEngine
+//==================================================
+{
+   protected int              m_eventLoops    = 0;
+
+   protected long             m_idleTimeout   = 30000;
+
+   protected long             m_writeTimeout  = 30000;
+
+   protected int              m_maxHeaderSize = 65536;
+
+   /**
+    * Create a NioServerEngine with one event loop per CPU core.
+    */
+   public NioServerEngine()
+   //----------------------
+   {
+   }
+
+   /**
+    * Create a NioServerEngine.
+    * @param eventLoops The number of selector event loops. If &lt;= 0 then
+    * one event loop per CPU core is used.
+    */
+   public NioServerEngine(int eventLoops)
+   //------------------------------------
+   {
+      m_eventLoops = eventLoops;
+   }
+
+   /**
+    * @return The number of selector event loops used by servers created by
+    * this engine.
+    */
+   public int getEventLoops()
+   //------------------------
+   {
+      return (m_eventLoops > 0) ? m_eventLoops
+                                : Runtime.getRuntime().availableProcessors();
+   }
+
+   /**
+    * Sets the time after which idle connections are closed. Httpd sets this
+    * from its keep-alive timeout when it is started.
+    * @param idleTimeout The timeout in milliseconds
+    * @see Httpd#setKeepAliveTimeout
+    */
+   public void setIdleTimeout(long idleTimeout) { m_idleTimeout = idleTimeout; }
+
+   /**
+    * @return The time in milliseconds after which idle connections are
+    * closed.
+    */
+   public long getIdleTimeout() { return m_idleTimeout; }
+
+   /**
+    * Sets the time after which a connection is closed if writing a response
+    * to it makes no progress (eg because the client has stopped reading).
+    * Checked by the event loops about once a second.
+    * @param writeTimeout The timeout in milliseconds or 0 to wait forever
+    */
+   public void setWriteTimeout(long writeTimeout) { m_writeTimeout = writeTimeout; }
+
+   /**
+    * @return The time in milliseconds after which a stalled response write
+    * is aborted.
+    */
+   public long getWriteTimeout() { return m_writeTimeout; }
+
+   /**
+    * Sets the maximum size of the request line and headers. Requests with
+    * larger headers are rejected with a 431 response.
+    * @param maxHeaderSize The maximum header size in bytes
+    */
+   public void setMaxHeaderSize(int maxHeaderSize) { m_maxHeaderSize = maxHeaderSize; }
+
+   /**
+    * @return The maximum size of the request line and headers.
+    */
+   public int getMaxHeaderSize() { return m_maxHeaderSize; }
+
+   /**
+    * @return The pool of connection read buffers (the shared BufferPool 
+    * @see BufferPool#getDefault).
+    */
+   public BufferPool getBufferPool() { return BufferPool.getDefault(); }
+
+   /**
+    * Creates a single NioHttpServer with <i>dispatchers</i> event loops if
+    * dispatchers is greater than 1, otherwise with the number of event loops
+    * specified when the engine was created.
+    *  @inheritDoc
+    */
+   public List<HttpServer> createServers(InetSocketAddress address,
+                                         int backlog, int dispatchers,
+                                         HttpsConfigurator configurator)
+          throws IOException
+   //-----------------------------------------------------------------
+   {
+      if (configurator != null)
+      {
+         Httpd.Log(LogLevel.INFO, "HTTPS is not supported by the NIO server " +
+                   "engine. Using the JDK server engine", null);
+         return new JdkServerEngine().createServers(address, backlog,
+                                                    dispatchers, configurator);
+      }
+      int loops = (dispatchers > 1) ? dispatchers : getEventLoops();
+      NioHttpServer server = new NioHttpServer(this, loops);
+      server.bind(address, backlog);
+      List<HttpServer> servers = new ArrayList<HttpServer>();
+      servers.add(server);
+      return servers;
+   }
+}
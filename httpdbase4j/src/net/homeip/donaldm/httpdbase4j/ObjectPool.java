@@ -0,0 +1,222 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free pool of reusable objects (@see BufferPool, @see InflaterPool).
+ * Each thread caches one free object, further free objects are kept in a
+ * global free list (up to a maximum number) so that any number of threads
+ * can acquire and release objects in parallel without locking. Threads
+ * which only run a single task (@see VirtualThreadExecutor#isTaskThread)
+ * do not cache an object as it would never be reused.<br>
+ * Subclasses create new objects (@see #create) and may reset objects before
+ * they are reused (@see #recycle) and free the resources of objects which
+ * are discarded (@see #destroy).<br>
+ * An object must not be used after it has been released.
+ * @author Donald Munro
+ */
+abstract public class ObjectPool<T>
+//=================================
+{
+   static private class Slot<T>
+   //==========================
+   {
+      T m_item;
+   }
+
+   protected int                       m_maxFree     = 64;
+
+   private ConcurrentLinkedQueue<T>    m_free        = new ConcurrentLinkedQueue<T>();
+
+   private AtomicInteger               m_freeCount   = new AtomicInteger(0);
+
+   private ThreadLocal<Slot<T>>        m_local       = new ThreadLocal<Slot<T>>()
+   {
+      @Override
+      protected Slot<T> initialValue() { return new Slot<T>(); }
+   };
+
+   private AtomicLong                  m_acquired    = new AtomicLong(0);
+
+   private AtomicLong                  m_localHits   = new AtomicLong(0);
+
+   private AtomicLong                  m_globalHits  = new AtomicLong(0);
+
+   private AtomicLong                  m_allocated   = new AtomicLong(0);
+
+   private AtomicLong                  m_discarded   = new AtomicLong(0);
+
+   /**
+    * Create an ObjectPool
+    * @param maxFree The maximum number of free objects kept in the global
+    * free list (excluding the objects cached by threads).
+    */
+   protected ObjectPool(int maxFree)
+   //-------------------------------
+   {
+      m_maxFree = maxFree;
+   }
+
+   /**
+    * @return A new object.
+    */
+   abstract protected T create();
+
+   /**
+    * Prepare a released object for reuse. The default does nothing.
+    * @param item The released object
+    * @return false if the object can not be reused (it is then destroyed).
+    */
+   protected boolean recycle(T item) { return true; }
+
+   /**
+    * Free the resources of an object which is removed from the pool. The
+    * default does nothing.
+    * @param item The discarded object
+    */
+   protected void destroy(T item) { }
+
+   /**
+    * Acquire an object.
+    * @return A free object or a new object if there are no free objects.
+    */
+   public T acquire()
+   //----------------
+   {
+      m_acquired.incrementAndGet();
+      Slot<T> local = _local();
+      if ( (local != null) && (local.m_item != null) )
+      {
+         T item = local.m_item;
+         local.m_item = null;
+         m_localHits.incrementAndGet();
+         return item;
+      }
+      T item = m_free.poll();
+      if (item != null)
+      {
+         m_freeCount.decrementAndGet();
+         m_globalHits.incrementAndGet();
+         return item;
+      }
+      m_allocated.incrementAndGet();
+      return create();
+   }
+
+   /**
+    * Return an object to the pool. Objects which cannot be pooled are
+    * destroyed.
+    * @param item The object to release (may be null).
+    */
+   public void release(T item)
+   //-------------------------
+   {
+      if (item == null) return;
+      if (! recycle(item))
+      {
+         _discard(item);
+         return;
+      }
+      Slot<T> local = _local();
+      if ( (local != null) && (local.m_item == null) )
+      {
+         local.m_item = item;
+         return;
+      }
+      if (m_freeCount.incrementAndGet() > m_maxFree)
+      {
+         m_freeCount.decrementAndGet();
+         _discard(item);
+         return;
+      }
+      m_free.offer(item);
+   }
+
+   /**
+    * Destroys and removes all objects in the global free list (objects
+    * cached by threads are discarded when the threads terminate).
+    */
+   public void clear()
+   //-----------------
+   {
+      T item;
+      while ( (item = m_free.poll()) != null)
+      {
+         m_freeCount.decrementAndGet();
+         destroy(item);
+      }
+   }
+
+   /**
+    * @return The number of objects acquired.
+    */
+   public long getAcquireCount() { return m_acquired.get(); }
+
+   /**
+    * @return The number of objects acquired from the acquiring thread's
+    * cache.
+    */
+   public long getThreadLocalHitCount() { return m_localHits.get(); }
+
+   /**
+    * @return The number of objects acquired from the global free list.
+    */
+   public long getGlobalHitCount() { return m_globalHits.get(); }
+
+   /**
+    * @return The number of objects created (ie acquired objects that could
+    * not be reused).
+    */
+   public long getAllocationCount() { return m_allocated.get(); }
+
+   /**
+    * @return The number of released objects destroyed because the free list
+    * was full or they could not be reused.
+    */
+   public long getDiscardCount() { return m_discarded.get(); }
+
+   /**
+    * @return The number of objects in the global free list.
+    */
+   public int getFreeCount() { return m_freeCount.get(); }
+
+   private void _discard(T item)
+   //---------------------------
+   {
+      m_discarded.incrementAndGet();
+      destroy(item);
+   }
+
+   /**
+    * @return The calling thread's cache or null if the thread only runs a
+    * single task.
+    */
+   private Slot<T> _local()
+   //----------------------
+   {
+      if (VirtualThreadExecutor.isTaskThread(Thread.currentThread()))
+         return null;
+      return m_local.get();
+   }
+}
@@ -0,0 +1,304 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * Precompresses the resources served by an Httpd when the server starts so
+ * that the gzip and deflate variants are already in the disk cache (@see
+ * DiskCache) when they are first requested. The Httpd walks its resources
+ * (@see Httpd#onPrecompress) and submits a request for each one which is
+ * compressed on a pool of worker threads. Resources smaller than the minimum
+ * size, resources which are not served directly by the Httpd (eg templates)
+ * and resources which are not of a compressible content type are skipped.
+ * <br>
+ * The progress counters can be used to monitor a precompression which runs
+ * in the background.
+ * @see Httpd#setPrecompression
+ * @author Donald Munro
+ */
+public class Precompressor
+//========================
+{
+   /**
+    * The encodings for which variants are created.
+    */
+   static public String[]  ENCODINGS = { "gzip", "deflate" };
+
+   protected Httpd               m_httpd      = null;
+
+   protected int                 m_threads    = 1;
+
+   protected long                m_minSize    = 1024;
+
+   private ThreadPoolExecutor    m_executor   = null;
+
+   private volatile boolean      m_isCancelled = false;
+
+   private volatile long         m_startTime  = 0;
+
+   private volatile long         m_endTime    = 0;
+
+   private AtomicLong            m_submitted  = new AtomicLong(0);
+
+   private AtomicLong            m_completed  = new AtomicLong(0);
+
+   private AtomicLong            m_skipped    = new AtomicLong(0);
+
+   private AtomicLong            m_variants   = new AtomicLong(0);
+
+   private AtomicLong            m_failed     = new AtomicLong(0);
+
+   private AtomicLong            m_bytesIn    = new AtomicLong(0);
+
+   private AtomicLong            m_bytesOut   = new AtomicLong(0);
+
+   /**
+    * Create a Precompressor.
+    * @param httpd The server whose resources are precompressed
+    * @param threads The number of worker threads (&lt;= 0 for the number of
+    * available processors)
+    * @param minSize The minimum size of a resource to precompress
+    */
+   public Precompressor(Httpd httpd, int threads, long minSize)
+   //----------------------------------------------------------
+   {
+      m_httpd = httpd;
+      m_threads = (threads <= 0) ? Runtime.getRuntime().availableProcessors()
+                                 : threads;
+      m_minSize = minSize;
+   }
+
+   public int getThreads() { return m_threads; }
+
+   public long getMinSize() { return m_minSize; }
+
+   /**
+    * @return The number of resources submitted.
+    */
+   public long getSubmittedCount() { return m_submitted.get(); }
+
+   /**
+    * @return The number of submitted resources processed (including skipped
+    * resources).
+    */
+   public long getCompletedCount() { return m_completed.get(); }
+
+   /**
+    * @return The number of resources skipped as they are too small, not
+    * compressible or not served directly by the Httpd.
+    */
+   public long getSkippedCount() { return m_skipped.get(); }
+
+   /**
+    * @return The number of compressed variants created.
+    */
+   public long getVariantCount() { return m_variants.get(); }
+
+   /**
+    * @return The number of variants which could not be created.
+    */
+   public long getFailedCount() { return m_failed.get(); }
+
+   /**
+    * @return The total (unencoded) size of the compressed resources.
+    */
+   public long getBytesIn() { return m_bytesIn.get(); }
+
+   /**
+    * @return The total size of the created variants.
+    */
+   public long getBytesOut() { return m_bytesOut.get(); }
+
+   /**
+    * @return true once all submitted resources have been processed (or the
+    * precompression was cancelled).
+    */
+   public boolean isComplete() { return (m_endTime > 0); }
+
+   public boolean isCancelled() { return m_isCancelled; }
+
+   /**
+    * @return The elapsed time of the precompression in milliseconds.
+    */
+   public long getElapsed()
+   //----------------------
+   {
+      if (m_startTime == 0) return 0;
+      return ( (m_endTime > 0) ? m_endTime : System.currentTimeMillis() ) -
+             m_startTime;
+   }
+
+   /**
+    * Walks the server resources (@see Httpd#onPrecompress) and compresses
+    * them, returning once all resources have been compressed.
+    */
+   public void run()
+   //---------------
+   {
+      m_startTime = System.currentTimeMillis();
+      final AtomicInteger count = new AtomicInteger(0);
+      m_executor = new ThreadPoolExecutor(m_threads, m_threads, 0L,
+                             TimeUnit.MILLISECONDS,
+                             new ArrayBlockingQueue<Runnable>(m_threads * 64),
+                             new ThreadFactory()
+      {
+         public Thread newThread(Runnable r)
+         {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            t.setName("Httpd:precompress:" + count.incrementAndGet());
+            return t;
+         }
+      }, new ThreadPoolExecutor.CallerRunsPolicy());
+      try
+      {
+         m_httpd.onPrecompress(this);
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(LogLevel.ERROR, "Precompressing resources", e);
+      }
+      finally
+      {
+         m_executor.shutdown();
+         try
+         {
+            while (! m_executor.awaitTermination(1, TimeUnit.SECONDS))
+               if (m_isCancelled) m_executor.shutdownNow();
+         }
+         catch (InterruptedException e)
+         {
+            m_executor.shutdownNow();
+            Thread.currentThread().interrupt();
+         }
+         m_endTime = System.currentTimeMillis();
+      }
+      if (m_httpd.m_isVerbose)
+         Httpd.Log(LogLevel.INFO, toString(), null);
+   }
+
+   /**
+    * Stops the precompression. Resources which are being compressed are
+    * completed.
+    */
+   public void cancel()
+   //------------------
+   {
+      m_isCancelled = true;
+   }
+
+   /**
+    * Submit a resource to be compressed (called by Httpd#onPrecompress). If
+    * all the worker threads are busy the resource may be compressed on the
+    * calling thread.
+    * @param request A request for the resource (@see
+    * Request#Request(Httpd, java.net.URI))
+    */
+   public void submit(final Request request)
+   //---------------------------------------
+   {
+      if ( (m_isCancelled) || (m_executor == null) ) return;
+      m_submitted.incrementAndGet();
+      m_executor.execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               if (! m_isCancelled)
+                  _precompress(request);
+            }
+            catch (Exception e)
+            {
+               m_failed.incrementAndGet();
+               Httpd.Log(LogLevel.DEBUG, "Precompressing " +
+                         request.getURI(), e);
+            }
+            finally
+            {
+               m_completed.incrementAndGet();
+            }
+         }
+      });
+   }
+
+   /**
+    * @param request A request for a resource
+    * @return true if the resource should be precompressed.
+    */
+   protected boolean isCompressible(Request request)
+   //-----------------------------------------------
+   {
+      if ( (! request.exists()) || (request.isDirectory()) || 
+           (request.getSize() < m_minSize) )
+         return false;
+      if (request.getHandler() != m_httpd) return false;
+      String mime = Http.getMimeType(request);
+      if (mime == null) return false;
+      mime = mime.toLowerCase();
+      return ( (mime.startsWith("text/")) || (mime.endsWith("javascript")) ||
+               (mime.endsWith("json")) || (mime.endsWith("xml")) ||
+               (mime.endsWith("+xml")) || (mime.endsWith("css")) );
+   }
+
+   private void _precompress(Request request)
+   //----------------------------------------
+   {
+      if (! isCompressible(request))
+      {
+         m_skipped.incrementAndGet();
+         return;
+      }
+      long size = request.getSize();
+      for (String encoding : ENCODINGS)
+      {
+         long len = request.precompress(encoding);
+         if (len < 0)
+            m_failed.incrementAndGet();
+         else if (len > 0)
+         {
+            m_variants.incrementAndGet();
+            m_bytesIn.addAndGet(size);
+            m_bytesOut.addAndGet(len);
+         }
+      }
+   }
+
+   @Override
+   public String toString()
+   //----------------------
+   {
+      return "Precompressor{submitted=" + getSubmittedCount() + ", completed=" +
+             getCompletedCount() + ", skipped=" + getSkippedCount() +
+             ", variants=" + getVariantCount() + ", failed=" +
+             getFailedCount() + ", bytesIn=" + getBytesIn() + ", bytesOut=" +
+             getBytesOut() + ", elapsed=" + getElapsed() + "ms}";
+   }
+}
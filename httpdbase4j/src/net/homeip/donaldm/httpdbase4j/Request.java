@@ -21,14 +21,14 @@ package net.homeip.donaldm.httpdbase4j;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -41,6 +41,7 @@ import java.util.StringTokenizer;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
 import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
@@ -127,8 +128,42 @@ abstract public class Request implements DirItemInterface
    protected String           m_eTag = null;
 
    protected File             m_cacheFile = null;
+
+   /**
+    * true if the encoding of the response was negotiated from the
+    * Accept-Encoding request header by getContent (the response then 
+    * includes a Vary: Accept-Encoding header).
+    */
+   protected boolean          m_isNegotiated = false;
+
+   /**
+    * Encoded content found in (or added to) the Httpd ContentCache by
+    * getContent or null if the encoded content is in m_cacheFile.
+    */
+   protected ByteBuffer       m_content = null;
+
+   /**
+    * The disk cache file acquired by getContent (@see DiskCache#acquire)
+    * which is released by releaseContent.
+    */
+   private File               m_acquiredFile = null;
+
+   /**
+    * Temporary file created by getContent (registered with the Httpd so that
+    * it can be removed when the server is drained).
+    */
+   private File               m_tempFile = null;
    
    static protected File      m_cacheDir;
+
+   /**
+    * The content codings and file extensions of precompressed sidecar files
+    * (eg app.js.br or app.js.gz for app.js) in order of preference. A sidecar
+    * accepted by the client is served instead of compressing the resource
+    * (@see getSidecarFile).
+    */
+   static public String[][]   SIDECARS = { { "br", ".br" }, { "zstd", ".zst" },
+                                           { "gzip", ".gz" } };
    
    static
    {
@@ -209,6 +244,28 @@ abstract public class Request implements DirItemInterface
 
    }
 
+   /**
+    * Create a request for a resource which did not originate from a client
+    * (eg to precompress the resource when the server starts @see 
+    * Precompressor). The request is a GET without any request headers.
+    * @param httpd The Httpd instance serving the resource.
+    * @param uri The request URI of the resource.
+    */
+   protected Request(Httpd httpd, URI uri)
+   //-------------------------------------
+   {
+      m_httpd = httpd;
+      m_ex = null;
+      m_methodString = "GET";
+      m_method = HTTP_METHOD.GET;
+      m_isGet = true;
+      m_uri = uri.normalize();
+      m_path = m_uri.getPath();
+      if (m_path.startsWith("/")) m_path = m_path.substring(1);
+      m_requestHeaders = new CloneableHeaders();
+      m_getParameters = new CloneableHeaders();
+   }
+
    public Request(Request request)
    //-----------------------------
    {
@@ -382,12 +439,339 @@ abstract public class Request implements DirItemInterface
       return getStream(true);
    }
    
+   /**
+    * Return the local file containing the resource contents ie the file
+    * read by getStream(isEncoded). Used to send the contents without copying
+    * them through the heap (@see HttpResponse#sendFile).
+    * @param isEncoded If true return the encoded (cached) file if the 
+    * resource is encoded otherwise the unencoded file.
+    * @return The file or null if the contents are not available as a local
+    * file (eg for resources in an archive).
+    */
+   public java.io.File getFile(boolean isEncoded)
+   //--------------------------------------------
+   {
+      return null;
+   }
+
+   /**
+    * Return a stream of the unencoded resource contents starting at an 
+    * offset. The default implementation skips the unencoded stream to the
+    * offset, which for compressed resources (eg deflated archive entries) 
+    * means decompressing and discarding the skipped bytes. Subclasses that
+    * can seek (eg FileRequest) should overide this method.
+    * @param offset The offset of the first byte to return
+    * @return A stream of the resource contents from offset or null if the
+    * resource could not be opened or is shorter than offset.
+    */
+   public InputStream getStream(long offset)
+   //---------------------------------------
+   {
+      InputStream is = getStream(false);
+      if ( (is == null) || (offset <= 0) ) return is;
+      try
+      {
+         long remaining = offset;
+         while (remaining > 0)
+         {
+            long n = is.skip(remaining);
+            if (n <= 0)
+            {
+               if (is.read() < 0) 
+               {
+                  is.close();
+                  return null;
+               }
+               n = 1;
+            }
+            remaining -= n;
+         }
+         return is;
+      }
+      catch (IOException e)
+      {
+         Httpd.Log(Httpd.LogLevel.ERROR, "Seeking to " + offset + " in " + 
+                   getAbsolutePath(), e);
+         try { is.close(); } catch (Exception ee) {}
+         return null;
+      }
+   }
+
+   /**
+    * @return true if byte range requests (@see ByteRange) can be served for
+    * this resource. Defaults to false.
+    */
+   public boolean isRangeSupported()
+   //-------------------------------
+   {
+      return false;
+   }
+
+   /**
+    * @return true if this is a GET request with a Range header for a 
+    * resource that supports ranges and that satisfies any If-Range 
+    * condition ie a partial response should be sent. Range requests are not
+    * compressed. An If-Range value that is not a valid HTTP date is
+    * compared to the entity tag whether or not it is quoted.
+    */
+   public boolean isRangeRequest()
+   //-----------------------------
+   {
+      if ( (m_method != HTTP_METHOD.GET) || (! isRangeSupported()) ) 
+         return false;
+      if (m_requestHeaders.getFirst("Range") == null) return false;
+      String ifRange = m_requestHeaders.getFirst("If-Range");
+      if (ifRange == null) return true;
+      ifRange = ifRange.trim();
+      if (ifRange.startsWith("W/")) return false;
+      Date ifDate = (ifRange.startsWith("\"")) ? null : Http.getDate(ifRange);
+      if (ifDate == null)
+      {
+         String etag = getETag(false);
+         return ( (etag != null) && 
+                  (ifRange.replaceAll("\"", "").trim().compareTo(etag.trim()) == 0) );
+      }
+      Date date = getDate();
+      return ( (date != null) && 
+               (ifDate.getTime()/1000 == date.getTime()/1000) );
+   }
+
+   /**
+    * @param length The length of the unencoded resource
+    * @return The byte ranges requested (@see ByteRange#parse) or null if 
+    * this is not a range request (@see isRangeRequest) or the Range header is
+    * invalid.
+    */
+   public List<ByteRange> getRanges(long length)
+   //-------------------------------------------
+   {
+      if (! isRangeRequest()) return null;
+      return ByteRange.parse(m_requestHeaders.getFirst("Range"), length);
+   }
+
+   /**
+    * Return the content to send from the Httpd ContentCache (@see 
+    * Httpd#setContentCache) if it is cached ie the encoded content if the
+    * response is encoded (@see getContent) otherwise the unencoded content
+    * (@see getUnencodedContentBuffer).
+    * @return A buffer positioned at the start of the contents (which may be
+    * used by the calling thread only) or null if the content is not cached.
+    */
+   public ByteBuffer getContentBuffer()
+   //----------------------------------
+   {
+      if (m_encoding != null)
+         return (m_content == null) ? null : m_content.duplicate();
+      return getUnencodedContentBuffer();
+   }
+
+   /**
+    * Return the unencoded content from the Httpd ContentCache, caching it if 
+    * it is admitted. The default returns null ie unencoded content is not
+    * cached (ArchiveRequest overides this).
+    * @return A buffer positioned at the start of the contents or null if the
+    * content is not cached.
+    */
+   protected ByteBuffer getUnencodedContentBuffer()
+   //----------------------------------------------
+   {
+      return null;
+   }
+
+   /**
+    * Return the key identifying a variant of this resource in the Httpd
+    * ContentCache. The default returns null ie the resource is not cached.
+    * @param variant The encoding (gzip or deflate) or null for the unencoded
+    * content.
+    * @return The cache key or null if the resource should not be cached.
+    */
+   protected ContentCache.Key getContentCacheKey(String variant)
+   //-----------------------------------------------------------
+   {
+      return null;
+   }
+
+   /**
+    * Return a precompressed sidecar of this resource ie a sibling resource 
+    * with the same name plus a sidecar extension (@see SIDECARS). The 
+    * default returns null ie sidecars are not supported.
+    * @param extension The sidecar extension eg .gz
+    * @return The sidecar or null if there is no sidecar.
+    */
+   protected java.io.File getSidecarFile(String extension)
+   //-----------------------------------------------------
+   {
+      return null;
+   }
+
+   /**
+    * Select an encoded variant of this resource which is available without
+    * compressing the resource (eg the stored deflate data of an archive 
+    * entry, @see ArchiveRequest). Once selected getStream(true) and 
+    * getContentLength return the encoded variant. The default returns false.
+    * @param coding The content coding (gzip or deflate) or null to clear
+    * the selected variant
+    * @return true if the variant was selected.
+    */
+   protected boolean selectEncodedVariant(String coding)
+   //---------------------------------------------------
+   {
+      return false;
+   }
+
+   /**
+    * @return The sidecar for a content coding if it exists and is not older
+    * than the resource or null.
+    */
+   private java.io.File _getSidecar(String coding)
+   //---------------------------------------------
+   {
+      for (String[] sidecar : SIDECARS)
+      {
+         if (sidecar[0].compareTo(coding) != 0) continue;
+         java.io.File f = getSidecarFile(sidecar[1]);
+         if ( (f == null) || (! f.isFile()) ) return null;
+         Date date = getDate();
+         if ( (date != null) && (f.lastModified() < date.getTime()) )
+            return null; // Stale
+         return f;
+      }
+      return null;
+   }
+
+   /**
+    * @return true if coding is listed in the (Accept-Encoding) encodings
+    * without a quality of zero.
+    */
+   static private boolean _isAccepted(String[] encodings, String coding)
+   //-------------------------------------------------------------------
+   {
+      for (String encoding : encodings)
+      {
+         String[] params = encoding.split(";");
+         if (params[0].trim().compareTo(coding) != 0) continue;
+         for (int i=1; i<params.length; i++)
+         {
+            String param = params[i].trim();
+            if (! param.startsWith("q=")) continue;
+            try
+            {
+               if (Double.parseDouble(param.substring(2).trim()) <= 0)
+                  return false;
+            }
+            catch (NumberFormatException e) {}
+         }
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Select the most preferred precompressed sidecar (@see SIDECARS) 
+    * accepted by the client. The sidecar is served as is (from the 
+    * ContentCache if it is cached). Sidecars are cached under the path,
+    * modification time and size of the sidecar itself so that a sidecar
+    * which is regenerated without changing the resource is not served
+    * from the cache.
+    * @return true if a sidecar was selected.
+    */
+   private boolean _selectSidecar(String[] encodings, ContentCache contentCache)
+   //---------------------------------------------------------------------------
+   {
+      for (String[] sidecar : SIDECARS)
+      {
+         if (! _isAccepted(encodings, sidecar[0])) continue;
+         java.io.File f = _getSidecar(sidecar[0]);
+         if (f == null) continue;
+         m_encoding = sidecar[0];
+         m_cacheFile = f;
+         if (contentCache != null)
+            _cacheEncoded(contentCache, new ContentCache.Key(
+                              f.getAbsolutePath(), m_encoding, 
+                              f.lastModified(), f.length()));
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Add the encoded content (getStream(true)) to the ContentCache if it is
+    * admitted and set m_content to the cached content.
+    * @param key The key of the encoded content or null if it is not cached
+    */
+   private void _cacheEncoded(ContentCache contentCache, ContentCache.Key key)
+   //-------------------------------------------------------------------------
+   {
+      if ( (contentCache == null) || (key == null) ) return;
+      m_content = contentCache.get(key);
+      long length = getContentLength();
+      if ( (m_content != null) || (! contentCache.isAdmissible(key, length)) )
+         return;
+      InputStream is = getStream(true);
+      if (is == null) return;
+      try
+      {
+         m_content = contentCache.put(key, is, length);
+      }
+      catch (IOException e)
+      {
+         Httpd.Log(Httpd.LogLevel.DEBUG, "Could not cache " + m_uri.getPath(), 
+                   e);
+      }
+      finally
+      {
+         try { is.close(); } catch (Exception e) {}
+      }
+   }
+
    /**
     * @param refresh If true recalculate the tag hash even if it has already
     * been calculated, if false reuse the cached value
     * @return The ETag cacheing hash for this request
     */
    abstract public String getETag(boolean refresh);
+
+   /**
+    * Calculate the ETag for the files making up this request using the
+    * Httpd ETag strategy (@see Httpd#setETagStrategy).
+    * @param key A key uniquely identifying the resource (eg its path) used
+    * to memoize content hashes
+    * @param files The files making up the resource
+    * @return The ETag
+    */
+   protected String eTag(String key, DirItemInterface... files)
+   //----------------------------------------------------------
+   {
+      return eTag(key, Http.metadataETag(files), files);
+   }
+
+   /**
+    * Calculate the ETag for the files making up this request using the
+    * Httpd ETag strategy (@see Httpd#setETagStrategy).
+    * @param key A key uniquely identifying the resource (eg its path) used
+    * to memoize content hashes
+    * @param validator The metadata ETag of the files (which is also used to
+    * validate memoized content hashes) eg Http.metadataETag qualified by a
+    * checksum of the content
+    * @param files The files making up the resource
+    * @return The ETag
+    */
+   protected String eTag(String key, String validator, 
+                         DirItemInterface... files)
+   //----------------------------------------------------------
+   {
+      if ( (m_httpd == null) || 
+           (m_httpd.getETagStrategy() == Httpd.ETagStrategy.METADATA) )
+         return validator;
+      ETagCache cache = m_httpd.getETagCache();
+      String etag = cache.get(key, validator);
+      if (etag == null)
+      {
+         etag = Http.eTag(files);
+         cache.put(key, validator, etag);
+      }
+      return etag;
+   }
    
    public boolean checkClientCache()
    //-------------------------
@@ -519,123 +903,251 @@ abstract public class Request implements DirItemInterface
       
    public boolean getContent(long id, HttpHandleable handler)
    //--------------------------------------------------------
+   {  
+      try
+      {
+         return _getContent(id, handler);
+      }
+      finally
+      {
+         // Remove the temporary file unless it is still being used as the
+         // (uncached) content file.
+         if ( (m_tempFile != null) && (! m_tempFile.equals(m_compressedFile))
+              && (! m_tempFile.equals(m_cacheFile)) )
+         {
+            if (m_tempFile.exists()) m_tempFile.delete();
+            m_httpd.removeTempFile(m_tempFile);
+            m_tempFile = null;
+         }
+      }
+   }
+
+   /**
+    * @return The base name of the compressed cache file. Metadata ETags 
+    * (@see Httpd.ETagStrategy) are only unique per resource so the name is
+    * the SHA-1 hash of the request path and the ETag.
+    */
+   private String _cacheFileName(long id)
+   //------------------------------------
+   {
+      if (m_eTag == null) return Long.toString(id);
+      if (m_httpd.getETagStrategy() == Httpd.ETagStrategy.CONTENT_HASH)
+         return m_eTag;
+      String name = Http.sha1(m_uri.getPath() + "\n" + m_eTag);
+      return (name == null) ? Long.toString(id) : name;
+   }
+
+   /**
+    * Compress the unencoded content into a temporary file which is added to 
+    * the disk cache if the request is cacheable. Sets m_cacheFile to the 
+    * compressed file (m_compressedFile and m_tempFile are also set if the
+    * temporary file was not cached and must be deleted by releaseContent).
+    */
+   private void _compress(String name, boolean isGzip, boolean isCacheable,
+                          DiskCache diskCache, byte[] buffer) 
+           throws IOException
+   //----------------------------------------------------------------------
+   {
+      m_compressedFile = (diskCache.isEnabled()) 
+                         ? diskCache.createTempFile("content")
+                         : ( (m_cacheDir == null) ? null
+                             : File.createTempFile("content", ".tmp", 
+                                                   m_cacheDir) );
+      if (m_compressedFile == null) return;
+      m_tempFile = m_compressedFile;
+      m_httpd.addTempFile(m_tempFile);
+      InputStream is = null;
+      OutputStream os = null;
+      try
+      {
+         is = getStream(false);
+         if (is == null) 
+            throw new IOException("Could not open " + m_uri.getPath());
+         if (isGzip)
+            os = new GZIPOutputStream(new FileOutputStream(m_compressedFile), 
+                                      buffer.length);
+         else
+            os = new DeflaterOutputStream(
+                                 new FileOutputStream(m_compressedFile), 
+                                 new Deflater(), buffer.length);
+         while (true)
+         {
+            int cb = is.read(buffer);
+            if (cb == -1) break;
+            os.write(buffer, 0, cb);                     
+         }                           
+         os.close();
+         os = null;
+      }
+      finally
+      {
+         if (is != null)
+            try { is.close(); } catch (Exception e) {}
+         if (os != null) 
+            try { os.close(); } catch (Exception e) {}
+      }
+      if (isCacheable)
+         m_cacheFile = m_acquiredFile = diskCache.put(name, m_compressedFile,
+                                                      true);
+      if (m_cacheFile == null)
+         m_cacheFile = m_compressedFile; // Deleted by releaseContent
+      else
+      {
+         m_httpd.removeTempFile(m_tempFile);
+         m_compressedFile = m_tempFile = null;
+      }
+   }
+
+   /**
+    * Create the compressed variant of this resource in the disk cache (@see
+    * Httpd#setDiskCache) if it is not already cached. Used to precompress 
+    * resources when the server starts (@see Precompressor).
+    * @param encoding The encoding (gzip or deflate)
+    * @return The size of the created variant, 0 if the variant was already
+    * cached or -1 if it could not be created.
+    */
+   public long precompress(String encoding)
+   //---------------------------------------
+   {
+      DiskCache diskCache = m_httpd.getDiskCache();
+      if (! diskCache.isEnabled()) return -1;
+      if (getETag(false) == null) return -1;
+      if (_getSidecar(encoding) != null) return 0;
+      if (selectEncodedVariant(encoding))
+      {
+         selectEncodedVariant(null);
+         return 0;
+      }
+      m_encoding = encoding;
+      String name = _cacheFileName(-1) + "." + encoding;
+      if (diskCache.get(name) != null) return 0;
+      BufferPool pool = BufferPool.getDefault();
+      byte[] buffer = pool.acquire(BufferPool.COPY_SIZE);
+      try
+      {
+         m_cacheFile = null;
+         _compress(name, (encoding.compareTo("gzip") == 0), true, diskCache, 
+                   buffer);
+         return ( (m_cacheFile != null) && (m_tempFile == null) ) 
+                ? m_cacheFile.length() : -1;
+      }
+      catch (IOException e)
+      {
+         Httpd.Log(Httpd.LogLevel.DEBUG, "Precompressing " + m_uri.getPath(), 
+                   e);
+         return -1;
+      }
+      finally
+      {
+         pool.release(buffer);
+         releaseContent();
+         m_encoding = null;
+         m_cacheFile = null;
+      }
+   }
+
+   private boolean _getContent(long id, HttpHandleable handler)
+   //----------------------------------------------------------
    {  
       m_compressedFile = m_cacheFile = null;            
       m_encoding = null;
+      m_content = null;
+      m_isNegotiated = false;
+      selectEncodedVariant(null);
+      if (isRangeRequest())
+         return true;
+      m_isNegotiated = true;
+      // Only content served unmodified by the Httpd is cached or has 
+      // sidecars (handlers such as template handlers generate their own 
+      // content).
+      boolean isStatic = (handler instanceof Httpd);
+      ContentCache contentCache = (isStatic) ? m_httpd.getContentCache() 
+                                             : null;
+      // Sidecars are negotiated from Accept-Encoding alone as the
+      // User-Agent checks in compressEncoding only concern agents which
+      // cannot decode on the fly compressed content.
+      String accept = m_requestHeaders.getFirst("Accept-Encoding");
+      if ( (isStatic) && (accept != null) && 
+           (_selectSidecar(accept.toLowerCase().split(","), contentCache)) )
+         return true;
       String[] encodings = compressEncoding();      
       if ( (encodings.length == 1) && (encodings[0].compareTo("txt") == 0) )
          return true;
-               
-      try
+      String encoding = encodings[0].trim();
+      if ( (contentCache != null) && 
+           ( (encoding.compareTo("gzip") == 0) || 
+             (encoding.compareTo("deflate") == 0) ) )
       {
-         if (m_cacheDir != null)
-            m_compressedFile = File.createTempFile("content", ".tmp", m_cacheDir);
-      }
-      catch (Exception e)
-      {
-         m_compressedFile = null;
+         ContentCache.Key key = getContentCacheKey(encoding);
+         m_content = (key == null) ? null : contentCache.get(key);
+         if (m_content != null)
+         {
+            m_encoding = encoding;
+            return true;
+         }
       }
-      if (m_compressedFile == null)
-         return true;;
-      BufferedInputStream bis = null;
-      BufferedOutputStream bos = null;
-      byte[] buffer = new byte[4096];      
+
+      DiskCache diskCache = m_httpd.getDiskCache();
+      boolean isCacheable = handler.onIsCacheable(-1, m_ex, this);
+      BufferPool pool = BufferPool.getDefault();
+      byte[] buffer = pool.acquire(BufferPool.COPY_SIZE);
       try
       {
          for (int i=0; i<encodings.length; i++)
          {
-            m_encoding = encodings[i];
-            m_cacheFile = new File(m_cacheDir,
-                                 ((m_eTag == null) ? Long.toString(id) : m_eTag)
-                                 + "." + m_encoding);
-            if (handler.onIsCacheable(-1, m_ex, this))
+            m_encoding = encodings[i].trim();
+            boolean isGzip = (m_encoding.compareTo("gzip") == 0);
+            if ( (! isGzip) && (m_encoding.compareTo("deflate") != 0) )
+               continue;
+            if ( (isStatic) && (selectEncodedVariant(m_encoding)) )
             {
-               File f = handler.onGetCachedFile(id, m_ex, this);
-               if ( (f == null) && (m_cacheFile.exists()) )
-               {
-                  m_compressedFile = m_cacheFile;
-                  break;
-               }
-               if (f != null) 
-               {
-                  m_compressedFile = f;
+               if (contentCache != null)
+                  _cacheEncoded(contentCache, getContentCacheKey(m_encoding));
+               return true;
+            }
+            String name = _cacheFileName(id) + "." + m_encoding;
+            if (isCacheable)
+            {
+               m_cacheFile = handler.onGetCachedFile(id, m_ex, this);
+               if (m_cacheFile == null) 
+                  m_cacheFile = m_acquiredFile = diskCache.acquire(name);
+               if (m_cacheFile != null)
                   break;
-               }
             }
-            if (bis == null)
-               bis = new BufferedInputStream(getStream(false));
             try
             {
-               if ( (m_encoding.compareTo("gzip") == 0) && 
-                    (m_compressedFile != null) )
-               {
-                  bos = new BufferedOutputStream(
-                            new GZIPOutputStream(
-                                new FileOutputStream(m_compressedFile)));
-                  while (true)
-                  {
-                     int cb = bis.read(buffer);
-                     if (cb == -1) break;
-                     bos.write(buffer, 0, cb);                     
-                  }                           
-                  bos.close();
-                  bos = null;
-                  break;
-               }
-
-               if ( (m_encoding.compareTo("deflate") == 0) && 
-                    (m_compressedFile != null) )
-               {
-                  bos = new BufferedOutputStream(
-                            new DeflaterOutputStream(
-                                new FileOutputStream(m_compressedFile)));
-                  while (true)
-                  {
-                     int cb = bis.read(buffer);
-                     if (cb == -1) break;
-                     bos.write(buffer, 0, cb);                     
-                  }               
-                  bos.close();
-                  bos = null;
-                  break;
-               }
-               if ( (m_encoding.compareTo("txt") == 0) || 
-                    (m_compressedFile == null) )
-               {               
-                  m_compressedFile = m_cacheFile = null;
-                  return true;
-               }
+               _compress(name, isGzip, isCacheable, diskCache, buffer);
             }
             catch (IOException e)
             {
-               m_compressedFile = null;
+               Httpd.Log(Httpd.LogLevel.ERROR, "Request content encoding", e);
+               m_cacheFile = null;
             }
-            m_cacheFile = null;
+            break;
          }
       }
       catch (Exception e)
       {
          Httpd.Log(Httpd.LogLevel.ERROR, "Request content encoding", e);
+         m_cacheFile = null;
       }
-
       finally
       {
-         if (bis != null)
-            try { bis.close(); } catch (Exception e) {}
-         if (bos != null) 
-            try { bos.close(); } catch (Exception e) {}
+         pool.release(buffer);
       }
-      if (handler.onIsCacheable(-1, m_ex, this))
+      if (m_cacheFile == null)
       {
-         if (m_cacheFile == null) return false;
-         m_cacheFile.delete();
-         m_compressedFile.renameTo(m_cacheFile);
-         m_compressedFile = null;
+         m_encoding = null;
+         return true;
       }
-      else
+      ContentCache.Key key = (contentCache != null) 
+                             ? getContentCacheKey(m_encoding) : null;
+      if (key != null)
       {
-         m_cacheFile = m_compressedFile;
-         //m_cacheFile.deleteOnExit();
+         m_content = contentCache.put(key, m_cacheFile);
+         if ( (m_content != null) && (m_cacheFile.equals(m_tempFile)) )
+            m_cacheFile = m_compressedFile = null; // Served from memory so 
+                                                   // remove the temp file
       }
       return true;
    }
@@ -872,13 +1384,28 @@ abstract public class Request implements DirItemInterface
       return o;
    }
    
-   @Override
-   protected void finalize() throws Throwable
-   //----------------------------------------
+   /**
+    * Releases the resources created by getContent once the response has been
+    * sent ie releases the disk cache file that was sent and deletes the 
+    * temporary compressed file of a response which was not added to the 
+    * cache.
+    */
+   public void releaseContent()
+   //--------------------------
    {
-      super.finalize();
-      if ( (m_cacheFile == m_compressedFile) && (m_cacheFile != null) )
-         m_cacheFile.delete();
+      if (m_acquiredFile != null)
+      {
+         m_httpd.getDiskCache().release(m_acquiredFile);
+         if (m_acquiredFile.equals(m_cacheFile)) m_cacheFile = null;
+         m_acquiredFile = null;
+      }
+      if (m_tempFile != null)
+      {
+         m_tempFile.delete();
+         m_httpd.removeTempFile(m_tempFile);
+         if (m_tempFile.equals(m_cacheFile)) m_cacheFile = null;
+         m_tempFile = m_compressedFile = null;
+      }
    }
 
    @Override
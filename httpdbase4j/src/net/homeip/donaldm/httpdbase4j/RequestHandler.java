@@ -21,12 +21,14 @@ package net.homeip.donaldm.httpdbase4j;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
 
 /**
@@ -61,6 +63,12 @@ abstract public class RequestHandler implements HttpHandler
    static protected String COMBINED_REQUEST_DELIMITER = "!\\+!";
    
    static protected String[] COMBINED_REQUEST_EXTENSIONS = { ".css", ".js" };
+
+   /**
+    * Set while a thread is processing an exchange handed off to a bulkhead
+    * executor to prevent the exchange from being handed off again.
+    */
+   static private ThreadLocal<Boolean> m_isHandedOff = new ThreadLocal<Boolean>();
                            
    /**
     * Create a RequestHandler
@@ -158,12 +166,31 @@ abstract public class RequestHandler implements HttpHandler
    //-------------------------------------------------------------------------
    {
       HttpHandleable handler = request.getHandler(); 
+      HttpdMetrics metrics = m_httpd.getMetrics();
+      long start = System.nanoTime();
       if (! request.getContent(id, handler))
       {
          HttpResponse.internalError(ex, request.getURI(),
                  ex.getRequestHeaders()).send();
          return;
       }
+      start = metrics.record(HttpdMetrics.Phase.COMPRESSION, start);
+      try
+      {
+         _sendResult(request, r, id, etag, ex, handler);
+      }
+      finally
+      {
+         request.releaseContent();
+         metrics.record(HttpdMetrics.Phase.SEND, start);
+      }
+   }
+
+   private void _sendResult(Request request, HttpResponse r, long id, 
+                            String etag, HttpExchange ex, 
+                            HttpHandleable handler)
+   //-------------------------------------------------------------------------
+   {
       long len = request.getContentLength();
       boolean isModified = false;
       HttpResponse userResponse = handler.onServeHeaders(id, ex, request);
@@ -203,9 +230,16 @@ abstract public class RequestHandler implements HttpHandler
       }
       if (request.m_encoding != null)
          r.addHeader("Content-Encoding", request.m_encoding);
-      r.addHeader("Connection", "close");
+      if (request.m_isNegotiated)
+         r.addHeader("Vary", "Accept-Encoding");
+      if ( (! isModified) && (request.isRangeSupported()) )
+         r.addHeader("Accept-Ranges", "bytes");
       if (request.getMethod() == Request.HTTP_METHOD.HEAD)
+      {
+         if (! m_httpd.onKeepAlive(ex, len))
+            r.addHeader("Connection", "close");
          r.sendHeaders(-1);
+      }
       else
       {
          InputStream is = handler.onServeBody(id, ex, request);
@@ -216,26 +250,53 @@ abstract public class RequestHandler implements HttpHandler
             { len = Long.parseLong(s); }
             catch (Exception e)
             { len = -1; }
-            if ( (! isModified) || (len < 0) )
+            if (! isModified)
             {
-               Httpd.Log(LogLevel.ERROR, "Content-Length not set in "
-                       + "header in onGETHeaders.", null);
+               Httpd.Log(LogLevel.ERROR, "onServeBody returned a stream but "
+                       + "onServeHeaders did not return a response.", null);
                HttpResponse.internalError(ex, request.getURI(),
                        ex.getRequestHeaders()).send();
                return;
             }
+            if (len < 0)
+               len = 0; // Unknown length: chunked transfer encoding
+         }
+         else if ( (! isModified) && (request.m_encoding == null) )
+         {
+            List<ByteRange> ranges = request.getRanges(len);
+            if (ranges != null)
+            {
+               _sendRanges(request, r, id, ex, handler, ranges, len);
+               return;
+            }
          }
+         if (! m_httpd.onKeepAlive(ex, len))
+            r.addHeader("Connection", "close");
          if (r.sendHeaders(len))
          {
-            BufferedInputStream bis = null;
+            InputStream content = null;
             boolean ok = false;
             try
             {
-               if (is == null)
+               ByteBuffer cached = (is == null) ? request.getContentBuffer() 
+                                                : null;
+               java.io.File f = ( (is == null) && (cached == null) ) 
+                                ? request.getFile(true) : null;
+               ByteBuffer hot = (f != null) ? m_httpd.getHotFileCache().get(f)
+                                            : cached;
+               if (hot != null)
+                  ok = r.sendBuffer(hot);
+               else if (f != null)
+                  ok = r.sendFile(f);
+               else if (is == null)
                {
-                  bis = new BufferedInputStream(request.getStream());
-                  ok = r.sendData(bis);
+                  content = request.getStream();
+                  ok = r.sendData(content);
                }
+               else if (len == 0)
+                  ok = r.sendChunkedData(is, m_httpd.getChunkedFlushSize(),
+                                         m_httpd.getChunkedFlushInterval(),
+                                         m_httpd.getChunkedFlushOnBlock());
                else
                   ok = r.sendData(is);
                
@@ -247,8 +308,8 @@ abstract public class RequestHandler implements HttpHandler
             }
             finally
             {
-               if (bis != null) try
-               { bis.close(); }
+               if (content != null) try
+               { content.close(); }
                catch (Exception e)
                {}
                if (is != null) try
@@ -261,8 +322,188 @@ abstract public class RequestHandler implements HttpHandler
       }
    }
    
-   /* (non-Javadoc)
+   /**
+    * Handle an exchange. If the exchange was rejected by a full work queue
+    * (@see LoadSheddingPolicy) it is answered with a 503 Service Unavailable.
+    * If the request maps onto a handler with a dedicated executor
+    * (@see Httpd#setHandlerExecutor) it is handed off to that executor, 
+    * otherwise it is passed to handleRequest on the current thread.
     * @see com.sun.net.httpserver.HttpHandler#handle(com.sun.net.httpserver.HttpExchange)
     */
-   @Override abstract public void handle(HttpExchange exchange) throws IOException;
+   @Override
+   public void handle(HttpExchange exchange) throws IOException
+   //----------------------------------------------------------
+   {
+      final long start = System.nanoTime();
+      boolean isHandedOff = false;
+      m_httpd.onExchangeBegin();
+      try
+      {
+         if (LoadSheddingPolicy.isShedding())
+         {
+            try
+            {
+               HttpResponse.serviceUnavailable(exchange, 
+                                       LoadSheddingPolicy.getRetryAfter()).send();
+            }
+            finally
+            {
+               exchange.close();
+            }
+            return;
+         }
+         ExecutorService executor = null;
+         if (m_isHandedOff.get() == null)
+            executor = m_httpd.onSelectExecutor(exchange);
+         if (executor == null)
+         {
+            handleRequest(exchange);
+            return;
+         }
+         isHandedOff = _handOff(exchange, executor, start);
+      }
+      finally
+      {
+         if (! isHandedOff)
+         {
+            m_httpd.getMetrics().record(HttpdMetrics.Phase.TOTAL, start);
+            m_httpd.onExchangeEnd();
+         }
+      }
+   }
+
+   /**
+    * Hand off an exchange to a bulkhead executor.
+    * @return true if the exchange was handed off, false if the executor
+    * rejected it (in which case a 503 response has been sent).
+    */
+   private boolean _handOff(final HttpExchange ex, ExecutorService executor,
+                            final long start)
+   //-----------------------------------------------------------------------
+   {
+      try
+      {
+         executor.execute(new Runnable()
+         {
+            public void run()
+            {
+               m_isHandedOff.set(Boolean.TRUE);
+               try
+               {
+                  handleRequest(ex);
+               }
+               catch (Throwable t)
+               {
+                  Httpd.Log(LogLevel.ERROR, "Handling " + 
+                            ex.getRequestURI().toASCIIString(), t);
+                  ex.close();
+               }
+               finally
+               {
+                  m_isHandedOff.remove();
+                  m_httpd.getMetrics().record(HttpdMetrics.Phase.TOTAL, start);
+                  m_httpd.onExchangeEnd();
+               }
+            }
+         });
+         return true;
+      }
+      catch (RejectedExecutionException e)
+      {
+         m_httpd.onRejected();
+         try
+         {
+            HttpResponse.serviceUnavailable(ex, m_httpd.m_retryAfter).send();
+         }
+         finally
+         {
+            ex.close();
+         }
+         return false;
+      }
+   }
+   
+   /**
+    * Send a 206 Partial Content response for a byte range request or a 416 
+    * response if none of the ranges can be satisfied. A single range is sent
+    * as the response body, multiple ranges as a multipart/byteranges body. 
+    */
+   private void _sendRanges(Request request, HttpResponse r, long id,
+                            HttpExchange ex, HttpHandleable handler,
+                            List<ByteRange> ranges, long len)
+   //-------------------------------------------------------------------------
+   {
+      if (ranges.size() == 0)
+      {
+         String body = Http.getErrorMessage(416);
+         r.setStatus(416);
+         r.setHeader("Content-Type", Http.MIME_PLAINTEXT);
+         r.addHeader("Content-Range", "bytes */" + len);
+         r.setBody(body);
+         if (! m_httpd.onKeepAlive(ex, body.length()))
+            r.addHeader("Connection", "close");
+         r.send();
+         return;
+      }
+      java.io.File f = request.getFile(false);
+      ByteBuffer hot = (f != null) ? m_httpd.getHotFileCache().get(f) 
+                                   : request.getContentBuffer();
+      r.setStatus(206);
+      MultipartByteRanges multipart = null;
+      long count;
+      if (ranges.size() == 1)
+      {
+         count = ranges.get(0).getLength();
+         r.addHeader("Content-Range", ranges.get(0).contentRange(len));
+      }
+      else
+      {
+         multipart = new MultipartByteRanges(ranges, len, 
+                                             r.getHeader("Content-Type"),
+                                             request, f, hot);
+         count = multipart.getContentLength();
+         r.setHeader("Content-Type", multipart.getContentType());
+      }
+      if (! m_httpd.onKeepAlive(ex, count))
+         r.addHeader("Connection", "close");
+      if (! r.sendHeaders(count)) return;
+      boolean ok = false;
+      InputStream is = null;
+      try
+      {
+         long first = ranges.get(0).getFirst();
+         if (multipart != null)
+            ok = r.sendData(multipart);
+         else if (hot != null)
+         {
+            hot.position(hot.position() + (int) first);
+            ok = r.sendBuffer(hot);
+         }
+         else if (f != null)
+            ok = r.sendFile(f, first);
+         else
+         {
+            is = request.getStream(first);
+            ok = (is != null) && (r.sendData(is, count));
+         }
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(Httpd.LogLevel.ERROR, "Error sending byte ranges", e);
+         ok = false;
+      }
+      finally
+      {
+         if (is != null) try { is.close(); } catch (Exception e) {}
+      }
+      handler.onPostServe(id, ex, request, ok);
+   }
+   
+   /**
+    * Overide to handle a request.
+    * @param exchange The HttpExchange instance for this request.
+    * @throws java.io.IOException
+    */
+   abstract protected void handleRequest(HttpExchange exchange) 
+            throws IOException;
 }
@@ -0,0 +1,68 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+
+/**
+ * Creates the HTTP server(s) used by an Httpd instance. The server engine
+ * is the network and protocol layer below the Httpd request handlers.
+ * Engines implement the com.sun.net.httpserver API (HttpServer, HttpContext
+ * and HttpExchange) so the request handlers, HttpHandleable and Postable
+ * handlers, filters and authenticators work unchanged on any engine.
+ * @see Httpd#setServerEngine
+ * @see JdkServerEngine
+ * @see NioServerEngine
+ * @author Donald Munro
+ */
+public interface ServerEngine
+//===========================
+{
+   /**
+    * Create and bind the server(s) for an Httpd instance. The servers are
+    * not started. Httpd sets the executor, creates the contexts and starts
+    * each server.
+    * @param address The address to bind to
+    * @param backlog The TCP accept backlog
+    * @param dispatchers The number of dispatchers requested
+    * (@see Httpd#setDispatchers). Engines may create several servers bound to
+    * the same address or use the value in an engine specific way.
+    * @param configurator The HTTPS configurator or null for HTTP
+    * @return The bound servers. Must contain at least one server.
+    * @throws java.io.IOException
+    */
+   public List<HttpServer> createServers(InetSocketAddress address,
+                                         int backlog, int dispatchers,
+                                         HttpsConfigurator configurator)
+          throws IOException;
+
+   /**
+    * Sets the time after which idle persistent connections are closed. Called
+    * by Httpd before createServers.
+    * @param idleTimeout The idle timeout in milliseconds
+    * @see Httpd#setKeepAliveTimeout
+    */
+   public void setIdleTimeout(long idleTimeout);
+}
@@ -0,0 +1,85 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An InputStream for content that is generated by writing it to an output
+ * stream (eg rendering a template). When returned from
+ * HttpHandleable.onServeBody without a Content-Length header the content is
+ * written directly to the response stream using chunked transfer encoding
+ * (@see HttpResponse#sendData(InputStream)) so it is never held in memory.
+ * Reading the stream in the normal way is also supported but then the
+ * complete content is generated into memory on the first read.
+ * @see TemplateInputStream
+ * @author Donald Munro
+ */
+abstract public class StreamingInputStream extends InputStream
+//============================================================
+{
+   private InputStream m_buffered = null;
+
+   /**
+    * Write the content to an output stream. The output stream must not be
+    * closed.
+    * @param os The stream to write to
+    * @return The number of bytes written
+    * @throws java.io.IOException
+    */
+   abstract public long writeTo(OutputStream os) throws IOException;
+
+   @Override
+   public int read() throws IOException
+   //----------------------------------
+   {
+      return _buffered().read();
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException
+   //------------------------------------------------------------
+   {
+      return _buffered().read(b, off, len);
+   }
+
+   @Override
+   public int available() throws IOException
+   //---------------------------------------
+   {
+      return (m_buffered == null) ? 0 : m_buffered.available();
+   }
+
+   private InputStream _buffered() throws IOException
+   //------------------------------------------------
+   {
+      if (m_buffered == null)
+      {
+         ByteArrayOutputStream baos = new ByteArrayOutputStream();
+         writeTo(baos);
+         m_buffered = new ByteArrayInputStream(baos.toByteArray());
+      }
+      return m_buffered;
+   }
+}
@@ -19,11 +19,13 @@ License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
 
 package net.homeip.donaldm.httpdbase4j;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -32,11 +34,11 @@ import org.antlr.stringtemplate.StringTemplate;
 import org.antlr.stringtemplate.StringTemplateGroup;
 
 import com.sun.net.httpserver.HttpExchange;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -116,6 +118,10 @@ abstract public class StringTemplateHandler
                      Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
    
    protected boolean m_isCacheable = false;   
+
+   protected boolean m_isStreaming = false;
+
+   protected String  m_charset = java.nio.charset.Charset.defaultCharset().name();
    
    /**
     * Constructor with template package. 
@@ -190,6 +196,36 @@ abstract public class StringTemplateHandler
     */
    public boolean getCacheable() { return m_isCacheable; } 
    
+   /**
+    * Sets whether template output is streamed. When streaming, templates are
+    * populated in onServeHeaders (using Templatable.templateStream) but are
+    * only rendered in onServeBody, directly into the response (through the
+    * compression encoder if the response is compressed) using chunked
+    * transfer encoding. This means the rendered page is never held in memory
+    * but the response has no Content-Length, the output is not written to the
+    * cache and, unless the template processor returns one in mimeType, the 
+    * Content-Type defaults to text/html.
+    * @param isStreaming true to stream template output.
+    */
+   public void setStreaming(boolean isStreaming) { m_isStreaming = isStreaming; }
+
+   /**
+    * @return true if template output is streamed.
+    */
+   public boolean getStreaming() { return m_isStreaming; }
+
+   /**
+    * Sets the character set used to encode template output. Defaults to the
+    * platform default character set.
+    * @param charset The character set name
+    */
+   public void setCharset(String charset) { m_charset = charset; }
+
+   /**
+    * @return The character set used to encode template output.
+    */
+   public String getCharset() { return m_charset; }
+   
    @Override
    public HttpResponse onServeHeaders(long id, HttpExchange ex, Request request)
    //---------------------------------------------------------------------------
@@ -198,10 +234,22 @@ abstract public class StringTemplateHandler
       if (template == null) return null; 
       
       HttpResponse r = new HttpResponse(ex, Http.HTTP_OK);
-      /* Content-Length 0 == chunked 
-       *r.addHeader("Content-Length", "0"); 
-       *or  */
       StringBuffer mimeType = new StringBuffer();
+      if (m_isStreaming)
+      {
+         // No Content-Length == chunked
+         InputStream is = m_templateProcessor.templateStream(template, request,
+                                                             mimeType);
+         if (is == null) return null;
+         if (is instanceof TemplateInputStream)
+            ((TemplateInputStream) is).setCharset(m_charset);
+         r.addHeader("Content-Type", (mimeType.length() > 0) 
+                                     ? mimeType.toString() : Http.MIME_HTML);
+         if (request.m_cacheFile != null)
+            request.m_cacheFile.delete();
+         m_resultMap.put(id, new EncodedStream(is, request.m_encoding));
+         return r;
+      }
       String s = m_templateProcessor.templateString(template, request, mimeType);
       if (s == null) return null;
       
@@ -221,42 +269,34 @@ abstract public class StringTemplateHandler
                r.addHeader("Content-Type", Http.MIME_PLAINTEXT);
          }
       }
+      byte[] data;
+      try
+      {
+         data = s.getBytes(m_charset);
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         Httpd.Log(Httpd.LogLevel.ERROR, "Template character set " + m_charset,
+                   e);
+         data = s.getBytes();
+      }
+      s = null;
       ByteArrayOutputStream baos = null;
       if (request.m_encoding != null)
       {         
          if (request.m_cacheFile != null)
             request.m_cacheFile.delete();
-         BufferedInputStream bis = null;
-         BufferedOutputStream bos = null, boss = null;         
-         baos = new ByteArrayOutputStream();
-         byte[] buffer = new byte[4096];
+         OutputStream boss = null;         
+         baos = new ByteArrayOutputStream(Math.max(data.length / 4, 32));
 
          try
          {
-            bis = new BufferedInputStream(new ByteArrayInputStream(s.getBytes())); 
             if (request.m_encoding.compareTo("gzip") == 0)
-            {
-               if (request.m_cacheFile != null)
-                  bos = new BufferedOutputStream(
-                            new GZIPOutputStream(
-                                new FileOutputStream(request.m_cacheFile)));
-               boss = new BufferedOutputStream(new GZIPOutputStream(baos));
-            }
+               boss = new GZIPOutputStream(baos, BufferPool.COPY_SIZE);
             if (request.m_encoding.compareTo("deflate") == 0)
-            {
-               if (request.m_cacheFile != null)
-                  bos = new BufferedOutputStream(
-                            new DeflaterOutputStream(
-                                new FileOutputStream(request.m_cacheFile)));
-               boss = new BufferedOutputStream(new DeflaterOutputStream(baos));
-            }
-            while (true)
-            {
-               int cb = bis.read(buffer);
-               if (cb == -1) break;
-               if (bos != null) bos.write(buffer, 0, cb);
-               boss.write(buffer, 0, cb);
-            }
+               boss = new DeflaterOutputStream(baos, new Deflater(), 
+                                               BufferPool.COPY_SIZE);
+            boss.write(data);
             boss.close();
             boss = null;
          }
@@ -272,25 +312,36 @@ abstract public class StringTemplateHandler
          }
          finally
          {
-            if (bis != null)
-               try { bis.close(); } catch (Exception e) {}
-            if (bos != null)
-               try { bos.close(); } catch (Exception e) {}
             if (boss != null)
                try { boss.close(); } catch (Exception e) {}
          }
+         // Compressed once, the same bytes are written to the cache file
+         if ( (baos != null) && (request.m_cacheFile != null) )
+         {
+            FileOutputStream fos = null;
+            try
+            {
+               fos = new FileOutputStream(request.m_cacheFile);
+               baos.writeTo(fos);
+               fos.close();
+               fos = null;
+            }
+            catch (Exception e)
+            {
+               Httpd.Log(Httpd.LogLevel.ERROR, 
+                         "Writing StringTemplate cache file", e);
+               if (fos != null)
+                  try { fos.close(); } catch (Exception ee) {}
+               request.m_cacheFile.delete();
+               request.m_cacheFile = null;
+            }
+         }
       }      
       
       if (baos != null)
-      {
-         r.addHeader("Content-Length", Integer.toString(baos.size())); 
-         m_resultMap.put(id, baos);
-      }
-      else
-      {
-         r.addHeader("Content-Length", Integer.toString(s.length())); 
-         m_resultMap.put(id, s);
-      }
+         data = baos.toByteArray();
+      r.addHeader("Content-Length", Integer.toString(data.length)); 
+      m_resultMap.put(id, data);
       return r;
    }
    
@@ -301,40 +352,90 @@ abstract public class StringTemplateHandler
    public InputStream onServeBody(long id, HttpExchange ex, Request request)
   //---------------------------------------------------------------------------
    {
-      try
+      Object o = m_resultMap.remove(id);      
+      if (o instanceof byte[])
+         return new ByteArrayInputStream((byte[]) o);
+      if (o instanceof InputStream)
+         return (InputStream) o;
+      return null; 
+   }         
+
+   /**
+    * Streams template output through the response compression encoder.
+    */
+   static private class EncodedStream extends StreamingInputStream
+   //==============================================================
+   {
+      private InputStream m_in;
+
+      private String      m_encoding;
+
+      EncodedStream(InputStream in, String encoding)
+      //--------------------------------------------
       {
-         Object o = m_resultMap.get(id);      
-         if (o != null)
+         m_in = in;
+         m_encoding = encoding;
+      }
+
+      @Override
+      public long writeTo(OutputStream os) throws IOException
+      //-----------------------------------------------------
+      {
+         OutputStream out = new FilterOutputStream(os)
          {
-            if (o instanceof String)
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
             {
-               String s = (String) o;
-               return new BufferedInputStream(new ByteArrayInputStream(
-                                                                 s.getBytes()));
+               out.write(b, off, len);
             }
+
+            @Override
+            public void close() throws IOException
+            {
+               flush();
+            }
+         };
+         DeflaterOutputStream encoder = null;
+         Deflater deflater = null;
+         try
+         {
+            if ("gzip".equals(m_encoding))
+               out = encoder = new GZIPOutputStream(out, 8192);
+            else if ("deflate".equals(m_encoding))
+            {
+               deflater = new Deflater();
+               out = encoder = new DeflaterOutputStream(out, deflater, 8192);
+            }
+            long count;
+            if (m_in instanceof StreamingInputStream)
+               count = ((StreamingInputStream) m_in).writeTo(out);
             else
+               count = Http.readWriteStream(m_in, out);
+            if (encoder != null)
             {
-               if (o instanceof ByteArrayOutputStream)
-               {
-                  ByteArrayOutputStream baos = (ByteArrayOutputStream) o;
-                  return new BufferedInputStream(new ByteArrayInputStream(
-                                                            baos.toByteArray()));
-               }
-            }                
+               // Finishes the encoding and ends the gzip Deflater (closing 
+               // the wrapper only flushes the response stream)
+               encoder.close();
+               encoder = null;
+            }
+            else
+               out.flush();
+            return count;
+         }
+         finally
+         {
+            if (encoder != null) try { encoder.close(); } catch (Exception e) {}
+            if (deflater != null) deflater.end();
          }
       }
-      catch (Exception e)
-      {
-         Httpd.Log(Httpd.LogLevel.ERROR, "Error creating input stream of " +
-                     "template output string", e);
-         return null;
-      }
-      finally
+
+      @Override
+      public void close() throws IOException
+      //------------------------------------
       {
-         m_resultMap.remove(id);      
+         m_in.close();
       }
-     return null; 
-   }         
+   }
    
    /**
     * The method processes templates and returns the file generated from the 
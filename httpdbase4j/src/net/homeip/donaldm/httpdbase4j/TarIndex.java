@@ -0,0 +1,275 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+import org.apache.tools.bzip2.CBZip2InputStream;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+
+/**
+ * An index of a tar file which may be gzip or bzip2 compressed (@see
+ * ArchiveIndex). As tar files cannot be randomly accessed the archive is
+ * decoded once when the index is created and the contents of all its files
+ * are written, uncompressed, one after the other into a single blob file
+ * in the cache directory (the CRC-32 of each file is recorded as it is
+ * written). The blob is memory mapped (read-only) so entry contents (and
+ * byte ranges of entry contents) are served from slices of the mapping
+ * (@see #getBuffer) without any further decompression or TrueZip temporary
+ * files. On platforms that allow it the blob file is
+ * deleted as soon as it has been mapped, otherwise it is deleted on exit.
+ * The mapping is dropped when the index is closed (@see #close) so that
+ * the blob of a retired index can be reclaimed once the buffers already
+ * handed out are no longer referenced.
+ * <br>
+ * Symbolic and hard link entries are skipped and tar files whose decoded
+ * contents are larger than 2GB are not indexed.
+ * @author Donald Munro
+ */
+public class TarIndex extends ArchiveIndex
+//========================================
+{
+   static private final String[] EXTENSIONS = { ".tar", ".tar.gz", ".tgz",
+                                                ".tar.bz2", ".tbz2", ".tbz" };
+
+   /**
+    * The decoded contents of all file entries.
+    */
+   private volatile MappedByteBuffer m_blob      = null;
+
+   /**
+    * @param file A file
+    * @return true if the file has a tar (or compressed tar) extension.
+    */
+   static public boolean isTar(File file)
+   //------------------------------------
+   {
+      String name = file.getName().toLowerCase();
+      for (String extension : EXTENSIONS)
+         if (name.endsWith(extension)) return true;
+      return false;
+   }
+
+   protected TarIndex(File file, long lastModified, long length)
+   //-----------------------------------------------------------
+   {
+      super(file, lastModified, length);
+      try
+      {
+         m_entries = _decode();
+      }
+      catch (Exception e)
+      {
+         Httpd.Log(LogLevel.DEBUG, "Indexing " + file, e);
+         m_entries = null;
+         m_blob = null;
+      }
+      if (m_entries != null)
+         indexDirectories();
+   }
+
+   /**
+    * Drop the mapping of the blob. Entry streams and buffers obtained before
+    * the index was closed remain readable but no new ones can be obtained.
+    */
+   @Override
+   public void close()
+   //-----------------
+   {
+      m_blob = null;
+   }
+
+   /**
+    * @param entry The entry
+    * @return A stream over the decoded entry contents.
+    */
+   @Override
+   public InputStream getRawStream(Entry entry) throws IOException
+   //--------------------------------------------------------------
+   {
+      if (entry.m_isDirectory)
+         throw new IOException(entry.m_name + " is a directory");
+      ByteBuffer buffer = getBuffer(entry);
+      if (buffer == null)
+         throw new IOException(m_file + " has been closed");
+      return new ByteBufferInputStream(buffer);
+   }
+
+   /**
+    * @param entry The entry
+    * @return A read-only slice of the memory mapped blob containing the
+    * entry contents or null if the index has been closed.
+    */
+   @Override
+   public ByteBuffer getBuffer(Entry entry)
+   //--------------------------------------
+   {
+      MappedByteBuffer blob = m_blob;
+      if ( (entry.m_isDirectory) || (blob == null) ) return null;
+      ByteBuffer buffer = blob.duplicate();
+      buffer.limit((int) (entry.m_dataOffset + entry.m_size));
+      buffer.position((int) entry.m_dataOffset);
+      return buffer.slice().asReadOnlyBuffer();
+   }
+
+   /**
+    * @return The decoded size of all entries.
+    */
+   public long getBlobSize()
+   //-----------------------
+   {
+      MappedByteBuffer blob = m_blob;
+      return (blob == null) ? 0 : blob.capacity();
+   }
+
+   private Map<String, Entry> _decode() throws IOException
+   //------------------------------------------------------
+   {
+      File blob = File.createTempFile("tar", ".blob", Request.m_cacheDir);
+      Map<String, Entry> entries = new HashMap<String, Entry>();
+      TarInputStream tis = null;
+      OutputStream os = null;
+      BufferPool pool = BufferPool.getDefault();
+      byte[] buffer = pool.acquire(BufferPool.COPY_SIZE);
+      CRC32 crc = new CRC32();
+      try
+      {
+         tis = new TarInputStream(_open());
+         os = new BufferedOutputStream(new FileOutputStream(blob),
+                                       BufferPool.COPY_SIZE);
+         long offset = 0;
+         TarEntry tarEntry;
+         while ( (tarEntry = tis.getNextEntry()) != null)
+         {
+            String name = _name(tarEntry.getName());
+            String link = tarEntry.getLinkName();
+            if ( (name.length() == 0) ||
+                 ( (link != null) && (link.length() > 0) ) )
+               continue;
+            Entry entry = new Entry();
+            entry.m_name = name;
+            entry.m_time = tarEntry.getModTime().getTime();
+            entry.m_isDirectory = tarEntry.isDirectory();
+            if (! entry.m_isDirectory)
+            {
+               long size = 0;
+               int n;
+               crc.reset();
+               while ( (n = tis.read(buffer)) >= 0)
+               {
+                  os.write(buffer, 0, n);
+                  crc.update(buffer, 0, n);
+                  size += n;
+               }
+               entry.m_crc = crc.getValue();
+               entry.m_dataOffset = offset;
+               entry.m_size = entry.m_compressedSize = size;
+               offset += size;
+               if (offset > Integer.MAX_VALUE)
+                  throw new IOException("Decoded contents of " + m_file +
+                                        " are too large to map");
+            }
+            entries.put(name, entry);
+         }
+         os.close();
+         os = null;
+         m_blob = _map(blob, offset);
+         return entries;
+      }
+      finally
+      {
+         pool.release(buffer);
+         if (tis != null) try { tis.close(); } catch (Exception e) {}
+         if (os != null) try { os.close(); } catch (Exception e) {}
+         if (! blob.delete())
+            blob.deleteOnExit();
+      }
+   }
+
+   /**
+    * Open the tar file, decompressing it if it starts with a gzip or bzip2
+    * signature.
+    */
+   private InputStream _open() throws IOException
+   //---------------------------------------------
+   {
+      InputStream is = new BufferedInputStream(new FileInputStream(m_file),
+                                               BufferPool.COPY_SIZE);
+      try
+      {
+         is.mark(3);
+         int b1 = is.read(), b2 = is.read(), b3 = is.read();
+         is.reset();
+         if ( (b1 == 0x1f) && (b2 == 0x8b) )
+            return new GZIPInputStream(is, BufferPool.COPY_SIZE);
+         if ( (b1 == 'B') && (b2 == 'Z') && (b3 == 'h') )
+         {
+            is.skip(2); // CBZip2InputStream expects the BZ to be consumed
+            return new CBZip2InputStream(is);
+         }
+         return is;
+      }
+      catch (IOException e)
+      {
+         try { is.close(); } catch (Exception ee) {}
+         throw e;
+      }
+   }
+
+   static private MappedByteBuffer _map(File blob, long size) throws IOException
+   //---------------------------------------------------------------------------
+   {
+      RandomAccessFile raf = new RandomAccessFile(blob, "r");
+      try
+      {
+         return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+      finally
+      {
+         try { raf.close(); } catch (Exception e) {}
+      }
+   }
+
+   static private String _name(String name)
+   //--------------------------------------
+   {
+      name = normalize(name);
+      while (name.startsWith("./"))
+         name = normalize(name.substring(2));
+      return (name.equals(".")) ? "" : name;
+   }
+}
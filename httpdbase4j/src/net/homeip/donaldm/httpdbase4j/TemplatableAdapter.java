@@ -107,6 +107,11 @@ public class TemplatableAdapter implements Templatable
     * An overidable super class implementation of templateStream. Overiding 
     * classes  should populate the template and then return 
     * super.templateStream(...).
+    * If the request is handled by a StringTemplateHandler which streams 
+    * template output (@see StringTemplateHandler#setStreaming) the template
+    * is not rendered until the stream is used when it is rendered directly
+    * into the response (@see TemplateInputStream), otherwise the template is
+    * rendered now so that rendering errors return null.
     * @param template The StringTemplate instance
     * @param request The Request instance
     * @return A stream representing the contents of the template output or null.
@@ -116,6 +121,11 @@ public class TemplatableAdapter implements Templatable
                                      StringBuffer mimeType)
    //--------------------------------------------------------------------------
    {
+      if (template == null) return null;
+      HttpHandleable handler = (request == null) ? null : request.getHandler();
+      if ( (handler instanceof StringTemplateHandler) &&
+           (((StringTemplateHandler) handler).getStreaming()) )
+         return new TemplateInputStream(template);
       String s = null;
       try 
       { 
@@ -0,0 +1,111 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.antlr.stringtemplate.StringTemplate;
+
+/**
+ * A stream of the output of a populated StringTemplate. The template is
+ * only rendered when the stream is written (@see StreamingInputStream) in
+ * which case it is rendered directly to the output through a fixed size
+ * buffer.
+ * @see TemplatableAdapter#templateStream
+ * @see StringTemplateHandler#setStreaming
+ * @author Donald Munro
+ */
+public class TemplateInputStream extends StreamingInputStream
+//===========================================================
+{
+   private StringTemplate m_template = null;
+
+   private String         m_charset  = Charset.defaultCharset().name();
+
+   /**
+    * Create a TemplateInputStream
+    * @param template The populated template
+    */
+   public TemplateInputStream(StringTemplate template)
+   //-------------------------------------------------
+   {
+      m_template = template;
+   }
+
+   /**
+    * @return The template
+    */
+   public StringTemplate getTemplate() { return m_template; }
+
+   /**
+    * Sets the character set used to encode the template output. Defaults to
+    * the platform default character set.
+    * @param charset The character set name
+    */
+   public void setCharset(String charset) { m_charset = charset; }
+
+   /**
+    * @return The character set used to encode the template output.
+    */
+   public String getCharset() { return m_charset; }
+
+   /**
+    *  @inheritDoc
+    */
+   @Override
+   public long writeTo(OutputStream os) throws IOException
+   //-----------------------------------------------------
+   {
+      final long[] count = new long[1];
+      OutputStream counter = new FilterOutputStream(os)
+      {
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException
+         {
+            out.write(b, off, len);
+            count[0] += len;
+         }
+
+         @Override
+         public void write(int b) throws IOException
+         {
+            out.write(b);
+            count[0]++;
+         }
+
+         @Override
+         public void close() throws IOException
+         {
+            flush();
+         }
+      };
+      Writer w = new BufferedWriter(new OutputStreamWriter(counter, m_charset),
+                                    8192);
+      m_template.write(m_template.getGroup().getStringTemplateWriter(w));
+      w.flush();
+      return count[0];
+   }
+}
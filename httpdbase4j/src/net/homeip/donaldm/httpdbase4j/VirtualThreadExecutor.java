@@ -0,0 +1,351 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An ExecutorService that runs every task on a new thread, with the number of
+ * concurrently running tasks capped at a maximum. When the cap is reached
+ * execute blocks the caller (normally the HttpServer dispatcher thread) until
+ * a running task completes, so a burst of slow requests cannot create an
+ * unbounded number of threads.<br>
+ * The threads are virtual threads if the JVM supports them (Java 21 or later).
+ * Virtual threads are created by reflection so that HttpdBase4J still builds
+ * and runs on older JVMs where platform threads from the fallback
+ * ThreadFactory are used instead.
+ * @see Httpd.ThreadModel
+ * @author Donald Munro
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService
+//=================================================================
+{
+   /**
+    * Creates the per task threads.
+    */
+   protected ThreadFactory       m_threadFactory = null;
+
+   /**
+    * true if m_threadFactory creates virtual threads.
+    */
+   protected boolean             m_isVirtual     = false;
+
+   /**
+    * Maximum number of concurrently running tasks.
+    */
+   protected int                 m_maxConcurrent = 0;
+
+   /**
+    * One permit for each task that may run concurrently.
+    */
+   protected Semaphore           m_permits       = null;
+
+   protected AtomicInteger       m_active        = new AtomicInteger(0);
+
+   protected volatile boolean    m_isShutdown    = false;
+
+   /**
+    * If not null then tasks arriving when the maximum concurrency has been
+    * reached are shed instead of blocking the caller.
+    */
+   protected LoadSheddingPolicy  m_rejectionPolicy = null;
+
+   /**
+    * The running per task threads of all executors (@see #isTaskThread).
+    */
+   static private Set<Thread>    m_taskThreads   = Collections.newSetFromMap(
+                                             new ConcurrentHashMap<Thread, Boolean>());
+
+   static private Method         m_isVirtualMethod = null;
+
+   static
+   {
+      try
+      {
+         m_isVirtualMethod = Thread.class.getMethod("isVirtual");
+      }
+      catch (Throwable t)
+      {
+         m_isVirtualMethod = null;
+      }
+   }
+
+   private Set<Thread>           m_threads       = Collections.newSetFromMap(
+                                             new ConcurrentHashMap<Thread, Boolean>());
+
+   private final Object          m_terminated    = new Object();
+
+   /**
+    * Create a VirtualThreadExecutor.
+    * @param name Name prefix for the threads created by this executor.
+    * @param maxConcurrent The maximum number of concurrently running tasks.
+    * @param fallback ThreadFactory to use if virtual threads are not available
+    * in this JVM.
+    */
+   public VirtualThreadExecutor(String name, int maxConcurrent,
+                                ThreadFactory fallback)
+   //--------------------------------------------------------------
+   {
+      if (maxConcurrent <= 0)
+         throw new IllegalArgumentException("Invalid maximum concurrency " +
+                                            maxConcurrent);
+      m_maxConcurrent = maxConcurrent;
+      m_permits = new Semaphore(maxConcurrent);
+      m_threadFactory = createVirtualThreadFactory(name);
+      m_isVirtual = (m_threadFactory != null);
+      if (m_threadFactory == null)
+         m_threadFactory = fallback;
+      if (m_threadFactory == null)
+         throw new IllegalArgumentException("No fallback ThreadFactory");
+   }
+
+   /**
+    * Attempts to create a virtual thread factory using reflection
+    * (Thread.ofVirtual().name(name, 0).factory()).
+    * @param name Name prefix for the threads created by the factory.
+    * @return A ThreadFactory that creates virtual threads or null if the
+    * JVM does not support virtual threads.
+    */
+   static public ThreadFactory createVirtualThreadFactory(String name)
+   //-----------------------------------------------------------------
+   {
+      try
+      {
+         Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+         Method ofVirtual = Thread.class.getMethod("ofVirtual");
+         Object builder = ofVirtual.invoke(null);
+         if (name != null)
+         {
+            Method nameMethod = builderClass.getMethod("name", String.class,
+                                                       long.class);
+            builder = nameMethod.invoke(builder, name + "-", 0L);
+         }
+         Method factory = builderClass.getMethod("factory");
+         return (ThreadFactory) factory.invoke(builder);
+      }
+      catch (Throwable t)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * @param thread A thread
+    * @return true if the thread is a virtual thread (always false if the JVM
+    * does not support virtual threads).
+    */
+   static public boolean isVirtual(Thread thread)
+   //--------------------------------------------
+   {
+      if (m_isVirtualMethod == null) return false;
+      try
+      {
+         return ((Boolean) m_isVirtualMethod.invoke(thread)).booleanValue();
+      }
+      catch (Throwable t)
+      {
+         return false;
+      }
+   }
+
+   /**
+    * @param thread A thread
+    * @return true if the thread only lives for the duration of one task ie
+    * it is a virtual thread or it was created by a VirtualThreadExecutor.
+    * Per thread caches (eg @see BufferPool) are not useful on such threads.
+    */
+   static public boolean isTaskThread(Thread thread)
+   //-----------------------------------------------
+   {
+      return ( (m_taskThreads.contains(thread)) || (isVirtual(thread)) );
+   }
+
+   /**
+    * @return true if tasks are run on virtual threads, false if platform
+    * threads are used.
+    */
+   public boolean isVirtual() { return m_isVirtual; }
+
+   /**
+    * @return The maximum number of concurrently running tasks.
+    */
+   public int getMaxConcurrent() { return m_maxConcurrent; }
+
+   /**
+    * @return The number of currently running tasks.
+    */
+   public int getActiveCount() { return m_active.get(); }
+
+   /**
+    * Set the policy used to shed tasks arriving when the maximum concurrency
+    * has been reached. If null (the default) then the caller blocks until a
+    * running task completes.
+    * @param rejectionPolicy The LoadSheddingPolicy or null to block.
+    */
+   public void setRejectionPolicy(LoadSheddingPolicy rejectionPolicy)
+   //----------------------------------------------------------------
+   {
+      m_rejectionPolicy = rejectionPolicy;
+   }
+
+   /**
+    * Run a task on a new thread, blocking until a permit is available if the
+    * maximum concurrency has been reached (or shedding the task if a
+    * rejection policy has been set).
+    * @param command The task to run
+    */
+   @Override
+   public void execute(final Runnable command)
+   //-----------------------------------------
+   {
+      if (command == null) throw new NullPointerException();
+      if (m_isShutdown)
+         throw new RejectedExecutionException("Executor has been shut down");
+      if (m_rejectionPolicy != null)
+      {
+         if (! m_permits.tryAcquire())
+         {
+            m_rejectionPolicy.shed(command);
+            return;
+         }
+      }
+      else try
+      {
+         m_permits.acquire();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new RejectedExecutionException("Interrupted waiting for a permit");
+      }
+      Thread t = null;
+      try
+      {
+         t = m_threadFactory.newThread(new Runnable()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  command.run();
+               }
+               finally
+               {
+                  m_threads.remove(Thread.currentThread());
+                  m_taskThreads.remove(Thread.currentThread());
+                  _finished();
+               }
+            }
+         });
+         if (t == null)
+            throw new RejectedExecutionException("Could not create thread");
+         m_active.incrementAndGet();
+         m_threads.add(t);
+         m_taskThreads.add(t);
+         t.start();
+      }
+      catch (RuntimeException e)
+      {
+         if (t != null)
+            m_taskThreads.remove(t);
+         if ( (t != null) && (m_threads.remove(t)) )
+            m_active.decrementAndGet();
+         m_permits.release();
+         throw e;
+      }
+   }
+
+   private void _finished()
+   //----------------------
+   {
+      int active = m_active.decrementAndGet();
+      m_permits.release();
+      if ( (m_isShutdown) && (active == 0) )
+      {
+         synchronized (m_terminated)
+         {
+            m_terminated.notifyAll();
+         }
+      }
+   }
+
+   @Override
+   public void shutdown()
+   //--------------------
+   {
+      m_isShutdown = true;
+      if (m_active.get() == 0)
+      {
+         synchronized (m_terminated)
+         {
+            m_terminated.notifyAll();
+         }
+      }
+   }
+
+   @Override
+   public List<Runnable> shutdownNow()
+   //---------------------------------
+   {
+      shutdown();
+      for (Thread t : m_threads)
+         t.interrupt();
+      return new ArrayList<Runnable>();
+   }
+
+   @Override
+   public boolean isShutdown() { return m_isShutdown; }
+
+   @Override
+   public boolean isTerminated()
+   {
+      return ( (m_isShutdown) && (m_active.get() == 0) );
+   }
+
+   @Override
+   public boolean awaitTermination(long timeout, TimeUnit unit)
+          throws InterruptedException
+   //----------------------------------------------------------
+   {
+      long end = System.currentTimeMillis() + unit.toMillis(timeout);
+      synchronized (m_terminated)
+      {
+         while (! isTerminated())
+         {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            m_terminated.wait(remaining);
+         }
+      }
+      return true;
+   }
+}
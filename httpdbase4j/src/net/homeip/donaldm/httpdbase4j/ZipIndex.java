@@ -0,0 +1,488 @@
+/*
+HttpdBase4J: An embeddable Java web server framework that supports HTTP, HTTPS,
+templated content and serving content from inside a jar or archive.
+Copyright (C) 2007 Donald Munro
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not,see http://www.gnu.org/licenses/lgpl.txt
+*/
+
+package net.homeip.donaldm.httpdbase4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedInputStream;
+
+import net.homeip.donaldm.httpdbase4j.Httpd.LogLevel;
+
+/**
+ * An index of the central directory of a zip (or jar) file (@see
+ * ArchiveIndex). The central directory is read once when the index is 
+ * created. Entry contents are read using positioned reads on a small set
+ * of FileChannels (@see #setReaderCount) over which reading threads are
+ * spread so that threads serving different entries do not contend on a
+ * shared channel or lock. Deflated entries are inflated using pooled 
+ * Inflaters (@see InflaterPool).<br>
+ * The stored (compressed) data of deflated entries can also be sent to 
+ * clients that accept gzip or deflate encoding without inflating and 
+ * recompressing them (@see ArchiveHttpd#setDeflatePassThrough). The raw 
+ * deflate data of an entry is wrapped in a gzip header and a trailer
+ * containing the CRC and size recorded in the zip (@see #getGzipStream) or
+ * in a zlib header and Adler-32 trailer (@see #getZlibStream). As the zip
+ * does not record the Adler-32 checksum it is calculated the first time it
+ * is required and then remembered.<br>
+ * Each entry stream acquires the index (@see ArchiveIndex#acquire) so the
+ * channels of an index which has been replaced are closed as soon as the
+ * last stream which is reading from it is closed. Zip64 files are not
+ * indexed.
+ * @author Donald Munro
+ */
+public class ZipIndex extends ArchiveIndex
+//======================================
+{
+   static private final int   EOCD_SIG = 0x06054b50;
+
+   static private final int   CEN_SIG  = 0x02014b50;
+
+   static private final int   LOC_SIG  = 0x04034b50;
+
+   static private final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0,
+                                               0, 0, 0, (byte) 0xff };
+
+   static private final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9c };
+
+   static private volatile int   m_readerCount = 
+                                    Runtime.getRuntime().availableProcessors();
+
+   /**
+    * The read channels on the zip file which are opened when first used 
+    * (@see #_channel).
+    */
+   private AtomicReferenceArray<FileChannel> m_readers = null;
+
+   /**
+    * Set the number of read channels opened on each zip file by indexes 
+    * created after the call (@see #_channel). Defaults to the number of
+    * available processors.
+    * @param count The number of read channels
+    */
+   static public void setReaderCount(int count)
+   //------------------------------------------
+   {
+      m_readerCount = Math.max(count, 1);
+   }
+
+   static public int getReaderCount() { return m_readerCount; }
+
+   protected ZipIndex(File file, long lastModified, long length)
+   //-----------------------------------------------------------
+   {
+      super(file, lastModified, length);
+      m_readers = new AtomicReferenceArray<FileChannel>(m_readerCount);
+      try
+      {
+         m_entries = _read();
+      }
+      catch (IOException e)
+      {
+         Httpd.Log(LogLevel.DEBUG, "Indexing " + file, e);
+         m_entries = null;
+      }
+      if (m_entries == null)
+         close();
+      else
+         indexDirectories();
+   }
+
+   /**
+    * Close the read channels of the index. Channels are reopened if the 
+    * index is used after it has been closed.
+    */
+   @Override
+   public void close()
+   //-----------------
+   {
+      for (int i=0; i<m_readers.length(); i++)
+      {
+         FileChannel channel = m_readers.getAndSet(i, null);
+         if (channel != null) try { channel.close(); } catch (Exception e) {}
+      }
+   }
+
+   /**
+    * Return a stream of the stored (compressed) data of an entry.
+    * @param entry The entry
+    * @return A stream of the entry data which must be closed by the caller.
+    * @throws java.io.IOException
+    */
+   @Override
+   public InputStream getRawStream(Entry entry) throws IOException
+   //--------------------------------------------------------------
+   {
+      acquire();
+      try
+      {
+         return new ChannelInputStream(_dataOffset(entry), 
+                                       entry.m_compressedSize);
+      }
+      catch (IOException e)
+      {
+         release();
+         throw e;
+      }
+   }
+
+   /**
+    * @param entry A deflated entry
+    * @return The length of the gzip stream of the entry (@see #getGzipStream).
+    */
+   public long getGzipLength(Entry entry)
+   //------------------------------------
+   {
+      return GZIP_HEADER.length + entry.m_compressedSize + 8;
+   }
+
+   /**
+    * Return the deflated data of an entry as a gzip stream (RFC 1952).
+    * @param entry A deflated entry
+    * @return The gzip stream which must be closed by the caller.
+    * @throws java.io.IOException
+    */
+   public InputStream getGzipStream(Entry entry) throws IOException
+   //---------------------------------------------------------------
+   {
+      byte[] trailer = new byte[8];
+      _putInt(trailer, 0, entry.m_crc, false);
+      _putInt(trailer, 4, entry.m_size, false);
+      return _wrap(GZIP_HEADER, getRawStream(entry), trailer);
+   }
+
+   /**
+    * @param entry A deflated entry
+    * @return The length of the zlib stream of the entry (@see #getZlibStream).
+    */
+   public long getZlibLength(Entry entry)
+   //------------------------------------
+   {
+      return ZLIB_HEADER.length + entry.m_compressedSize + 4;
+   }
+
+   /**
+    * Return the deflated data of an entry as a zlib stream (RFC 1950) ie
+    * HTTP deflate content coding.
+    * @param entry A deflated entry
+    * @return The zlib stream which must be closed by the caller.
+    * @throws java.io.IOException
+    */
+   public InputStream getZlibStream(Entry entry) throws IOException
+   //---------------------------------------------------------------
+   {
+      byte[] trailer = new byte[4];
+      _putInt(trailer, 0, getAdler32(entry), true);
+      return _wrap(ZLIB_HEADER, getRawStream(entry), trailer);
+   }
+
+   /**
+    * Return the Adler-32 checksum of the uncompressed contents of a deflated
+    * entry which is calculated (by inflating the entry) on the first call.
+    * @param entry A deflated entry
+    * @return The checksum
+    * @throws java.io.IOException
+    */
+   public long getAdler32(Entry entry) throws IOException
+   //-----------------------------------------------------
+   {
+      long adler32 = entry.m_adler32;
+      if (adler32 >= 0) return adler32;
+      CheckedInputStream is = null;
+      BufferPool pool = BufferPool.getDefault();
+      byte[] buffer = pool.acquire(BufferPool.COPY_SIZE);
+      try
+      {
+         is = new CheckedInputStream(getInputStream(entry), new Adler32());
+         long size = 0;
+         int n;
+         while ( (n = is.read(buffer)) >= 0)
+            size += n;
+         if (size != entry.m_size)
+            throw new IOException("Inflated size of " + entry.m_name +
+                                  " does not match the zip");
+         adler32 = is.getChecksum().getValue();
+      }
+      finally
+      {
+         pool.release(buffer);
+         if (is != null) try { is.close(); } catch (Exception e) {}
+      }
+      entry.m_adler32 = adler32;
+      return adler32;
+   }
+
+   private long _dataOffset(Entry entry) throws IOException
+   //-------------------------------------------------------
+   {
+      long offset = entry.m_dataOffset;
+      if (offset >= 0) return offset;
+      byte[] header = new byte[30];
+      _readFully(entry.m_localHeaderOffset, header);
+      if (_getInt(header, 0) != LOC_SIG)
+         throw new IOException("Invalid local header for " + entry.m_name);
+      offset = entry.m_localHeaderOffset + 30 + _getShort(header, 26) +
+               _getShort(header, 28);
+      entry.m_dataOffset = offset;
+      return offset;
+   }
+
+   private void _readFully(long position, byte[] b) throws IOException
+   //------------------------------------------------------------------
+   {
+      ByteBuffer buffer = ByteBuffer.wrap(b);
+      while (buffer.hasRemaining())
+      {
+         if (_channel().read(buffer, position + buffer.position()) < 0)
+            throw new IOException("Unexpected end of " + m_file);
+      }
+   }
+
+   /**
+    * Return the read channel of the calling thread. Threads are spread over
+    * the read channels of the index by thread id so that concurrent readers
+    * do not share a channel (and the position lock some platforms take for
+    * positioned reads) unless there are more readers than channels. A 
+    * channel which has been closed (eg by interrupting a thread blocked in a
+    * read) is replaced unless the zip file has changed since it was indexed.
+    */
+   private FileChannel _channel() throws IOException
+   //------------------------------------------------
+   {
+      int i = (int) (Thread.currentThread().getId() % m_readers.length());
+      FileChannel channel = m_readers.get(i);
+      if ( (channel != null) && (channel.isOpen()) ) return channel;
+      if ( (m_file.lastModified() != m_lastModified) || 
+           (m_file.length() != m_length) )
+      {
+         // The zip has been replaced (@see ArchiveHttpd#swapArchive) so 
+         // requests which are still using this index share the channels 
+         // which are already open on the old file (they stay open until the
+         // last stream on the retired index is closed).
+         for (int j=0; j<m_readers.length(); j++)
+         {
+            channel = m_readers.get(j);
+            if ( (channel != null) && (channel.isOpen()) ) return channel;
+         }
+         throw new IOException(m_file + " has been modified");
+      }
+      FileChannel newChannel = new RandomAccessFile(m_file, "r").getChannel();
+      if (m_readers.compareAndSet(i, channel, newChannel))
+         return newChannel;
+      try { newChannel.close(); } catch (Exception e) {}
+      return _channel();
+   }
+
+   private Map<String, Entry> _read() throws IOException
+   //----------------------------------------------------
+   {
+      long length = _channel().size();
+      int tail = (int) Math.min(length, 22 + 65535);
+      if (tail < 22) return null;
+      byte[] b = new byte[tail];
+      _readFully(length - tail, b);
+      int eocd = -1;
+      for (int i=tail-22; i>=0; i--)
+      {
+         if (_getInt(b, i) == EOCD_SIG)
+         {
+            eocd = i;
+            break;
+         }
+      }
+      if (eocd < 0) return null;
+      int count = _getShort(b, eocd + 10);
+      long cenSize = _getInt(b, eocd + 12);
+      long cenOffset = _getInt(b, eocd + 16);
+      if ( (count == 0xFFFF) || (cenSize == 0xFFFFFFFFL) ||
+           (cenOffset == 0xFFFFFFFFL) || (cenOffset + cenSize > length) )
+         return null; // Zip64 or corrupt
+      byte[] cen = new byte[(int) cenSize];
+      _readFully(cenOffset, cen);
+      Calendar calendar = Calendar.getInstance();
+      Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+      int p = 0;
+      while (p + 46 <= cen.length)
+      {
+         if (_getInt(cen, p) != CEN_SIG) break;
+         int flags = _getShort(cen, p + 8);
+         int nameLen = _getShort(cen, p + 28);
+         int extraLen = _getShort(cen, p + 30);
+         int commentLen = _getShort(cen, p + 32);
+         if (p + 46 + nameLen > cen.length) break;
+         Entry entry = new Entry();
+         String name = _name(cen, p + 46, nameLen, (flags & 0x800) != 0);
+         entry.m_isDirectory = ( (name != null) && (name.endsWith("/")) );
+         entry.m_name = (name == null) ? null : normalize(name);
+         entry.m_time = _dosTime(calendar, _getShort(cen, p + 14), 
+                                 _getShort(cen, p + 12));
+         entry.m_method = _getShort(cen, p + 10);
+         entry.m_crc = _getInt(cen, p + 16);
+         entry.m_compressedSize = _getInt(cen, p + 20);
+         entry.m_size = _getInt(cen, p + 24);
+         entry.m_localHeaderOffset = _getInt(cen, p + 42);
+         p += 46 + nameLen + extraLen + commentLen;
+         if ( (entry.m_name == null) || (entry.m_name.length() == 0) ||
+              ((flags & 1) != 0) || (entry.m_compressedSize == 0xFFFFFFFFL) ||
+              (entry.m_size == 0xFFFFFFFFL) ||
+              (entry.m_localHeaderOffset == 0xFFFFFFFFL) )
+            continue; // Encrypted or zip64 entry
+         entries.put(entry.m_name, entry);
+      }
+      return entries;
+   }
+
+   /**
+    * Convert an MS-DOS date and time (in local time) to milliseconds.
+    */
+   static private long _dosTime(Calendar calendar, int date, int time)
+   //-----------------------------------------------------------------
+   {
+      calendar.clear();
+      calendar.set(((date >> 9) & 0x7f) + 1980, ((date >> 5) & 0x0f) - 1,
+                   date & 0x1f, (time >> 11) & 0x1f, (time >> 5) & 0x3f,
+                   (time & 0x1f) * 2);
+      return calendar.getTimeInMillis();
+   }
+
+   static private String _name(byte[] b, int offset, int len, boolean isUtf8)
+   //-------------------------------------------------------------------------
+   {
+      try
+      {
+         return new String(b, offset, len, (isUtf8) ? "UTF-8" : "IBM437");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         try { return new String(b, offset, len, "UTF-8"); }
+         catch (UnsupportedEncodingException ee) { return null; }
+      }
+   }
+
+   static private InputStream _wrap(byte[] header, InputStream is,
+                                    byte[] trailer)
+   //--------------------------------------------------------------
+   {
+      return new SequenceInputStream(new ByteArrayInputStream(header),
+                new SequenceInputStream(is, new ByteArrayInputStream(trailer)));
+   }
+
+   static private int _getShort(byte[] b, int i)
+   //-------------------------------------------
+   {
+      return (b[i] & 0xFF) | ((b[i+1] & 0xFF) << 8);
+   }
+
+   static private long _getInt(byte[] b, int i)
+   //------------------------------------------
+   {
+      return ( (b[i] & 0xFF) | ((b[i+1] & 0xFF) << 8) |
+               ((b[i+2] & 0xFF) << 16) | ((long) (b[i+3] & 0xFF) << 24) );
+   }
+
+   static private void _putInt(byte[] b, int i, long v, boolean isBigEndian)
+   //------------------------------------------------------------------------
+   {
+      for (int j=0; j<4; j++)
+         b[i + ((isBigEndian) ? 3 - j : j)] = (byte) (v >>> (8 * j));
+   }
+
+   /**
+    * Reads a region of the zip file using positioned reads on the shared
+    * channel. The index is released (@see ArchiveIndex#release) when the
+    * stream is closed.
+    */
+   private class ChannelInputStream extends InputStream
+   //==================================================
+   {
+      private long m_position;
+
+      private long m_remaining;
+
+      private boolean m_isClosed = false;
+
+      ChannelInputStream(long position, long length)
+      {
+         m_position = position;
+         m_remaining = length;
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+         byte[] b = new byte[1];
+         return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (len == 0) return 0;
+         if (m_remaining <= 0) return -1;
+         ByteBuffer buffer = ByteBuffer.wrap(b, off, 
+                                             (int) Math.min(len, m_remaining));
+         int n = _channel().read(buffer, m_position);
+         if (n < 0)
+            throw new IOException("Unexpected end of " + m_file);
+         m_position += n;
+         m_remaining -= n;
+         return n;
+      }
+
+      @Override
+      public long skip(long n)
+      {
+         if (n <= 0) return 0;
+         long skipped = Math.min(n, m_remaining);
+         m_position += skipped;
+         m_remaining -= skipped;
+         return skipped;
+      }
+
+      @Override
+      public int available()
+      {
+         return (int) Math.min(m_remaining, Integer.MAX_VALUE);
+      }
+
+      @Override
+      public void close()
+      {
+         synchronized (this)
+         {
+            if (m_isClosed) return;
+            m_isClosed = true;
+            m_remaining = 0;
+         }
+         release();
+      }
+   }
+}
@@ -0,0 +1,224 @@
+package net.homeip.donaldm.testng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import net.homeip.donaldm.httpdbase4j.ArchiveHttpd;
+import net.homeip.donaldm.httpdbase4j.ArchiveIndex;
+import net.homeip.donaldm.httpdbase4j.ArchiveStringTemplateGroup;
+import net.homeip.donaldm.httpdbase4j.ContentCache;
+import net.homeip.donaldm.httpdbase4j.Http;
+
+import org.antlr.stringtemplate.StringTemplate;
+import org.testng.annotations.Test;
+
+public class TestArchiveSwap
+//==========================
+{
+   private File m_dir = new File("test/htdocs-swap");
+   private int m_port = 8091;
+   private ArchiveHttpd m_httpd = null;
+
+   @Test(groups = { "archiveswap", "All" })
+   public void testSwap() throws Exception
+   //-------------------------------------
+   {
+      Http.deleteDir(m_dir);
+      m_dir.mkdirs();
+      long time = (System.currentTimeMillis() / 2000) * 2000 - 60000;
+      byte[] same = _contents("same", 8192);
+      byte[] a1 = _contents("version 1", 8192), a2 = _contents("version 2", 8192);
+      assert a1.length == a2.length;
+      File v1 = _zip("v1.zip", time, a1, same), v2 = _zip("v2.zip", time, a2, same);
+      m_httpd = new ArchiveHttpd(v1, "site");
+      m_httpd.setDiskCache(new File(m_dir, "cache"), 1024*1024, 0);
+      m_httpd.start(m_port, "/");
+      try
+      {
+         HttpURLConnection conn = _get("/a.txt", true, null);
+         assert Arrays.equals(_body(conn), a1) : "a.txt v1";
+         String etag1 = conn.getHeaderField("ETag");
+         assert Arrays.equals(_body(_get("/same.txt", false, null)), same);
+
+         // A stream which is open on the old index keeps it open
+         ArchiveIndex index1 = m_httpd.getArchiveIndex();
+         InputStream in = index1.getInputStream(index1.getEntry("site/a.txt"));
+         assert index1.getUserCount() == 1 : "Users " + index1.getUserCount();
+
+         assert m_httpd.swapArchive(v2, "site").get() : "Swap failed";
+
+         assert m_httpd.getArchiveIndex() != index1 : "Index not swapped";
+         assert index1.isRetired() : "Old index not retired";
+         assert Arrays.equals(_read(in), a1) : "Old stream after swap";
+         assert index1.getUserCount() == 0 : "Users " + index1.getUserCount();
+
+         // Same size and time but different content
+         conn = _get("/a.txt", true, null);
+         assert Arrays.equals(_body(conn), a2) : "a.txt gzip v2";
+         String etag2 = conn.getHeaderField("ETag");
+         assert (etag2 != null) && (! etag2.equals(etag1))
+            : "ETag not changed " + etag1 + " " + etag2;
+         assert Arrays.equals(_body(_get("/a.txt", false, null)), a2) : "a.txt v2";
+         conn = _get("/a.txt", false, etag1);
+         assert conn.getResponseCode() == 200 : "Old ETag " + conn.getResponseCode();
+         conn.disconnect();
+         conn = _get("/a.txt", false, etag2);
+         assert conn.getResponseCode() == 304 : "New ETag " + conn.getResponseCode();
+         conn.disconnect();
+
+         // Unchanged entries are still served from the content cache
+         ContentCache cache = m_httpd.getContentCache();
+         long hits = cache.getHitCount();
+         assert Arrays.equals(_body(_get("/same.txt", false, null)), same);
+         assert cache.getHitCount() == hits + 1
+            : "same.txt not cached across swap " + cache.getHitCount();
+
+         assert ! m_httpd.swapArchive(v1, "nosuch").get() : "Bad swap succeeded";
+         assert Arrays.equals(_body(_get("/a.txt", false, null)), a2)
+            : "a.txt after bad swap";
+
+         // Responses close their entry streams
+         ArchiveIndex index2 = m_httpd.getArchiveIndex();
+         for (int i=0; (i<20) && (index2.getUserCount() > 0); i++)
+            Thread.sleep(100);
+         assert index2.getUserCount() == 0 : "Users " + index2.getUserCount();
+      }
+      finally
+      {
+         m_httpd.stop(1);
+         m_httpd = null;
+         Http.deleteDir(m_dir);
+      }
+   }
+
+   @Test(groups = { "archiveswap", "All" }, dependsOnMethods = { "testSwap" })
+   public void testReplace() throws Exception
+   //----------------------------------------
+   {
+      Http.deleteDir(m_dir);
+      m_dir.mkdirs();
+      long time = (System.currentTimeMillis() / 2000) * 2000 - 60000;
+      byte[] same = _contents("same", 8192);
+      byte[] a1 = _contents("version 1", 8192), a2 = _contents("version 2", 8192);
+      File site = _zip("site.zip", time, a1, same);
+      m_httpd = new ArchiveHttpd(site, "site");
+      m_httpd.setContentCache(0, 0); // Read every request from the index
+      m_httpd.start(m_port, "/");
+      try
+      {
+         assert Arrays.equals(_body(_get("/a.txt", false, null)), a1) : "a.txt v1";
+         ArchiveIndex index1 = m_httpd.getArchiveIndex();
+
+         // Rename a new archive over the served one without swapping
+         File next = _zip("next.zip", time, a2, same);
+         next.setLastModified(site.lastModified() + 10000);
+         assert next.renameTo(site) : "Rename failed";
+
+         // Template and request lookups use the mounted index
+         ArchiveStringTemplateGroup group = 
+                           new ArchiveStringTemplateGroup("swap", site, "site");
+         StringTemplate template = group.getInstanceOf("page");
+         assert (template != null) && (template.toString().equals("page 1"))
+            : "Template " + template;
+         assert ! index1.isRetired() : "Mounted index retired by a lookup";
+         assert m_httpd.getArchiveIndex() == index1 : "Mounted index replaced";
+         assert Arrays.equals(_body(_get("/same.txt", false, null)), same)
+            : "same.txt after rename";
+         assert Arrays.equals(_body(_get("/a.txt", false, null)), a1)
+            : "a.txt after rename";
+
+         assert m_httpd.swapArchive(site, "site").get() : "Swap failed";
+         assert index1.isRetired() : "Old index not retired";
+         assert Arrays.equals(_body(_get("/a.txt", false, null)), a2) : "a.txt v2";
+         template = new ArchiveStringTemplateGroup("swap", site, "site")
+                                                      .getInstanceOf("page");
+         assert (template != null) && (template.toString().equals("page 2"))
+            : "Template after swap " + template;
+      }
+      finally
+      {
+         m_httpd.stop(1);
+         m_httpd = null;
+         Http.deleteDir(m_dir);
+      }
+   }
+
+   private HttpURLConnection _get(String path, boolean isGzip, String ifNoneMatch)
+           throws IOException
+   //----------------------------------------------------------------------------
+   {
+      URL url = new URL("http", "localhost", m_port, path);
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestProperty("User-Agent", "Opera");
+      conn.setRequestProperty("Accept-Encoding", (isGzip) ? "gzip" : "identity");
+      if (ifNoneMatch != null)
+         conn.setRequestProperty("If-None-Match", ifNoneMatch);
+      return conn;
+   }
+
+   static private byte[] _body(HttpURLConnection conn) throws IOException
+   //--------------------------------------------------------------------
+   {
+      assert conn.getResponseCode() == 200 : conn.getURL() + ": " +
+                                             conn.getResponseCode();
+      InputStream in = conn.getInputStream();
+      if ("gzip".equals(conn.getHeaderField("Content-Encoding")))
+         in = new GZIPInputStream(in);
+      return _read(in);
+   }
+
+   static private byte[] _read(InputStream in) throws IOException
+   //-------------------------------------------------------------
+   {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] b = new byte[4096];
+      int n;
+      while ( (n = in.read(b)) > 0)
+         bos.write(b, 0, n);
+      in.close();
+      return bos.toByteArray();
+   }
+
+   private File _zip(String name, long time, byte[] a, byte[] same)
+           throws IOException
+   //--------------------------------------------------------------
+   {
+      File f = new File(m_dir, name);
+      ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(f));
+      ZipEntry entry = new ZipEntry("site/a.txt");
+      entry.setTime(time);
+      zos.putNextEntry(entry);
+      zos.write(a);
+      zos.closeEntry();
+      entry = new ZipEntry("site/same.txt");
+      entry.setTime(time);
+      zos.putNextEntry(entry);
+      zos.write(same);
+      zos.closeEntry();
+      entry = new ZipEntry("site/page.st");
+      entry.setTime(time);
+      zos.putNextEntry(entry);
+      zos.write(("page " + (char) a[8]).getBytes("ISO-8859-1"));
+      zos.closeEntry();
+      zos.close();
+      return f;
+   }
+
+   static private byte[] _contents(String line, int length)
+   //------------------------------------------------------
+   {
+      byte[] b = new byte[length];
+      for (int i=0; i<length; i++)
+         b[i] = (byte) ( (i % 64 == 63) ? '\n' : line.charAt(i % line.length()));
+      return b;
+   }
+}
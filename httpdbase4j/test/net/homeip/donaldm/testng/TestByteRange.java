@@ -0,0 +1,165 @@
+package net.homeip.donaldm.testng;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+import net.homeip.donaldm.httpdbase4j.ByteRange;
+import net.homeip.donaldm.httpdbase4j.FileHttpd;
+import net.homeip.donaldm.httpdbase4j.Httpd;
+
+import org.testng.annotations.Test;
+
+public class TestByteRange
+//========================
+{
+   private File m_homeDir = new File("test/htdocs");
+   private int m_port = 8089;
+   private Httpd m_httpd = null;
+   private byte[] m_contents = null;
+
+   @Test(groups = { "byterange", "All" })
+   public void testParse()
+   //---------------------
+   {
+      List<ByteRange> ranges = ByteRange.parse("bytes=0-499", 1000);
+      assert ranges.size() == 1 : "bytes=0-499: " + ranges;
+      assertRange(ranges.get(0), 0, 499);
+
+      ranges = ByteRange.parse("bytes=-100", 1000);
+      assertRange(ranges.get(0), 900, 999);
+
+      ranges = ByteRange.parse("bytes=990-", 1000);
+      assertRange(ranges.get(0), 990, 999);
+
+      ranges = ByteRange.parse("bytes=500-2000", 1000);
+      assertRange(ranges.get(0), 500, 999);
+
+      // Overlapping and adjacent ranges are merged and sorted
+      ranges = ByteRange.parse("bytes=200-299, 0-99,100-150,250-400", 1000);
+      assert ranges.size() == 2 : "Merged ranges: " + ranges;
+      assertRange(ranges.get(0), 0, 150);
+      assertRange(ranges.get(1), 200, 400);
+
+      // Unsatisfiable ranges give an empty list (416)
+      ranges = ByteRange.parse("bytes=1000-1010", 1000);
+      assert (ranges != null) && (ranges.isEmpty()) : "Unsatisfiable: " + ranges;
+      ranges = ByteRange.parse("bytes=-0", 1000);
+      assert (ranges != null) && (ranges.isEmpty()) : "bytes=-0: " + ranges;
+
+      // Invalid headers are ignored
+      assert ByteRange.parse("bytes=", 1000) == null : "bytes= not ignored";
+      assert ByteRange.parse("bytes= , ,", 1000) == null : "bytes= , , not ignored";
+      assert ByteRange.parse("bytes=500-100", 1000) == null : "last < first not ignored";
+      assert ByteRange.parse("bytes=a-b", 1000) == null : "bytes=a-b not ignored";
+      assert ByteRange.parse("items=0-10", 1000) == null : "items=0-10 not ignored";
+      StringBuilder sb = new StringBuilder("bytes=0-0");
+      for (int i=1; i<=ByteRange.MAX_RANGES; i++)
+         sb.append(',').append(i*2).append('-').append(i*2);
+      assert ByteRange.parse(sb.toString(), 1000) == null : "Too many ranges not ignored";
+   }
+
+   @Test(groups = { "byterange", "All" }, dependsOnMethods = { "testParse" })
+   public void startRange() throws IOException, NoSuchFieldException
+   //---------------------------------------------------------------
+   {
+      m_homeDir.mkdirs();
+      m_contents = new byte[10000];
+      for (int i=0; i<m_contents.length; i++)
+         m_contents[i] = (byte) ('a' + (i % 26));
+      OutputStream os = new FileOutputStream(new File(m_homeDir, "range.txt"));
+      os.write(m_contents);
+      os.close();
+      m_httpd = new FileHttpd(m_homeDir, 10);
+      m_httpd.start(m_port, "/");
+   }
+
+   @Test(groups = { "byterange", "All" }, dependsOnMethods = { "startRange" })
+   public void testIfRange() throws IOException
+   //------------------------------------------
+   {
+      try
+      {
+         HttpURLConnection conn = _get("bytes=100-199", null);
+         assert conn.getResponseCode() == 206 : "Range: " + conn.getResponseCode();
+         assert "bytes 100-199/10000".equals(conn.getHeaderField("Content-Range"))
+            : "Content-Range " + conn.getHeaderField("Content-Range");
+         _assertBody(conn, 100, 100);
+         String etag = conn.getHeaderField("ETag");
+         String lastModified = conn.getHeaderField("Last-Modified");
+         assert etag != null : "No ETag";
+         String bare = etag.replaceAll("\"", "");
+
+         conn = _get("bytes=100-199", bare);
+         assert conn.getResponseCode() == 206 : "Unquoted If-Range: " + conn.getResponseCode();
+         _assertBody(conn, 100, 100);
+
+         conn = _get("bytes=100-199", "\"" + bare + "\"");
+         assert conn.getResponseCode() == 206 : "Quoted If-Range: " + conn.getResponseCode();
+         _assertBody(conn, 100, 100);
+
+         conn = _get("bytes=100-199", lastModified);
+         assert conn.getResponseCode() == 206 : "Date If-Range: " + conn.getResponseCode();
+
+         conn = _get("bytes=100-199", "\"x" + bare + "\"");
+         assert conn.getResponseCode() == 200 : "Mismatched If-Range: " + conn.getResponseCode();
+         _assertBody(conn, 0, m_contents.length);
+
+         conn = _get("bytes=100-199", "W/\"" + bare + "\"");
+         assert conn.getResponseCode() == 200 : "Weak If-Range: " + conn.getResponseCode();
+         _assertBody(conn, 0, m_contents.length);
+
+         conn = _get("bytes=", null);
+         assert conn.getResponseCode() == 200 : "Empty Range: " + conn.getResponseCode();
+         _assertBody(conn, 0, m_contents.length);
+
+         conn = _get("bytes=20000-", null);
+         assert conn.getResponseCode() == 416 : "Unsatisfiable Range: " + conn.getResponseCode();
+         conn.disconnect();
+      }
+      finally
+      {
+         m_httpd.stop(1);
+         m_httpd = null;
+      }
+   }
+
+   private HttpURLConnection _get(String range, String ifRange) throws IOException
+   //------------------------------------------------------------------------------
+   {
+      URL url = new URL("http", "localhost", m_port, "/range.txt");
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestProperty("Range", range);
+      if (ifRange != null)
+         conn.setRequestProperty("If-Range", ifRange);
+      return conn;
+   }
+
+   private void _assertBody(HttpURLConnection conn, int offset, int length)
+           throws IOException
+   //----------------------------------------------------------------------
+   {
+      InputStream in = conn.getInputStream();
+      byte[] b = new byte[length + 1];
+      int n, total = 0;
+      while ( (total < b.length) && ((n = in.read(b, total, b.length - total)) > 0) )
+         total += n;
+      in.close();
+      assert total == length : "Body length " + total + " != " + length;
+      for (int i=0; i<length; i++)
+         assert b[i] == m_contents[offset + i] : "Body differs at " + i;
+   }
+
+   static private void assertRange(ByteRange range, long first, long last)
+   //---------------------------------------------------------------------
+   {
+      assert (range.getFirst() == first) && (range.getLast() == last)
+         : "Expected " + first + "-" + last + " got " + range.getFirst() + "-" +
+           range.getLast();
+   }
+}
@@ -0,0 +1,195 @@
+package net.homeip.donaldm.testng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import net.homeip.donaldm.httpdbase4j.DiskCache;
+import net.homeip.donaldm.httpdbase4j.FileHttpd;
+import net.homeip.donaldm.httpdbase4j.Http;
+import net.homeip.donaldm.httpdbase4j.Httpd;
+
+import org.testng.annotations.Test;
+
+public class TestDiskCache
+//========================
+{
+   private File m_homeDir = new File("test/htdocs");
+   private File m_cacheDir = new File("test/htdocs-cache");
+   private int m_port = 8090;
+   private Httpd m_httpd = null;
+
+   @Test(groups = { "diskcache", "All" })
+   public void testNaming() throws IOException, NoSuchFieldException
+   //---------------------------------------------------------------
+   {
+      // "Aa" and "BB" have the same String hash code
+      assert "/Aa.txt".hashCode() == "/BB.txt".hashCode();
+      m_homeDir.mkdirs();
+      byte[] aa = _contents('a', 8192), bb = _contents('b', 8192);
+      File faa = _write("Aa.txt", aa), fbb = _write("BB.txt", bb);
+      fbb.setLastModified(faa.lastModified());
+      Http.deleteDir(m_cacheDir);
+      m_httpd = new FileHttpd(m_homeDir, 10);
+      m_httpd.setContentCache(0, 0); // Serve compressed variants from disk
+      m_httpd.setDiskCache(m_cacheDir, 1024*1024, 0);
+      m_httpd.start(m_port, "/");
+      try
+      {
+         for (int i=0; i<2; i++)
+         {
+            assert Arrays.equals(_getGzip("/Aa.txt"), aa) : "Aa.txt pass " + i;
+            assert Arrays.equals(_getGzip("/BB.txt"), bb) : "BB.txt pass " + i;
+         }
+         assert m_httpd.getDiskCache().size() == 2
+            : "Cached files " + m_httpd.getDiskCache();
+      }
+      finally
+      {
+         m_httpd.stop(1);
+         m_httpd = null;
+         Http.deleteDir(m_cacheDir);
+      }
+   }
+
+   @Test(groups = { "diskcache", "All" })
+   public void testEviction() throws IOException
+   //-------------------------------------------
+   {
+      Http.deleteDir(m_cacheDir);
+      try
+      {
+         DiskCache cache = new DiskCache(m_cacheDir, 3000, 0);
+         assert cache.isEnabled() : "Cache not enabled";
+         File f1 = cache.put("f1", _temp(cache, 1000));
+         File f2 = cache.put("f2", _temp(cache, 1000));
+         File f3 = cache.put("f3", _temp(cache, 1000));
+         assert (f1 != null) && (f2 != null) && (f3 != null);
+         assert (cache.size() == 3) && (cache.getBytes() == 3000) : cache;
+
+         // f1 becomes the most recently used so f2 is evicted first
+         assert f1.equals(cache.acquire("f1")) : "f1 not cached";
+         File f4 = cache.put("f4", _temp(cache, 1000));
+         assert f4 != null;
+         assert cache.get("f2") == null : "f2 not evicted";
+         assert ! f2.exists() : "f2 not deleted";
+         assert cache.getEvictionCount() == 1 : cache;
+
+         // An acquired file is only deleted once it is released
+         cache.put("f5", _temp(cache, 1000));
+         cache.put("f6", _temp(cache, 1000));
+         assert cache.get("f1") == null : "f1 not evicted";
+         assert f1.exists() : "Acquired f1 deleted";
+         cache.release(f1);
+         assert ! f1.exists() : "Released f1 not deleted";
+
+         // A replaced file stays in use by its readers
+         File f4b = cache.acquire("f4");
+         assert f4.equals(f4b);
+         assert f4.equals(cache.put("f4", _temp(cache, 500), true));
+         cache.remove("f4");
+         assert f4.exists() : "Acquired f4 deleted";
+         cache.release(f4);
+         assert f4.exists() : "f4 deleted while acquired";
+         cache.release(f4);
+         assert ! f4.exists() : "Released f4 not deleted";
+
+         // Files larger than the cache are not cached
+         File big = _temp(cache, 4000);
+         assert cache.put("big", big) == null : "Oversized file cached";
+         big.delete();
+
+         // Existing files are indexed by a new cache on the same directory
+         assert cache.size() == 2 : cache;
+         DiskCache reopened = new DiskCache(m_cacheDir, 3000, 0);
+         assert (reopened.size() == 2) && (reopened.getBytes() == 2000) 
+            : reopened;
+         assert reopened.get("f5") != null : "f5 not indexed";
+         reopened.clear();
+         assert (reopened.size() == 0) && (reopened.getBytes() == 0) : reopened;
+      }
+      finally
+      {
+         Http.deleteDir(m_cacheDir);
+      }
+   }
+
+   @Test(groups = { "diskcache", "All" })
+   public void testDefaultDirectory() throws IOException, NoSuchFieldException
+   //-------------------------------------------------------------------------
+   {
+      m_homeDir.mkdirs();
+      Httpd httpd1 = new FileHttpd(m_homeDir, 2), httpd2 = new FileHttpd(m_homeDir, 2);
+      httpd1.start(m_port, "/");
+      httpd2.start(m_port + 1, "/");
+      File dir1 = httpd1.getDiskCache().getDirectory(), 
+           dir2 = httpd2.getDiskCache().getDirectory();
+      httpd1.stop(1);
+      httpd2.stop(1);
+      assert (dir1 != null) && (dir2 != null) : "Disk cache disabled";
+      assert ! dir1.equals(dir2) : "Servers share cache directory " + dir1;
+      assert (! dir1.exists()) && (! dir2.exists()) 
+         : "Cache directories not deleted";
+   }
+
+   private byte[] _getGzip(String path) throws IOException
+   //-----------------------------------------------------
+   {
+      URL url = new URL("http", "localhost", m_port, path);
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestProperty("User-Agent", "Opera");
+      conn.setRequestProperty("Accept-Encoding", "gzip");
+      assert conn.getResponseCode() == 200 : path + ": " + conn.getResponseCode();
+      assert "gzip".equals(conn.getHeaderField("Content-Encoding"))
+         : path + " not compressed";
+      return _read(new GZIPInputStream(conn.getInputStream()));
+   }
+
+   private File _write(String name, byte[] contents) throws IOException
+   //------------------------------------------------------------------
+   {
+      File f = new File(m_homeDir, name);
+      OutputStream os = new FileOutputStream(f);
+      os.write(contents);
+      os.close();
+      return f;
+   }
+
+   static private File _temp(DiskCache cache, int length) throws IOException
+   //-----------------------------------------------------------------------
+   {
+      File f = cache.createTempFile("test");
+      OutputStream os = new FileOutputStream(f);
+      os.write(new byte[length]);
+      os.close();
+      return f;
+   }
+
+   static private byte[] _contents(char c, int length)
+   //-------------------------------------------------
+   {
+      byte[] b = new byte[length];
+      for (int i=0; i<length; i++)
+         b[i] = (byte) ( (i % 64 == 63) ? '\n' : c);
+      return b;
+   }
+
+   static private byte[] _read(InputStream in) throws IOException
+   //-------------------------------------------------------------
+   {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] b = new byte[4096];
+      int n;
+      while ( (n = in.read(b)) > 0)
+         bos.write(b, 0, n);
+      in.close();
+      return bos.toByteArray();
+   }
+}
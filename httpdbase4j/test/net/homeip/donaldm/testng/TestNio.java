@@ -0,0 +1,307 @@
+package net.homeip.donaldm.testng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import net.homeip.donaldm.httpdbase4j.FileHttpd;
+import net.homeip.donaldm.httpdbase4j.HttpResponse;
+import net.homeip.donaldm.httpdbase4j.Httpd;
+import net.homeip.donaldm.httpdbase4j.NioServerEngine;
+import net.homeip.donaldm.httpdbase4j.Postable;
+import net.homeip.donaldm.httpdbase4j.Request;
+
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class TestNio
+//==================
+{
+   private File m_homeDir = new File("test/htdocs");
+   private int m_port = 8092;
+   private Httpd m_httpd = null;
+   private byte[] m_contents = null;
+   private volatile Boolean m_stallResult = null;
+
+   /**
+    * A response read from a raw socket.
+    */
+   static private class Response
+   //===========================
+   {
+      int status;
+      String head;
+      byte[] body;
+   }
+
+   @Test(groups = { "nio", "All" })
+   public void startNio() throws IOException, NoSuchFieldException
+   //-------------------------------------------------------------
+   {
+      m_homeDir.mkdirs();
+      m_contents = new byte[20000];
+      for (int i=0; i<m_contents.length; i++)
+         m_contents[i] = (byte) ( (i % 64 == 63) ? '\n' : 'a' + (i % 26));
+      OutputStream os = new FileOutputStream(new File(m_homeDir, "nio.txt"));
+      os.write(m_contents);
+      os.close();
+      m_httpd = new FileHttpd(m_homeDir, 4)
+      {
+         @Override
+         public void onPostServe(long id, HttpExchange ex, Request request,
+                                 boolean isOK)
+         {
+            if (request.getName().equals("stall.bin"))
+               m_stallResult = isOK;
+         }
+      };
+      NioServerEngine engine = new NioServerEngine(2);
+      engine.setMaxHeaderSize(4096);
+      engine.setWriteTimeout(1000);
+      m_httpd.setServerEngine(engine);
+      m_httpd.addPostHandler("/echo", new Postable()
+      {
+         public Object onHandlePost(long id, HttpExchange ex, Request request,
+                                    HttpResponse response, java.io.File dir,
+                                    Object... extraParameters)
+         {
+            // Request only reads bodies with a Content-Length so the
+            // chunked body is read from the exchange
+            try
+            {
+               byte[] body = _readAll(ex.getRequestBody());
+               response.setMimeType("text/plain");
+               response.setBody("echo " + new String(body, "ISO-8859-1"));
+            }
+            catch (IOException e)
+            {
+               response.setStatus(500);
+            }
+            return response;
+         }
+      });
+      m_httpd.start(m_port, "/");
+   }
+
+   @Test(groups = { "nio", "All" }, dependsOnMethods = { "startNio" })
+   public void testPipelined() throws IOException
+   //--------------------------------------------
+   {
+      Socket socket = _connect();
+      try
+      {
+         // Both requests in one write so the second head is buffered while
+         // the first request is handled
+         String get = "GET /nio.txt HTTP/1.1\r\nHost: localhost\r\n" +
+                      "Accept: */*\r\n\r\n";
+         _write(socket, get + get + "GET /nosuch.txt HTTP/1.1\r\nHost: x\r\n" +
+                                    "Accept: */*\r\n\r\n");
+         InputStream in = socket.getInputStream();
+         for (int i=0; i<2; i++)
+         {
+            Response response = _read(in);
+            assert response.status == 200 : "Pipelined " + i + ": " + response.head;
+            assert Arrays.equals(response.body, m_contents) : "Pipelined body " + i;
+         }
+         Response response = _read(in);
+         assert response.status == 404 : "Pipelined 404: " + response.head;
+      }
+      finally
+      {
+         socket.close();
+      }
+   }
+
+   @Test(groups = { "nio", "All" }, dependsOnMethods = { "startNio" })
+   public void testChunkedRequest() throws IOException
+   //-------------------------------------------------
+   {
+      Socket socket = _connect();
+      try
+      {
+         // A chunked body split over chunks (with an extension and a
+         // trailer) followed by a pipelined GET
+         String post = "POST /echo HTTP/1.1\r\nHost: localhost\r\n" +
+                       "Content-Type: text/plain\r\n" +
+                       "Transfer-Encoding: chunked\r\n\r\n" +
+                       "4\r\nv=he\r\n" + "3;ext=1\r\nllo\r\n" +
+                       "0\r\nX-Trailer: 1\r\n\r\n";
+         _write(socket, post + "GET /nio.txt HTTP/1.1\r\nHost: localhost\r\n" +
+                               "Accept: */*\r\n\r\n");
+         InputStream in = socket.getInputStream();
+         Response response = _read(in);
+         assert response.status == 200 : "Chunked POST: " + response.head;
+         String body = new String(response.body, "ISO-8859-1");
+         assert body.equals("echo v=hello") : "Chunked POST body: " + body;
+         response = _read(in);
+         assert response.status == 200 : "GET after chunked POST: " + response.head;
+         assert Arrays.equals(response.body, m_contents) : "GET after chunked POST";
+      }
+      finally
+      {
+         socket.close();
+      }
+   }
+
+   @Test(groups = { "nio", "All" }, dependsOnMethods = { "startNio" })
+   public void testBadHead() throws IOException
+   //------------------------------------------
+   {
+      assert _status("GARBAGE\r\n\r\n") == 400 : "Invalid request line";
+      assert _status("GET /nio.txt HTTP/1.1\r\nNo colon\r\n\r\n") == 400
+         : "Invalid header";
+      assert _status("GET /nio.txt HTTP/1.1\r\n continued: x\r\n\r\n") == 400
+         : "Continuation without a header";
+      StringBuilder sb = new StringBuilder("GET /nio.txt HTTP/1.1\r\nX-Large: ");
+      for (int i=0; i<8192; i++)
+         sb.append('x');
+      sb.append("\r\n\r\n");
+      assert _status(sb.toString()) == 431 : "Header too large";
+
+      // A head split over several writes
+      Socket socket = _connect();
+      try
+      {
+         String[] parts = { "GET /nio", ".txt HTTP/1.1\r", "\nHost: local",
+                            "host\r\nAccept: */*\r\n\r", "\n" };
+         for (String part : parts)
+         {
+            _write(socket, part);
+            try { Thread.sleep(50); } catch (InterruptedException e) {}
+         }
+         Response response = _read(socket.getInputStream());
+         assert response.status == 200 : "Split head: " + response.head;
+         assert Arrays.equals(response.body, m_contents) : "Split head body";
+      }
+      finally
+      {
+         socket.close();
+      }
+   }
+
+   @Test(groups = { "nio", "All" }, dependsOnMethods = { "startNio" })
+   public void testStalledWrite() throws IOException, InterruptedException
+   //---------------------------------------------------------------------
+   {
+      File f = new File(m_homeDir, "stall.bin");
+      OutputStream os = new FileOutputStream(f);
+      os.write(new byte[16*1024*1024]);
+      os.close();
+      m_stallResult = null;
+      Socket socket = new Socket();
+      try
+      {
+         // The client never reads so the response write blocks once the
+         // socket buffers are full until the write timeout closes it
+         socket.setReceiveBufferSize(4096);
+         socket.connect(new InetSocketAddress("localhost", m_port));
+         _write(socket, "GET /stall.bin HTTP/1.1\r\nHost: localhost\r\n" +
+                        "Accept: */*\r\n\r\n");
+         long end = System.currentTimeMillis() + 10000;
+         while ( (m_stallResult == null) && (System.currentTimeMillis() < end) )
+            Thread.sleep(100);
+         assert m_stallResult != null : "Stalled write not aborted";
+         assert ! m_stallResult : "Stalled write completed";
+      }
+      finally
+      {
+         socket.close();
+         f.delete();
+      }
+   }
+
+   @Test(groups = { "nio", "All" },
+         dependsOnMethods = { "testPipelined", "testChunkedRequest", "testBadHead",
+                              "testStalledWrite" })
+   public void stopNio()
+   //-------------------
+   {
+      m_httpd.stop(1);
+      m_httpd = null;
+   }
+
+   private Socket _connect() throws IOException
+   //------------------------------------------
+   {
+      Socket socket = new Socket("localhost", m_port);
+      socket.setSoTimeout(10000);
+      return socket;
+   }
+
+   private int _status(String request) throws IOException
+   //-----------------------------------------------------
+   {
+      Socket socket = _connect();
+      try
+      {
+         _write(socket, request);
+         return _read(socket.getInputStream()).status;
+      }
+      finally
+      {
+         socket.close();
+      }
+   }
+
+   static private void _write(Socket socket, String s) throws IOException
+   //--------------------------------------------------------------------
+   {
+      OutputStream os = socket.getOutputStream();
+      os.write(s.getBytes("ISO-8859-1"));
+      os.flush();
+   }
+
+   /**
+    * Read a response with a Content-Length (or no body).
+    */
+   static private Response _read(InputStream in) throws IOException
+   //---------------------------------------------------------------
+   {
+      ByteArrayOutputStream head = new ByteArrayOutputStream();
+      int state = 0, b;
+      while (state < 4)
+      {
+         b = in.read();
+         if (b < 0) throw new IOException("Connection closed in head: " + head);
+         head.write(b);
+         if ( (b == '\r') && (state % 2 == 0) ) state++;
+         else if ( (b == '\n') && (state % 2 == 1) ) state++;
+         else state = 0;
+      }
+      Response response = new Response();
+      response.head = head.toString("ISO-8859-1");
+      String[] lines = response.head.split("\r\n");
+      response.status = Integer.parseInt(lines[0].split(" ")[1]);
+      int length = 0;
+      for (String line : lines)
+      {
+         if (line.toLowerCase().startsWith("content-length:"))
+            length = Integer.parseInt(line.substring(15).trim());
+      }
+      response.body = new byte[length];
+      int total = 0, n;
+      while ( (total < length) &&
+              ((n = in.read(response.body, total, length - total)) > 0) )
+         total += n;
+      assert total == length : "Body length " + total + " != " + length;
+      return response;
+   }
+
+   static private byte[] _readAll(InputStream in) throws IOException
+   //----------------------------------------------------------------
+   {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] b = new byte[4096];
+      int n;
+      while ( (n = in.read(b)) > 0)
+         bos.write(b, 0, n);
+      return bos.toByteArray();
+   }
+}
@@ -0,0 +1,208 @@
+package net.homeip.donaldm.testng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.homeip.donaldm.httpdbase4j.ContentCache;
+import net.homeip.donaldm.httpdbase4j.FileHttpd;
+import net.homeip.donaldm.httpdbase4j.Http;
+import net.homeip.donaldm.httpdbase4j.Httpd;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class TestSidecar
+//======================
+{
+   private File m_homeDir = new File("test/htdocs-sidecar");
+   private int m_port = 8093;
+   private Httpd m_httpd = null;
+   private byte[] m_source = null;
+   private long m_modified = 0;
+
+   @BeforeClass(groups = { "sidecar", "All" })
+   public void setupSidecar() throws IOException, NoSuchFieldException
+   //-----------------------------------------------------------------
+   {
+      Http.deleteDir(m_homeDir);
+      m_homeDir.mkdirs();
+      m_source = _contents('s', 16384);
+      // Whole seconds so the sidecars compare cleanly with the HTTP date
+      m_modified = (System.currentTimeMillis() / 1000 - 60) * 1000;
+      _write("app.js", m_source, m_modified);
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      GZIPOutputStream gzos = new GZIPOutputStream(bos);
+      gzos.write(m_source);
+      gzos.close();
+      _write("app.js.gz", bos.toByteArray(), m_modified + 1000);
+      _write("app.js.br", _contents('1', 512), m_modified + 1000);
+      m_httpd = new FileHttpd(m_homeDir, 10);
+      m_httpd.start(m_port, "/");
+   }
+
+   @AfterClass(groups = { "sidecar", "All" })
+   public void stopSidecar()
+   //-----------------------
+   {
+      if (m_httpd != null)
+         m_httpd.stop(1);
+      m_httpd = null;
+      Http.deleteDir(m_homeDir);
+   }
+
+   @Test(groups = { "sidecar", "All" })
+   public void testPreference() throws IOException
+   //---------------------------------------------
+   {
+      // The server's preference order wins over the order in the header
+      HttpURLConnection conn = _get("gzip, br");
+      assert "br".equals(conn.getHeaderField("Content-Encoding"))
+         : "gzip, br: " + conn.getHeaderField("Content-Encoding");
+      assert Arrays.equals(_read(conn.getInputStream()), _contents('1', 512))
+         : "gzip, br: not the .br sidecar";
+
+      conn = _get("gzip");
+      assert "gzip".equals(conn.getHeaderField("Content-Encoding"))
+         : "gzip: " + conn.getHeaderField("Content-Encoding");
+      assert Arrays.equals(_read(new GZIPInputStream(conn.getInputStream())),
+                           m_source) : "gzip: not the .gz sidecar";
+
+      conn = _get(null);
+      assert conn.getHeaderField("Content-Encoding") == null
+         : "No Accept-Encoding: " + conn.getHeaderField("Content-Encoding");
+      assert Arrays.equals(_read(conn.getInputStream()), m_source)
+         : "No Accept-Encoding: not the source";
+   }
+
+   @Test(groups = { "sidecar", "All" })
+   public void testRefused() throws IOException
+   //------------------------------------------
+   {
+      HttpURLConnection conn = _get("br;q=0, gzip");
+      assert "gzip".equals(conn.getHeaderField("Content-Encoding"))
+         : "br;q=0, gzip: " + conn.getHeaderField("Content-Encoding");
+      _read(conn.getInputStream());
+
+      conn = _get("br;q=0");
+      assert conn.getHeaderField("Content-Encoding") == null
+         : "br;q=0: " + conn.getHeaderField("Content-Encoding");
+      assert Arrays.equals(_read(conn.getInputStream()), m_source)
+         : "br;q=0: not the source";
+   }
+
+   @Test(groups = { "sidecar", "All" })
+   public void testVary() throws IOException
+   //---------------------------------------
+   {
+      String[] accepts = { "br", "gzip", "br;q=0" };
+      for (String accept : accepts)
+      {
+         HttpURLConnection conn = _get(accept);
+         String vary = conn.getHeaderField("Vary");
+         assert (vary != null) && (vary.indexOf("Accept-Encoding") >= 0)
+            : accept + ": Vary " + vary;
+         _read(conn.getInputStream());
+      }
+   }
+
+   @Test(groups = { "sidecar", "All" },
+         dependsOnMethods = { "testPreference", "testRefused", "testVary" })
+   public void testStale() throws IOException
+   //----------------------------------------
+   {
+      File br = new File(m_homeDir, "app.js.br");
+      try
+      {
+         // A sidecar older than its source is ignored
+         br.setLastModified(m_modified - 10000);
+         HttpURLConnection conn = _get("br, gzip");
+         assert "gzip".equals(conn.getHeaderField("Content-Encoding"))
+            : "Stale br: " + conn.getHeaderField("Content-Encoding");
+         _read(conn.getInputStream());
+      }
+      finally
+      {
+         br.setLastModified(m_modified + 1000);
+      }
+   }
+
+   @Test(groups = { "sidecar", "All" }, dependsOnMethods = { "testStale" })
+   public void testRegenerated() throws IOException
+   //----------------------------------------------
+   {
+      ContentCache cache = m_httpd.getContentCache();
+      assert Arrays.equals(_getBr(), _contents('1', 512)) : "br not served";
+      long hits = cache.getHitCount();
+      assert Arrays.equals(_getBr(), _contents('1', 512)) : "br not served";
+      assert cache.getHitCount() > hits : "br not served from the cache";
+
+      // The sidecar is regenerated (same length) while the source is unchanged
+      _write("app.js.br", _contents('2', 512), m_modified + 2000);
+      assert Arrays.equals(_getBr(), _contents('2', 512))
+         : "Cached contents of the replaced sidecar served";
+   }
+
+   private byte[] _getBr() throws IOException
+   //----------------------------------------
+   {
+      HttpURLConnection conn = _get("br");
+      assert "br".equals(conn.getHeaderField("Content-Encoding"))
+         : "br: " + conn.getHeaderField("Content-Encoding");
+      return _read(conn.getInputStream());
+   }
+
+   private HttpURLConnection _get(String acceptEncoding) throws IOException
+   //----------------------------------------------------------------------
+   {
+      URL url = new URL("http", "localhost", m_port, "/app.js");
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      if (acceptEncoding != null)
+         conn.setRequestProperty("Accept-Encoding", acceptEncoding);
+      assert conn.getResponseCode() == 200
+         : acceptEncoding + ": " + conn.getResponseCode();
+      return conn;
+   }
+
+   private File _write(String name, byte[] contents, long modified)
+           throws IOException
+   //-------------------------------------------------------------
+   {
+      File f = new File(m_homeDir, name);
+      OutputStream os = new FileOutputStream(f);
+      os.write(contents);
+      os.close();
+      f.setLastModified(modified);
+      return f;
+   }
+
+   static private byte[] _contents(char c, int length)
+   //-------------------------------------------------
+   {
+      byte[] b = new byte[length];
+      for (int i=0; i<length; i++)
+         b[i] = (byte) ( (i % 64 == 63) ? '\n' : c);
+      return b;
+   }
+
+   static private byte[] _read(InputStream in) throws IOException
+   //-------------------------------------------------------------
+   {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] b = new byte[4096];
+      int n;
+      while ( (n = in.read(b)) > 0)
+         bos.write(b, 0, n);
+      in.close();
+      return bos.toByteArray();
+   }
+}
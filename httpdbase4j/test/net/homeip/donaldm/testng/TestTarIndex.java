@@ -0,0 +1,206 @@
+package net.homeip.donaldm.testng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import net.homeip.donaldm.httpdbase4j.ArchiveIndex;
+import net.homeip.donaldm.httpdbase4j.Http;
+import net.homeip.donaldm.httpdbase4j.TarIndex;
+
+import org.apache.tools.bzip2.CBZip2OutputStream;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.testng.annotations.Test;
+
+public class TestTarIndex
+//=======================
+{
+   private File m_dir = new File("test/htdocs-tar");
+   private byte[] m_text = new byte[200000], m_random = new byte[70000],
+                  m_empty = new byte[0];
+
+   public TestTarIndex()
+   //-------------------
+   {
+      for (int i=0; i<m_text.length; i++)
+         m_text[i] = (byte) ( (i % 64 == 63) ? '\n' : 'a' + ((i / 7) % 26));
+      new Random(23).nextBytes(m_random);
+   }
+
+   @Test(groups = { "tarindex", "All" })
+   public void testFormats() throws IOException
+   //-----------------------------------------
+   {
+      Http.deleteDir(m_dir);
+      m_dir.mkdirs();
+      try
+      {
+         String[] names = { "site.tar", "site.tar.gz", "site.tar.bz2" };
+         for (String name : names)
+         {
+            File tar = _tar(name);
+            try
+            {
+               _assertIndex(name, ArchiveIndex.getIndex(tar));
+            }
+            finally
+            {
+               ArchiveIndex.remove(tar);
+            }
+         }
+      }
+      finally
+      {
+         Http.deleteDir(m_dir);
+      }
+   }
+
+   @Test(groups = { "tarindex", "All" })
+   public void testClose() throws IOException
+   //---------------------------------------
+   {
+      Http.deleteDir(m_dir);
+      m_dir.mkdirs();
+      File tar = _tar("close.tar.gz");
+      try
+      {
+         ArchiveIndex index = ArchiveIndex.getIndex(tar);
+         assert index instanceof TarIndex : "Not a TarIndex " + index;
+         ArchiveIndex.Entry entry = index.getEntry("dir/text.txt");
+         ByteBuffer buffer = index.getBuffer(entry);
+         ArchiveIndex.remove(tar);
+         assert index.isRetired() : "Index not retired";
+
+         // The mapping is dropped but buffers already handed out remain valid
+         assert ((TarIndex) index).getBlobSize() == 0 : "Blob still mapped";
+         assert index.getBuffer(entry) == null : "Buffer of a closed index";
+         assert Arrays.equals(_bytes(buffer), m_text) : "Buffer after close";
+         try
+         {
+            index.getInputStream(entry).close();
+            assert false : "Stream of a closed index";
+         }
+         catch (IOException e)
+         {
+         }
+      }
+      finally
+      {
+         ArchiveIndex.remove(tar);
+         Http.deleteDir(m_dir);
+      }
+   }
+
+   private void _assertIndex(String name, ArchiveIndex index) throws IOException
+   //---------------------------------------------------------------------------
+   {
+      assert index instanceof TarIndex : name + ": not a TarIndex " + index;
+      assert ((TarIndex) index).getBlobSize() ==
+             m_text.length + m_random.length
+         : name + ": blob size " + ((TarIndex) index).getBlobSize();
+      _assertEntry(name, index, "dir/text.txt", m_text);
+      _assertEntry(name, index, "random.bin", m_random);
+      _assertEntry(name, index, "empty.txt", m_empty);
+
+      ArchiveIndex.Entry dir = index.getEntry("dir");
+      assert (dir != null) && (dir.isDirectory()) : name + ": dir not indexed";
+      List<ArchiveIndex.Entry> children = index.getChildren(dir);
+      assert (children != null) && (children.size() == 1) &&
+             (children.get(0).getName().equals("dir/text.txt"))
+         : name + ": children of dir " + children;
+
+      // A byte range is a slice of the entry buffer
+      ByteBuffer buffer = index.getBuffer(index.getEntry("dir/text.txt"));
+      assert buffer.isReadOnly() : name + ": writable buffer";
+      buffer.position(1000);
+      buffer.limit(5000);
+      assert Arrays.equals(_bytes(buffer),
+                           Arrays.copyOfRange(m_text, 1000, 5000))
+         : name + ": range 1000-4999";
+      assert index.getUserCount() == 0
+         : name + ": users " + index.getUserCount();
+   }
+
+   static private void _assertEntry(String tar, ArchiveIndex index,
+                                    String name, byte[] contents)
+           throws IOException
+   //-------------------------------------------------------------------
+   {
+      ArchiveIndex.Entry entry = index.getEntry(name);
+      assert entry != null : tar + ": " + name + " not indexed";
+      assert entry.getSize() == contents.length
+         : tar + ": " + name + " size " + entry.getSize();
+      CRC32 crc = new CRC32();
+      crc.update(contents);
+      assert entry.getCrc() == crc.getValue() : tar + ": " + name + " CRC";
+      assert Arrays.equals(_read(index.getInputStream(entry)), contents)
+         : tar + ": " + name + " contents";
+      ByteBuffer buffer = index.getBuffer(entry);
+      assert (buffer != null) && (Arrays.equals(_bytes(buffer), contents))
+         : tar + ": " + name + " buffer";
+   }
+
+   private File _tar(String name) throws IOException
+   //-----------------------------------------------
+   {
+      File f = new File(m_dir, name);
+      OutputStream os = new FileOutputStream(f);
+      if (name.endsWith(".gz"))
+         os = new GZIPOutputStream(os);
+      else if (name.endsWith(".bz2"))
+      {
+         os.write('B'); // CBZip2OutputStream expects the BZ to be written
+         os.write('Z');
+         os = new CBZip2OutputStream(os);
+      }
+      TarOutputStream tos = new TarOutputStream(os);
+      tos.putNextEntry(new TarEntry("./dir/"));
+      tos.closeEntry();
+      _put(tos, "./dir/text.txt", m_text);
+      _put(tos, "random.bin", m_random);
+      _put(tos, "empty.txt", m_empty);
+      tos.close();
+      return f;
+   }
+
+   static private void _put(TarOutputStream tos, String name, byte[] contents)
+           throws IOException
+   //------------------------------------------------------------------------
+   {
+      TarEntry entry = new TarEntry(name);
+      entry.setSize(contents.length);
+      tos.putNextEntry(entry);
+      tos.write(contents);
+      tos.closeEntry();
+   }
+
+   static private byte[] _bytes(ByteBuffer buffer)
+   //---------------------------------------------
+   {
+      byte[] b = new byte[buffer.remaining()];
+      buffer.get(b);
+      return b;
+   }
+
+   static private byte[] _read(InputStream in) throws IOException
+   //-------------------------------------------------------------
+   {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] b = new byte[4096];
+      int n;
+      while ( (n = in.read(b)) > 0)
+         bos.write(b, 0, n);
+      in.close();
+      return bos.toByteArray();
+   }
+}
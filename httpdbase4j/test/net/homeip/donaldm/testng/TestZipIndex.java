@@ -0,0 +1,151 @@
+package net.homeip.donaldm.testng;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import net.homeip.donaldm.httpdbase4j.ArchiveIndex;
+import net.homeip.donaldm.httpdbase4j.Http;
+import net.homeip.donaldm.httpdbase4j.ZipIndex;
+
+import org.testng.annotations.Test;
+
+public class TestZipIndex
+//=======================
+{
+   private File m_dir = new File("test/htdocs-zip");
+
+   @Test(groups = { "zipindex", "All" })
+   public void testWrapping() throws IOException
+   //------------------------------------------
+   {
+      Http.deleteDir(m_dir);
+      m_dir.mkdirs();
+      File zip = new File(m_dir, "wrap.zip");
+      byte[] text = new byte[200000], random = new byte[70000], empty = new byte[0];
+      for (int i=0; i<text.length; i++)
+         text[i] = (byte) ( (i % 64 == 63) ? '\n' : 'a' + ((i / 7) % 26));
+      new Random(21).nextBytes(random);
+      ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zip));
+      _put(zos, "text.txt", text, ZipEntry.DEFLATED);
+      _put(zos, "random.bin", random, ZipEntry.DEFLATED);
+      _put(zos, "empty.txt", empty, ZipEntry.DEFLATED);
+      _put(zos, "stored.txt", text, ZipEntry.STORED);
+      zos.close();
+      try
+      {
+         ArchiveIndex index = ArchiveIndex.getIndex(zip);
+         assert index instanceof ZipIndex : "Not a ZipIndex " + index;
+         ZipIndex zipIndex = (ZipIndex) index;
+         _assertWrapped(zipIndex, "text.txt", text);
+         _assertWrapped(zipIndex, "random.bin", random);
+         _assertWrapped(zipIndex, "empty.txt", empty);
+
+         ArchiveIndex.Entry stored = index.getEntry("stored.txt");
+         assert stored.getMethod() == ArchiveIndex.STORED;
+         assert Arrays.equals(_read(index.getInputStream(stored)), text)
+            : "stored.txt contents";
+         assert index.getUserCount() == 0 : "Users " + index.getUserCount();
+      }
+      finally
+      {
+         ArchiveIndex.remove(zip);
+         Http.deleteDir(m_dir);
+      }
+   }
+
+   /**
+    * Checks the gzip and zlib wrapped deflate data of an entry against the
+    * java.util.zip decoders and checksums.
+    */
+   static private void _assertWrapped(ZipIndex index, String name,
+                                      byte[] contents) throws IOException
+   //-----------------------------------------------------------------------
+   {
+      ArchiveIndex.Entry entry = index.getEntry(name);
+      assert entry != null : name + " not indexed";
+      assert entry.getMethod() == ArchiveIndex.DEFLATED : name + " not deflated";
+      assert Arrays.equals(_read(index.getInputStream(entry)), contents)
+         : name + " inflated contents";
+
+      // GZIPInputStream checks the CRC and size in the trailer
+      byte[] gzip = _read(index.getGzipStream(entry));
+      assert gzip.length == index.getGzipLength(entry)
+         : name + " gzip length " + gzip.length + " != " + index.getGzipLength(entry);
+      assert Arrays.equals(_read(new GZIPInputStream(
+                                      new ByteArrayInputStream(gzip))),
+                           contents) : name + " gzip contents";
+      CRC32 crc = new CRC32();
+      crc.update(contents);
+      assert _getInt(gzip, gzip.length - 8, false) == crc.getValue()
+         : name + " gzip CRC";
+      assert _getInt(gzip, gzip.length - 4, false) == contents.length
+         : name + " gzip size";
+
+      // The zlib Inflater checks the Adler-32 trailer
+      Adler32 adler = new Adler32();
+      adler.update(contents);
+      assert index.getAdler32(entry) == adler.getValue() : name + " Adler-32";
+      byte[] zlib = _read(index.getZlibStream(entry));
+      assert zlib.length == index.getZlibLength(entry)
+         : name + " zlib length " + zlib.length + " != " + index.getZlibLength(entry);
+      assert ((((zlib[0] & 0xFF) << 8) | (zlib[1] & 0xFF)) % 31) == 0
+         : name + " zlib header check";
+      assert _getInt(zlib, zlib.length - 4, true) == adler.getValue()
+         : name + " zlib trailer";
+      assert Arrays.equals(_read(new InflaterInputStream(
+                                      new ByteArrayInputStream(zlib))),
+                           contents) : name + " zlib contents";
+   }
+
+   static private void _put(ZipOutputStream zos, String name, byte[] contents,
+                            int method) throws IOException
+   //----------------------------------------------------------------------
+   {
+      ZipEntry entry = new ZipEntry(name);
+      entry.setMethod(method);
+      if (method == ZipEntry.STORED)
+      {
+         CRC32 crc = new CRC32();
+         crc.update(contents);
+         entry.setSize(contents.length);
+         entry.setCompressedSize(contents.length);
+         entry.setCrc(crc.getValue());
+      }
+      zos.putNextEntry(entry);
+      zos.write(contents);
+      zos.closeEntry();
+   }
+
+   static private long _getInt(byte[] b, int i, boolean isBigEndian)
+   //---------------------------------------------------------------
+   {
+      long v = 0;
+      for (int j=0; j<4; j++)
+         v |= (long) (b[i + ((isBigEndian) ? 3 - j : j)] & 0xFF) << (8 * j);
+      return v;
+   }
+
+   static private byte[] _read(InputStream in) throws IOException
+   //-------------------------------------------------------------
+   {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] b = new byte[4096];
+      int n;
+      while ( (n = in.read(b)) > 0)
+         bos.write(b, 0, n);
+      in.close();
+      return bos.toByteArray();
+   }
+}